@@ -0,0 +1,129 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Isak Karlsson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+ * NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.briljantframework.mimir.classification;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+
+import org.briljantframework.Check;
+
+/**
+ * A wall-clock and memory budget for fitting an ensemble. Once the budget is exhausted, no more
+ * members are started; the members already started are completed and the ensemble consists of the
+ * members completed so far (with the out-of-bag indicator trimmed accordingly). Since the members
+ * are started in order, the members fitted are always a prefix of the members of the ensemble
+ * (e.g., a {@linkplain Ensemble.Learner#grow grown} ensemble continues with the next member).
+ * Members that check the budget while growing (e.g., the trees of a {@link RandomShapeletForest})
+ * stop growing once it is exhausted, i.e., their unexpanded nodes become leaves.
+ *
+ * <pre>
+ * Budget budget = Budget.ofTime(10, TimeUnit.MINUTES).withMemory(4L &lt;&lt; 30);
+ * RandomShapeletForest forest =
+ *     RandomShapeletForest.withSize(2000).setBudget(budget).configure().fit(x, y);
+ * </pre>
+ *
+ * The memory budget is compared with the heap in use, which includes garbage not yet collected;
+ * hence, it is a soft limit. At least one member is always fitted.
+ *
+ * @author Isak Karlsson
+ */
+public final class Budget {
+
+  private static final Budget UNLIMITED = new Budget(Long.MAX_VALUE, Long.MAX_VALUE);
+
+  private final long nanos;
+  private final long memory;
+
+  private Budget(long nanos, long memory) {
+    Check.argument(nanos > 0, "Time budget must be positive");
+    Check.argument(memory > 0, "Memory budget must be positive");
+    this.nanos = nanos;
+    this.memory = memory;
+  }
+
+  public static Budget unlimited() {
+    return UNLIMITED;
+  }
+
+  public static Budget ofTime(long time, TimeUnit unit) {
+    return UNLIMITED.withTime(time, unit);
+  }
+
+  /**
+   * @param bytes the largest heap in use
+   * @return a memory budget
+   */
+  public static Budget ofMemory(long bytes) {
+    return UNLIMITED.withMemory(bytes);
+  }
+
+  public Budget withTime(long time, TimeUnit unit) {
+    return new Budget(unit.toNanos(time), memory);
+  }
+
+  public Budget withMemory(long bytes) {
+    return new Budget(nanos, bytes);
+  }
+
+  /**
+   * Start spending this budget. Once exhausted, the budget stays exhausted (even if the heap in use
+   * falls after a garbage collection), so that no member or node is started after another has
+   * been refused.
+   *
+   * @return a supplier returning {@code true} once the budget is exhausted
+   */
+  public BooleanSupplier start() {
+    if (this == UNLIMITED) {
+      return () -> false;
+    }
+    long start = System.nanoTime();
+    Runtime runtime = Runtime.getRuntime();
+    AtomicBoolean exhausted = new AtomicBoolean();
+    return () -> {
+      if (!exhausted.get() && (System.nanoTime() - start >= nanos || (memory != Long.MAX_VALUE
+          && runtime.totalMemory() - runtime.freeMemory() >= memory))) {
+        exhausted.set(true);
+      }
+      return exhausted.get();
+    };
+  }
+
+  /**
+   * Write this budget (see {@link ShardedShapeletForest}, where each worker is given the budget)
+   */
+  void write(ModelFormat.Output out) throws IOException {
+    out.putLong(nanos);
+    out.putLong(memory);
+  }
+
+  static Budget read(ModelFormat.Input in) {
+    return new Budget(in.getLong(), in.getLong());
+  }
+
+  @Override
+  public String toString() {
+    return String.format("Budget(time=%s, memory=%s)",
+        nanos == Long.MAX_VALUE ? "unlimited" : TimeUnit.NANOSECONDS.toMillis(nanos) + "ms",
+        memory == Long.MAX_VALUE ? "unlimited" : memory + "B");
+  }
+}
@@ -0,0 +1,1087 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Isak Karlsson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+ * NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.briljantframework.mimir.classification;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.stream.IntStream;
+
+import org.briljantframework.Check;
+import org.briljantframework.array.DoubleArray;
+import org.briljantframework.array.IntArray;
+import org.briljantframework.data.Is;
+import org.briljantframework.data.dataframe.DataFrame;
+import org.briljantframework.data.vector.Convert;
+import org.briljantframework.data.vector.Vector;
+import org.briljantframework.mimir.classification.tree.HyperPlaneThreshold;
+import org.briljantframework.mimir.classification.tree.ShapeletThreshold;
+import org.briljantframework.mimir.classification.tree.TreeBranch;
+import org.briljantframework.mimir.classification.tree.TreeClassifier;
+import org.briljantframework.mimir.classification.tree.TreeLeaf;
+import org.briljantframework.mimir.classification.tree.TreeNode;
+import org.briljantframework.mimir.classification.tree.ValueThreshold;
+import org.briljantframework.mimir.distance.Distance;
+import org.briljantframework.mimir.shapelet.ChannelShapelet;
+import org.briljantframework.mimir.shapelet.Shapelet;
+import org.briljantframework.mimir.supervised.Characteristic;
+
+/**
+ * A compiled, read-only, ensemble of trees (e.g., a {@link RandomForest}, a
+ * {@link RandomShapeletForest} or a forest of {@link HyperPlaneTree hyper plane trees}) stored in
+ * struct-of-arrays form. The nodes of all trees are stored (in pre-order) in contiguous primitive
+ * arrays and the probabilities of the leaves in a single {@code double[]}. An example is classified
+ * by iteratively following the child offsets of each tree, which (except for the distance
+ * computations of shapelet trees) neither allocates nor dispatches through a
+ * {@link org.briljantframework.mimir.classification.tree.TreeVisitor}.
+ * <p>
+ * The estimates are the same as the estimates of the ensemble it was compiled from.
+ * <p>
+ * A data frame is estimated in blocks of records (in parallel) and each block is evaluated
+ * tree-major, accumulating the estimates in a single {@code double[rows * classes]}. Identical
+ * shapelets (i.e., with the same values, channel and distance) used by several nodes are
+ * evaluated only once per record and block.
+ * <p>
+ * A compiled forest {@linkplain ModelFormat#read(java.nio.file.Path) read} from disk stores the
+ * arrays in (read-only) buffers, which use the memory-mapped file directly.
+ *
+ * @author Isak Karlsson
+ * @see Ensemble#compile()
+ */
+public final class CompiledForest extends AbstractClassifier {
+
+  private static final byte VALUE = 0, NOMINAL = 1, HYPER_PLANE = 2, SHAPELET = 3;
+  private static final int BLOCK_SIZE = 256;
+
+  private final int trees;
+  private final int classes;
+
+  /**
+   * The root of each tree. A node {@code n >= 0} is a branch and a node {@code n < 0} is the leaf
+   * {@code -n - 1}.
+   */
+  private final int[] roots;
+
+  /**
+   * The topology, thresholds, planes and leaf probabilities of the nodes
+   */
+  private final Nodes nodes;
+
+  /**
+   * For {@code NOMINAL} nodes, the value which goes left
+   */
+  private final Object[] values;
+
+  /**
+   * For {@code SHAPELET} nodes, {@code axis} is the index of the (unique) shapelet and its
+   * distances
+   */
+  private final Shapelet[] shapelets;
+  private final Distance[] categoricDistances;
+  private final Distance[] numericDistances;
+
+  /**
+   * For shapelets used by more than one node, the slot in the distance cache of a block; otherwise
+   * {@code -1}
+   */
+  private final int[] slots;
+  private final int cachedShapelets;
+
+  private CompiledForest(Vector classes, Compiler compiler) {
+    super(classes);
+    this.trees = compiler.roots.length;
+    this.classes = classes.size();
+    this.roots = compiler.roots;
+    this.nodes = new ArrayNodes(compiler);
+    this.values = compiler.values;
+    this.shapelets = compiler.shapelets;
+    this.categoricDistances = compiler.categoricDistances;
+    this.numericDistances = compiler.numericDistances;
+    this.slots = compiler.slots;
+    this.cachedShapelets = compiler.cachedShapelets;
+  }
+
+  private CompiledForest(Vector classes, ModelFormat.Input in) throws IOException {
+    super(classes);
+    this.classes = classes.size();
+    this.trees = in.getInt();
+    int nodes = in.getInt();
+    int leaves = in.getInt();
+    int planeSize = in.getInt();
+
+    Distance[] distances = new Distance[in.getInt()];
+    for (int i = 0; i < distances.length; i++) {
+      distances[i] = in.getDistance();
+    }
+    int n = in.getInt();
+    this.shapelets = new Shapelet[n];
+    this.categoricDistances = new Distance[n];
+    this.numericDistances = new Distance[n];
+    this.slots = new int[n];
+    for (int i = 0; i < n; i++) {
+      shapelets[i] = in.getShapelet();
+      categoricDistances[i] = distance(distances, in.getInt());
+      numericDistances[i] = distance(distances, in.getInt());
+      slots[i] = in.getInt();
+    }
+    this.cachedShapelets = in.getInt();
+    this.values = new Object[nodes];
+    for (int i = 0, nominal = in.getInt(); i < nominal; i++) {
+      int node = in.getInt();
+      values[node] = in.getObject();
+    }
+
+    IntBuffer[] roots = in.mapInts(trees);
+    this.roots = new int[trees];
+    for (int i = 0; i < trees; i++) {
+      this.roots[i] = ModelFormat.get(roots, i);
+    }
+    this.nodes = new MappedNodes(in, nodes, (long) leaves * this.classes, planeSize);
+  }
+
+  /**
+   * A view of the tree {@code root} of the given forest (sharing its nodes)
+   */
+  private CompiledForest(CompiledForest forest, int root) {
+    super(forest.getClasses());
+    this.trees = 1;
+    this.classes = forest.classes;
+    this.roots = new int[] {root};
+    this.nodes = forest.nodes;
+    this.values = forest.values;
+    this.shapelets = forest.shapelets;
+    this.categoricDistances = forest.categoricDistances;
+    this.numericDistances = forest.numericDistances;
+    this.slots = forest.slots;
+    this.cachedShapelets = forest.cachedShapelets;
+  }
+
+  private static Distance distance(Distance[] distances, int index) {
+    return index < 0 ? null : distances[index];
+  }
+
+  /**
+   * Read a compiled forest (see {@link ModelFormat})
+   */
+  static CompiledForest read(Vector classes, ModelFormat.Input in) throws IOException {
+    return new CompiledForest(classes, in);
+  }
+
+  /**
+   * Write this compiled forest (see {@link ModelFormat}). The (small) objects are written to
+   * {@code header} and the arrays to {@code data}.
+   */
+  void write(ModelFormat.Output header, ModelFormat.Output data) throws IOException {
+    int size = nodes.size();
+    header.putInt(trees);
+    header.putInt(size);
+    header.putInt(leaves());
+    header.putInt(nodes.planeSize());
+
+    Map<Distance, Integer> distanceIndex = new IdentityHashMap<>();
+    List<Distance> distances = new ArrayList<>();
+    for (int i = 0; i < shapelets.length; i++) {
+      for (Distance distance : new Distance[] {categoricDistances[i], numericDistances[i]}) {
+        if (distance != null && !distanceIndex.containsKey(distance)) {
+          distanceIndex.put(distance, distances.size());
+          distances.add(distance);
+        }
+      }
+    }
+    header.putInt(distances.size());
+    for (Distance distance : distances) {
+      header.putDistance(distance);
+    }
+    header.putInt(shapelets.length);
+    for (int i = 0; i < shapelets.length; i++) {
+      header.putShapelet(shapelets[i]);
+      header.putInt(categoricDistances[i] == null ? -1 : distanceIndex.get(categoricDistances[i]));
+      header.putInt(numericDistances[i] == null ? -1 : distanceIndex.get(numericDistances[i]));
+      header.putInt(slots[i]);
+    }
+    header.putInt(cachedShapelets);
+    int nominal = 0;
+    for (int i = 0; i < size; i++) {
+      if (nodes.kind(i) == NOMINAL) {
+        nominal++;
+      }
+    }
+    header.putInt(nominal);
+    for (int i = 0; i < size; i++) {
+      if (nodes.kind(i) == NOMINAL) {
+        header.putInt(i);
+        header.putObject(values[i]);
+      }
+    }
+
+    data.putInts(roots);
+    nodes.write(data);
+  }
+
+  private int leaves() {
+    return (int) (nodes.probabilities() / Math.max(1, classes));
+  }
+
+  /**
+   * Returns true if the given members can be {@linkplain #compile(Vector, List) compiled}, i.e., if
+   * every member is a tree of leaves and branches on value, hyper plane or shapelet thresholds.
+   *
+   * @param members the members
+   * @return true if the members can be compiled
+   */
+  public static boolean canCompile(List<? extends Classifier> members) {
+    for (Classifier member : members) {
+      if (!(member instanceof TreeClassifier)
+          || !canCompile(((TreeClassifier<?>) member).getTree())) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean canCompile(TreeNode<?> node) {
+    if (node instanceof TreeLeaf) {
+      return true;
+    } else if (!(node instanceof TreeBranch)) {
+      return false;
+    }
+    TreeBranch<?> branch = (TreeBranch<?>) node;
+    Object t = branch.getThreshold();
+    return (t instanceof ValueThreshold || t instanceof HyperPlaneThreshold
+        || t instanceof ShapeletThreshold) && canCompile(branch.getLeft())
+        && canCompile(branch.getRight())
+        && (branch.getMissing() == null || canCompile(branch.getMissing()));
+  }
+
+  /**
+   * Compile the given ensemble. The members of the ensemble must be {@link DecisionTree decision
+   * trees}, {@link HyperPlaneTree hyper plane trees} or {@link ShapeletTree shapelet trees}.
+   *
+   * @param ensemble the ensemble
+   * @return a compiled ensemble
+   * @throws IllegalArgumentException if a member cannot be compiled
+   */
+  public static CompiledForest compile(Ensemble ensemble) {
+    return compile(ensemble.getClasses(), ensemble.getEnsembleMembers());
+  }
+
+  /**
+   * Compile the given trees, e.g., a single {@link ShapeletTree}, as a forest.
+   *
+   * @param classes the classes (in the order of the leaf probabilities of the trees)
+   * @param members the trees
+   * @return a compiled forest
+   * @throws IllegalArgumentException if a member cannot be compiled
+   */
+  public static CompiledForest compile(Vector classes, List<? extends Classifier> members) {
+    Compiler compiler = new Compiler(classes.size());
+    for (Classifier member : members) {
+      Check.argument(member instanceof TreeClassifier, "Can't compile %s", member);
+      compiler.count(((TreeClassifier<?>) member).getTree());
+    }
+    compiler.allocate(members.size());
+    for (Classifier member : members) {
+      if (member instanceof ShapeletTree) {
+        ShapeletTree tree = (ShapeletTree) member;
+        compiler.collect(tree.getTree(), tree.getCategoricDistance(), tree.getNumericDistance());
+      }
+    }
+    compiler.assignSlots();
+    for (int i = 0; i < members.size(); i++) {
+      Classifier member = members.get(i);
+      Distance categoric = null, numeric = null;
+      if (member instanceof ShapeletTree) {
+        categoric = ((ShapeletTree) member).getCategoricDistance();
+        numeric = ((ShapeletTree) member).getNumericDistance();
+      }
+      compiler.roots[i] = compiler.add(((TreeClassifier<?>) member).getTree(), categoric, numeric);
+    }
+    return new CompiledForest(classes, compiler);
+  }
+
+  /**
+   * Concatenate the trees of the given forests (in order), e.g., the forests of
+   * {@linkplain Ensemble#merge(List) merged} ensembles.
+   *
+   * @param classes the classes (in the order of the leaf probabilities of all forests)
+   * @param forests the forests
+   * @return a compiled forest of all trees
+   */
+  public static CompiledForest concat(Vector classes, List<CompiledForest> forests) {
+    Compiler compiler = new Compiler(classes.size());
+    int trees = 0, shapeletCount = 0;
+    for (CompiledForest forest : forests) {
+      Check.argument(forest.classes == classes.size(), "Forest has %s classes; expected %s.",
+          forest.classes, classes.size());
+      trees += forest.trees;
+      compiler.nodes += forest.nodes.size();
+      compiler.leaves += forest.leaves();
+      compiler.planeSize += forest.nodes.planeSize();
+      shapeletCount += forest.shapelets.length;
+    }
+    compiler.allocate(trees);
+    compiler.shapelets = new Shapelet[shapeletCount];
+    compiler.categoricDistances = new Distance[shapeletCount];
+    compiler.numericDistances = new Distance[shapeletCount];
+    compiler.slots = new int[shapeletCount];
+
+    int tree = 0, node = 0, leaf = 0, plane = 0, shapelet = 0, slot = 0;
+    for (CompiledForest forest : forests) {
+      Nodes nodes = forest.nodes;
+      for (int i = 0; i < forest.trees; i++) {
+        compiler.roots[tree++] = offset(forest.roots[i], node, leaf);
+      }
+      for (int i = 0, n = nodes.size(); i < n; i++) {
+        int k = node + i;
+        byte type = nodes.kind(i);
+        compiler.kind[k] = type;
+        compiler.left[k] = offset(nodes.left(i), node, leaf);
+        compiler.right[k] = offset(nodes.right(i), node, leaf);
+        compiler.missing[k] = offset(nodes.missing(i), node, leaf);
+        int a = nodes.axis(i);
+        compiler.axis[k] = type == SHAPELET ? a + shapelet : type == HYPER_PLANE ? a + plane : a;
+        compiler.threshold[k] = nodes.threshold(i);
+        compiler.values[k] = forest.values[i];
+        compiler.planeLength[k] = nodes.planeLength(i);
+      }
+      for (int i = 0, n = nodes.planeSize(); i < n; i++) {
+        compiler.planeWeights[plane + i] = nodes.planeWeight(i);
+        compiler.planeColumns[plane + i] = nodes.planeColumn(i);
+      }
+      for (int i = 0, n = (int) nodes.probabilities(); i < n; i++) {
+        compiler.probabilities[leaf * classes.size() + i] = nodes.probability(i);
+      }
+      for (int i = 0; i < forest.shapelets.length; i++) {
+        compiler.shapelets[shapelet + i] = forest.shapelets[i];
+        compiler.categoricDistances[shapelet + i] = forest.categoricDistances[i];
+        compiler.numericDistances[shapelet + i] = forest.numericDistances[i];
+        compiler.slots[shapelet + i] = forest.slots[i] < 0 ? -1 : forest.slots[i] + slot;
+      }
+      node += nodes.size();
+      leaf += forest.leaves();
+      plane += nodes.planeSize();
+      shapelet += forest.shapelets.length;
+      slot += forest.cachedShapelets;
+    }
+    compiler.cachedShapelets = slot;
+    return new CompiledForest(classes, compiler);
+  }
+
+  /**
+   * Offset a reference to a node ({@code n >= 0}) or a leaf ({@code n < 0})
+   */
+  private static int offset(int n, int nodes, int leaves) {
+    return n >= 0 ? n + nodes : n - leaves;
+  }
+
+  /**
+   * @return the number of trees
+   */
+  public int size() {
+    return trees;
+  }
+
+  /**
+   * Get the trees of this forest as (single tree) compiled forests sharing the arrays of this
+   * forest, e.g., as the members of an ensemble {@linkplain ModelFormat#read(java.nio.file.Path)
+   * read} from disk.
+   *
+   * @return the trees
+   */
+  public List<CompiledForest> getTrees() {
+    List<CompiledForest> members = new ArrayList<>(trees);
+    for (int i = 0; i < trees; i++) {
+      members.add(new CompiledForest(this, roots[i]));
+    }
+    return members;
+  }
+
+  @Override
+  public DoubleArray estimate(Vector record) {
+    double[] estimate = new double[classes];
+    estimate(record, estimate);
+    return DoubleArray.of(estimate);
+  }
+
+  /**
+   * Estimate the class probabilities of the given record, without allocating.
+   *
+   * @param record the record
+   * @param estimate the destination of the estimates (of length {@code getClasses().size()});
+   *        overwritten
+   */
+  public void estimate(Vector record, double[] estimate) {
+    Arrays.fill(estimate, 0);
+    for (int tree = 0; tree < trees; tree++) {
+      long offset = (long) leaf(roots[tree], record, 0, null) * classes;
+      for (int j = 0; j < classes; j++) {
+        estimate[j] += nodes.probability(offset + j) / trees;
+      }
+    }
+  }
+
+  @Override
+  public DoubleArray estimate(DataFrame x) {
+    int rows = x.rows();
+    double[] out = new double[rows * classes];
+    estimate(x, out);
+    DoubleArray estimates = DoubleArray.zeros(rows, classes);
+    for (int i = 0; i < rows; i++) {
+      for (int j = 0; j < classes; j++) {
+        estimates.set(i, j, out[i * classes + j]);
+      }
+    }
+    return estimates;
+  }
+
+  /**
+   * Estimate the class probabilities of the records in the given data frame. The estimate of the
+   * {@code i}:th record is stored in {@code out[i * classes, (i + 1) * classes)}.
+   *
+   * @param x the records
+   * @param out the destination of the estimates (of length {@code x.rows() * classes});
+   *        overwritten
+   */
+  public void estimate(DataFrame x, double[] out) {
+    int rows = x.rows();
+    Check.argument(out.length == rows * classes, "Illegal size of out: %s (expected %s).",
+        out.length, rows * classes);
+    Arrays.fill(out, 0);
+    int blocks = (rows + BLOCK_SIZE - 1) / BLOCK_SIZE;
+    IntStream.range(0, blocks).parallel().forEach(block -> {
+      int from = block * BLOCK_SIZE;
+      estimate(x, from, Math.min(rows, from + BLOCK_SIZE), out);
+    });
+  }
+
+  /**
+   * Estimate the records {@code [from, to)} tree-major
+   */
+  private void estimate(DataFrame x, int from, int to, double[] out) {
+    int n = to - from;
+    Vector[] records = new Vector[n];
+    for (int i = 0; i < n; i++) {
+      records[i] = x.loc().getRecord(from + i);
+    }
+    DistanceCache cache = cachedShapelets > 0 ? new DistanceCache(cachedShapelets, n) : null;
+    for (int tree = 0; tree < trees; tree++) {
+      for (int i = 0; i < n; i++) {
+        long offset = (long) leaf(roots[tree], records[i], i, cache) * classes;
+        int dest = (from + i) * classes;
+        for (int j = 0; j < classes; j++) {
+          out[dest + j] += nodes.probability(offset + j) / trees;
+        }
+      }
+    }
+  }
+
+  /**
+   * Follow the nodes from {@code node} to a leaf
+   *
+   * @param row the position of the record in the block
+   * @param cache the distance cache of the block (or {@code null})
+   * @return the index of the leaf
+   */
+  private int leaf(int node, Vector record, int row, DistanceCache cache) {
+    Nodes nodes = this.nodes;
+    while (node >= 0) {
+      switch (nodes.kind(node)) {
+        case VALUE: {
+          int a = nodes.axis(node);
+          if (record.loc().isNA(a)) {
+            node = nodes.missing(node);
+          } else {
+            node = Double.compare(record.loc().getAsDouble(a), nodes.threshold(node)) <= 0
+                ? nodes.left(node) : nodes.right(node);
+          }
+          break;
+        }
+        case NOMINAL: {
+          int a = nodes.axis(node);
+          if (record.loc().isNA(a)) {
+            node = nodes.missing(node);
+          } else {
+            node = record.loc().get(Object.class, a).equals(values[node]) ? nodes.left(node)
+                : nodes.right(node);
+          }
+          break;
+        }
+        case HYPER_PLANE: {
+          int offset = nodes.axis(node);
+          double sum = nodes.planeWeight(offset);
+          for (int j = 1, n = nodes.planeLength(node); j <= n; j++) {
+            sum += nodes.planeWeight(offset + j)
+                * record.loc().getAsDouble(nodes.planeColumn(offset + j));
+          }
+          node = sum < nodes.threshold(node) ? nodes.left(node) : nodes.right(node);
+          break;
+        }
+        case SHAPELET: {
+          double distance = distance(nodes.axis(node), record, row, cache);
+          if (Is.NA(distance)) {
+            node = nodes.missing(node);
+          } else {
+            node = distance < nodes.threshold(node) ? nodes.left(node) : nodes.right(node);
+          }
+          break;
+        }
+        default:
+          throw new IllegalStateException();
+      }
+    }
+    return -node - 1;
+  }
+
+  private double distance(int index, Vector record, int row, DistanceCache cache) {
+    int slot = slots[index];
+    if (cache == null || slot < 0) {
+      return ShapeletTree.computeDistance(shapelets[index], record, categoricDistances[index],
+          numericDistances[index]);
+    }
+    int k = slot * cache.rows + row;
+    if (!cache.computed[k]) {
+      cache.distances[k] = ShapeletTree.computeDistance(shapelets[index], record,
+          categoricDistances[index], numericDistances[index]);
+      cache.computed[k] = true;
+    }
+    return cache.distances[k];
+  }
+
+  @Override
+  public Set<Characteristic> getCharacteristics() {
+    return Collections.singleton(ClassifierCharacteristic.ESTIMATOR);
+  }
+
+  @Override
+  public String toString() {
+    return String.format("CompiledForest(trees=%d, nodes=%d, leaves=%d)", trees, nodes.size(),
+        leaves());
+  }
+
+  /**
+   * The distances between the shapelets used by more than one node and the records of a block
+   */
+  private static final class DistanceCache {
+    private final int rows;
+    private final double[] distances;
+    private final boolean[] computed;
+
+    private DistanceCache(int shapelets, int rows) {
+      this.rows = rows;
+      this.distances = new double[shapelets * rows];
+      this.computed = new boolean[shapelets * rows];
+    }
+  }
+
+  /**
+   * Identifies shapelets that compute the same distance for every record
+   */
+  private static final class ShapeletKey {
+    private final Class<?> type;
+    private final Class<?> delegateType;
+    private final int channel;
+    private final Object[] values;
+    private final Distance categoricDistance;
+    private final Distance numericDistance;
+
+    private ShapeletKey(Shapelet shapelet, Distance categoricDistance, Distance numericDistance) {
+      this.type = shapelet.getClass();
+      if (shapelet instanceof ChannelShapelet) {
+        this.channel = ((ChannelShapelet) shapelet).getChannel();
+        this.delegateType = shapelet.getDelegate().getClass();
+      } else {
+        this.channel = -1;
+        this.delegateType = null;
+      }
+      this.values = new Object[shapelet.size()];
+      for (int i = 0; i < values.length; i++) {
+        values[i] = shapelet.loc().get(Object.class, i);
+      }
+      this.categoricDistance = categoricDistance;
+      this.numericDistance = numericDistance;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof ShapeletKey)) {
+        return false;
+      }
+      ShapeletKey that = (ShapeletKey) o;
+      return channel == that.channel && type == that.type && delegateType == that.delegateType
+          && categoricDistance == that.categoricDistance
+          && numericDistance == that.numericDistance && Arrays.equals(values, that.values);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(type, delegateType, channel, Arrays.hashCode(values),
+          System.identityHashCode(categoricDistance), System.identityHashCode(numericDistance));
+    }
+  }
+
+  /**
+   * The topology, thresholds, planes and leaf probabilities of the nodes, stored either in arrays
+   * (if compiled) or in memory-mapped buffers (if read from disk)
+   */
+  private abstract static class Nodes {
+
+    /**
+     * @return the number of nodes
+     */
+    abstract int size();
+
+    abstract int planeSize();
+
+    /**
+     * @return the number of leaf probabilities (i.e., {@code leaves * classes})
+     */
+    abstract long probabilities();
+
+    abstract byte kind(int node);
+
+    abstract int left(int node);
+
+    abstract int right(int node);
+
+    abstract int missing(int node);
+
+    abstract int axis(int node);
+
+    abstract double threshold(int node);
+
+    abstract int planeLength(int node);
+
+    abstract double planeWeight(int index);
+
+    abstract int planeColumn(int index);
+
+    abstract double probability(long index);
+
+    /**
+     * Write the arrays (in the order read by {@link MappedNodes})
+     */
+    abstract void write(ModelFormat.Output data) throws IOException;
+  }
+
+  private static final class ArrayNodes extends Nodes {
+    private final byte[] kind;
+    private final int[] left, right, missing, axis, planeLength, planeColumns;
+    private final double[] threshold, planeWeights, probabilities;
+
+    private ArrayNodes(Compiler compiler) {
+      this.kind = compiler.kind;
+      this.left = compiler.left;
+      this.right = compiler.right;
+      this.missing = compiler.missing;
+      this.axis = compiler.axis;
+      this.planeLength = compiler.planeLength;
+      this.planeColumns = compiler.planeColumns;
+      this.threshold = compiler.threshold;
+      this.planeWeights = compiler.planeWeights;
+      this.probabilities = compiler.probabilities;
+    }
+
+    @Override
+    int size() {
+      return kind.length;
+    }
+
+    @Override
+    int planeSize() {
+      return planeWeights.length;
+    }
+
+    @Override
+    long probabilities() {
+      return probabilities.length;
+    }
+
+    @Override
+    byte kind(int node) {
+      return kind[node];
+    }
+
+    @Override
+    int left(int node) {
+      return left[node];
+    }
+
+    @Override
+    int right(int node) {
+      return right[node];
+    }
+
+    @Override
+    int missing(int node) {
+      return missing[node];
+    }
+
+    @Override
+    int axis(int node) {
+      return axis[node];
+    }
+
+    @Override
+    double threshold(int node) {
+      return threshold[node];
+    }
+
+    @Override
+    int planeLength(int node) {
+      return planeLength[node];
+    }
+
+    @Override
+    double planeWeight(int index) {
+      return planeWeights[index];
+    }
+
+    @Override
+    int planeColumn(int index) {
+      return planeColumns[index];
+    }
+
+    @Override
+    double probability(long index) {
+      return probabilities[(int) index];
+    }
+
+    @Override
+    void write(ModelFormat.Output data) throws IOException {
+      data.putBytes(kind);
+      data.putInts(left);
+      data.putInts(right);
+      data.putInts(missing);
+      data.putInts(axis);
+      data.putInts(planeLength);
+      data.putInts(planeColumns);
+      data.putDoubles(threshold);
+      data.putDoubles(planeWeights);
+      data.putDoubles(probabilities);
+    }
+  }
+
+  /**
+   * Nodes stored in (read-only) memory-mapped buffers, each array split in chunks of
+   * {@link ModelFormat#CHUNK_SIZE} elements
+   */
+  private static final class MappedNodes extends Nodes {
+    private final int size, planeSize;
+    private final long probabilityCount;
+    private final ByteBuffer[] kind;
+    private final IntBuffer[] left, right, missing, axis, planeLength, planeColumns;
+    private final DoubleBuffer[] threshold, planeWeights, probabilities;
+
+    private MappedNodes(ModelFormat.Input in, int size, long probabilities, int planeSize)
+        throws IOException {
+      this.size = size;
+      this.planeSize = planeSize;
+      this.probabilityCount = probabilities;
+      this.kind = in.mapBytes(size);
+      this.left = in.mapInts(size);
+      this.right = in.mapInts(size);
+      this.missing = in.mapInts(size);
+      this.axis = in.mapInts(size);
+      this.planeLength = in.mapInts(size);
+      this.planeColumns = in.mapInts(planeSize);
+      this.threshold = in.mapDoubles(size);
+      this.planeWeights = in.mapDoubles(planeSize);
+      this.probabilities = in.mapDoubles(probabilities);
+    }
+
+    @Override
+    int size() {
+      return size;
+    }
+
+    @Override
+    int planeSize() {
+      return planeSize;
+    }
+
+    @Override
+    long probabilities() {
+      return probabilityCount;
+    }
+
+    @Override
+    byte kind(int node) {
+      return ModelFormat.get(kind, node);
+    }
+
+    @Override
+    int left(int node) {
+      return ModelFormat.get(left, node);
+    }
+
+    @Override
+    int right(int node) {
+      return ModelFormat.get(right, node);
+    }
+
+    @Override
+    int missing(int node) {
+      return ModelFormat.get(missing, node);
+    }
+
+    @Override
+    int axis(int node) {
+      return ModelFormat.get(axis, node);
+    }
+
+    @Override
+    double threshold(int node) {
+      return ModelFormat.get(threshold, node);
+    }
+
+    @Override
+    int planeLength(int node) {
+      return ModelFormat.get(planeLength, node);
+    }
+
+    @Override
+    double planeWeight(int index) {
+      return ModelFormat.get(planeWeights, index);
+    }
+
+    @Override
+    int planeColumn(int index) {
+      return ModelFormat.get(planeColumns, index);
+    }
+
+    @Override
+    double probability(long index) {
+      return ModelFormat.get(probabilities, index);
+    }
+
+    @Override
+    void write(ModelFormat.Output data) throws IOException {
+      data.putBytes(kind);
+      data.putInts(left);
+      data.putInts(right);
+      data.putInts(missing);
+      data.putInts(axis);
+      data.putInts(planeLength);
+      data.putInts(planeColumns);
+      data.putDoubles(threshold);
+      data.putDoubles(planeWeights);
+      data.putDoubles(probabilities);
+    }
+  }
+
+  /**
+   * Flattens the trees in passes: the first pass counts the nodes, leaves and planes, the second
+   * collects the unique shapelets and the third fills the arrays.
+   */
+  private static final class Compiler {
+
+    private final int classes;
+    private int nodes = 0, leaves = 0, planeSize = 0;
+    private final Map<ShapeletKey, Integer> shapeletIndex = new HashMap<>();
+    private final List<ShapeletKey> shapeletKeys = new ArrayList<>();
+    private final List<Shapelet> uniqueShapelets = new ArrayList<>();
+    private int[] uses = new int[16];
+    private int[] slots;
+    private int cachedShapelets = 0;
+
+    private int[] roots;
+    private byte[] kind;
+    private int[] left, right, missing, axis, planeLength, planeColumns;
+    private double[] threshold, planeWeights, probabilities;
+    private Object[] values;
+    private Shapelet[] shapelets;
+    private Distance[] categoricDistances, numericDistances;
+
+    private int nextNode = 0, nextLeaf = 0, nextPlane = 0;
+
+    private Compiler(int classes) {
+      this.classes = classes;
+    }
+
+    private void count(TreeNode<?> node) {
+      if (node instanceof TreeLeaf) {
+        leaves++;
+      } else if (node instanceof TreeBranch) {
+        TreeBranch<?> branch = (TreeBranch<?>) node;
+        nodes++;
+        Object t = branch.getThreshold();
+        if (t instanceof HyperPlaneThreshold) {
+          planeSize += ((HyperPlaneThreshold) t).getWeights().size();
+        }
+        count(branch.getLeft());
+        count(branch.getRight());
+        if (branch.getMissing() != null) {
+          count(branch.getMissing());
+        }
+      } else {
+        throw new IllegalArgumentException("Can't compile " + node);
+      }
+    }
+
+    private void allocate(int trees) {
+      roots = new int[trees];
+      kind = new byte[nodes];
+      left = new int[nodes];
+      right = new int[nodes];
+      missing = new int[nodes];
+      axis = new int[nodes];
+      threshold = new double[nodes];
+      values = new Object[nodes];
+      planeLength = new int[nodes];
+      planeWeights = new double[planeSize];
+      planeColumns = new int[planeSize];
+      Check.argument((long) leaves * classes <= Integer.MAX_VALUE,
+          "Too many leaves to compile: %s (with %s classes)", leaves, classes);
+      probabilities = new double[leaves * classes];
+    }
+
+    private void collect(TreeNode<?> node, Distance categoric, Distance numeric) {
+      if (!(node instanceof TreeBranch)) {
+        return;
+      }
+      TreeBranch<?> branch = (TreeBranch<?>) node;
+      Object t = branch.getThreshold();
+      if (t instanceof ShapeletThreshold) {
+        index(((ShapeletThreshold) t).getShapelet(), categoric, numeric, true);
+      }
+      collect(branch.getLeft(), categoric, numeric);
+      collect(branch.getRight(), categoric, numeric);
+      if (branch.getMissing() != null) {
+        collect(branch.getMissing(), categoric, numeric);
+      }
+    }
+
+    /**
+     * Get the index of the unique shapelet (adding it if it's new)
+     */
+    private int index(Shapelet shapelet, Distance categoric, Distance numeric, boolean use) {
+      ShapeletKey key = new ShapeletKey(shapelet, categoric, numeric);
+      Integer index = shapeletIndex.get(key);
+      if (index == null) {
+        index = uniqueShapelets.size();
+        shapeletIndex.put(key, index);
+        shapeletKeys.add(key);
+        uniqueShapelets.add(shapelet);
+        if (index >= uses.length) {
+          uses = Arrays.copyOf(uses, uses.length * 2);
+        }
+      }
+      if (use) {
+        uses[index]++;
+      }
+      return index;
+    }
+
+    private void assignSlots() {
+      int n = uniqueShapelets.size();
+      shapelets = uniqueShapelets.toArray(new Shapelet[n]);
+      categoricDistances = new Distance[n];
+      numericDistances = new Distance[n];
+      slots = new int[n];
+      for (int i = 0; i < n; i++) {
+        ShapeletKey key = shapeletKeys.get(i);
+        categoricDistances[i] = key.categoricDistance;
+        numericDistances[i] = key.numericDistance;
+        slots[i] = uses[i] > 1 ? cachedShapelets++ : -1;
+      }
+    }
+
+    private int add(TreeNode<?> node, Distance categoric, Distance numeric) {
+      if (node instanceof TreeLeaf) {
+        DoubleArray p = ((TreeLeaf<?>) node).getProbabilities();
+        Check.argument(p.size() == classes, "Leaf has %s classes; expected %s.", p.size(),
+            classes);
+        int leaf = nextLeaf++;
+        for (int j = 0; j < classes; j++) {
+          probabilities[leaf * classes + j] = p.get(j);
+        }
+        return -leaf - 1;
+      }
+
+      TreeBranch<?> branch = (TreeBranch<?>) node;
+      int n = nextNode++;
+      Object t = branch.getThreshold();
+      if (t instanceof ValueThreshold) {
+        ValueThreshold value = (ValueThreshold) t;
+        axis[n] = value.getAxis();
+        if (Is.nominal(value.getValue())) {
+          kind[n] = NOMINAL;
+          values[n] = value.getValue();
+        } else {
+          kind[n] = VALUE;
+          threshold[n] = Convert.to(Double.class, value.getValue());
+        }
+      } else if (t instanceof HyperPlaneThreshold) {
+        HyperPlaneThreshold plane = (HyperPlaneThreshold) t;
+        DoubleArray weights = plane.getWeights();
+        IntArray features = plane.getFeatures();
+        int offset = nextPlane;
+        kind[n] = HYPER_PLANE;
+        axis[n] = offset;
+        threshold[n] = plane.getThreshold();
+
+        // The plane is evaluated against [1, x], using (except for the intercept) the
+        // features [1, features.size()) of the plane (see HyperPlaneTree)
+        int length = features == null ? weights.size() - 1 : features.size() - 1;
+        planeWeights[offset] = weights.get(0);
+        planeColumns[offset] = -1;
+        for (int j = 1; j <= length; j++) {
+          planeWeights[offset + j] = weights.get(j);
+          planeColumns[offset + j] = (features == null ? j : features.get(j)) - 1;
+        }
+        planeLength[n] = length;
+        nextPlane += weights.size();
+      } else if (t instanceof ShapeletThreshold) {
+        ShapeletThreshold shapelet = (ShapeletThreshold) t;
+        kind[n] = SHAPELET;
+        axis[n] = index(shapelet.getShapelet(), categoric, numeric, false);
+        threshold[n] = shapelet.getDistance();
+      } else {
+        throw new IllegalArgumentException("Can't compile threshold " + t);
+      }
+
+      left[n] = add(branch.getLeft(), categoric, numeric);
+      right[n] = add(branch.getRight(), categoric, numeric);
+      if (kind[n] == SHAPELET) {
+        missing[n] = branch.getMissing() != null ? add(branch.getMissing(), categoric, numeric)
+            : right[n];
+      } else if (kind[n] == HYPER_PLANE) {
+        missing[n] = right[n];
+      } else {
+        missing[n] = left[n]; // as in the prediction visitor of decision trees
+      }
+      return n;
+    }
+  }
+}
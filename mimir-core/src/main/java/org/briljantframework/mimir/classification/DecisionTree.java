@@ -29,17 +29,19 @@ import org.briljantframework.data.dataframe.DataFrame;
 import org.briljantframework.data.vector.Convert;
 import org.briljantframework.data.vector.Vector;
 import org.briljantframework.data.vector.Vectors;
+import org.briljantframework.mimir.classification.tree.ArrayClassSet;
 import org.briljantframework.mimir.classification.tree.ClassSet;
 import org.briljantframework.mimir.classification.tree.Splitter;
 import org.briljantframework.mimir.classification.tree.TreeBranch;
 import org.briljantframework.mimir.classification.tree.TreeClassifier;
 import org.briljantframework.mimir.classification.tree.TreeLeaf;
 import org.briljantframework.mimir.classification.tree.TreeNode;
-import org.briljantframework.mimir.classification.tree.TreeSplit;
+import org.briljantframework.mimir.classification.tree.TreePartition;
 import org.briljantframework.mimir.classification.tree.TreeVisitor;
 import org.briljantframework.mimir.classification.tree.ValueThreshold;
 import org.briljantframework.mimir.supervised.Characteristic;
 import org.briljantframework.mimir.supervised.Predictor;
+import org.briljantframework.mimir.supervised.RandomStream;
 
 /**
  * @author Isak Karlsson <isak-kar@dsv.su.se>
@@ -70,6 +72,7 @@ public class DecisionTree extends TreeClassifier<ValueThreshold> {
 
     protected final double mininumWeight = 1;
     protected final Splitter splitter;
+    protected final RandomStream random;
 
     protected ClassSet classSet;
     protected Vector classes = null;
@@ -78,45 +81,57 @@ public class DecisionTree extends TreeClassifier<ValueThreshold> {
       this(splitter, null, null);
     }
 
+    /**
+     * @param splitter the splitter
+     * @param random the stream from which the random numbers of each fitted tree are derived
+     */
+    public Learner(Splitter splitter, RandomStream random) {
+      this(splitter, null, null, random);
+    }
 
     protected Learner(Splitter splitter, ClassSet classSet, Vector classes) {
+      this(splitter, classSet, classes, RandomStream.create());
+    }
+
+    protected Learner(Splitter splitter, ClassSet classSet, Vector classes, RandomStream random) {
       this.splitter = splitter;
       this.classSet = classSet;
       this.classes = classes;
+      this.random = random;
     }
 
     @Override
     public DecisionTree fit(DataFrame x, Vector y) {
-      ClassSet classSet = this.classSet;
       Vector classes = this.classes != null ? this.classes : Vectors.unique(y);
-      if (classSet == null) {
-        classSet = new ClassSet(y, classes);
-      }
+      ArrayClassSet set = this.classSet != null ? ArrayClassSet.create(this.classSet)
+          : ArrayClassSet.create(y, classes);
 
       Params p = new Params();
-      TreeNode<ValueThreshold> node = build(x, y, p, classSet);
+      p.random = random.split();
+      TreeNode<ValueThreshold> node = build(x, y, p, set);
       return new DecisionTree(classes, node, p.depth, new SimplePredictionVisitor());
     }
 
     protected TreeNode<ValueThreshold> build(DataFrame frame, Vector target, Params p,
-        ClassSet classSet) {
-      return build(frame, target, p, classSet, 1);
+        ArrayClassSet set) {
+      return build(frame, target, p, set, 1);
     }
 
     protected TreeNode<ValueThreshold> build(DataFrame frame, Vector target, Params p,
-        ClassSet classSet, int depth) {
+        ArrayClassSet set, int depth) {
 
-      if (classSet.getTotalWeight() <= mininumWeight || classSet.getTargetCount() == 1) {
+      if (set.getTotalWeight() <= mininumWeight || set.getTargetCount() == 1) {
         p.depth = Math.max(p.depth, depth);
-        return TreeLeaf.fromExamples(classSet);
+        return TreeLeaf.fromExamples(set);
       }
-      TreeSplit<ValueThreshold> maxSplit = splitter.find(classSet, frame, target);
+      RandomStream random = p.random;
+      TreePartition<ValueThreshold> maxSplit = splitter.partition(set, frame, target, random);
       if (maxSplit == null) {
         p.depth = Math.max(p.depth, depth);
-        return TreeLeaf.fromExamples(classSet);
+        return TreeLeaf.fromExamples(set);
       } else {
-        ClassSet left = maxSplit.getLeft();
-        ClassSet right = maxSplit.getRight();
+        ArrayClassSet left = maxSplit.getLeft();
+        ArrayClassSet right = maxSplit.getRight();
         if (left.isEmpty()) {
           p.depth = Math.max(p.depth, depth);
           return TreeLeaf.fromExamples(right);
@@ -124,8 +139,12 @@ public class DecisionTree extends TreeClassifier<ValueThreshold> {
           p.depth = Math.max(p.depth, depth);
           return TreeLeaf.fromExamples(left);
         } else {
+          // the streams of the children only depend on the stream of the node
+          p.random = random.split(0);
           TreeNode<ValueThreshold> leftNode = build(frame, target, p, left, depth + 1);
+          p.random = random.split(1);
           TreeNode<ValueThreshold> rightNode = build(frame, target, p, right, depth + 1);
+          p.random = random;
           return new TreeBranch<>(leftNode, rightNode, classes, maxSplit.getThreshold(), 1);
         }
       }
@@ -134,6 +153,7 @@ public class DecisionTree extends TreeClassifier<ValueThreshold> {
     private final class Params {
 
       public int depth = 0;
+      public RandomStream random;
     }
   }
 
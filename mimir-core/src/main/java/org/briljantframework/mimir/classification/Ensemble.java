@@ -21,16 +21,15 @@
 package org.briljantframework.mimir.classification;
 
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.Callable;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.util.function.BooleanSupplier;
 import java.util.stream.Collectors;
 
+import org.briljantframework.Check;
+import org.briljantframework.array.Arrays;
 import org.briljantframework.array.BooleanArray;
 import org.briljantframework.array.DoubleArray;
 import org.briljantframework.data.dataframe.DataFrame;
@@ -38,22 +37,218 @@ import org.briljantframework.data.vector.Vector;
 import org.briljantframework.mimir.classification.tree.ClassSet;
 import org.briljantframework.mimir.supervised.Characteristic;
 import org.briljantframework.mimir.supervised.Predictor;
+import org.briljantframework.mimir.supervised.RandomStream;
 
 /**
  * @author Isak Karlsson <isak-kar@dsv.su.se>
  */
 public class Ensemble extends AbstractClassifier {
 
+  private static final double VOTE_TOLERANCE = 1e-9;
+
   private final List<? extends Classifier> members;
   private final BooleanArray oobIndicator;
+  private final OutOfBagEstimates outOfBagEstimates;
+
+  /**
+   * The compiled ensemble used for batch prediction (lazily compiled)
+   */
+  private volatile CompiledForest compiled = null;
+  private volatile boolean compilable = true;
 
   protected Ensemble(Vector classes, List<? extends Classifier> members, BooleanArray oobIndicator) {
+    this(classes, members, oobIndicator, null);
+  }
+
+  /**
+   * @param compiled the compiled members (or {@code null} to compile lazily)
+   */
+  protected Ensemble(Vector classes, List<? extends Classifier> members, BooleanArray oobIndicator,
+      CompiledForest compiled) {
+    this(classes, members, oobIndicator, compiled, null);
+  }
+
+  /**
+   * @param compiled the compiled members (or {@code null} to compile lazily)
+   * @param outOfBagEstimates the out-of-bag estimates accumulated while fitting the members (or
+   *        {@code null})
+   */
+  protected Ensemble(Vector classes, List<? extends Classifier> members, BooleanArray oobIndicator,
+      CompiledForest compiled, OutOfBagEstimates outOfBagEstimates) {
     super(classes);
     this.members = members;
     this.oobIndicator = oobIndicator;
+    this.compiled = compiled;
+    this.outOfBagEstimates = outOfBagEstimates;
+  }
+
+  /**
+   * Merge ensembles fitted (with the same classes) on the same training data, e.g., disjoint slices
+   * of the members of a larger ensemble fitted in different processes. The members (and the columns
+   * of the out-of-bag indicators) of the merged ensemble are the members of each ensemble in order.
+   *
+   * @param ensembles the ensembles
+   * @return the merged ensemble
+   * @throws IllegalArgumentException if an ensemble (or a member) is {@code null}
+   */
+  public static Ensemble merge(List<? extends Ensemble> ensembles) {
+    return new Ensemble(mergeClasses(ensembles), mergeMembers(ensembles),
+        mergeOobIndicators(ensembles), mergeCompiled(ensembles),
+        mergeOutOfBagEstimates(ensembles));
+  }
+
+  /**
+   * @return the classes of the ensembles
+   * @throws IllegalArgumentException if there are no (or {@code null}) ensembles or the classes
+   *         differ
+   */
+  protected static Vector mergeClasses(List<? extends Ensemble> ensembles) {
+    Check.argument(!ensembles.isEmpty(), "No ensembles to merge");
+    Check.argument(!ensembles.contains(null), "Cannot merge a null ensemble");
+    Vector classes = ensembles.get(0).getClasses();
+    for (Ensemble ensemble : ensembles) {
+      Check.argument(classes.equals(ensemble.getClasses()), "Classes differ: %s and %s", classes,
+          ensemble.getClasses());
+    }
+    return classes;
+  }
+
+  /**
+   * @return the members of the ensembles (in order)
+   * @throws IllegalArgumentException if an ensemble (or a member) is {@code null}
+   */
+  protected static List<Classifier> mergeMembers(List<? extends Ensemble> ensembles) {
+    List<Classifier> members = new ArrayList<>();
+    for (Ensemble ensemble : ensembles) {
+      Check.argument(ensemble != null, "Cannot merge a null ensemble");
+      for (Classifier member : ensemble.members) {
+        Check.argument(member != null, "Cannot merge an ensemble with null members");
+        members.add(member);
+      }
+    }
+    return members;
+  }
+
+  /**
+   * @return the out-of-bag indicators of the ensembles as the columns of a single indicator (or
+   *         {@code null} if an ensemble has no indicator)
+   * @throws IllegalArgumentException if the number of training samples differ
+   */
+  protected static BooleanArray mergeOobIndicators(List<? extends Ensemble> ensembles) {
+    for (Ensemble ensemble : ensembles) {
+      if (ensemble.oobIndicator == null) {
+        return null;
+      }
+    }
+    int rows = ensembles.get(0).oobIndicator.rows();
+    int columns = 0;
+    for (Ensemble ensemble : ensembles) {
+      Check.argument(ensemble.oobIndicator.rows() == rows,
+          "Ensembles fitted on %s and %s samples", rows, ensemble.oobIndicator.rows());
+      columns += ensemble.oobIndicator.columns();
+    }
+    BooleanArray oobIndicator = Arrays.booleanArray(rows, columns);
+    int column = 0;
+    for (Ensemble ensemble : ensembles) {
+      for (int j = 0; j < ensemble.oobIndicator.columns(); j++) {
+        BooleanArray from = ensemble.oobIndicator.getColumn(j);
+        BooleanArray to = oobIndicator.getColumn(column++);
+        for (int i = 0; i < rows; i++) {
+          to.set(i, from.get(i));
+        }
+      }
+    }
+    return oobIndicator;
+  }
+
+  /**
+   * Get an ensemble of the given members (e.g., {@linkplain EnsemblePruner selected} by pruning)
+   * with the corresponding columns of the out-of-bag indicator. Subclasses return an ensemble of
+   * their own type.
+   *
+   * @param indices the indices of the members
+   * @return a new ensemble
+   */
+  public Ensemble select(int[] indices) {
+    return new Ensemble(getClasses(), selectMembers(indices), selectOobIndicator(indices));
+  }
+
+  protected List<Classifier> selectMembers(int[] indices) {
+    List<Classifier> selected = new ArrayList<>(indices.length);
+    for (int index : indices) {
+      selected.add(members.get(index));
+    }
+    return selected;
+  }
+
+  /**
+   * @return the selected columns of the out-of-bag indicator (or {@code null} if this ensemble has
+   *         no indicator)
+   */
+  protected BooleanArray selectOobIndicator(int[] indices) {
+    if (oobIndicator == null) {
+      return null;
+    }
+    BooleanArray selected = Arrays.booleanArray(oobIndicator.rows(), indices.length);
+    for (int j = 0; j < indices.length; j++) {
+      BooleanArray from = oobIndicator.getColumn(indices[j]);
+      BooleanArray to = selected.getColumn(j);
+      for (int i = 0; i < from.size(); i++) {
+        to.set(i, from.get(i));
+      }
+    }
+    return selected;
   }
 
+  /**
+   * @return the merged out-of-bag estimates, if every ensemble has accumulated its estimates;
+   *         otherwise {@code null}
+   */
+  protected static OutOfBagEstimates mergeOutOfBagEstimates(List<? extends Ensemble> ensembles) {
+    List<OutOfBagEstimates> estimates = new ArrayList<>();
+    for (Ensemble ensemble : ensembles) {
+      if (ensemble.outOfBagEstimates == null) {
+        return null;
+      }
+      estimates.add(ensemble.outOfBagEstimates);
+    }
+    return OutOfBagEstimates.merge(estimates);
+  }
+
+  /**
+   * Ensembles are not compiled for the purpose of merging; the ensembles are neither modified nor
+   * compiled and, unless all are already compiled, the merged ensemble is compiled lazily (from its
+   * members) when first used.
+   *
+   * @return the concatenated compiled forests, if every ensemble is already compiled (e.g., if read
+   *         from disk or used for prediction); otherwise {@code null}
+   */
+  protected static CompiledForest mergeCompiled(List<? extends Ensemble> ensembles) {
+    List<CompiledForest> forests = new ArrayList<>();
+    for (Ensemble ensemble : ensembles) {
+      CompiledForest forest = ensemble.compiled;
+      if (forest == null) {
+        return null;
+      }
+      forests.add(forest);
+    }
+    return CompiledForest.concat(mergeClasses(ensembles), forests);
+  }
+
+  /**
+   * Get the out-of-bag estimates of the training examples. If the estimates were accumulated while
+   * fitting the members, these are returned; otherwise, every example is estimated by the members
+   * for which it is out-of-bag.
+   *
+   * @param ensemble the ensemble
+   * @param x the training examples
+   * @return the estimates, of shape {@code [no training samples, no classes]}
+   */
   public static DoubleArray oobEstimates(Ensemble ensemble, DataFrame x) {
+    OutOfBagEstimates accumulated = ensemble.getOutOfBagEstimates();
+    if (accumulated != null && accumulated.rows() == x.rows()) {
+      return accumulated.getEstimates();
+    }
     BooleanArray ind = ensemble.getOobIndicator();
     List<Classifier> members = ensemble.getEnsembleMembers();
     DoubleArray estimates = DoubleArray.zeros(x.rows(), ensemble.getClasses().size());
@@ -83,6 +278,13 @@ public class Ensemble extends AbstractClassifier {
     return oobIndicator;
   }
 
+  /**
+   * @return the out-of-bag estimates accumulated while fitting the members (or {@code null})
+   */
+  public OutOfBagEstimates getOutOfBagEstimates() {
+    return outOfBagEstimates;
+  }
+
   public List<Classifier> getEnsembleMembers() {
     return Collections.unmodifiableList(members);
   }
@@ -106,59 +308,397 @@ public class Ensemble extends AbstractClassifier {
     return m;
   }
 
-  public interface BaseLearner<T extends Classifier> {
-    Predictor.Learner<? extends T> getLearner(ClassSet set, Vector classes);
+  /**
+   * Compile the ensemble into a flat, array-based representation for fast prediction. Only
+   * ensembles of trees can be compiled.
+   *
+   * @return a compiled ensemble
+   * @see CompiledForest
+   */
+  public CompiledForest compile() {
+    CompiledForest forest = compiled;
+    return forest != null ? forest : CompiledForest.compile(this);
   }
 
   /**
-   * @author Isak Karlsson
+   * Estimate the records of the data frame in batch. If the members are trees, the ensemble is
+   * {@linkplain #compile() compiled} (once) and the records are estimated in blocks against all
+   * trees; otherwise, the estimates are accumulated member by member.
+   *
+   * <p/>
+   * Note that the compiled forest is kept for subsequent batches, i.e., the first batch estimate
+   * of an ensemble of trees allocates a second (flat) copy of its trees, roughly the size of the
+   * trees themselves.
    */
-  public abstract static class Learner<P extends Ensemble> implements Predictor.Learner<P> {
+  @Override
+  public DoubleArray estimate(DataFrame x) {
+    CompiledForest forest = getCompiledForest();
+    if (forest != null) {
+      return forest.estimate(x);
+    }
+
+    int estimators = members.size();
+    DoubleArray estimates = DoubleArray.zeros(x.rows(), getClasses().size());
+    for (Classifier member : members) {
+      estimates.combineAssign(member.estimate(x), (t, o) -> t + o / estimators);
+    }
+    return estimates;
+  }
+
+  @Override
+  public Vector predict(DataFrame x) {
+    DoubleArray estimates = estimate(x);
+    Vector classes = getClasses();
+    Vector.Builder labels = Vector.Builder.withSize(Object.class, x.rows());
+    for (int i = 0; i < x.rows(); i++) {
+      labels.loc().set(i, classes.loc().get(Object.class, Arrays.argmax(estimates.getRow(i))));
+    }
+    return labels.build();
+  }
 
-    private final static ThreadPoolExecutor THREAD_POOL;
-    private final static int CORES;
+  /**
+   * Predict the class of the record, evaluating the members in order.
+   *
+   * @param record the record
+   * @return the vote
+   * @see #vote(Vector, int[])
+   */
+  public Vote vote(Vector record) {
+    return vote(record, null);
+  }
+
+  /**
+   * Predict the class of the record, evaluating the members in the given order and stopping as
+   * soon as the leading class can't be overtaken by the remaining members. Since the estimate of a
+   * member adds at most one to any class, the vote is decisive once the margin between the two
+   * leading classes exceeds the number of remaining members. Hence, the prediction is the same as
+   * {@link #predict(Vector)}, but easy records are predicted by a fraction of the members.
+   *
+   * @param record the record
+   * @param order the order in which the members are evaluated, e.g., the most accurate first (or
+   *        {@code null} for the order of the members)
+   * @return the vote
+   */
+  public Vote vote(Vector record, int[] order) {
+    int n = members.size();
+    Check.argument(order == null || order.length == n, "Order of %s members; expected %s",
+        order == null ? 0 : order.length, n);
+    int classes = getClasses().size();
+    double[] votes = new double[classes];
+    int evaluated = 0;
+    while (evaluated < n) {
+      Classifier member = members.get(order != null ? order[evaluated] : evaluated);
+      DoubleArray estimate = member.estimate(record);
+      for (int j = 0; j < classes; j++) {
+        votes[j] += estimate.get(j);
+      }
+      evaluated++;
+
+      double first = Double.NEGATIVE_INFINITY, second = Double.NEGATIVE_INFINITY;
+      for (double vote : votes) {
+        if (vote > first) {
+          second = first;
+          first = vote;
+        } else if (vote > second) {
+          second = vote;
+        }
+      }
+      // the tolerance absorbs the rounding of the averaged estimates of predict(Vector)
+      if (first - second > n - evaluated + VOTE_TOLERANCE * n) {
+        break;
+      }
+    }
+    int best = 0;
+    for (int j = 1; j < classes; j++) {
+      if (votes[j] > votes[best]) {
+        best = j;
+      }
+    }
+    return new Vote(getClasses().loc().get(Object.class, best), evaluated);
+  }
 
-    static {
-      CORES = Runtime.getRuntime().availableProcessors();
-      if (CORES <= 1) {
-        THREAD_POOL = null;
+  private CompiledForest getCompiledForest() {
+    if (compiled == null && compilable) {
+      if (CompiledForest.canCompile(members)) {
+        compiled = compile();
       } else {
-        THREAD_POOL = (ThreadPoolExecutor) Executors.newFixedThreadPool(CORES, r -> {
-          Thread thread = new Thread(r);
-          thread.setDaemon(true);
-          return thread;
-        });
+        compilable = false;
       }
     }
+    return compiled;
+  }
+
+  /**
+   * The prediction of a {@linkplain #vote(Vector, int[]) vote} and the number of members evaluated
+   */
+  public static final class Vote {
+    private final Object label;
+    private final int evaluated;
+
+    private Vote(Object label, int evaluated) {
+      this.label = label;
+      this.evaluated = evaluated;
+    }
+
+    public Object getLabel() {
+      return label;
+    }
+
+    /**
+     * @return the number of members evaluated before the vote was decisive
+     */
+    public int getEvaluated() {
+      return evaluated;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("Vote(label=%s, evaluated=%d)", label, evaluated);
+    }
+  }
+
+  public interface BaseLearner<T extends Classifier> {
+    Predictor.Learner<? extends T> getLearner(ClassSet set, Vector classes);
+
+    /**
+     * Get a learner drawing its random numbers from the given stream. By default, the stream is
+     * ignored.
+     *
+     * @param set the (in-bag) examples
+     * @param classes the classes
+     * @param random the stream of the member
+     * @return a learner
+     */
+    default Predictor.Learner<? extends T> getLearner(ClassSet set, Vector classes,
+        RandomStream random) {
+      return getLearner(set, classes);
+    }
+  }
+
+  /**
+   * @author Isak Karlsson
+   */
+  public abstract static class Learner<P extends Ensemble> implements Predictor.Learner<P> {
 
     protected final int size;
+    private final Long seed;
+    private final Scheduler scheduler;
+    private final Budget budget;
+    private final boolean outOfBagEstimates;
 
     protected Learner(int size) {
+      this(size, null);
+    }
+
+    /**
+     * @param size the number of members
+     * @param seed the master seed (or {@code null} for a non-reproducible ensemble)
+     */
+    protected Learner(int size, Long seed) {
+      this(size, seed, null);
+    }
+
+    /**
+     * @param size the number of members
+     * @param seed the master seed (or {@code null} for a non-reproducible ensemble)
+     * @param scheduler the scheduler of the members (or {@code null} to use the
+     *        {@linkplain Scheduler#getDefault() default})
+     */
+    protected Learner(int size, Long seed, Scheduler scheduler) {
+      this(size, seed, scheduler, null);
+    }
+
+    /**
+     * @param size the (maximum) number of members
+     * @param seed the master seed (or {@code null} for a non-reproducible ensemble)
+     * @param scheduler the scheduler of the members (or {@code null} to use the
+     *        {@linkplain Scheduler#getDefault() default})
+     * @param budget the budget (or {@code null} to fit all members)
+     */
+    protected Learner(int size, Long seed, Scheduler scheduler, Budget budget) {
+      this(size, seed, scheduler, budget, false);
+    }
+
+    /**
+     * @param size the (maximum) number of members
+     * @param seed the master seed (or {@code null} for a non-reproducible ensemble)
+     * @param scheduler the scheduler of the members (or {@code null} to use the
+     *        {@linkplain Scheduler#getDefault() default})
+     * @param budget the budget (or {@code null} to fit all members)
+     * @param outOfBagEstimates true to accumulate the out-of-bag estimates while fitting
+     */
+    protected Learner(int size, Long seed, Scheduler scheduler, Budget budget,
+        boolean outOfBagEstimates) {
       this.size = size;
+      this.seed = seed;
+      this.scheduler = scheduler;
+      this.budget = budget;
+      this.outOfBagEstimates = outOfBagEstimates;
     }
 
     /**
-     * Executes {@code callable} either sequential or in parallel depending on the number of
-     * available cores.
+     * Returns a learner, configured as this learner, that does (or does not) accumulate the
+     * {@linkplain Ensemble#getOutOfBagEstimates() out-of-bag estimates} while fitting.
+     *
+     * @param outOfBagEstimates true to accumulate the out-of-bag estimates
+     * @return a learner
+     * @see #isOutOfBagEstimates()
+     */
+    public abstract Learner<P> withOutOfBagEstimates(boolean outOfBagEstimates);
+
+    /**
+     * Grow an ensemble fitted by this learner (or an equally configured learner) with additional
+     * members fitted on the same training data. The members of the grown ensemble are the members
+     * of the given ensemble followed by the new members, and the out-of-bag indicator (and any
+     * importances) are extended accordingly. Since the {@code i}:th member is derived from
+     * {@code master.split(i)}, growing a seeded ensemble of {@code n} members by {@code k} members
+     * gives the ensemble of {@code n + k} members fitted by the same seed.
+     *
+     * @param ensemble the ensemble
+     * @param x the training data of the ensemble
+     * @param y the targets of the ensemble
+     * @param members the number of members to add
+     * @return a new ensemble
+     */
+    public abstract P grow(P ensemble, DataFrame x, Vector y, int members);
+
+    /**
+     * Check that {@code ensemble} can be grown by {@code members} members fitted on {@code x}. The
+     * number of samples is only checked if the ensemble has an out-of-bag indicator (without it,
+     * the grown ensemble has no indicator either).
+     *
+     * @return the number of members of the ensemble
+     */
+    protected static int checkGrow(Ensemble ensemble, DataFrame x, int members) {
+      Check.argument(members > 0, "Must add at least one member");
+      BooleanArray oobIndicator = ensemble.getOobIndicator();
+      Check.argument(oobIndicator == null || oobIndicator.rows() == x.rows(),
+          "The ensemble was fitted on %s samples; got %s",
+          oobIndicator == null ? 0 : oobIndicator.rows(), x.rows());
+      return ensemble.getEnsembleMembers().size();
+    }
+
+    /**
+     * Create the master stream of a fit. The stream of the {@code i}:th member is derived as
+     * {@code master.split(i)}, so that a seeded ensemble is reproducible irrespective of how the
+     * members are scheduled.
+     *
+     * @return the master stream
+     */
+    protected RandomStream createRandomStream() {
+      return seed != null ? new RandomStream(seed) : RandomStream.create();
+    }
+
+    /**
+     * @return the master seed (or {@code null})
+     */
+    public Long getSeed() {
+      return seed;
+    }
+
+    /**
+     * Executes {@code callables} using the {@linkplain #getScheduler() scheduler} of this learner
+     * until the {@linkplain #getBudget() budget} is exhausted. The models of the callables not
+     * started within the budget are {@code null} (see {@link #fitted(List)} and
+     * {@link #fitted(List, BooleanArray)}); since the callables are started in order, the fitted
+     * models are always a prefix of the list.
+     *
+     * @param callables the callables
+     * @param <T> the models produced
+     * @return a list of produced models
+     * @throws Exception if something goes wrong
+     */
+    protected <T extends Classifier> List<T> execute(List<? extends Callable<T>> callables)
+        throws Exception {
+      return execute(callables, getBudget().start());
+    }
+
+    /**
+     * Executes {@code callables} until {@code exhausted} returns {@code true}. Learners whose
+     * members can stop growing when the budget is exhausted pass the same (started) budget to the
+     * callables.
      *
      * @param callables the callables
+     * @param exhausted returns {@code true} once the budget is exhausted (see
+     *        {@link Budget#start()})
      * @param <T> the models produced
      * @return a list of produced models
      * @throws Exception if something goes wrong
      */
-    protected static <T extends Classifier> List<T> execute(
-        Collection<? extends Callable<T>> callables) throws Exception {
-      List<T> models = new ArrayList<>();
-      if (THREAD_POOL != null && THREAD_POOL.getActiveCount() < CORES) {
-        for (Future<T> future : THREAD_POOL.invokeAll(callables)) {
-          models.add(future.get());
+    protected <T extends Classifier> List<T> execute(List<? extends Callable<T>> callables,
+        BooleanSupplier exhausted) throws Exception {
+      return getScheduler().execute(callables, exhausted);
+    }
+
+    /**
+     * @param models the models returned by {@link #execute(List)}
+     * @param <T> the models
+     * @return the fitted models (in order)
+     */
+    protected static <T> List<T> fitted(List<T> models) {
+      List<T> fitted = new ArrayList<>();
+      for (T model : models) {
+        if (model != null) {
+          fitted.add(model);
         }
-      } else {
-        for (Callable<T> callable : callables) {
-          models.add(callable.call());
+      }
+      return fitted;
+    }
+
+    /**
+     * @param models the models returned by {@link #execute(List)}
+     * @param oobIndicator the out-of-bag indicator of all models
+     * @return the columns of the out-of-bag indicator of the fitted models
+     */
+    protected static BooleanArray fitted(List<?> models, BooleanArray oobIndicator) {
+      int fitted = 0;
+      for (Object model : models) {
+        if (model != null) {
+          fitted++;
+        }
+      }
+      if (fitted == oobIndicator.columns()) {
+        return oobIndicator;
+      }
+      BooleanArray trimmed = Arrays.booleanArray(oobIndicator.rows(), fitted);
+      for (int j = 0, k = 0; j < models.size(); j++) {
+        if (models.get(j) != null) {
+          BooleanArray from = oobIndicator.getColumn(j);
+          BooleanArray to = trimmed.getColumn(k++);
+          for (int i = 0; i < from.size(); i++) {
+            to.set(i, from.get(i));
+          }
         }
       }
-      return models;
+      return trimmed;
+    }
+
+    /**
+     * @return the budget of a fit
+     */
+    public Budget getBudget() {
+      return budget != null ? budget : Budget.unlimited();
+    }
+
+    /**
+     * Returns true if each member estimates its out-of-bag examples once fitted (while they are in
+     * cache), so that {@link Ensemble#oobEstimates(Ensemble, DataFrame)} needs no second pass over
+     * the examples. Since each member predicts about a third of the examples, this is an extra
+     * prediction pass over the training data, which is wasted unless the estimates are used (e.g.,
+     * by a {@link org.briljantframework.mimir.classification.conformal.BootstrapConformalClassifier
+     * bootstrap conformal classifier}). By default, the estimates are not accumulated.
+     *
+     * @return true if the out-of-bag estimates are accumulated while fitting
+     */
+    public boolean isOutOfBagEstimates() {
+      return outOfBagEstimates;
+    }
+
+    /**
+     * @return the scheduler of the members
+     */
+    public Scheduler getScheduler() {
+      return scheduler != null ? scheduler : Scheduler.getDefault();
     }
 
     /**
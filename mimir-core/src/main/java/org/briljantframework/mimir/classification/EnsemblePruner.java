@@ -0,0 +1,238 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Isak Karlsson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+ * NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.briljantframework.mimir.classification;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import org.briljantframework.Check;
+import org.briljantframework.array.BooleanArray;
+import org.briljantframework.array.DoubleArray;
+import org.briljantframework.data.dataframe.DataFrame;
+import org.briljantframework.data.vector.Vector;
+import org.briljantframework.data.vector.Vectors;
+
+/**
+ * Prune an ensemble to a subset of its members, e.g., to reduce the cost of prediction. The
+ * members are selected greedily: starting from the empty ensemble, the member which most increases
+ * the average margin (i.e., the estimate of the true class minus the largest estimate of another
+ * class, as in the strength of {@link EnsembleClassifierMeasure}) of the selected members, plus a
+ * bonus for disagreeing with the current prediction of the selected members (i.e., diversity), is
+ * added until the requested number of members is selected.
+ * <p>
+ * The margins are estimated either out-of-bag, using the training data of the ensemble (and its
+ * {@linkplain Ensemble#getOobIndicator() out-of-bag indicator}), or using held-out data. The
+ * estimates of the members are computed once (in parallel) and stored, i.e., requiring
+ * {@code members * examples * classes} floats (or about a third of that out-of-bag).
+ * <p>
+ * The margin is the one averaged by the strength of {@link EnsembleClassifierMeasure}, but it is
+ * not computed using that class: the measure evaluates a fixed ensemble (and also needs the in-bag
+ * estimates for the correlation), whereas the pruner re-evaluates the margin of every example for
+ * every candidate in each step, incrementally from the stored estimates.
+ *
+ * <pre>
+ * RandomForest pruned = new EnsemblePruner(100).prune(forest, x, y);
+ * </pre>
+ *
+ * @author Isak Karlsson
+ */
+public final class EnsemblePruner {
+
+  private final int size;
+  private double diversity = 0.1;
+  private boolean outOfBag = true;
+
+  /**
+   * @param size the number of members of the pruned ensemble
+   */
+  public EnsemblePruner(int size) {
+    Check.argument(size > 0, "Requires at least one member");
+    this.size = size;
+  }
+
+  /**
+   * Set the weight of the diversity bonus, i.e., the fraction of examples where a candidate
+   * disagrees with the prediction of the selected members (default {@code 0.1}).
+   *
+   * @param diversity the weight
+   * @return this
+   */
+  public EnsemblePruner setDiversity(double diversity) {
+    this.diversity = diversity;
+    return this;
+  }
+
+  /**
+   * Estimate the margins out-of-bag using the training data of the ensemble (default), or using
+   * all members for held-out data.
+   *
+   * @param outOfBag true to estimate out-of-bag
+   * @return this
+   */
+  public EnsemblePruner setOutOfBag(boolean outOfBag) {
+    this.outOfBag = outOfBag;
+    return this;
+  }
+
+  /**
+   * Prune the ensemble to the {@linkplain #select(Ensemble, DataFrame, Vector) selected} members
+   *
+   * @param ensemble the ensemble
+   * @param x the training data (or held-out data)
+   * @param y the targets
+   * @param <E> the type of ensemble
+   * @return an ensemble of the same type with the selected members
+   * @see Ensemble#select(int[])
+   */
+  @SuppressWarnings("unchecked")
+  public <E extends Ensemble> E prune(E ensemble, DataFrame x, Vector y) {
+    return (E) ensemble.select(select(ensemble, x, y));
+  }
+
+  /**
+   * Select the members of the pruned ensemble
+   *
+   * @param ensemble the ensemble
+   * @param x the training data (or held-out data)
+   * @param y the targets
+   * @return the indices of the selected members in the order they were selected, which can also be
+   *         used as the order of an {@linkplain Ensemble#vote(Vector, int[]) early-exit vote}
+   */
+  public int[] select(Ensemble ensemble, DataFrame x, Vector y) {
+    Check.argument(x.rows() == y.size(), "The number of rows and targets differ");
+    List<Classifier> members = ensemble.getEnsembleMembers();
+    Vector classes = ensemble.getClasses();
+    int n = x.rows(), k = classes.size(), m = members.size();
+    BooleanArray oob = ensemble.getOobIndicator();
+    if (outOfBag) {
+      Check.argument(oob != null && oob.rows() == n,
+          "The ensemble was fitted on %s examples; got %s", oob == null ? 0 : oob.rows(), n);
+    }
+    int[] target = new int[n];
+    for (int i = 0; i < n; i++) {
+      target[i] = Vectors.find(classes, y, i);
+    }
+
+    // The examples and estimates of each member
+    int[][] rows = new int[m][];
+    float[][] estimates = new float[m][];
+    IntStream.range(0, m).parallel().forEach(j -> {
+      int count = 0;
+      int[] scored = new int[n];
+      for (int i = 0; i < n; i++) {
+        if (target[i] >= 0 && (!outOfBag || oob.get(i, j))) {
+          scored[count++] = i;
+        }
+      }
+      float[] estimate = new float[count * k];
+      for (int r = 0; r < count; r++) {
+        DoubleArray e = members.get(j).estimate(x.loc().getRecord(scored[r]));
+        for (int c = 0; c < k; c++) {
+          estimate[r * k + c] = (float) e.get(c);
+        }
+      }
+      rows[j] = Arrays.copyOf(scored, count);
+      estimates[j] = estimate;
+    });
+
+    int selected = Math.min(size, m);
+    int[] order = new int[selected];
+    boolean[] used = new boolean[m];
+    double[] votes = new double[n * k];
+    int[] counts = new int[n];
+    double[] margins = new double[n];
+    int[] predictions = new int[n];
+    Arrays.fill(predictions, -1);
+    for (int s = 0; s < selected; s++) {
+      double[] scores = IntStream.range(0, m).parallel()
+          .mapToDouble(j -> used[j] ? Double.NEGATIVE_INFINITY
+              : score(rows[j], estimates[j], k, target, votes, counts, margins, predictions) / n)
+          .toArray();
+      int best = -1;
+      for (int j = 0; j < m; j++) {
+        if (!used[j] && (best < 0 || scores[j] > scores[best])) {
+          best = j;
+        }
+      }
+      used[best] = true;
+      order[s] = best;
+      int[] r = rows[best];
+      float[] e = estimates[best];
+      for (int q = 0; q < r.length; q++) {
+        int i = r[q];
+        int argmax = 0;
+        for (int c = 0; c < k; c++) {
+          votes[i * k + c] += e[q * k + c];
+          if (votes[i * k + c] > votes[i * k + argmax]) {
+            argmax = c;
+          }
+        }
+        counts[i]++;
+        margins[i] = margin(votes, i * k, k, target[i], 0, null, 0) / counts[i];
+        predictions[i] = argmax;
+      }
+    }
+    return order;
+  }
+
+  /**
+   * The total change of the margins of the examples of a candidate, plus the diversity bonus
+   */
+  private double score(int[] rows, float[] estimate, int k, int[] target, double[] votes,
+      int[] counts, double[] margins, int[] predictions) {
+    double gain = 0;
+    int disagree = 0;
+    for (int q = 0; q < rows.length; q++) {
+      int i = rows[q];
+      gain += margin(votes, i * k, k, target[i], 1, estimate, q * k) / (counts[i] + 1) - margins[i];
+      if (predictions[i] >= 0) {
+        int argmax = 0;
+        for (int c = 1; c < k; c++) {
+          if (estimate[q * k + c] > estimate[q * k + argmax]) {
+            argmax = c;
+          }
+        }
+        if (argmax != predictions[i]) {
+          disagree++;
+        }
+      }
+    }
+    return gain + diversity * disagree;
+  }
+
+  /**
+   * The margin of {@code votes + w * estimate}
+   */
+  private static double margin(double[] votes, int offset, int k, int target, double w,
+      float[] estimate, int estimateOffset) {
+    double correct = 0, other = Double.NEGATIVE_INFINITY;
+    for (int c = 0; c < k; c++) {
+      double v = votes[offset + c] + (w != 0 ? w * estimate[estimateOffset + c] : 0);
+      if (c == target) {
+        correct = v;
+      } else if (v > other) {
+        other = v;
+      }
+    }
+    return k > 1 ? correct - other : correct;
+  }
+}
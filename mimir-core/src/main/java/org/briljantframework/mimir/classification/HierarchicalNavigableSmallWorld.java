@@ -0,0 +1,531 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Isak Karlsson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+ * NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.briljantframework.mimir.classification;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinTask;
+import java.util.stream.IntStream;
+
+import org.briljantframework.Check;
+import org.briljantframework.data.dataframe.DataFrame;
+import org.briljantframework.data.vector.Vector;
+import org.briljantframework.mimir.distance.EuclideanDistance;
+
+/**
+ * An approximate nearest neighbour index based on a hierarchical navigable small world graph over
+ * the records (as primitive vectors) of a data frame, using the {@linkplain EuclideanDistance
+ * euclidean distance}.
+ *
+ * <p/>
+ * The records are inserted (in parallel) in a layered proximity graph where each record links to
+ * at most {@code m} neighbours per layer ({@code 2m} in the bottom layer) and upper layers contain
+ * exponentially fewer records. Queries descend greedily from the top layer and search the bottom
+ * layer with a beam of width {@code ef}; a wider beam increases recall at the cost of latency.
+ *
+ * <p/>
+ * If the index is built with a partition (e.g., the class of each record), a separate graph is
+ * built for each part. Searching each part separately guarantees that the nearest neighbours of
+ * small parts are found.
+ *
+ * <p/>
+ * The records must have equal length. Queries of another length are compared with the records up
+ * to the shorter length (as by the euclidean distance) by scanning all records, since the graph
+ * does not reflect such distances.
+ *
+ * <h3>References</h3>
+ * <ul>
+ * <li>Malkov, Y. A., Yashunin, D. A. (2016) Efficient and robust approximate nearest neighbor
+ * search using Hierarchical Navigable Small World graphs. arXiv:1603.09320.</li>
+ * </ul>
+ *
+ * @author Isak Karlsson
+ */
+public final class HierarchicalNavigableSmallWorld implements NeighbourIndex {
+
+  /**
+   * Graphs with fewer records are built sequentially
+   */
+  private static final int PARALLEL_THRESHOLD = 1024;
+
+  private final double[][] points;
+  private final Graph[] graphs;
+  private final int m;
+  private final int efConstruction;
+  private volatile int ef;
+
+  /**
+   * Build an index over the records of the given data frame.
+   *
+   * @param x the data frame
+   * @param m the largest number of links per record and layer
+   * @param efConstruction the width of the beam used when inserting records
+   * @param random the random number generator used to select the layer of each record (e.g., a
+   *        seeded {@link org.briljantframework.mimir.supervised.RandomStream})
+   * @throws IllegalArgumentException if the records differ in length
+   */
+  public HierarchicalNavigableSmallWorld(DataFrame x, int m, int efConstruction, Random random) {
+    this(x, null, m, efConstruction, random);
+  }
+
+  /**
+   * Build an index over the records of the given data frame, with one graph for each part of the
+   * given partition.
+   *
+   * @param x the data frame
+   * @param partition the part ({@code 0, 1, ...}) of each record (or {@code null})
+   * @param m the largest number of links per record and layer
+   * @param efConstruction the width of the beam used when inserting records
+   * @param random the random number generator used to select the layer of each record
+   * @throws IllegalArgumentException if the records differ in length
+   */
+  public HierarchicalNavigableSmallWorld(DataFrame x, int[] partition, int m, int efConstruction,
+      Random random) {
+    Check.argument(m > 1, "Requires at least two links per record");
+    Check.argument(efConstruction > 0, "Requires a positive beam width");
+    Check.argument(partition == null || partition.length == x.rows(),
+        "The size of the partition and x don't match: %s != %s.",
+        partition == null ? 0 : partition.length, x.rows());
+    this.m = m;
+    this.efConstruction = efConstruction;
+    this.ef = efConstruction;
+    this.points = new double[x.rows()][];
+    for (int i = 0; i < points.length; i++) {
+      points[i] = toArray(x.loc().getRecord(i));
+      Check.argument(points[i].length == points[0].length,
+          "Records of unequal length: %s != %s", points[i].length, points[0].length);
+    }
+
+    int parts = 1;
+    if (partition != null) {
+      for (int part : partition) {
+        parts = Math.max(parts, part + 1);
+      }
+    }
+    int[] sizes = new int[parts];
+    for (int i = 0; i < points.length; i++) {
+      sizes[partition != null ? partition[i] : 0]++;
+    }
+    int[][] ids = new int[parts][];
+    for (int i = 0; i < parts; i++) {
+      ids[i] = new int[sizes[i]];
+      sizes[i] = 0;
+    }
+    for (int i = 0; i < points.length; i++) {
+      int part = partition != null ? partition[i] : 0;
+      ids[part][sizes[part]++] = i;
+    }
+    this.graphs = new Graph[parts];
+    for (int i = 0; i < parts; i++) {
+      graphs[i] = new Graph(ids[i], random);
+    }
+  }
+
+  private static double[] toArray(Vector vector) {
+    double[] array = new double[vector.size()];
+    for (int i = 0; i < array.length; i++) {
+      array[i] = vector.loc().getAsDouble(i);
+    }
+    return array;
+  }
+
+  private static double squaredDistance(double[] a, double[] b) {
+    int size = Math.min(a.length, b.length);
+    double residual = 0;
+    for (int i = 0; i < size; i++) {
+      double r = a[i] - b[i];
+      residual += r * r;
+    }
+    return residual;
+  }
+
+  /**
+   * Set the width of the beam used when searching the bottom layer (which is never smaller than
+   * the number of requested neighbours). A wider beam increases the recall and the latency.
+   *
+   * @param ef the width of the beam
+   */
+  public void setEf(int ef) {
+    Check.argument(ef > 0, "Requires a positive beam width");
+    this.ef = ef;
+  }
+
+  /**
+   * @return the width of the beam used when searching the bottom layer
+   */
+  public int getEf() {
+    return ef;
+  }
+
+  /**
+   * @return the largest number of links per record and layer
+   */
+  public int getM() {
+    return m;
+  }
+
+  /**
+   * @return the width of the beam used when inserting records
+   */
+  public int getEfConstruction() {
+    return efConstruction;
+  }
+
+  @Override
+  public void nearest(Vector example, NeighbourHeap[] heaps, int[] targets) {
+    double[] query = toArray(example);
+    if (points.length > 0 && query.length != points[0].length) {
+      for (int i = 0; i < points.length; i++) {
+        heaps[targets != null ? targets[i] : 0].offer(i,
+            Math.sqrt(squaredDistance(query, points[i])));
+      }
+      return;
+    }
+    int width = ef;
+    for (NeighbourHeap heap : heaps) {
+      width = Math.max(width, heap.capacity());
+    }
+    for (Graph graph : graphs) {
+      NeighbourHeap found = graph.search(query, width);
+      for (int i = 0; i < found.size(); i++) {
+        int index = graph.ids[found.getIndex(i)];
+        heaps[targets != null ? targets[index] : 0].offer(index, Math.sqrt(found.getDistance(i)));
+      }
+    }
+  }
+
+  /**
+   * @return the number of records in the index
+   */
+  public int size() {
+    return points.length;
+  }
+
+  /**
+   * A layered graph over a subset of the records. Nodes are numbered {@code 0, ..., n - 1} and
+   * the {@code i}:th node is the record {@code ids[i]}. The links of a node are guarded by the
+   * node, and the entry point by the graph.
+   */
+  private final class Graph {
+
+    private final int[] ids;
+    private final Node[] nodes;
+    private final ThreadLocal<Visited> visited;
+
+    private int entryPoint = -1;
+    private int maxLevel = -1;
+
+    private Graph(int[] ids, Random random) {
+      this.ids = ids;
+      this.nodes = new Node[ids.length];
+      this.visited = ThreadLocal.withInitial(() -> new Visited(ids.length));
+      double levelMultiplier = 1 / Math.log(m);
+      for (int i = 0; i < nodes.length; i++) {
+        int level = (int) (-Math.log(1 - random.nextDouble()) * levelMultiplier);
+        nodes[i] = new Node(level);
+      }
+
+      if (nodes.length > PARALLEL_THRESHOLD && !ForkJoinTask.inForkJoinPool()) {
+        insert(0);
+        IntStream.range(1, nodes.length).parallel().forEach(this::insert);
+      } else {
+        for (int i = 0; i < nodes.length; i++) {
+          insert(i);
+        }
+      }
+    }
+
+    private double[] point(int node) {
+      return points[ids[node]];
+    }
+
+    private void insert(int node) {
+      int level = nodes[node].level;
+      int entry, top;
+      synchronized (this) {
+        entry = entryPoint;
+        top = maxLevel;
+        if (entry < 0) {
+          entryPoint = node;
+          maxLevel = level;
+          return;
+        }
+      }
+
+      double[] query = point(node);
+      double entryDistance = squaredDistance(query, point(entry));
+      for (int layer = top; layer > level; layer--) {
+        NeighbourHeap nearest = searchLayer(query, entry, entryDistance, 1, layer);
+        entry = nearest.getIndex(0);
+        entryDistance = nearest.getDistance(0);
+      }
+
+      for (int layer = Math.min(level, top); layer >= 0; layer--) {
+        NeighbourHeap candidates = searchLayer(query, entry, entryDistance, efConstruction, layer);
+        int[] neighbours = selectNeighbours(node, candidates, m);
+        synchronized (nodes[node]) {
+          System.arraycopy(neighbours, 0, nodes[node].links[layer], 0, neighbours.length);
+          nodes[node].sizes[layer] = neighbours.length;
+        }
+        for (int neighbour : neighbours) {
+          link(neighbour, node, layer);
+        }
+        for (int i = 0; i < candidates.size(); i++) {
+          if (candidates.getDistance(i) < entryDistance) {
+            entry = candidates.getIndex(i);
+            entryDistance = candidates.getDistance(i);
+          }
+        }
+      }
+
+      if (level > top) {
+        synchronized (this) {
+          if (level > maxLevel) {
+            entryPoint = node;
+            maxLevel = level;
+          }
+        }
+      }
+    }
+
+    /**
+     * Add a link from {@code from} to {@code to}, pruning the links of {@code from} if full
+     */
+    private void link(int from, int to, int layer) {
+      Node node = nodes[from];
+      synchronized (node) {
+        int[] links = node.links[layer];
+        int size = node.sizes[layer];
+        if (size < links.length) {
+          links[size] = to;
+          node.sizes[layer] = size + 1;
+        } else {
+          NeighbourHeap candidates = new NeighbourHeap(size + 1);
+          double[] base = point(from);
+          for (int i = 0; i < size; i++) {
+            candidates.offer(links[i], squaredDistance(base, point(links[i])));
+          }
+          candidates.offer(to, squaredDistance(base, point(to)));
+          int[] selected = selectNeighbours(from, candidates, links.length);
+          System.arraycopy(selected, 0, links, 0, selected.length);
+          node.sizes[layer] = selected.length;
+        }
+      }
+    }
+
+    /**
+     * Select at most {@code max} of the candidates (in order of increasing distance) that are
+     * closer to the node than to any already selected neighbour, which keeps the graph connected
+     * across clusters.
+     */
+    private int[] selectNeighbours(int node, NeighbourHeap candidates, int max) {
+      int[] sorted = new int[candidates.size()];
+      double[] distances = new double[candidates.size()];
+      candidates.sort(sorted, distances);
+
+      int[] selected = new int[Math.min(max, sorted.length)];
+      int size = 0;
+      for (int i = 0; i < sorted.length && size < selected.length; i++) {
+        int candidate = sorted[i];
+        if (candidate == node) {
+          continue;
+        }
+        double[] point = point(candidate);
+        boolean closest = true;
+        for (int j = 0; j < size && closest; j++) {
+          closest = squaredDistance(point, point(selected[j])) >= distances[i];
+        }
+        if (closest) {
+          selected[size++] = candidate;
+        }
+      }
+      return Arrays.copyOf(selected, size);
+    }
+
+    /**
+     * Search for the {@code ef} nearest nodes of the query in the given layer, starting from the
+     * entry node
+     */
+    private NeighbourHeap searchLayer(double[] query, int entry, double entryDistance, int ef,
+        int layer) {
+      Visited visited = this.visited.get();
+      visited.clear();
+      visited.visit(entry);
+
+      NeighbourHeap nearest = new NeighbourHeap(ef);
+      CandidateQueue candidates = new CandidateQueue();
+      nearest.offer(entry, entryDistance);
+      candidates.add(entry, entryDistance);
+      int[] buffer = new int[layer == 0 ? 2 * m : m];
+      while (candidates.size() > 0) {
+        if (candidates.peekDistance() > nearest.cutoff()) {
+          break;
+        }
+        Node node = nodes[candidates.poll()];
+        int size;
+        synchronized (node) {
+          size = layer < node.sizes.length ? node.sizes[layer] : 0;
+          if (size > 0) {
+            System.arraycopy(node.links[layer], 0, buffer, 0, size);
+          }
+        }
+        for (int i = 0; i < size; i++) {
+          int neighbour = buffer[i];
+          if (visited.visit(neighbour)) {
+            double distance = squaredDistance(query, point(neighbour));
+            if (nearest.offer(neighbour, distance)) {
+              candidates.add(neighbour, distance);
+            }
+          }
+        }
+      }
+      return nearest;
+    }
+
+    /**
+     * Search for (approximately) the {@code ef} nearest nodes of the query
+     */
+    private NeighbourHeap search(double[] query, int ef) {
+      int entry, top;
+      synchronized (this) {
+        entry = entryPoint;
+        top = maxLevel;
+      }
+      if (entry < 0) {
+        return new NeighbourHeap(ef);
+      }
+      double entryDistance = squaredDistance(query, point(entry));
+      for (int layer = top; layer > 0; layer--) {
+        NeighbourHeap nearest = searchLayer(query, entry, entryDistance, 1, layer);
+        entry = nearest.getIndex(0);
+        entryDistance = nearest.getDistance(0);
+      }
+      return searchLayer(query, entry, entryDistance, ef, 0);
+    }
+  }
+
+  /**
+   * The links of a node in each layer {@code 0, ..., level}
+   */
+  private final class Node {
+    private final int level;
+    private final int[][] links;
+    private final int[] sizes;
+
+    private Node(int level) {
+      this.level = level;
+      this.links = new int[level + 1][];
+      this.sizes = new int[level + 1];
+      for (int i = 0; i <= level; i++) {
+        links[i] = new int[i == 0 ? 2 * m : m];
+      }
+    }
+  }
+
+  /**
+   * The nodes visited by the current search (a node is visited if its mark equals the tag)
+   */
+  private static final class Visited {
+    private final int[] marks;
+    private int tag = 0;
+
+    private Visited(int size) {
+      this.marks = new int[size];
+    }
+
+    private void clear() {
+      if (++tag == 0) {
+        Arrays.fill(marks, 0);
+        tag = 1;
+      }
+    }
+
+    /**
+     * @return true if the node was not already visited
+     */
+    private boolean visit(int node) {
+      if (marks[node] == tag) {
+        return false;
+      }
+      marks[node] = tag;
+      return true;
+    }
+  }
+
+  /**
+   * A min-heap of nodes ordered by distance
+   */
+  private static final class CandidateQueue {
+    private double[] distances = new double[16];
+    private int[] nodes = new int[16];
+    private int size = 0;
+
+    private void add(int node, double distance) {
+      if (size == nodes.length) {
+        distances = Arrays.copyOf(distances, size * 2);
+        nodes = Arrays.copyOf(nodes, size * 2);
+      }
+      int i = size++;
+      while (i > 0) {
+        int parent = (i - 1) >>> 1;
+        if (distances[parent] <= distance) {
+          break;
+        }
+        distances[i] = distances[parent];
+        nodes[i] = nodes[parent];
+        i = parent;
+      }
+      distances[i] = distance;
+      nodes[i] = node;
+    }
+
+    private double peekDistance() {
+      return distances[0];
+    }
+
+    private int poll() {
+      int top = nodes[0];
+      int node = nodes[--size];
+      double distance = distances[size];
+      int i = 0;
+      int half = size >>> 1;
+      while (i < half) {
+        int child = 2 * i + 1;
+        if (child + 1 < size && distances[child + 1] < distances[child]) {
+          child++;
+        }
+        if (distances[child] >= distance) {
+          break;
+        }
+        distances[i] = distances[child];
+        nodes[i] = nodes[child];
+        i = child;
+      }
+      distances[i] = distance;
+      nodes[i] = node;
+      return top;
+    }
+
+    private int size() {
+      return size;
+    }
+  }
+}
@@ -20,6 +20,8 @@
  */
 package org.briljantframework.mimir.classification;
 
+import java.util.Random;
+
 import org.briljantframework.array.Arrays;
 import org.briljantframework.array.DoubleArray;
 import org.briljantframework.array.IntArray;
@@ -28,15 +30,15 @@ import org.briljantframework.data.dataframe.DataFrame;
 import org.briljantframework.data.dataframe.DataFrames;
 import org.briljantframework.data.vector.Vector;
 import org.briljantframework.data.vector.Vectors;
+import org.briljantframework.mimir.classification.tree.ArrayClassSet;
 import org.briljantframework.mimir.classification.tree.ClassSet;
-import org.briljantframework.mimir.classification.tree.Example;
 import org.briljantframework.mimir.classification.tree.Gain;
 import org.briljantframework.mimir.classification.tree.HyperPlaneThreshold;
 import org.briljantframework.mimir.classification.tree.TreeBranch;
 import org.briljantframework.mimir.classification.tree.TreeClassifier;
 import org.briljantframework.mimir.classification.tree.TreeLeaf;
 import org.briljantframework.mimir.classification.tree.TreeNode;
-import org.briljantframework.mimir.classification.tree.TreeSplit;
+import org.briljantframework.mimir.classification.tree.TreePartition;
 import org.briljantframework.mimir.classification.tree.TreeVisitor;
 import org.briljantframework.mimir.supervised.Predictor;
 
@@ -97,6 +99,7 @@ public class HyperPlaneTree extends TreeClassifier<HyperPlaneThreshold> {
     private final Gain criterion = Gain.INFO;
     private final Vector classes;
     private final int noHyperPlanes;
+    private final Random random = new Random();
 
     public Learner(ClassSet set, Vector classes, int noHyperPlanes) {
       this.set = set;
@@ -106,27 +109,25 @@ public class HyperPlaneTree extends TreeClassifier<HyperPlaneThreshold> {
 
     @Override
     public HyperPlaneTree fit(DataFrame x, Vector y) {
-      ClassSet set = this.set;
       Vector classes = this.classes == null ? Vectors.unique(y) : this.classes;
-      if (set == null) {
-        set = new ClassSet(y, classes);
-      }
+      ArrayClassSet set =
+          this.set != null ? ArrayClassSet.create(this.set) : ArrayClassSet.create(y, classes);
 
       DoubleArray array = Arrays.hstack(DoubleArray.ones(x.rows(), 1), DataFrames.toDoubleArray(x));
       TreeNode<HyperPlaneThreshold> root = build(array, y, set);
       return new HyperPlaneTree(classes, root, new HyperPlaneTreeVisitor());
     }
 
-    private TreeNode<HyperPlaneThreshold> build(DoubleArray x, Vector y, ClassSet set) {
+    private TreeNode<HyperPlaneThreshold> build(DoubleArray x, Vector y, ArrayClassSet set) {
       if (set.getTotalWeight() <= 1.0 || set.getTargetCount() == 1) {
         return TreeLeaf.fromExamples(set);
       }
-      TreeSplit<HyperPlaneThreshold> maxSplit = findHyperPlaneRandomMeanPoint(set, x, y);
+      TreePartition<HyperPlaneThreshold> maxSplit = findHyperPlaneRandomMeanPoint(set, x, y);
       if (maxSplit == null) {
         return TreeLeaf.fromExamples(set);
       } else {
-        ClassSet left = maxSplit.getLeft();
-        ClassSet right = maxSplit.getRight();
+        ArrayClassSet left = maxSplit.getLeft();
+        ArrayClassSet right = maxSplit.getRight();
         if (left.isEmpty()) {
           return TreeLeaf.fromExamples(right);
         } else if (right.isEmpty()) {
@@ -139,89 +140,88 @@ public class HyperPlaneTree extends TreeClassifier<HyperPlaneThreshold> {
       }
     }
 
-    private TreeSplit<HyperPlaneThreshold> findHyperPlaneRandomPoint(ClassSet set, DoubleArray x,
-        Vector y) {
-      TreeSplit<HyperPlaneThreshold> bestSplit = null;
-      double bestImpurity = Double.POSITIVE_INFINITY;
+    private TreePartition<HyperPlaneThreshold> findHyperPlaneRandomPoint(ArrayClassSet set,
+        DoubleArray x, Vector y) {
+      Search search = new Search(set);
       for (int i = 0; i < noHyperPlanes; i++) {
-        int index = set.getRandomSample().getRandomExample().getIndex();
+        int index = set.getRandomExample(random);
         DoubleArray row = x.getRow(index);
         IntArray randomFeatures = getRandomFeatures(row);
         DoubleArray weights = Arrays.randn(randomFeatures.size() + 1);
         double threshold = Arrays.inner(take(row, randomFeatures), weights);
-        TreeSplit<HyperPlaneThreshold> split = split(x, set, weights, randomFeatures, threshold);
-        double impurity = criterion.compute(split);
-        if (impurity < bestImpurity) {
-          bestImpurity = impurity;
-          bestSplit = split;
-        }
-      }
-      if (bestSplit != null) {
-        bestSplit.setImpurity(bestImpurity);
-      }
-
-      return bestSplit;
-    }
-
-    protected TreeSplit<HyperPlaneThreshold> split(DoubleArray x, ClassSet set, DoubleArray weights,
-        IntArray dims, double threshold) {
-      ClassSet left = new ClassSet(set.getDomain());
-      ClassSet right = new ClassSet(set.getDomain());
-
-      /*
-       * Partition every class separately
-       */
-      for (ClassSet.Sample sample : set.samples()) {
-        Object target = sample.getTarget();
-
-        ClassSet.Sample leftSample = ClassSet.Sample.create(target);
-        ClassSet.Sample rightSample = ClassSet.Sample.create(target);
-        for (Example example : sample) {
-          DoubleArray row = x.getRow(example.getIndex());
-          row = take(row, dims);
-          if (Arrays.inner(row, weights) < threshold) {
-            leftSample.add(example);
-          } else {
-            rightSample.add(example);
-          }
-        }
-
-        if (!leftSample.isEmpty()) {
-          left.add(leftSample);
-        }
-        if (!rightSample.isEmpty()) {
-          right.add(rightSample);
-        }
+        search.evaluate(x, weights, randomFeatures, threshold);
       }
-
-      return new TreeSplit<>(left, right, new HyperPlaneThreshold(weights, dims, threshold));
+      return search.partition();
     }
 
-    private TreeSplit<HyperPlaneThreshold> findHyperPlaneRandomMeanPoint(ClassSet set,
+    private TreePartition<HyperPlaneThreshold> findHyperPlaneRandomMeanPoint(ArrayClassSet set,
         DoubleArray x, Vector y) {
-      TreeSplit<HyperPlaneThreshold> bestSplit = null;
-      double bestImpurity = Double.POSITIVE_INFINITY;
+      Search search = new Search(set);
       for (int i = 0; i < noHyperPlanes; i++) {
-        int a = set.getRandomSample().getRandomExample().getIndex();
-        int b = set.getRandomSample().getRandomExample().getIndex();
+        int a = set.getRandomExample(random);
+        int b = set.getRandomExample(random);
         DoubleArray ra = x.getRow(a);
         DoubleArray rb = x.getRow(b);
 
         IntArray randomFeatures = getRandomFeatures(ra);
         DoubleArray weights = Arrays.randn(randomFeatures.size() + 1);
         double threshold = Arrays.inner(take(ra.plus(rb).div(2), randomFeatures), weights);
-        TreeSplit<HyperPlaneThreshold> split = split(x, set, weights, randomFeatures, threshold);
-        double impurity = criterion.compute(split);
+        search.evaluate(x, weights, randomFeatures, threshold);
+      }
+      return search.partition();
+    }
+
+    /**
+     * Keeps track of the best hyper plane of a node. Only the direction of each example is
+     * recorded for each candidate; the examples are partitioned once for the best candidate.
+     */
+    private final class Search {
+      private final ArrayClassSet set;
+      private final double[] left;
+      private final double[] right;
+      private boolean[] directions;
+      private boolean[] bestDirections;
+      private HyperPlaneThreshold bestThreshold = null;
+      private double bestImpurity = Double.POSITIVE_INFINITY;
+
+      private Search(ArrayClassSet set) {
+        this.set = set;
+        this.left = new double[set.getDomain().size()];
+        this.right = new double[set.getDomain().size()];
+        this.directions = new boolean[set.size()];
+        this.bestDirections = new boolean[set.size()];
+      }
+
+      void evaluate(DoubleArray x, DoubleArray weights, IntArray dims, double threshold) {
+        java.util.Arrays.fill(left, 0);
+        java.util.Arrays.fill(right, 0);
+        for (int i = 0; i < set.size(); i++) {
+          DoubleArray row = take(x.getRow(set.getExampleIndex(i)), dims);
+          directions[i] = Arrays.inner(row, weights) < threshold;
+          double[] side = directions[i] ? left : right;
+          side[set.getExampleTarget(i)] += set.getExampleWeight(i);
+        }
+
+        double impurity = criterion.compute(left, right);
         if (impurity < bestImpurity) {
+          boolean[] tmp = bestDirections;
+          bestDirections = directions;
+          directions = tmp;
           bestImpurity = impurity;
-          bestSplit = split;
+          bestThreshold = new HyperPlaneThreshold(weights, dims, threshold);
         }
       }
-      if (bestSplit != null) {
-        bestSplit.setImpurity(bestImpurity);
-      }
 
-      return bestSplit;
+      TreePartition<HyperPlaneThreshold> partition() {
+        if (bestThreshold == null) {
+          return null;
+        }
+        boolean[] goLeft = bestDirections;
+        TreePartition<HyperPlaneThreshold> partition =
+            TreePartition.partition(set, i -> goLeft[i], bestThreshold);
+        partition.setImpurity(bestImpurity);
+        return partition;
+      }
     }
   }
 }
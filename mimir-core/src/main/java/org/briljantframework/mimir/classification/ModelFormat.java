@@ -0,0 +1,952 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Isak Karlsson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+ * NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.briljantframework.mimir.classification;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.briljantframework.Check;
+import org.briljantframework.array.Arrays;
+import org.briljantframework.array.BooleanArray;
+import org.briljantframework.array.DoubleArray;
+import org.briljantframework.data.Is;
+import org.briljantframework.data.vector.Vector;
+import org.briljantframework.mimir.classification.conformal.ClassifierCalibratorScores;
+import org.briljantframework.mimir.classification.conformal.ClassifierNonconformity;
+import org.briljantframework.mimir.classification.conformal.InductiveConformalClassifier;
+import org.briljantframework.mimir.classification.conformal.ProbabilityCostFunction;
+import org.briljantframework.mimir.classification.conformal.ProbabilityEstimateNonconformity;
+import org.briljantframework.mimir.classification.tree.TreeClassifier;
+import org.briljantframework.mimir.distance.Distance;
+import org.briljantframework.mimir.distance.DynamicTimeWarping;
+import org.briljantframework.mimir.distance.EarlyAbandonSlidingDistance;
+import org.briljantframework.mimir.distance.EditDistance;
+import org.briljantframework.mimir.distance.EuclideanDistance;
+import org.briljantframework.mimir.distance.HammingDistance;
+import org.briljantframework.mimir.distance.ManhattanDistance;
+import org.briljantframework.mimir.distance.MassDistance;
+import org.briljantframework.mimir.distance.SlidingDistance;
+import org.briljantframework.mimir.shapelet.ChannelShapelet;
+import org.briljantframework.mimir.shapelet.DerivativeShapelet;
+import org.briljantframework.mimir.shapelet.IndexSortedNormalizedShapelet;
+import org.briljantframework.mimir.shapelet.NormalizedShapelet;
+import org.briljantframework.mimir.shapelet.Shapelet;
+
+/**
+ * A versioned binary format for trained models. Ensembles of trees (e.g., {@link RandomForest} and
+ * {@link RandomShapeletForest}), single trees (e.g., {@link ShapeletTree}) and
+ * {@link InductiveConformalClassifier inductive conformal classifiers} (using a
+ * {@link ProbabilityEstimateNonconformity} of such a model and a
+ * {@linkplain ProbabilityCostFunction.Standard standard} cost function) are written as a
+ * {@link CompiledForest}; i.e., the tree topology, thresholds, leaf distributions, shapelets,
+ * distance measures, classes and, for conformal classifiers, the calibration scores.
+ * <p>
+ * The file (in little endian byte order) consists of
+ * <ol>
+ * <li>a 32 byte prelude: the magic number {@code MIMR}, the version, the kind of model and the
+ * offset and length of the header;</li>
+ * <li>the (8-byte aligned) arrays of the compiled forest (topology, thresholds and
+ * probabilities);</li>
+ * <li>the header: the classes, shapelets, distances and calibration scores.</li>
+ * </ol>
+ * When read, the arrays are not copied but memory-mapped (read-only), so reading a large forest
+ * only requires decoding the (small) header and the mapped pages can be shared between processes.
+ * Since a single mapping is limited to 2 GB, each array is mapped in chunks of
+ * {@link #CHUNK_SIZE} elements.
+ *
+ * <pre>
+ * ModelFormat.write(forest, Paths.get("forest.model"));
+ * Classifier model = ModelFormat.read(Paths.get("forest.model"));
+ * </pre>
+ *
+ * @author Isak Karlsson
+ */
+public final class ModelFormat {
+
+  /**
+   * The current version of the format
+   */
+  public static final int VERSION = 1;
+
+  /**
+   * The number of elements of each chunk of a mapped array
+   */
+  static final int CHUNK_SIZE = 1 << 27;
+  private static final int CHUNK_SHIFT = 27;
+  private static final long CHUNK_MASK = CHUNK_SIZE - 1;
+
+  private static final int MAGIC = 0x524D494D; // "MIMR"
+  private static final int PRELUDE_SIZE = 32;
+  static final int FOREST = 1, CONFORMAL = 2, SHAPELET_FOREST = 3, TRAINING_DATA = 4;
+
+  private static final byte NA = 0, STRING = 1, INT = 2, LONG = 3, DOUBLE = 4, BOOLEAN = 5,
+      OBJECT = 6;
+
+  private static final byte NO_DISTANCE = 0, EUCLIDEAN = 1, MANHATTAN = 2, EARLY_ABANDON = 3,
+      SLIDING = 4, MASS = 5, DTW = 6, HAMMING = 7, EDIT = 8, ZERO_ONE = 9;
+
+  private static final byte SHAPELET = 0, NORMALIZED = 1, INDEX_SORTED = 2, DERIVATIVE = 3,
+      CHANNEL = 4, CHANNEL_DELEGATE = 5;
+
+  private ModelFormat() {}
+
+  /**
+   * Write the given model to the given path (replacing any existing file). A
+   * {@link RandomShapeletForest} is written with its out-of-bag indicator and importances.
+   *
+   * @param model the model
+   * @param path the path
+   * @throws IOException if an I/O error occurs
+   * @throws IllegalArgumentException if the model (or a part of it) can't be written
+   */
+  public static void write(Classifier model, Path path) throws IOException {
+    if (model instanceof InductiveConformalClassifier) {
+      InductiveConformalClassifier icp = (InductiveConformalClassifier) model;
+      ClassifierNonconformity nc = icp.getClassifierNonconformity();
+      Check.argument(nc instanceof ProbabilityEstimateNonconformity,
+          "Can't write nonconformity %s", nc);
+      ProbabilityEstimateNonconformity<?> pnc = (ProbabilityEstimateNonconformity<?>) nc;
+      ProbabilityCostFunction cost = pnc.getProbabilityCostFunction();
+      Check.argument(cost instanceof ProbabilityCostFunction.Standard,
+          "Can't write cost function %s", cost);
+      CompiledForest forest = compile(pnc.getClassifier());
+      write(path, CONFORMAL, (header, data) -> {
+        header.putByte(((ProbabilityCostFunction.Standard) cost).ordinal());
+        header.putByte(icp.isStochasticSmoothing() ? 1 : 0);
+        putCalibration(header, icp.getClasses(), icp.getCalibrationScores());
+        header.putVector(forest.getClasses());
+        forest.write(header, data);
+      });
+    } else if (model instanceof RandomShapeletForest) {
+      RandomShapeletForest rsf = (RandomShapeletForest) model;
+      CompiledForest forest = rsf.compile();
+      write(path, SHAPELET_FOREST, (header, data) -> {
+        header.putVector(forest.getClasses());
+        forest.write(header, data);
+        putImportance(header, rsf.getLengthImportance());
+        putImportance(header, rsf.getPositionImportance());
+        putOobIndicator(header, data, rsf.getOobIndicator());
+      });
+    } else {
+      CompiledForest forest = compile(model);
+      write(path, FOREST, (header, data) -> {
+        header.putVector(forest.getClasses());
+        forest.write(header, data);
+      });
+    }
+  }
+
+  /**
+   * Write a file of the given kind. The writer writes (small) objects to the header and (8-byte
+   * aligned) arrays to the data, which are memory-mapped when read.
+   */
+  static void write(Path path, int kind, Writer writer) throws IOException {
+    Output header = new Output(null, 0);
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+      channel.position(PRELUDE_SIZE);
+      Output data = new Output(channel, PRELUDE_SIZE);
+      writer.write(header, data);
+      data.align();
+      data.flush();
+
+      long headerOffset = data.position;
+      ByteBuffer buffer = header.buffer;
+      buffer.flip();
+      long headerLength = buffer.remaining();
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+
+      ByteBuffer prelude = ByteBuffer.allocate(PRELUDE_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+      prelude.putInt(MAGIC).putInt(VERSION).putInt(kind).putInt(0);
+      prelude.putLong(headerOffset).putLong(headerLength);
+      prelude.flip();
+      long position = 0;
+      while (prelude.hasRemaining()) {
+        position += channel.write(prelude, position);
+      }
+    }
+  }
+
+  /**
+   * Read a model written by {@link #write(Classifier, Path)}. A forest is read as a
+   * {@link CompiledForest}, a random shapelet forest as a {@link RandomShapeletForest} of
+   * (compiled) trees and a conformal classifier as an {@link InductiveConformalClassifier} of a
+   * compiled forest.
+   *
+   * @param path the path
+   * @return the model
+   * @throws IOException if an I/O error occurs or the file is not a (supported) model
+   */
+  public static Classifier read(Path path) throws IOException {
+    return read(path, (kind, in) -> {
+      switch (kind) {
+        case FOREST:
+          return CompiledForest.read(in.getVector(), in);
+        case CONFORMAL: {
+          ProbabilityCostFunction cost = ProbabilityCostFunction.Standard.values()[in.getByte()];
+          boolean stochasticSmoothing = in.getByte() != 0;
+          ClassifierCalibratorScores calibration = getCalibration(in);
+          CompiledForest forest = CompiledForest.read(in.getVector(), in);
+          return new InductiveConformalClassifier(
+              new ProbabilityEstimateNonconformity<>(forest, cost), calibration,
+              stochasticSmoothing, forest.getClasses());
+        }
+        case SHAPELET_FOREST: {
+          CompiledForest forest = CompiledForest.read(in.getVector(), in);
+          DoubleArray lengthImportance = getImportance(in);
+          DoubleArray positionImportance = getImportance(in);
+          BooleanArray oobIndicator = getOobIndicator(in);
+          return new RandomShapeletForest(forest.getClasses(), forest.getTrees(),
+              lengthImportance, positionImportance, oobIndicator, forest, null);
+        }
+        default:
+          throw new IOException(String.format("Unknown kind of model: %d", kind));
+      }
+    });
+  }
+
+  /**
+   * Read a file of the given kind
+   */
+  static <T> T read(Path path, int expected, Reader<T> reader) throws IOException {
+    return read(path, (kind, in) -> {
+      if (kind != expected) {
+        throw new IOException(String.format("Unexpected kind of file: %d", kind));
+      }
+      return reader.read(kind, in);
+    });
+  }
+
+  private static <T> T read(Path path, Reader<T> reader) throws IOException {
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      if (channel.size() < PRELUDE_SIZE) {
+        throw new IOException("Not a model file: " + path);
+      }
+      ByteBuffer prelude = ByteBuffer.allocate(PRELUDE_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+      while (prelude.hasRemaining()) {
+        if (channel.read(prelude, prelude.position()) < 0) {
+          throw new IOException("Unexpected end of file: " + path);
+        }
+      }
+      prelude.flip();
+      if (prelude.getInt() != MAGIC) {
+        throw new IOException("Not a model file: " + path);
+      }
+      int version = prelude.getInt();
+      if (version < 1 || version > VERSION) {
+        throw new IOException(String.format("Unsupported version: %d", version));
+      }
+      int kind = prelude.getInt();
+      prelude.getInt();
+      long headerOffset = prelude.getLong();
+      long headerLength = prelude.getLong();
+      if (headerOffset + headerLength > channel.size()) {
+        throw new IOException("Unexpected end of file: " + path);
+      }
+      ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, headerOffset, headerLength);
+      return reader.read(kind, new Input(channel, header.order(ByteOrder.LITTLE_ENDIAN),
+          PRELUDE_SIZE));
+    }
+  }
+
+  private static CompiledForest compile(Classifier model) {
+    if (model instanceof CompiledForest) {
+      return (CompiledForest) model;
+    } else if (model instanceof Ensemble) {
+      return ((Ensemble) model).compile();
+    } else if (model instanceof TreeClassifier) {
+      return CompiledForest.compile(model.getClasses(), Collections.singletonList(model));
+    } else {
+      throw new IllegalArgumentException("Can't write model " + model);
+    }
+  }
+
+  /**
+   * @return the {@code i}:th element of the chunked array
+   */
+  static byte get(ByteBuffer[] chunks, long i) {
+    return chunks[(int) (i >>> CHUNK_SHIFT)].get((int) (i & CHUNK_MASK));
+  }
+
+  /**
+   * @return the {@code i}:th element of the chunked array
+   */
+  static int get(IntBuffer[] chunks, long i) {
+    return chunks[(int) (i >>> CHUNK_SHIFT)].get((int) (i & CHUNK_MASK));
+  }
+
+  /**
+   * @return the {@code i}:th element of the chunked array
+   */
+  static double get(DoubleBuffer[] chunks, long i) {
+    return chunks[(int) (i >>> CHUNK_SHIFT)].get((int) (i & CHUNK_MASK));
+  }
+
+  private static void putImportance(Output out, DoubleArray importance) throws IOException {
+    out.putInt(importance.size());
+    for (int i = 0; i < importance.size(); i++) {
+      out.putDouble(importance.get(i));
+    }
+  }
+
+  private static DoubleArray getImportance(Input in) {
+    double[] importance = new double[in.getInt()];
+    for (int i = 0; i < importance.length; i++) {
+      importance[i] = in.getDouble();
+    }
+    return DoubleArray.of(importance);
+  }
+
+  /**
+   * The out-of-bag indicator, column by column, as one byte per element
+   */
+  private static void putOobIndicator(Output header, Output data, BooleanArray oobIndicator)
+      throws IOException {
+    int rows = oobIndicator.rows(), columns = oobIndicator.columns();
+    header.putInt(rows);
+    header.putInt(columns);
+    data.align();
+    byte[] bytes = new byte[rows];
+    for (int j = 0; j < columns; j++) {
+      BooleanArray column = oobIndicator.getColumn(j);
+      for (int i = 0; i < rows; i++) {
+        bytes[i] = column.get(i) ? (byte) 1 : (byte) 0;
+      }
+      data.putBytes(bytes, 0, rows);
+    }
+  }
+
+  private static BooleanArray getOobIndicator(Input in) throws IOException {
+    int rows = in.getInt(), columns = in.getInt();
+    ByteBuffer[] bytes = in.mapBytes((long) rows * columns);
+    BooleanArray oobIndicator = Arrays.booleanArray(rows, columns);
+    for (int j = 0; j < columns; j++) {
+      BooleanArray column = oobIndicator.getColumn(j);
+      for (int i = 0; i < rows; i++) {
+        column.set(i, get(bytes, (long) j * rows + i) != 0);
+      }
+    }
+    return oobIndicator;
+  }
+
+  /**
+   * The calibration scores of each class (which must not depend on the example); identical score
+   * arrays are written once.
+   */
+  private static void putCalibration(Output out, Vector classes, ClassifierCalibratorScores scores)
+      throws IOException {
+    Map<DoubleArray, Integer> index = new IdentityHashMap<>();
+    List<DoubleArray> unique = new ArrayList<>();
+    int[] ref = new int[classes.size()];
+    for (int i = 0; i < ref.length; i++) {
+      DoubleArray calibration = scores.get(null, classes.loc().get(Object.class, i));
+      if (calibration == null) {
+        ref[i] = -1;
+      } else {
+        Integer k = index.get(calibration);
+        if (k == null) {
+          k = unique.size();
+          index.put(calibration, k);
+          unique.add(calibration);
+        }
+        ref[i] = k;
+      }
+    }
+    out.putVector(classes);
+    out.putInt(unique.size());
+    for (DoubleArray calibration : unique) {
+      out.putInt(calibration.size());
+      for (int i = 0; i < calibration.size(); i++) {
+        out.putDouble(calibration.get(i));
+      }
+    }
+    for (int k : ref) {
+      out.putInt(k);
+    }
+  }
+
+  private static ClassifierCalibratorScores getCalibration(Input in) throws IOException {
+    Vector classes = in.getVector();
+    DoubleArray[] unique = new DoubleArray[in.getInt()];
+    for (int k = 0; k < unique.length; k++) {
+      double[] calibration = new double[in.getInt()];
+      for (int i = 0; i < calibration.length; i++) {
+        calibration[i] = in.getDouble();
+      }
+      unique[k] = DoubleArray.of(calibration);
+    }
+    DoubleArray[] scores = new DoubleArray[classes.size()];
+    for (int i = 0; i < scores.length; i++) {
+      int k = in.getInt();
+      scores[i] = k < 0 ? null : unique[k];
+    }
+    return (example, label) -> {
+      int i = classes.loc().indexOf(label);
+      return i < 0 ? null : scores[i];
+    };
+  }
+
+  /**
+   * Writes the header and the (memory-mapped) data of a file
+   */
+  interface Writer {
+    void write(Output header, Output data) throws IOException;
+  }
+
+  /**
+   * Reads a file of the given kind
+   */
+  interface Reader<T> {
+    T read(int kind, Input in) throws IOException;
+  }
+
+  /**
+   * Writes primitives, objects, shapelets and distances to a channel (or, if the channel is
+   * {@code null}, to a growing buffer)
+   */
+  static final class Output {
+    private final FileChannel channel;
+    private ByteBuffer buffer;
+    private long position;
+
+    private Output(FileChannel channel, long position) {
+      this.channel = channel;
+      this.position = position;
+      this.buffer = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private void ensure(int bytes) throws IOException {
+      if (buffer.remaining() < bytes) {
+        if (channel != null) {
+          flush();
+        } else {
+          ByteBuffer grown = ByteBuffer.allocate(Math.max(buffer.capacity() * 2,
+              buffer.position() + bytes)).order(ByteOrder.LITTLE_ENDIAN);
+          buffer.flip();
+          grown.put(buffer);
+          buffer = grown;
+        }
+      }
+      position += bytes;
+    }
+
+    private void flush() throws IOException {
+      buffer.flip();
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+      buffer.clear();
+    }
+
+    /**
+     * Pad to the next multiple of 8 bytes
+     */
+    void align() throws IOException {
+      while (position % 8 != 0) {
+        putByte(0);
+      }
+    }
+
+    void putByte(int value) throws IOException {
+      ensure(1);
+      buffer.put((byte) value);
+    }
+
+    void putInt(int value) throws IOException {
+      ensure(Integer.BYTES);
+      buffer.putInt(value);
+    }
+
+    void putLong(long value) throws IOException {
+      ensure(Long.BYTES);
+      buffer.putLong(value);
+    }
+
+    void putDouble(double value) throws IOException {
+      ensure(Double.BYTES);
+      buffer.putDouble(value);
+    }
+
+    /**
+     * Write the (unaligned) values {@code [offset, offset + length)}
+     */
+    void putBytes(byte[] values, int offset, int length) throws IOException {
+      while (length > 0) {
+        int n = Math.min(length, buffer.capacity());
+        ensure(n);
+        buffer.put(values, offset, n);
+        offset += n;
+        length -= n;
+      }
+    }
+
+    /**
+     * Write the (unaligned) values {@code [offset, offset + length)}
+     */
+    void putInts(int[] values, int offset, int length) throws IOException {
+      while (length > 0) {
+        int n = Math.min(length, buffer.capacity() / Integer.BYTES);
+        ensure(n * Integer.BYTES);
+        buffer.asIntBuffer().put(values, offset, n);
+        buffer.position(buffer.position() + n * Integer.BYTES);
+        offset += n;
+        length -= n;
+      }
+    }
+
+    /**
+     * Write the (unaligned) values {@code [offset, offset + length)}
+     */
+    void putDoubles(double[] values, int offset, int length) throws IOException {
+      while (length > 0) {
+        int n = Math.min(length, buffer.capacity() / Double.BYTES);
+        ensure(n * Double.BYTES);
+        buffer.asDoubleBuffer().put(values, offset, n);
+        buffer.position(buffer.position() + n * Double.BYTES);
+        offset += n;
+        length -= n;
+      }
+    }
+
+    void putBytes(byte[] values) throws IOException {
+      align();
+      putBytes(values, 0, values.length);
+    }
+
+    void putInts(int[] values) throws IOException {
+      align();
+      putInts(values, 0, values.length);
+    }
+
+    void putDoubles(double[] values) throws IOException {
+      align();
+      putDoubles(values, 0, values.length);
+    }
+
+    /**
+     * Write the (chunked) values of a mapped array
+     */
+    void putBytes(ByteBuffer[] chunks) throws IOException {
+      align();
+      for (ByteBuffer chunk : chunks) {
+        ByteBuffer values = chunk.duplicate();
+        values.clear();
+        while (values.hasRemaining()) {
+          int n = Math.min(values.remaining(), buffer.capacity());
+          ensure(n);
+          ByteBuffer slice = values.slice();
+          slice.limit(n);
+          buffer.put(slice);
+          values.position(values.position() + n);
+        }
+      }
+    }
+
+    /**
+     * Write the (chunked) values of a mapped array
+     */
+    void putInts(IntBuffer[] chunks) throws IOException {
+      align();
+      for (IntBuffer chunk : chunks) {
+        IntBuffer values = chunk.duplicate();
+        values.clear();
+        while (values.hasRemaining()) {
+          int n = Math.min(values.remaining(), buffer.capacity() / Integer.BYTES);
+          ensure(n * Integer.BYTES);
+          IntBuffer slice = values.slice();
+          slice.limit(n);
+          buffer.asIntBuffer().put(slice);
+          buffer.position(buffer.position() + n * Integer.BYTES);
+          values.position(values.position() + n);
+        }
+      }
+    }
+
+    /**
+     * Write the (chunked) values of a mapped array
+     */
+    void putDoubles(DoubleBuffer[] chunks) throws IOException {
+      align();
+      for (DoubleBuffer chunk : chunks) {
+        DoubleBuffer values = chunk.duplicate();
+        values.clear();
+        while (values.hasRemaining()) {
+          int n = Math.min(values.remaining(), buffer.capacity() / Double.BYTES);
+          ensure(n * Double.BYTES);
+          DoubleBuffer slice = values.slice();
+          slice.limit(n);
+          buffer.asDoubleBuffer().put(slice);
+          buffer.position(buffer.position() + n * Double.BYTES);
+          values.position(values.position() + n);
+        }
+      }
+    }
+
+    void putString(String value) throws IOException {
+      byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+      putInt(bytes.length);
+      ensure(bytes.length);
+      buffer.put(bytes);
+    }
+
+    void putObject(Object value) throws IOException {
+      if (Is.NA(value)) {
+        putByte(NA);
+      } else if (value instanceof String) {
+        putByte(STRING);
+        putString((String) value);
+      } else if (value instanceof Integer) {
+        putByte(INT);
+        putInt((Integer) value);
+      } else if (value instanceof Long) {
+        putByte(LONG);
+        putLong((Long) value);
+      } else if (value instanceof Double) {
+        putByte(DOUBLE);
+        putDouble((Double) value);
+      } else if (value instanceof Boolean) {
+        putByte(BOOLEAN);
+        putByte((Boolean) value ? 1 : 0);
+      } else {
+        throw new IllegalArgumentException("Can't write value " + value);
+      }
+    }
+
+    void putVector(Vector vector) throws IOException {
+      putByte(typeOf(vector.getType().getDataClass()));
+      putInt(vector.size());
+      for (int i = 0; i < vector.size(); i++) {
+        putObject(vector.loc().get(Object.class, i));
+      }
+    }
+
+    void putDistance(Distance distance) throws IOException {
+      Class<?> cls = distance == null ? null : distance.getClass();
+      if (cls == null) {
+        putByte(NO_DISTANCE);
+      } else if (cls == EuclideanDistance.class) {
+        putByte(EUCLIDEAN);
+      } else if (cls == ManhattanDistance.class) {
+        putByte(MANHATTAN);
+      } else if (cls == EarlyAbandonSlidingDistance.class) {
+        putByte(EARLY_ABANDON);
+        putDistance(((EarlyAbandonSlidingDistance) distance).getDistance());
+      } else if (cls == SlidingDistance.class) {
+        putByte(SLIDING);
+        putDistance(((SlidingDistance) distance).getDistance());
+      } else if (cls == MassDistance.class) {
+        putByte(MASS);
+        putInt(((MassDistance) distance).getMinimumLength());
+        putDouble(((MassDistance) distance).getRatio());
+      } else if (cls == DynamicTimeWarping.class) {
+        putByte(DTW);
+        putDistance(((DynamicTimeWarping) distance).getDistance());
+        putInt(((DynamicTimeWarping) distance).getConstraint());
+      } else if (cls == HammingDistance.class) {
+        putByte(HAMMING);
+      } else if (cls == EditDistance.class) {
+        putByte(EDIT);
+      } else if (cls == ShapeletTree.Learner.ZeroOneDistance.class) {
+        putByte(ZERO_ONE);
+      } else {
+        throw new IllegalArgumentException("Can't write distance " + distance);
+      }
+    }
+
+    void putShapelet(Shapelet shapelet) throws IOException {
+      if (shapelet instanceof ChannelShapelet) {
+        ChannelShapelet channelShapelet = (ChannelShapelet) shapelet;
+        if (channelShapelet.getDelegate() instanceof NormalizedShapelet) {
+          putByte(CHANNEL);
+          putInt(channelShapelet.getChannel());
+          putValues(shapelet);
+          putOrder(channelShapelet.getSortOrder());
+        } else {
+          Check.argument(channelShapelet.getDelegate() instanceof Shapelet,
+              "Can't write shapelet %s", shapelet);
+          putByte(CHANNEL_DELEGATE);
+          putInt(channelShapelet.getChannel());
+          putShapelet((Shapelet) channelShapelet.getDelegate());
+        }
+      } else if (shapelet instanceof IndexSortedNormalizedShapelet) {
+        putByte(shapelet instanceof DerivativeShapelet ? DERIVATIVE : INDEX_SORTED);
+        putValues(shapelet);
+        putOrder(((IndexSortedNormalizedShapelet) shapelet).getSortOrder());
+      } else if (shapelet instanceof NormalizedShapelet) {
+        putByte(NORMALIZED);
+        putValues(shapelet);
+      } else {
+        putByte(SHAPELET);
+        putVector(shapelet);
+      }
+    }
+
+    private void putValues(Shapelet shapelet) throws IOException {
+      putInt(shapelet.size());
+      for (int i = 0; i < shapelet.size(); i++) {
+        putDouble(shapelet.loc().getAsDouble(i));
+      }
+    }
+
+    private void putOrder(int[] order) throws IOException {
+      putInt(order.length);
+      for (int i : order) {
+        putInt(i);
+      }
+    }
+  }
+
+  /**
+   * Reads the header and maps the arrays of a model file
+   */
+  static final class Input {
+    private final FileChannel channel;
+    private final ByteBuffer header;
+    private long offset;
+
+    private Input(FileChannel channel, ByteBuffer header, long offset) {
+      this.channel = channel;
+      this.header = header;
+      this.offset = offset;
+    }
+
+    int getByte() {
+      return header.get();
+    }
+
+    int getInt() {
+      return header.getInt();
+    }
+
+    long getLong() {
+      return header.getLong();
+    }
+
+    double getDouble() {
+      return header.getDouble();
+    }
+
+    String getString() {
+      byte[] bytes = new byte[getInt()];
+      header.get(bytes);
+      return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    Object getObject() throws IOException {
+      int type = getByte();
+      switch (type) {
+        case NA:
+          return null;
+        case STRING:
+          return getString();
+        case INT:
+          return getInt();
+        case LONG:
+          return getLong();
+        case DOUBLE:
+          return getDouble();
+        case BOOLEAN:
+          return getByte() != 0;
+        default:
+          throw new IOException(String.format("Unknown value type: %d", type));
+      }
+    }
+
+    Vector getVector() throws IOException {
+      Class<?> cls = classOf(getByte());
+      int size = getInt();
+      Vector.Builder builder = Vector.Builder.withCapacity(cls, size);
+      for (int i = 0; i < size; i++) {
+        builder.loc().set(i, getObject());
+      }
+      return builder.build();
+    }
+
+    Distance getDistance() throws IOException {
+      int type = getByte();
+      switch (type) {
+        case NO_DISTANCE:
+          return null;
+        case EUCLIDEAN:
+          return EuclideanDistance.getInstance();
+        case MANHATTAN:
+          return ManhattanDistance.getInstance();
+        case EARLY_ABANDON:
+          return new EarlyAbandonSlidingDistance(getDistance());
+        case SLIDING:
+          return new SlidingDistance(getDistance());
+        case MASS: {
+          int minimumLength = getInt();
+          return new MassDistance(minimumLength, getDouble());
+        }
+        case DTW: {
+          Distance distance = getDistance();
+          return new DynamicTimeWarping(distance, getInt());
+        }
+        case HAMMING:
+          return new HammingDistance();
+        case EDIT:
+          return new EditDistance();
+        case ZERO_ONE:
+          return new ShapeletTree.Learner.ZeroOneDistance();
+        default:
+          throw new IOException(String.format("Unknown distance: %d", type));
+      }
+    }
+
+    Shapelet getShapelet() throws IOException {
+      int type = getByte();
+      switch (type) {
+        case SHAPELET: {
+          Vector values = getVector();
+          return new Shapelet(0, values.size(), values);
+        }
+        case NORMALIZED:
+          return new NormalizedShapelet(getValues());
+        case INDEX_SORTED: {
+          double[] values = getValues();
+          return new IndexSortedNormalizedShapelet(values, getOrder());
+        }
+        case DERIVATIVE: {
+          double[] values = getValues();
+          return new DerivativeShapelet(values, getOrder());
+        }
+        case CHANNEL: {
+          int channel = getInt();
+          double[] values = getValues();
+          return new ChannelShapelet(channel, values, getOrder());
+        }
+        case CHANNEL_DELEGATE: {
+          int channel = getInt();
+          return new ChannelShapelet(channel, getShapelet());
+        }
+        default:
+          throw new IOException(String.format("Unknown shapelet: %d", type));
+      }
+    }
+
+    private double[] getValues() {
+      double[] values = new double[getInt()];
+      for (int i = 0; i < values.length; i++) {
+        values[i] = getDouble();
+      }
+      return values;
+    }
+
+    private int[] getOrder() {
+      int[] order = new int[getInt()];
+      for (int i = 0; i < order.length; i++) {
+        order[i] = getInt();
+      }
+      return order;
+    }
+
+    ByteBuffer[] mapBytes(long size) throws IOException {
+      return map(size, Byte.BYTES);
+    }
+
+    IntBuffer[] mapInts(long size) throws IOException {
+      ByteBuffer[] bytes = map(size, Integer.BYTES);
+      IntBuffer[] chunks = new IntBuffer[bytes.length];
+      for (int i = 0; i < chunks.length; i++) {
+        chunks[i] = bytes[i].asIntBuffer();
+      }
+      return chunks;
+    }
+
+    DoubleBuffer[] mapDoubles(long size) throws IOException {
+      ByteBuffer[] bytes = map(size, Double.BYTES);
+      DoubleBuffer[] chunks = new DoubleBuffer[bytes.length];
+      for (int i = 0; i < chunks.length; i++) {
+        chunks[i] = bytes[i].asDoubleBuffer();
+      }
+      return chunks;
+    }
+
+    /**
+     * Map the (aligned) array of {@code size} elements of the given width in chunks of (at most)
+     * {@link #CHUNK_SIZE} elements
+     */
+    private ByteBuffer[] map(long size, int width) throws IOException {
+      offset = (offset + 7) & ~7L;
+      if (offset + size * width > channel.size()) {
+        throw new IOException("Unexpected end of file");
+      }
+      ByteBuffer[] chunks = new ByteBuffer[(int) ((size + CHUNK_SIZE - 1) / CHUNK_SIZE)];
+      for (int i = 0; i < chunks.length; i++) {
+        long bytes = Math.min(CHUNK_SIZE, size - (long) i * CHUNK_SIZE) * width;
+        chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, offset, bytes)
+            .order(ByteOrder.LITTLE_ENDIAN);
+        offset += bytes;
+      }
+      return chunks;
+    }
+  }
+
+  private static byte typeOf(Class<?> cls) {
+    if (cls == String.class) {
+      return STRING;
+    } else if (cls == Integer.class) {
+      return INT;
+    } else if (cls == Long.class) {
+      return LONG;
+    } else if (cls == Double.class) {
+      return DOUBLE;
+    } else if (cls == Boolean.class) {
+      return BOOLEAN;
+    } else {
+      return OBJECT;
+    }
+  }
+
+  private static Class<?> classOf(int type) throws IOException {
+    switch (type) {
+      case STRING:
+        return String.class;
+      case INT:
+        return Integer.class;
+      case LONG:
+        return Long.class;
+      case DOUBLE:
+        return Double.class;
+      case BOOLEAN:
+        return Boolean.class;
+      case OBJECT:
+        return Object.class;
+      default:
+        throw new IOException(String.format("Unknown vector type: %d", type));
+    }
+  }
+}
@@ -22,6 +22,8 @@ package org.briljantframework.mimir.classification;
 
 import java.util.Collections;
 import java.util.Set;
+import java.util.concurrent.ForkJoinTask;
+import java.util.stream.IntStream;
 
 import org.briljantframework.Check;
 import org.briljantframework.array.DoubleArray;
@@ -29,9 +31,13 @@ import org.briljantframework.data.dataframe.DataFrame;
 import org.briljantframework.data.vector.Vector;
 import org.briljantframework.data.vector.Vectors;
 import org.briljantframework.mimir.distance.Distance;
+import org.briljantframework.mimir.distance.EarlyAbandonDistance;
 import org.briljantframework.mimir.distance.EuclideanDistance;
+import org.briljantframework.mimir.distance.ManhattanDistance;
+import org.briljantframework.mimir.distance.MetricDistance;
 import org.briljantframework.mimir.supervised.Characteristic;
 import org.briljantframework.mimir.supervised.Predictor;
+import org.briljantframework.mimir.supervised.RandomStream;
 
 /**
  * In pattern recognition, the k-Nearest Neighbors algorithm (or k-NN for short) is a non-parametric
@@ -53,18 +59,51 @@ import org.briljantframework.mimir.supervised.Predictor;
  */
 public class NearestNeighbours extends AbstractClassifier {
 
+  /**
+   * The number of reference examples scanned by each task in a parallel search
+   */
+  private static final int CHUNK_SIZE = 1024;
+
   private final DataFrame x;
   private final Vector y;
   private final Distance distance;
   private final int k;
 
-  private NearestNeighbours(DataFrame x, Vector y, Distance distance, int k, Vector classes) {
+  /**
+   * The prepared reference examples, if the distance supports early abandoning; otherwise
+   * {@code null}
+   */
+  private final EarlyAbandonDistance.Reference[] references;
+
+  /**
+   * The index (in {@link #getClasses()}) of the class of each reference example
+   */
+  private final int[] targets;
+
+  /**
+   * The index of the search space (if any); otherwise {@code null}
+   */
+  private final NeighbourIndex index;
+
+  private NearestNeighbours(DataFrame x, Vector y, Distance distance, int k, Vector classes,
+      int[] targets, NeighbourIndex index) {
     super(classes);
     this.x = x;
     this.y = y;
+    this.index = index;
 
     this.distance = distance;
     this.k = k;
+    this.targets = targets;
+    if (distance instanceof EarlyAbandonDistance) {
+      EarlyAbandonDistance earlyAbandonDistance = (EarlyAbandonDistance) distance;
+      this.references = new EarlyAbandonDistance.Reference[x.rows()];
+      for (int i = 0; i < references.length; i++) {
+        references[i] = earlyAbandonDistance.prepare(x.loc().getRecord(i));
+      }
+    } else {
+      this.references = null;
+    }
   }
 
   public double n() {
@@ -73,23 +112,142 @@ public class NearestNeighbours extends AbstractClassifier {
 
   @Override
   public DoubleArray estimate(Vector record) {
-    // Only 1nn
-    Object cls = null;
-    double bestSoFar = Double.POSITIVE_INFINITY;
-    for (int i = 0; i < x.rows(); i++) {
-      double distance = this.distance.compute(x.loc().getRecord(i), record);
-      if (distance < bestSoFar) {
-        cls = y.loc().get(Object.class, i);
-        bestSoFar = distance;
+    NeighbourHeap nearest = nearest(record, k);
+    DoubleArray estimate = DoubleArray.zeros(getClasses().size());
+    for (int i = 0; i < nearest.size(); i++) {
+      int target = targets[nearest.getIndex(i)];
+      estimate.set(target, estimate.get(target) + 1.0 / nearest.size());
+    }
+    return estimate;
+  }
+
+  /**
+   * Returns the {@code k} nearest neighbours of the given example
+   *
+   * @param example the given example
+   * @param k the number of neighbours
+   * @return the nearest neighbours (indices in the search space)
+   */
+  public NeighbourHeap nearest(Vector example, int k) {
+    return search(example, k, false)[0];
+  }
+
+  /**
+   * Returns the {@code k} nearest neighbours of each class. The {@code i}:th heap contains the
+   * neighbours of the {@code i}:th class in {@link #getClasses()}.
+   *
+   * @param example the given example
+   * @param k the number of neighbours (per class)
+   * @return the nearest neighbours of each class
+   */
+  public NeighbourHeap[] nearestPerClass(Vector example, int k) {
+    return search(example, k, true);
+  }
+
+  /**
+   * Returns the indices of the examples within the given radius of the example
+   *
+   * @param example the given example
+   * @param radius the radius
+   * @return the indices of the examples in the search space with a distance of at most
+   *         {@code radius}
+   */
+  public int[] range(Vector example, double radius) {
+    if (index instanceof VantagePointTree) {
+      return ((VantagePointTree) index).range(example, radius);
+    }
+    return IntStream.range(0, size())
+        .filter(i -> distance.compute(example, x.loc().getRecord(i)) <= radius).toArray();
+  }
+
+  /**
+   * Estimates the recall of the index of the search space, i.e., the mean fraction of the
+   * {@code k} nearest neighbours (found by an exact scan) of each query that are found using the
+   * index. A neighbour found using the index counts as correct if it's not farther away than the
+   * {@code k}:th exact neighbour.
+   *
+   * @param queries the queries
+   * @param k the number of neighbours
+   * @return the recall (in {@code [0, 1]})
+   */
+  public double recall(DataFrame queries, int k) {
+    return IntStream.range(0, queries.rows()).parallel().mapToDouble(i -> {
+      Vector query = queries.loc().getRecord(i);
+      NeighbourHeap exact = scan(query, k, false)[0];
+      if (exact.size() == 0) {
+        return 1;
+      }
+      double[] exactDistances = exact.sortedDistances();
+      double farthest = exactDistances[exactDistances.length - 1];
+      NeighbourHeap found = nearest(query, k);
+      int correct = 0;
+      for (int j = 0; j < found.size(); j++) {
+        if (found.getDistance(j) <= farthest) {
+          correct++;
+        }
       }
+      return Math.min(correct, exact.size()) / (double) exact.size();
+    }).average().orElse(1);
+  }
+
+  /**
+   * @return the index of the search space (or {@code null} if the search space is scanned)
+   */
+  public NeighbourIndex getIndex() {
+    return index;
+  }
+
+  /**
+   * Searches for the nearest neighbours, using the index of the search space (if any)
+   */
+  private NeighbourHeap[] search(Vector example, int k, boolean perClass) {
+    if (index != null) {
+      NeighbourHeap[] heaps = newHeaps(k, perClass);
+      index.nearest(example, heaps, perClass ? targets : null);
+      return heaps;
     }
+    return scan(example, k, perClass);
+  }
 
-    Vector classes = getClasses();
-    DoubleArray estimate = DoubleArray.zeros(classes.size());
-    for (int i = 0; i < classes.size(); i++) {
-      estimate.set(i, classes.loc().get(Object.class, i).equals(cls) ? 1 : 0);
+  /**
+   * Scans the search space for the nearest neighbours. Large search spaces are scanned in parallel
+   * chunks (unless already executed in a fork join pool, e.g., when estimating several examples in
+   * parallel) whose heaps are merged.
+   */
+  private NeighbourHeap[] scan(Vector example, int k, boolean perClass) {
+    int n = size();
+    int chunks = (n + CHUNK_SIZE - 1) / CHUNK_SIZE;
+    if (chunks <= 1 || ForkJoinTask.inForkJoinPool()) {
+      NeighbourHeap[] heaps = newHeaps(k, perClass);
+      scan(example, heaps, perClass, 0, n);
+      return heaps;
+    }
+    return IntStream.range(0, chunks).parallel().mapToObj(chunk -> {
+      NeighbourHeap[] heaps = newHeaps(k, perClass);
+      scan(example, heaps, perClass, chunk * CHUNK_SIZE, Math.min(n, (chunk + 1) * CHUNK_SIZE));
+      return heaps;
+    }).reduce((a, b) -> {
+      for (int i = 0; i < a.length; i++) {
+        a[i].offerAll(b[i]);
+      }
+      return a;
+    }).get();
+  }
+
+  private NeighbourHeap[] newHeaps(int k, boolean perClass) {
+    NeighbourHeap[] heaps = new NeighbourHeap[perClass ? getClasses().size() : 1];
+    for (int i = 0; i < heaps.length; i++) {
+      heaps[i] = new NeighbourHeap(k);
+    }
+    return heaps;
+  }
+
+  private void scan(Vector example, NeighbourHeap[] heaps, boolean perClass, int from, int to) {
+    for (int i = from; i < to; i++) {
+      NeighbourHeap heap = heaps[perClass ? targets[i] : 0];
+      double cutoff = heap.cutoff();
+      heap.offer(i, distance(example, i, cutoff));
     }
-    return estimate;
   }
 
   @Override
@@ -121,15 +279,48 @@ public class NearestNeighbours extends AbstractClassifier {
     int n = x.rows();
     DoubleArray distances = DoubleArray.zeros(n);
     for (int i = 0; i < n; i++) {
-      distances.set(i, this.distance.compute(example, x.loc().getRecord(i)));
+      distances.set(i, distance(example, i, Double.POSITIVE_INFINITY));
     }
     return distances;
   }
 
+  /**
+   * Computes the distance of the given example to the {@code index}:th example in the search
+   * space. If the distance supports {@linkplain EarlyAbandonDistance early abandoning}, the
+   * computation is abandoned (and {@code Double.POSITIVE_INFINITY} returned) as soon as the
+   * distance is known to be larger than or equal to {@code cutoff}.
+   *
+   * @param example the given example
+   * @param index the index of the example in the search space
+   * @param cutoff the cutoff
+   * @return the distance
+   */
+  public double distance(Vector example, int index, double cutoff) {
+    if (references != null) {
+      return ((EarlyAbandonDistance) distance).compute(example, references[index], cutoff);
+    }
+    return distance.compute(example, x.loc().getRecord(index));
+  }
+
+  /**
+   * @return the number of examples in the search space
+   */
+  public int size() {
+    return x.rows();
+  }
+
   public Vector getTarget() {
     return y;
   }
 
+  /**
+   * @param index the index of the example in the search space
+   * @return the index (in {@link #getClasses()}) of the class of the example
+   */
+  public int getTargetIndex(int index) {
+    return targets[index];
+  }
+
   /**
    * A nearest neighbour learner learns a nearest neighbours classifier
    */
@@ -137,10 +328,22 @@ public class NearestNeighbours extends AbstractClassifier {
 
     private final int neighbors;
     private final Distance distance;
+    private final boolean indexed;
+    private final boolean approximate;
+    private final int maxConnections;
+    private final int efConstruction;
+    private final int ef;
+    private final Long seed;
 
     private Learner(Configurator builder) {
       this.neighbors = builder.neighbors;
       this.distance = builder.distance;
+      this.indexed = builder.indexed;
+      this.approximate = builder.approximate;
+      this.maxConnections = builder.maxConnections;
+      this.efConstruction = builder.efConstruction;
+      this.ef = builder.ef;
+      this.seed = builder.seed;
     }
 
     public Learner(int k) {
@@ -150,13 +353,39 @@ public class NearestNeighbours extends AbstractClassifier {
     public Learner(int k, Distance distance) {
       this.neighbors = k;
       this.distance = distance;
+      this.indexed = false;
+      this.approximate = false;
+      this.maxConnections = 0;
+      this.efConstruction = 0;
+      this.ef = 0;
+      this.seed = null;
     }
 
     @Override
     public NearestNeighbours fit(DataFrame x, Vector y) {
       Check.argument(x.rows() == y.size(), "The size of x and y don't match: %s != %s.", x.rows(),
           y.size());
-      return new NearestNeighbours(x, y, distance, neighbors, Vectors.unique(y));
+      Vector classes = Vectors.unique(y);
+      int[] targets = new int[y.size()];
+      for (int i = 0; i < targets.length; i++) {
+        targets[i] = classes.loc().indexOf(y.loc().get(i));
+      }
+
+      NeighbourIndex index = null;
+      RandomStream random = seed != null ? new RandomStream(seed) : RandomStream.create();
+      if (approximate) {
+        Check.argument(distance instanceof EuclideanDistance,
+            "Approximate search requires the euclidean distance");
+        HierarchicalNavigableSmallWorld graph = new HierarchicalNavigableSmallWorld(x, targets,
+            maxConnections, efConstruction, random.split(0));
+        graph.setEf(ef);
+        index = graph;
+      } else if (indexed) {
+        Check.argument(distance instanceof MetricDistance || distance instanceof EuclideanDistance
+            || distance instanceof ManhattanDistance, "Indexed search requires a metric distance");
+        index = new VantagePointTree(x, distance, random.split(0));
+      }
+      return new NearestNeighbours(x, y, distance, neighbors, classes, targets, index);
     }
 
     @Override
@@ -169,6 +398,12 @@ public class NearestNeighbours extends AbstractClassifier {
 
     public int neighbors;
     private Distance distance = EuclideanDistance.getInstance();
+    private boolean indexed = false;
+    private boolean approximate = false;
+    private int maxConnections = 16;
+    private int efConstruction = 200;
+    private int ef = 50;
+    private Long seed = null;
 
     public Configurator(int neighbors) {
       this.neighbors = neighbors;
@@ -184,6 +419,77 @@ public class NearestNeighbours extends AbstractClassifier {
       return this;
     }
 
+    /**
+     * Search for the (exact) nearest neighbours using a {@linkplain VantagePointTree vantage-point
+     * tree} instead of scanning the examples (in parallel). Requires a metric distance (e.g., the
+     * euclidean or manhattan distance) and examples of equal length without missing values. The
+     * tree pays off for large search spaces of low intrinsic dimension.
+     *
+     * @param indexed true to index the search space
+     * @return this configurator
+     */
+    public Configurator setIndexed(boolean indexed) {
+      this.indexed = indexed;
+      return this;
+    }
+
+    /**
+     * Search for approximate nearest neighbours using a
+     * {@linkplain HierarchicalNavigableSmallWorld hierarchical navigable small world graph}
+     * (requires the euclidean distance). Takes precedence over {@link #setIndexed(boolean)}.
+     *
+     * @param approximate true to search for approximate nearest neighbours
+     * @return this configurator
+     */
+    public Configurator setApproximate(boolean approximate) {
+      this.approximate = approximate;
+      return this;
+    }
+
+    /**
+     * @param maxConnections the largest number of links per example and layer of the graph
+     * @return this configurator
+     * @see HierarchicalNavigableSmallWorld
+     */
+    public Configurator setMaxConnections(int maxConnections) {
+      this.maxConnections = maxConnections;
+      return this;
+    }
+
+    /**
+     * @param efConstruction the width of the beam used when building the graph
+     * @return this configurator
+     * @see HierarchicalNavigableSmallWorld
+     */
+    public Configurator setEfConstruction(int efConstruction) {
+      this.efConstruction = efConstruction;
+      return this;
+    }
+
+    /**
+     * @param ef the width of the beam used when searching the graph
+     * @return this configurator
+     * @see HierarchicalNavigableSmallWorld#setEf(int)
+     */
+    public Configurator setEf(int ef) {
+      this.ef = ef;
+      return this;
+    }
+
+    /**
+     * Set the seed from which the random numbers used to build the index of the search space are
+     * derived, i.e., the vantage points of the {@linkplain #setIndexed(boolean) tree} and the
+     * layers of the records of the {@linkplain #setApproximate(boolean) graph}. Note that the links
+     * of a large graph depend on the order in which the records are inserted in parallel.
+     *
+     * @param seed the seed
+     * @return this configurator
+     */
+    public Configurator setSeed(long seed) {
+      this.seed = seed;
+      return this;
+    }
+
     public Learner configure() {
       return new Learner(this);
     }
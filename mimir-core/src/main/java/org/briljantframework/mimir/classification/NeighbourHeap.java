@@ -0,0 +1,228 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Isak Karlsson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+ * NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.briljantframework.mimir.classification;
+
+import org.briljantframework.Check;
+import org.briljantframework.data.vector.Vector;
+
+/**
+ * The (at most) {@code k} nearest neighbours found so far, i.e., a bounded max-heap of
+ * {@code (distance, index)} pairs stored in primitive arrays. The largest distance in a full heap
+ * is the {@linkplain #cutoff() cutoff} which a neighbour must improve on, and which can be used
+ * to abandon distance computations early.
+ *
+ * <p/>
+ * Distances are ordered as by {@link Double#compare(double, double)}, i.e., {@code NaN} is larger
+ * than every other distance (including {@code Double.POSITIVE_INFINITY}). Hence, neighbours at an
+ * unknown (NaN) distance are only kept if there are fewer than {@code k} other neighbours, in
+ * which case they propagate to, e.g., the {@linkplain #sum() sum} of the distances.
+ *
+ * @author Isak Karlsson
+ * @see NearestNeighbours#nearest(Vector, int)
+ */
+public final class NeighbourHeap {
+
+  private final int k;
+  private final double[] distances;
+  private final int[] indices;
+  private int size = 0;
+
+  /**
+   * @param k the number of neighbours
+   */
+  public NeighbourHeap(int k) {
+    Check.argument(k > 0, "Requires at least one neighbour");
+    this.k = k;
+    this.distances = new double[k];
+    this.indices = new int[k];
+  }
+
+  /**
+   * @return the distance a neighbour must be smaller than to be added; i.e., the largest distance
+   *         if the heap is full, otherwise (or if the largest distance is NaN)
+   *         {@code Double.POSITIVE_INFINITY}
+   */
+  public double cutoff() {
+    return size < k || Double.isNaN(distances[0]) ? Double.POSITIVE_INFINITY : distances[0];
+  }
+
+  /**
+   * Add the neighbour if the heap is not full or if it's distance is smaller than the largest
+   * distance (replacing the farthest neighbour)
+   *
+   * @param index the index of the neighbour
+   * @param distance the distance to the neighbour
+   * @return true if the neighbour was added
+   */
+  public boolean offer(int index, double distance) {
+    if (size < k) {
+      int i = size++;
+      while (i > 0) {
+        int parent = (i - 1) >>> 1;
+        if (Double.compare(distances[parent], distance) >= 0) {
+          break;
+        }
+        distances[i] = distances[parent];
+        indices[i] = indices[parent];
+        i = parent;
+      }
+      distances[i] = distance;
+      indices[i] = index;
+    } else if (Double.compare(distance, distances[0]) < 0) {
+      int i = 0;
+      int half = size >>> 1;
+      while (i < half) {
+        int child = 2 * i + 1;
+        if (child + 1 < size && Double.compare(distances[child + 1], distances[child]) > 0) {
+          child++;
+        }
+        if (Double.compare(distances[child], distance) <= 0) {
+          break;
+        }
+        distances[i] = distances[child];
+        indices[i] = indices[child];
+        i = child;
+      }
+      distances[i] = distance;
+      indices[i] = index;
+    } else {
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Offer the neighbours of the other heap
+   *
+   * @param other the other heap
+   */
+  public void offerAll(NeighbourHeap other) {
+    for (int i = 0; i < other.size; i++) {
+      offer(other.indices[i], other.distances[i]);
+    }
+  }
+
+  /**
+   * @return the number of neighbours
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * @return the largest number of neighbours
+   */
+  public int capacity() {
+    return k;
+  }
+
+  /**
+   * @param i the position (in heap order) of the neighbour
+   * @return the index of the neighbour
+   */
+  public int getIndex(int i) {
+    return indices[i];
+  }
+
+  /**
+   * @param i the position (in heap order) of the neighbour
+   * @return the distance to the neighbour
+   */
+  public double getDistance(int i) {
+    return distances[i];
+  }
+
+  /**
+   * @return the sum of the distances to the neighbours
+   */
+  public double sum() {
+    double sum = 0;
+    for (int i = 0; i < size; i++) {
+      sum += distances[i];
+    }
+    return sum;
+  }
+
+  /**
+   * @return the indices of the neighbours, in order of increasing distance
+   */
+  public int[] sortedIndices() {
+    int[] sortedIndices = new int[size];
+    sort(sortedIndices, new double[size]);
+    return sortedIndices;
+  }
+
+  /**
+   * @return the distances to the neighbours, in increasing order
+   */
+  public double[] sortedDistances() {
+    double[] sortedDistances = new double[size];
+    sort(new int[size], sortedDistances);
+    return sortedDistances;
+  }
+
+  /**
+   * Copy the neighbours, in order of increasing distance (and index), to the given arrays (of at
+   * least {@link #size()} elements) by sorting a copy of the heap in place.
+   *
+   * @param sortedIndices the indices of the neighbours
+   * @param sortedDistances the distances to the neighbours
+   */
+  void sort(int[] sortedIndices, double[] sortedDistances) {
+    System.arraycopy(indices, 0, sortedIndices, 0, size);
+    System.arraycopy(distances, 0, sortedDistances, 0, size);
+    for (int i = size / 2 - 1; i >= 0; i--) {
+      siftDown(sortedIndices, sortedDistances, i, size);
+    }
+    for (int end = size - 1; end > 0; end--) {
+      swap(sortedIndices, sortedDistances, 0, end);
+      siftDown(sortedIndices, sortedDistances, 0, end);
+    }
+  }
+
+  private static void siftDown(int[] indices, double[] distances, int i, int size) {
+    while (2 * i + 1 < size) {
+      int child = 2 * i + 1;
+      if (child + 1 < size && greater(indices, distances, child + 1, child)) {
+        child++;
+      }
+      if (!greater(indices, distances, child, i)) {
+        return;
+      }
+      swap(indices, distances, i, child);
+      i = child;
+    }
+  }
+
+  private static boolean greater(int[] indices, double[] distances, int i, int j) {
+    int cmp = Double.compare(distances[i], distances[j]);
+    return cmp > 0 || cmp == 0 && indices[i] > indices[j];
+  }
+
+  private static void swap(int[] indices, double[] distances, int i, int j) {
+    int index = indices[i];
+    indices[i] = indices[j];
+    indices[j] = index;
+    double distance = distances[i];
+    distances[i] = distances[j];
+    distances[j] = distance;
+  }
+}
@@ -0,0 +1,42 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Isak Karlsson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+ * NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.briljantframework.mimir.classification;
+
+import org.briljantframework.data.vector.Vector;
+
+/**
+ * An index over the search space of a {@link NearestNeighbours nearest neighbours} classifier.
+ *
+ * @author Isak Karlsson
+ */
+public interface NeighbourIndex {
+
+  /**
+   * Offer the records that may be among the nearest neighbours of the given example to the heaps.
+   * If {@code targets} is {@code null}, all records are offered to the first heap; otherwise the
+   * {@code i}:th record is offered to the heap {@code targets[i]}.
+   *
+   * @param example the example
+   * @param heaps the heaps
+   * @param targets the heap of each record (or {@code null})
+   */
+  void nearest(Vector example, NeighbourHeap[] heaps, int[] targets);
+}
@@ -0,0 +1,141 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Isak Karlsson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+ * NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.briljantframework.mimir.classification;
+
+import java.util.List;
+
+import org.briljantframework.Check;
+import org.briljantframework.array.BooleanArray;
+import org.briljantframework.array.DoubleArray;
+import org.briljantframework.data.dataframe.DataFrame;
+
+/**
+ * The out-of-bag estimates of the training examples of an ensemble, accumulated while the members
+ * are fitted. Each member adds its estimates of its out-of-bag examples right after it is fitted
+ * (concurrently with the other members), so that the out-of-bag estimates (e.g., for calibrating a
+ * {@link org.briljantframework.mimir.classification.conformal.BootstrapConformalClassifier}) do not
+ * require a second pass over the examples and members.
+ *
+ * @author Isak Karlsson
+ * @see Ensemble#oobEstimates(Ensemble, DataFrame)
+ */
+public final class OutOfBagEstimates {
+
+  private static final int STRIPES = 64;
+
+  private final int rows;
+  private final int classes;
+  private final double[] sums;
+  private final int[] counts;
+  private final Object[] locks = new Object[STRIPES];
+
+  public OutOfBagEstimates(int rows, int classes) {
+    this.rows = rows;
+    this.classes = classes;
+    this.sums = new double[rows * classes];
+    this.counts = new int[rows];
+    for (int i = 0; i < STRIPES; i++) {
+      locks[i] = new Object();
+    }
+  }
+
+  /**
+   * Merge the estimates of ensembles fitted on the same examples (see
+   * {@link Ensemble#merge(List)})
+   *
+   * @param estimates the estimates
+   * @return the merged estimates
+   */
+  public static OutOfBagEstimates merge(List<OutOfBagEstimates> estimates) {
+    OutOfBagEstimates first = estimates.get(0);
+    OutOfBagEstimates merged = new OutOfBagEstimates(first.rows, first.classes);
+    for (OutOfBagEstimates e : estimates) {
+      Check.argument(e.rows == first.rows && e.classes == first.classes,
+          "Estimates of different shapes");
+      for (int i = 0; i < merged.sums.length; i++) {
+        merged.sums[i] += e.sums[i];
+      }
+      for (int i = 0; i < merged.rows; i++) {
+        merged.counts[i] += e.counts[i];
+      }
+    }
+    return merged;
+  }
+
+  /**
+   * Add the estimates of the member for its out-of-bag examples
+   *
+   * @param member the member
+   * @param x the training examples
+   * @param oobIndicator the out-of-bag indicator of the member
+   */
+  public void add(Classifier member, DataFrame x, BooleanArray oobIndicator) {
+    for (int i = 0; i < rows; i++) {
+      if (oobIndicator.get(i)) {
+        add(i, member.estimate(x.loc().getRecord(i)));
+      }
+    }
+  }
+
+  private void add(int row, DoubleArray estimate) {
+    synchronized (locks[row % STRIPES]) {
+      for (int j = 0; j < classes; j++) {
+        sums[row * classes + j] += estimate.get(j);
+      }
+      counts[row]++;
+    }
+  }
+
+  /**
+   * @return the number of examples
+   */
+  public int rows() {
+    return rows;
+  }
+
+  /**
+   * Get the average estimate of the members for which each example is out-of-bag (or
+   * {@code NaN}, if the example is in-bag for all members)
+   *
+   * @return the estimates, of shape {@code [no training samples, no classes]}
+   */
+  public DoubleArray getEstimates() {
+    DoubleArray estimates = DoubleArray.zeros(rows, classes);
+    for (int i = 0; i < rows; i++) {
+      synchronized (locks[i % STRIPES]) {
+        for (int j = 0; j < classes; j++) {
+          estimates.set(i, j, sums[i * classes + j] / counts[i]);
+        }
+      }
+    }
+    return estimates;
+  }
+
+  /**
+   * @param row the example
+   * @return the number of members for which the example is out-of-bag
+   */
+  public int getCount(int row) {
+    synchronized (locks[row % STRIPES]) {
+      return counts[row];
+    }
+  }
+}
@@ -32,16 +32,37 @@ import org.briljantframework.data.vector.Vector;
 import org.briljantframework.data.vector.Vectors;
 import org.briljantframework.mimir.classification.tree.ClassSet;
 import org.briljantframework.mimir.classification.tree.Example;
+import org.briljantframework.mimir.classification.tree.Race;
 import org.briljantframework.mimir.classification.tree.RandomSplitter;
 import org.briljantframework.mimir.classification.tree.Splitter;
+import org.briljantframework.mimir.supervised.RandomStream;
 
 /**
  * @author Isak Karlsson <isak-kar@dsv.su.se>
  */
 public final class RandomForest extends Ensemble {
 
-  private RandomForest(Vector classes, List<? extends Classifier> members, BooleanArray oobIndicator) {
-    super(classes, members, oobIndicator);
+  private RandomForest(Vector classes, List<? extends Classifier> members,
+      BooleanArray oobIndicator, CompiledForest compiled, OutOfBagEstimates outOfBagEstimates) {
+    super(classes, members, oobIndicator, compiled, outOfBagEstimates);
+  }
+
+  /**
+   * Merge forests fitted on the same training data
+   *
+   * @param forests the forests
+   * @return the merged forest
+   * @see Ensemble#merge(List)
+   */
+  public static RandomForest merge(List<RandomForest> forests) {
+    return new RandomForest(mergeClasses(forests), mergeMembers(forests),
+        mergeOobIndicators(forests), mergeCompiled(forests), mergeOutOfBagEstimates(forests));
+  }
+
+  @Override
+  public RandomForest select(int[] indices) {
+    return new RandomForest(getClasses(), selectMembers(indices), selectOobIndicator(indices),
+        null, null);
   }
 
   @Override
@@ -57,34 +78,75 @@ public final class RandomForest extends Ensemble {
     private final BaseLearner<? extends Classifier> learnStrategy;
 
     public Learner(int size) {
-      this(RandomSplitter.withMaximumFeatures(-1).create(), size);
+      this(RandomSplitter.withMaximumFeatures(-1).create(), size, null, null, null, false);
     }
 
-    private Learner(BaseLearner<? extends Classifier> baseLearner, int size) {
-      super(size);
+    private Learner(BaseLearner<? extends Classifier> baseLearner, int size, Long seed,
+        Scheduler scheduler, Budget budget, boolean outOfBagEstimates) {
+      super(size, seed, scheduler, budget, outOfBagEstimates);
       this.learnStrategy = baseLearner;
     }
 
-    private Learner(Splitter splitter, int size) {
-      super(size);
-      learnStrategy = (set, classes) -> new DecisionTree.Learner(splitter, set, classes);
+    private Learner(Splitter splitter, int size, Long seed, Scheduler scheduler,
+        Budget budget, boolean outOfBagEstimates) {
+      super(size, seed, scheduler, budget, outOfBagEstimates);
+      learnStrategy = new BaseLearner<DecisionTree>() {
+        @Override
+        public DecisionTree.Learner getLearner(ClassSet set, Vector classes) {
+          return new DecisionTree.Learner(splitter, set, classes);
+        }
+
+        @Override
+        public DecisionTree.Learner getLearner(ClassSet set, Vector classes,
+            RandomStream random) {
+          return new DecisionTree.Learner(splitter, set, classes, random);
+        }
+      };
+    }
+
+    @Override
+    public Learner withOutOfBagEstimates(boolean outOfBagEstimates) {
+      return new Learner(learnStrategy, size(), getSeed(), getScheduler(), getBudget(),
+          outOfBagEstimates);
     }
 
     @Override
     public RandomForest fit(DataFrame x, Vector y) {
+      return fitTrees(x, y, 0, size());
+    }
+
+    @Override
+    public RandomForest grow(RandomForest forest, DataFrame x, Vector y, int members) {
+      int n = checkGrow(forest, x, members);
+      List<RandomForest> forests = new ArrayList<>();
+      forests.add(forest);
+      forests.add(fitTrees(x, y, n, n + members));
+      return merge(forests);
+    }
+
+    /**
+     * Fit the trees {@code [from, to)}
+     */
+    private RandomForest fitTrees(DataFrame x, Vector y, int from, int to) {
       Vector classes = Vectors.unique(y);
       ClassSet classSet = new ClassSet(y, classes);
       List<FitTask> fitTasks = new ArrayList<>();
-      BooleanArray oobIndicator = Arrays.booleanArray(x.rows(), size());
-      for (int i = 0; i < size(); i++) {
-        fitTasks
-            .add(new FitTask(classSet, x, y, learnStrategy, classes, oobIndicator.getColumn(i)));
+      BooleanArray oobIndicator = Arrays.booleanArray(x.rows(), to - from);
+      OutOfBagEstimates estimates =
+          isOutOfBagEstimates() ? new OutOfBagEstimates(x.rows(), classes.size()) : null;
+      RandomStream random = createRandomStream();
+      for (int i = from; i < to; i++) {
+        fitTasks.add(new FitTask(classSet, x, y, learnStrategy, classes,
+            oobIndicator.getColumn(i - from), estimates, random.split(i)));
       }
       try {
-        return new RandomForest(classes, execute(fitTasks), oobIndicator);
+        List<Classifier> models = execute(fitTasks);
+        return new RandomForest(classes, fitted(models), fitted(models, oobIndicator), null,
+            estimates);
+      } catch (RuntimeException e) {
+        throw e;
       } catch (Exception e) {
-        e.printStackTrace();
-        return null;
+        throw new RuntimeException(e);
       }
     }
 
@@ -100,23 +162,31 @@ public final class RandomForest extends Ensemble {
       private final Vector y;
       private final Vector classes;
       private final BooleanArray oobIndicator;
+      private final OutOfBagEstimates estimates;
       private final BaseLearner<? extends Classifier> baseLearner;
+      private final RandomStream random;
 
       private FitTask(ClassSet classSet, DataFrame x, Vector y,
-          BaseLearner<? extends Classifier> baseLearner, Vector classes, BooleanArray oobIndicator) {
+          BaseLearner<? extends Classifier> baseLearner, Vector classes, BooleanArray oobIndicator,
+          OutOfBagEstimates estimates, RandomStream random) {
         this.classSet = classSet;
         this.x = x;
         this.y = y;
         this.baseLearner = baseLearner;
         this.classes = classes;
         this.oobIndicator = oobIndicator;
+        this.estimates = estimates;
+        this.random = random;
       }
 
       @Override
       public Classifier call() throws Exception {
-        Random random = new Random(Thread.currentThread().getId() * System.currentTimeMillis());
-        ClassSet bootstrap = sample(classSet, random);
-        return baseLearner.getLearner(bootstrap, classes).fit(x, y);
+        ClassSet bootstrap = sample(classSet, random.split(0));
+        Classifier member = baseLearner.getLearner(bootstrap, classes, random.split(1)).fit(x, y);
+        if (estimates != null) {
+          estimates.add(member, x, oobIndicator); // while the examples are in cache
+        }
+        return member;
       }
 
       public ClassSet sample(ClassSet classSet, Random random) {
@@ -156,6 +226,10 @@ public final class RandomForest extends Ensemble {
     private RandomSplitter.Builder splitter = RandomSplitter.withMaximumFeatures(-1);
     private int size = 100;
     private BaseLearner<? extends Classifier> learner = null;
+    private Long seed = null;
+    private Scheduler scheduler = null;
+    private Budget budget = null;
+    private boolean outOfBagEstimates = false;
 
     public Configurator(int size) {
       this.size = size;
@@ -171,6 +245,66 @@ public final class RandomForest extends Ensemble {
       return this;
     }
 
+    /**
+     * Evaluate the candidate splits of large nodes by racing them on growing subsamples.
+     *
+     * @param race the race (or {@code null} to disable racing)
+     * @return this configurator
+     */
+    public Configurator setRace(Race race) {
+      splitter.withRace(race);
+      return this;
+    }
+
+    /**
+     * Set the master seed, from which the random numbers of each tree are derived. By default, the
+     * forest is not reproducible.
+     *
+     * @param seed the seed
+     * @return this configurator
+     */
+    public Configurator setSeed(long seed) {
+      this.seed = seed;
+      return this;
+    }
+
+    /**
+     * Set the scheduler of the trees. By default, the {@linkplain Scheduler#getDefault() default}
+     * scheduler is used.
+     *
+     * @param scheduler the scheduler
+     * @return this configurator
+     */
+    public Configurator setScheduler(Scheduler scheduler) {
+      this.scheduler = scheduler;
+      return this;
+    }
+
+    /**
+     * Stop starting new trees once the budget is exhausted; the forest consists of the trees
+     * completed so far. By default, all trees are fitted.
+     *
+     * @param budget the budget
+     * @return this configurator
+     */
+    public Configurator setBudget(Budget budget) {
+      this.budget = budget;
+      return this;
+    }
+
+    /**
+     * Accumulate the out-of-bag estimates while fitting the trees (see
+     * {@link Ensemble.Learner#isOutOfBagEstimates()}). By default, the estimates are not
+     * accumulated.
+     *
+     * @param outOfBagEstimates true to accumulate the out-of-bag estimates
+     * @return this configurator
+     */
+    public Configurator setOutOfBagEstimates(boolean outOfBagEstimates) {
+      this.outOfBagEstimates = outOfBagEstimates;
+      return this;
+    }
+
     public Configurator setBaseLearner(BaseLearner<? extends Classifier> learner) {
       this.learner = learner;
       return this;
@@ -179,9 +313,9 @@ public final class RandomForest extends Ensemble {
     @Override
     public Learner configure() {
       if (learner == null) {
-        return new Learner(splitter.create(), size);
+        return new Learner(splitter.create(), size, seed, scheduler, budget, outOfBagEstimates);
       } else {
-        return new Learner(learner, size);
+        return new Learner(learner, size, seed, scheduler, budget, outOfBagEstimates);
       }
     }
   }
@@ -20,12 +20,15 @@
  */
 package org.briljantframework.mimir.classification;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.concurrent.Callable;
+import java.util.function.BooleanSupplier;
 
+import org.briljantframework.Check;
 import org.briljantframework.array.Arrays;
 import org.briljantframework.array.BooleanArray;
 import org.briljantframework.array.DoubleArray;
@@ -34,8 +37,11 @@ import org.briljantframework.data.vector.Vector;
 import org.briljantframework.data.vector.Vectors;
 import org.briljantframework.mimir.classification.tree.ClassSet;
 import org.briljantframework.mimir.classification.tree.Example;
+import org.briljantframework.mimir.classification.tree.Race;
 import org.briljantframework.mimir.distance.Distance;
 import org.briljantframework.mimir.evaluation.EvaluationContext;
+import org.briljantframework.mimir.shapelet.SeriesStore;
+import org.briljantframework.mimir.supervised.RandomStream;
 
 /**
  * <h1>Publications</h1>
@@ -53,12 +59,81 @@ public class RandomShapeletForest extends Ensemble {
 
   private RandomShapeletForest(Vector classes, DoubleArray apriori,
       List<? extends Classifier> members, DoubleArray lengthImportance,
-      DoubleArray positionImportance, BooleanArray oobIndicator) {
-    super(classes, members, oobIndicator);
+      DoubleArray positionImportance, BooleanArray oobIndicator,
+      OutOfBagEstimates outOfBagEstimates) {
+    this(classes, members, lengthImportance, positionImportance, oobIndicator, null,
+        outOfBagEstimates);
+  }
+
+  RandomShapeletForest(Vector classes, List<? extends Classifier> members,
+      DoubleArray lengthImportance, DoubleArray positionImportance, BooleanArray oobIndicator,
+      CompiledForest compiled, OutOfBagEstimates outOfBagEstimates) {
+    super(classes, members, oobIndicator, compiled, outOfBagEstimates);
     this.lengthImportance = lengthImportance;
     this.positionImportance = positionImportance;
   }
 
+  /**
+   * Merge forests fitted on the same training data, e.g., the slices of a forest fitted by
+   * {@link Learner#fit(DataFrame, Vector, int, int)} in different processes (see
+   * {@link ShardedShapeletForest}). The importances of the merged forest are the averages of the
+   * importances weighted by the number of trees of each forest.
+   *
+   * @param forests the forests
+   * @return the merged forest
+   * @see Ensemble#merge(List)
+   */
+  public static RandomShapeletForest merge(List<RandomShapeletForest> forests) {
+    Vector classes = mergeClasses(forests);
+    int columns = forests.get(0).lengthImportance.size();
+    DoubleArray lenSum = DoubleArray.zeros(columns);
+    DoubleArray posSum = DoubleArray.zeros(columns);
+    int size = 0;
+    for (RandomShapeletForest forest : forests) {
+      Check.argument(forest.lengthImportance.size() == columns,
+          "Forests fitted on %s and %s columns", columns, forest.lengthImportance.size());
+      int n = forest.getEnsembleMembers().size();
+      for (int i = 0; i < columns; i++) {
+        lenSum.set(i, lenSum.get(i) + forest.lengthImportance.get(i) * n);
+        posSum.set(i, posSum.get(i) + forest.positionImportance.get(i) * n);
+      }
+      size += n;
+    }
+    final int total = size;
+    lenSum.apply(v -> v / total);
+    posSum.apply(v -> v / total);
+    return new RandomShapeletForest(classes, mergeMembers(forests), lenSum, posSum,
+        mergeOobIndicators(forests), mergeCompiled(forests), mergeOutOfBagEstimates(forests));
+  }
+
+  /**
+   * {@inheritDoc}
+   * <p>
+   * The importances are averaged over the selected trees (or, if the trees have been read from
+   * disk, the importances of this forest).
+   */
+  @Override
+  public RandomShapeletForest select(int[] indices) {
+    List<Classifier> members = selectMembers(indices);
+    DoubleArray lenSum = DoubleArray.zeros(lengthImportance.size());
+    DoubleArray posSum = DoubleArray.zeros(positionImportance.size());
+    for (Classifier member : members) {
+      if (!(member instanceof ShapeletTree)) {
+        lenSum = lengthImportance;
+        posSum = positionImportance;
+        break;
+      }
+      lenSum.plusAssign(((ShapeletTree) member).getLengthImportance());
+      posSum.plusAssign(((ShapeletTree) member).getPositionImportance());
+    }
+    if (lenSum != lengthImportance) {
+      lenSum.apply(v -> v / members.size());
+      posSum.apply(v -> v / members.size());
+    }
+    return new RandomShapeletForest(getClasses(), members, lenSum, posSum,
+        selectOobIndicator(indices), null, null);
+  }
+
   public static Configurator withSize(int size) {
     return new Configurator(size);
   }
@@ -71,21 +146,31 @@ public class RandomShapeletForest extends Ensemble {
     return positionImportance;
   }
 
+  /**
+   * @return the average depth of the (shapelet tree) members; a forest read from disk has no
+   *         depth, i.e., {@code NaN}
+   */
   public double getAverageDepth() {
     double depth = 0;
+    int trees = 0;
     for (Classifier classifier : getEnsembleMembers()) {
       if (classifier instanceof ShapeletTree) {
         int d = ((ShapeletTree) classifier).getDepth();
         depth += d;
+        trees++;
       }
     }
-    return depth / getEnsembleMembers().size();
+    return depth / trees;
   }
 
   public static class Configurator implements Classifier.Configurator<Learner> {
 
     private final ShapeletTree.Configurator shapeletTree = new ShapeletTree.Configurator();
     private int size = 100;
+    private Long seed = null;
+    private Scheduler scheduler = null;
+    private Budget budget = null;
+    private boolean outOfBagEstimates = false;
 
     public Configurator(int size) {
       this.size = size;
@@ -126,6 +211,56 @@ public class RandomShapeletForest extends Ensemble {
       return this;
     }
 
+    /**
+     * Set the master seed, from which the random numbers of each tree are derived. By default, the
+     * forest is not reproducible.
+     *
+     * @param seed the seed
+     * @return this configurator
+     */
+    public Configurator setSeed(long seed) {
+      this.seed = seed;
+      return this;
+    }
+
+    /**
+     * Set the scheduler of the trees. By default, the {@linkplain Scheduler#getDefault() default}
+     * scheduler is used.
+     *
+     * @param scheduler the scheduler
+     * @return this configurator
+     */
+    public Configurator setScheduler(Scheduler scheduler) {
+      this.scheduler = scheduler;
+      return this;
+    }
+
+    /**
+     * Stop starting new trees once the budget is exhausted; the forest consists of the trees
+     * completed so far. By default, all trees are fitted.
+     *
+     * @param budget the budget
+     * @return this configurator
+     */
+    public Configurator setBudget(Budget budget) {
+      this.budget = budget;
+      return this;
+    }
+
+    /**
+     * Accumulate the out-of-bag estimates while fitting the trees (see
+     * {@link Ensemble.Learner#isOutOfBagEstimates()}). Since the estimates are computed by
+     * predicting about a third of the examples with each tree, this is costly for shapelet trees.
+     * By default, the estimates are not accumulated.
+     *
+     * @param outOfBagEstimates true to accumulate the out-of-bag estimates
+     * @return this configurator
+     */
+    public Configurator setOutOfBagEstimates(boolean outOfBagEstimates) {
+      this.outOfBagEstimates = outOfBagEstimates;
+      return this;
+    }
+
     public Configurator setSampleMode(ShapeletTree.Learner.SampleMode sampleMode) {
       shapeletTree.setSampleMode(sampleMode);
       return this;
@@ -136,9 +271,89 @@ public class RandomShapeletForest extends Ensemble {
       return this;
     }
 
+    public Configurator setParallel(boolean parallel) {
+      shapeletTree.setParallel(parallel);
+      return this;
+    }
+
+    public Configurator setPruning(boolean pruning) {
+      shapeletTree.setPruning(pruning);
+      return this;
+    }
+
+    public Configurator setPoolSize(int poolSize) {
+      shapeletTree.setPoolSize(poolSize);
+      return this;
+    }
+
+    public Configurator setRace(Race race) {
+      shapeletTree.setRace(race);
+      return this;
+    }
+
     @Override
     public Learner configure() {
-      return new Learner(shapeletTree, size);
+      return new Learner(shapeletTree, size, seed, scheduler, budget, outOfBagEstimates);
+    }
+
+    /**
+     * Write this configurator (see {@link ShardedShapeletForest}). An unseeded configurator is
+     * written with a random seed, so that every reader derives its trees from the same master.
+     */
+    void write(ModelFormat.Output out) throws IOException {
+      out.putInt(size);
+      out.putLong(seed != null ? seed : RandomStream.create().nextLong());
+      out.putByte(shapeletTree.assessment.ordinal());
+      out.putByte(shapeletTree.sampleMode.ordinal());
+      out.putDouble(shapeletTree.minSplit);
+      out.putInt(shapeletTree.inspectedShapelets);
+      out.putDouble(shapeletTree.aggregateFraction);
+      out.putDouble(shapeletTree.lowerLength);
+      out.putDouble(shapeletTree.upperLength);
+      out.putByte(shapeletTree.parallel ? 1 : 0);
+      out.putByte(shapeletTree.pruning ? 1 : 0);
+      out.putInt(shapeletTree.poolSize);
+      out.putDistance(shapeletTree.numericDistance);
+      out.putDistance(shapeletTree.getCategoricDistance());
+      Race race = shapeletTree.race;
+      out.putByte(race != null ? 1 : 0);
+      if (race != null) {
+        out.putDouble(race.getDelta());
+        out.putInt(race.getMinimumSize());
+        out.putInt(race.getInitialSize());
+        out.putInt(race.getSurvivors());
+      }
+      out.putByte(budget != null ? 1 : 0);
+      if (budget != null) {
+        budget.write(out);
+      }
+      out.putByte(outOfBagEstimates ? 1 : 0);
+    }
+
+    static Configurator read(ModelFormat.Input in) throws IOException {
+      Configurator configurator = new Configurator(in.getInt());
+      configurator.setSeed(in.getLong());
+      ShapeletTree.Configurator shapeletTree = configurator.shapeletTree;
+      shapeletTree.assessment = ShapeletTree.Learner.Assessment.values()[in.getByte()];
+      shapeletTree.sampleMode = ShapeletTree.Learner.SampleMode.values()[in.getByte()];
+      shapeletTree.minSplit = in.getDouble();
+      shapeletTree.inspectedShapelets = in.getInt();
+      shapeletTree.aggregateFraction = in.getDouble();
+      shapeletTree.lowerLength = in.getDouble();
+      shapeletTree.upperLength = in.getDouble();
+      shapeletTree.parallel = in.getByte() != 0;
+      shapeletTree.pruning = in.getByte() != 0;
+      shapeletTree.poolSize = in.getInt();
+      shapeletTree.numericDistance = in.getDistance();
+      shapeletTree.setCategoricDistance(in.getDistance());
+      if (in.getByte() != 0) {
+        shapeletTree.race = new Race(in.getDouble(), in.getInt(), in.getInt(), in.getInt());
+      }
+      if (in.getByte() != 0) {
+        configurator.setBudget(Budget.read(in));
+      }
+      configurator.setOutOfBagEstimates(in.getByte() != 0);
+      return configurator;
     }
   }
 
@@ -155,23 +370,69 @@ public class RandomShapeletForest extends Ensemble {
 
     private final ShapeletTree.Configurator configurator;
 
-    private Learner(ShapeletTree.Configurator configurator, int size) {
-      super(size);
+    private Learner(ShapeletTree.Configurator configurator, int size, Long seed,
+        Scheduler scheduler, Budget budget, boolean outOfBagEstimates) {
+      super(size, seed, scheduler, budget, outOfBagEstimates);
       this.configurator = configurator;
     }
 
+    @Override
+    public Learner withOutOfBagEstimates(boolean outOfBagEstimates) {
+      return new Learner(configurator, size(), getSeed(), getScheduler(), getBudget(),
+          outOfBagEstimates);
+    }
+
     @Override
     public RandomShapeletForest fit(DataFrame x, Vector y) {
+      return fit(x, y, 0, size());
+    }
+
+    /**
+     * Fit the trees {@code [from, to)} of the forest. Since the random numbers of the
+     * {@code i}:th tree are derived from the master seed and {@code i}, the
+     * {@linkplain RandomShapeletForest#merge(List) merge} of the slices {@code [0, k)} and
+     * {@code [k, size())} of a seeded forest is the forest fitted by
+     * {@link #fit(DataFrame, Vector)}.
+     *
+     * @param x the training data
+     * @param y the targets
+     * @param from the first tree (inclusive)
+     * @param to the last tree (exclusive)
+     * @return a forest of {@code to - from} trees (or fewer, if the budget is exhausted)
+     */
+    public RandomShapeletForest fit(DataFrame x, Vector y, int from, int to) {
+      Check.argument(0 <= from && from < to && to <= size(), "Illegal slice [%s, %s)", from, to);
+      return fitTrees(x, y, from, to);
+    }
+
+    @Override
+    public RandomShapeletForest grow(RandomShapeletForest forest, DataFrame x, Vector y,
+        int members) {
+      int n = checkGrow(forest, x, members);
+      List<RandomShapeletForest> forests = new ArrayList<>();
+      forests.add(forest);
+      forests.add(fitTrees(x, y, n, n + members));
+      return merge(forests);
+    }
+
+    private RandomShapeletForest fitTrees(DataFrame x, Vector y, int from, int to) {
       Vector classes = Vectors.unique(y);
       ClassSet classSet = new ClassSet(y, classes);
+      SeriesStore store = SeriesStore.create(x); // shared among all trees
       List<FitTask> tasks = new ArrayList<>();
-      BooleanArray oobIndicator = Arrays.booleanArray(x.rows(), size());
-      for (int i = 0; i < size(); i++) {
-        tasks.add(new FitTask(classSet, x, y, configurator, classes, oobIndicator.getColumn(i)));
+      BooleanArray oobIndicator = Arrays.booleanArray(x.rows(), to - from);
+      OutOfBagEstimates estimates =
+          isOutOfBagEstimates() ? new OutOfBagEstimates(x.rows(), classes.size()) : null;
+      RandomStream random = createRandomStream();
+      BooleanSupplier exhausted = getBudget().start(); // shared with the trees being grown
+      for (int i = from; i < to; i++) {
+        tasks.add(new FitTask(classSet, x, store, y, configurator, classes,
+            oobIndicator.getColumn(i - from), estimates, random.split(i), exhausted));
       }
 
       try {
-        List<ShapeletTree> models = Ensemble.Learner.execute(tasks);
+        List<ShapeletTree> fits = execute(tasks, exhausted);
+        List<ShapeletTree> models = fitted(fits);
         DoubleArray lenSum = DoubleArray.zeros(x.columns());
         DoubleArray posSum = DoubleArray.zeros(x.columns());
         for (ShapeletTree m : models) {
@@ -205,8 +466,8 @@ public class RandomShapeletForest extends Ensemble {
         // System.out.println(store1.shapes.stream().map(Vector::size).collect(Collectors.toList()));
         // System.out.println(store1.counts);
         // System.out.println(store1.scores.size());
-        lenSum.apply(v -> v / size());
-        posSum.apply(v -> v / size());
+        lenSum.apply(v -> v / models.size());
+        posSum.apply(v -> v / models.size());
 
         Map<Object, Integer> counts = Vectors.count(y);
         DoubleArray apriori = DoubleArray.zeros(classes.size());
@@ -214,7 +475,8 @@ public class RandomShapeletForest extends Ensemble {
           apriori.set(i, counts.get(classes.loc().get(Object.class, i)) / (double) y.size());
         }
 
-        return new RandomShapeletForest(classes, apriori, models, lenSum, posSum, oobIndicator);
+        return new RandomShapeletForest(classes, apriori, models, lenSum, posSum,
+            fitted(fits, oobIndicator), estimates);
       } catch (Exception e) {
         e.printStackTrace();
         throw new RuntimeException(e);
@@ -231,29 +493,42 @@ public class RandomShapeletForest extends Ensemble {
 
       private final ClassSet classSet;
       private final DataFrame x;
+      private final SeriesStore store;
       private final Vector y;
       private final Vector classes;
       private final ShapeletTree.Configurator configurator;
       private final BooleanArray oobIndicator;
+      private final OutOfBagEstimates estimates;
+      private final RandomStream random;
+      private final BooleanSupplier exhausted;
 
-
-      private FitTask(ClassSet classSet, DataFrame x, Vector y,
-          ShapeletTree.Configurator configurator, Vector classes, BooleanArray oobIndicator) {
+      private FitTask(ClassSet classSet, DataFrame x, SeriesStore store, Vector y,
+          ShapeletTree.Configurator configurator, Vector classes, BooleanArray oobIndicator,
+          OutOfBagEstimates estimates, RandomStream random, BooleanSupplier exhausted) {
         this.classSet = classSet;
         this.x = x;
+        this.store = store;
         this.y = y;
         this.classes = classes;
         this.configurator = configurator;
         this.oobIndicator = oobIndicator;
+        this.estimates = estimates;
+        this.random = random;
+        this.exhausted = exhausted;
       }
 
       @Override
       public ShapeletTree call() throws Exception {
-        Random random = new Random(Thread.currentThread().getId() * System.nanoTime());
-        ClassSet sample = sample(classSet, random);
+        ClassSet sample = sample(classSet, random.split(0));
         double low = configurator.lowerLength;
         double high = configurator.upperLength;
-        return new ShapeletTree.Learner(low, high, configurator, sample, classes).fit(x, y);
+        ShapeletTree tree =
+            new ShapeletTree.Learner(low, high, configurator, sample, classes, random.split(1))
+                .fit(x, y, store, exhausted);
+        if (estimates != null) {
+          estimates.add(tree, x, oobIndicator); // while the examples are in cache
+        }
+        return tree;
       }
 
 //      public ClassSet sampleNoBootstrap(c)
@@ -0,0 +1,265 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Isak Karlsson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+ * NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.briljantframework.mimir.classification;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BooleanSupplier;
+
+import org.briljantframework.Check;
+
+/**
+ * Schedules the fitting of the members of an ensemble in a work-stealing {@link ForkJoinPool}.
+ * <p>
+ * An ensemble fitted from a task of the pool (e.g., a forest fitted inside a grid search or a
+ * bootstrap conformal classifier fitted inside cross-validation using the same scheduler) forks its
+ * members to the same pool instead of running them sequentially; waiting tasks help executing the
+ * queued members, so nested ensembles neither deadlock nor oversubscribe the machine.
+ * <p>
+ * At most {@link #getParallelism()} members of an ensemble are fitted concurrently. If a member
+ * fails, or the fitting thread is interrupted, the members not yet started are cancelled.
+ *
+ * <pre>
+ * Scheduler scheduler = new Scheduler(new ForkJoinPool(8)).withParallelism(4);
+ * RandomForest.Learner learner = new RandomForest.Configurator(100).setScheduler(scheduler)
+ *     .configure();
+ * </pre>
+ *
+ * @author Isak Karlsson
+ */
+public final class Scheduler {
+
+  private static final Scheduler SEQUENTIAL = new Scheduler(null, 1);
+  private static volatile Scheduler defaultScheduler = createDefault();
+
+  private final ForkJoinPool pool;
+  private final int parallelism;
+
+  /**
+   * @param pool the pool (or {@code null} to fit the members sequentially)
+   */
+  public Scheduler(ForkJoinPool pool) {
+    this(pool, Integer.MAX_VALUE);
+  }
+
+  /**
+   * @param pool the pool (or {@code null} to fit the members sequentially)
+   * @param parallelism the maximum number of members of an ensemble fitted concurrently
+   */
+  public Scheduler(ForkJoinPool pool, int parallelism) {
+    Check.argument(parallelism > 0, "Parallelism must be positive");
+    this.pool = pool;
+    this.parallelism = parallelism;
+  }
+
+  private static Scheduler createDefault() {
+    int cores = Runtime.getRuntime().availableProcessors();
+    return cores > 1 ? new Scheduler(new ForkJoinPool(cores)) : SEQUENTIAL;
+  }
+
+  /**
+   * @return a scheduler fitting the members sequentially (in the calling thread)
+   */
+  public static Scheduler sequential() {
+    return SEQUENTIAL;
+  }
+
+  /**
+   * Get the scheduler of ensembles without a scheduler of their own. By default, a pool with one
+   * thread per core (or, with a single core, the {@linkplain #sequential() sequential} scheduler).
+   *
+   * @return the default scheduler
+   */
+  public static Scheduler getDefault() {
+    return defaultScheduler;
+  }
+
+  public static void setDefault(Scheduler scheduler) {
+    defaultScheduler = Objects.requireNonNull(scheduler);
+  }
+
+  /**
+   * @param parallelism the maximum number of members of an ensemble fitted concurrently
+   * @return a scheduler using the same pool with the given parallelism
+   */
+  public Scheduler withParallelism(int parallelism) {
+    return new Scheduler(pool, parallelism);
+  }
+
+  /**
+   * Get the pool of this scheduler. Members that parallelize their own fitting should use this
+   * pool to avoid oversubscribing the machine.
+   *
+   * @return the pool; or {@code null} if the members are fitted sequentially
+   */
+  public ForkJoinPool getPool() {
+    return pool;
+  }
+
+  public int getParallelism() {
+    return parallelism;
+  }
+
+  /**
+   * Execute the tasks and return their results (in order)
+   *
+   * @param tasks the tasks
+   * @param <T> the type of results
+   * @return the results
+   * @throws InterruptedException if the calling thread is interrupted (the remaining tasks are
+   *         cancelled)
+   * @throws Exception the exception of the first failed task (the remaining tasks are cancelled)
+   */
+  public <T> List<T> execute(List<? extends Callable<? extends T>> tasks) throws Exception {
+    return execute(tasks, () -> false);
+  }
+
+  /**
+   * Execute the tasks until {@code stop} returns {@code true}, which is checked before a task
+   * (except the first) is started. Tasks already started are completed. The tasks are claimed in
+   * order and no task is started once {@code stop} has returned {@code true}; hence, the tasks
+   * started are always a prefix of {@code tasks}.
+   *
+   * @param tasks the tasks
+   * @param stop returns {@code true} if no more tasks should be started
+   * @param <T> the type of results
+   * @return the results (in order); {@code null} for the tasks not started
+   * @throws Exception see {@link #execute(List)}
+   */
+  public <T> List<T> execute(List<? extends Callable<? extends T>> tasks, BooleanSupplier stop)
+      throws Exception {
+    Execution<T> execution = new Execution<>(tasks, Math.min(tasks.size(), parallelism), stop);
+    if (pool == null || execution.workers <= 1) {
+      execution.drain();
+    } else if (ForkJoinTask.inForkJoinPool() && ForkJoinTask.getPool() == pool) {
+      execution.invoke(); // nested; the joining thread executes queued members
+    } else {
+      pool.execute(execution);
+      try {
+        execution.get();
+      } catch (InterruptedException e) {
+        execution.cancelled = true;
+        throw e;
+      } catch (ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof Error) {
+          throw (Error) cause;
+        }
+        throw cause instanceof Exception ? (Exception) cause : e;
+      }
+    }
+    return execution.getResults();
+  }
+
+  @Override
+  public String toString() {
+    return String.format("Scheduler(pool=%s, parallelism=%d)", pool, parallelism);
+  }
+
+  /**
+   * Executes the tasks using (at most) {@code workers} forked tasks, which claim the next task
+   * until all tasks are claimed or the execution is cancelled (or stopped)
+   */
+  private static final class Execution<T> extends RecursiveAction {
+    private final List<? extends Callable<? extends T>> tasks;
+    private final int workers;
+    private final Object[] results;
+    private int next = 0; // guarded by this
+    private final AtomicReference<Exception> failure = new AtomicReference<>();
+    private final BooleanSupplier stop;
+    private volatile boolean cancelled = false;
+    private volatile boolean stopped = false;
+
+    private Execution(List<? extends Callable<? extends T>> tasks, int workers,
+        BooleanSupplier stop) {
+      this.tasks = tasks;
+      this.workers = workers;
+      this.stop = stop;
+      this.results = new Object[tasks.size()];
+    }
+
+    @Override
+    protected void compute() {
+      List<ForkJoinTask<?>> forked = new ArrayList<>();
+      for (int i = 1; i < workers; i++) {
+        forked.add(ForkJoinTask.adapt(this::drain).fork());
+      }
+      drain();
+      for (ForkJoinTask<?> task : forked) {
+        task.join();
+      }
+    }
+
+    private void drain() {
+      int i;
+      while ((i = claim()) >= 0) {
+        if (Thread.currentThread().isInterrupted()) {
+          failure.compareAndSet(null, new InterruptedException());
+          cancelled = true;
+        } else {
+          try {
+            results[i] = tasks.get(i).call();
+          } catch (Exception e) {
+            failure.compareAndSet(null, e);
+            cancelled = true;
+          }
+        }
+      }
+    }
+
+    /**
+     * Claim the next task, unless the execution is cancelled or stopped. The task is claimed and
+     * {@code stop} is checked atomically, so that no task is started after another is refused.
+     *
+     * @return the index of the claimed task; or {@code -1} if no more tasks are started
+     */
+    private synchronized int claim() {
+      if (cancelled || stopped || next >= results.length) {
+        return -1;
+      }
+      if (next > 0 && stop.getAsBoolean()) {
+        stopped = true;
+        return -1;
+      }
+      return next++;
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<T> getResults() throws Exception {
+      Exception e = failure.get();
+      if (e != null) {
+        throw e;
+      }
+      if (cancelled) {
+        throw new InterruptedException();
+      }
+      return new ArrayList<>((List<T>) Arrays.asList(results));
+    }
+  }
+}
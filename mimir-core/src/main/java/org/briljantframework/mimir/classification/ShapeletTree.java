@@ -21,7 +21,15 @@
 package org.briljantframework.mimir.classification;
 
 import java.util.*;
-import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BinaryOperator;
+import java.util.function.BooleanSupplier;
+import java.util.function.IntConsumer;
+import java.util.function.IntFunction;
 
 import org.briljantframework.Check;
 import org.briljantframework.array.DoubleArray;
@@ -38,17 +46,18 @@ import org.briljantframework.mimir.distance.Distance;
 import org.briljantframework.mimir.distance.DynamicTimeWarping;
 import org.briljantframework.mimir.distance.EarlyAbandonSlidingDistance;
 import org.briljantframework.mimir.distance.EuclideanDistance;
+import org.briljantframework.mimir.distance.SeriesStoreDistance;
 import org.briljantframework.mimir.shapelet.ChannelShapelet;
 import org.briljantframework.mimir.shapelet.DerivativeShapelet;
 import org.briljantframework.mimir.shapelet.IndexSortedNormalizedShapelet;
+import org.briljantframework.mimir.shapelet.NormalizedShapelet;
+import org.briljantframework.mimir.shapelet.SeriesStore;
 import org.briljantframework.mimir.shapelet.Shapelet;
 import org.briljantframework.mimir.supervised.Predictor;
+import org.briljantframework.mimir.supervised.RandomStream;
 import org.briljantframework.primitive.IntList;
 import org.briljantframework.statistics.FastStatistics;
 
-import com.carrotsearch.hppc.*;
-import com.carrotsearch.hppc.cursors.ObjectDoubleCursor;
-
 /**
  * @author Isak Karlsson <isak-kar@dsv.su.se>
  */
@@ -59,16 +68,56 @@ public class ShapeletTree extends TreeClassifier<ShapeletThreshold> {
   private final DoubleArray lengthImportance;
   private final DoubleArray positionImportance;
   private final ShapeStore store;
+  private final Distance categoricDistance;
+  private final Distance numericDistance;
 
   private ShapeletTree(Vector classes, TreeNode<ShapeletThreshold> node,
       TreeVisitor<ShapeletThreshold> predictionVisitor, DoubleArray lengthImportance,
-      DoubleArray positionImportance, int depth, ClassSet classSet, ShapeStore store) {
+      DoubleArray positionImportance, int depth, ClassSet classSet, ShapeStore store,
+      Distance categoricDistance, Distance numericDistance) {
     super(classes, node, predictionVisitor);
     this.lengthImportance = lengthImportance;
     this.positionImportance = positionImportance;
     this.depth = depth;
     this.classSet = classSet;
     this.store = store;
+    this.categoricDistance = categoricDistance;
+    this.numericDistance = numericDistance;
+  }
+
+  /**
+   * Compute the distance between the shapelet and the example, as done when predicting (i.e.,
+   * {@code NA} if the channel of a {@link ChannelShapelet} is missing).
+   *
+   * @param shapelet the shapelet
+   * @param example the example
+   * @param categoricDistance the distance used for categoric channels
+   * @param numericDistance the distance used for numeric series
+   * @return the distance
+   */
+  static double computeDistance(Shapelet shapelet, Vector example, Distance categoricDistance,
+      Distance numericDistance) {
+    if (shapelet instanceof ChannelShapelet) {
+      int shapeletChannel = ((ChannelShapelet) shapelet).getChannel();
+      Vector exampleChannel = example.loc().get(Vector.class, shapeletChannel);
+      if (Is.NA(exampleChannel)) {
+        return Na.DOUBLE; // TODO
+      } else if (Learner.isCategorical(exampleChannel)) {
+        return categoricDistance.compute(exampleChannel, shapelet);
+      } else {
+        return numericDistance.compute(exampleChannel, shapelet);
+      }
+    } else {
+      return numericDistance.compute(example, shapelet);
+    }
+  }
+
+  public Distance getCategoricDistance() {
+    return categoricDistance;
+  }
+
+  public Distance getNumericDistance() {
+    return numericDistance;
   }
 
   public ShapeStore getStore() {
@@ -167,9 +216,36 @@ public class ShapeletTree extends TreeClassifier<ShapeletThreshold> {
    */
   public static class Learner implements Predictor.Learner<ShapeletTree> {
 
-    protected final Random random = new Random();
+    /**
+     * Buffers for scoring candidates, reused by the trees grown (and candidates scored) in the
+     * same thread
+     */
+    private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
+
+    /**
+     * The number of times (at most) the impurity of a candidate is bounded while its distances are
+     * computed, the minimum number of distances between two bounds and the margin by which the
+     * bound must exceed the best impurity for the candidate to be abandoned
+     */
+    private static final int BOUND_CHECKS = 10;
+    private static final int MIN_BOUND_INTERVAL = 16;
+    private static final double PRUNING_EPSILON = 1e-9;
+
+    /**
+     * The default size of the shapelet pool (as a multiple of the number of shapelets inspected in
+     * each node)
+     */
+    private static final int POOL_FACTOR = 10;
+
+    protected final RandomStream random;
     protected final Gain gain = Gain.INFO;
 
+    /**
+     * The number of trees fitted so far; the {@code i}:th tree is fitted using
+     * {@code random.split(i)}
+     */
+    private final AtomicLong fitted = new AtomicLong();
+
     private final ClassSet classSet;
 
     private final Distance categoricDistance;
@@ -179,6 +255,10 @@ public class ShapeletTree extends TreeClassifier<ShapeletThreshold> {
     private final double minSplit;
     private final SampleMode sampleMode;
     private final Assessment assessment;
+    private final boolean parallel;
+    private final boolean pruning;
+    private final int poolSize;
+    private final Race race;
     private double lowerLength;
     private double upperLength;
     private Vector classes;
@@ -188,6 +268,18 @@ public class ShapeletTree extends TreeClassifier<ShapeletThreshold> {
     }
 
     protected Learner(Configurator builder, ClassSet classSet, Vector classes) {
+      this(builder, classSet, classes, RandomStream.create());
+    }
+
+    /**
+     * @param random the stream from which the random numbers of each fitted tree are derived. The
+     *        {@code i}:th call to {@code fit} uses {@code random.split(i)}, i.e., a learner can be
+     *        shared between threads (but the tree fitted by each thread then depends on the order
+     *        of the calls).
+     */
+    protected Learner(Configurator builder, ClassSet classSet, Vector classes,
+        RandomStream random) {
+      this.random = random;
       this.numericDistance = builder.numericDistance;
       this.categoricDistance = builder.categoricDistance;
       this.inspectedShapelets = builder.inspectedShapelets;
@@ -197,6 +289,10 @@ public class ShapeletTree extends TreeClassifier<ShapeletThreshold> {
       this.sampleMode = builder.sampleMode;
       this.assessment = builder.assessment;
       this.minSplit = builder.minSplit;
+      this.parallel = builder.parallel;
+      this.pruning = builder.pruning;
+      this.poolSize = builder.poolSize;
+      this.race = builder.race;
 
       Check.inRange(upperLength, lowerLength, 1);
       Check.inRange(lowerLength, 0, upperLength);
@@ -209,7 +305,12 @@ public class ShapeletTree extends TreeClassifier<ShapeletThreshold> {
     }
 
     public Learner(double low, double high, Configurator builder, ClassSet sample, Vector classes) {
-      this(builder, sample, classes);
+      this(low, high, builder, sample, classes, RandomStream.create());
+    }
+
+    public Learner(double low, double high, Configurator builder, ClassSet sample, Vector classes,
+        RandomStream random) {
+      this(builder, sample, classes, random);
       this.lowerLength = low;
       this.upperLength = high;
     }
@@ -236,6 +337,38 @@ public class ShapeletTree extends TreeClassifier<ShapeletThreshold> {
 
     @Override
     public ShapeletTree fit(DataFrame x, Vector y) {
+      return fit(x, y, SeriesStore.create(x));
+    }
+
+    /**
+     * Fit a shapelet tree using a pre-packed copy of {@code x}. This allows the (read-only) store
+     * to be shared among several trees grown on the same data.
+     *
+     * @param x the data
+     * @param y the target
+     * @param store the packed series of {@code x}
+     * @return a shapelet tree
+     */
+    public ShapeletTree fit(DataFrame x, Vector y, SeriesStore store) {
+      return fit(x, y, store, () -> false);
+    }
+
+    /**
+     * Fit a shapelet tree (as {@link #fit(DataFrame, Vector, SeriesStore)}) until
+     * {@code exhausted} returns {@code true}, which is checked before each node is expanded. Once
+     * exhausted, the unexpanded nodes become leaves.
+     *
+     * @param x the data
+     * @param y the target
+     * @param store the packed series of {@code x}
+     * @param exhausted returns {@code true} once the tree should stop growing (e.g., a started
+     *        {@link org.briljantframework.mimir.classification.Budget})
+     * @return a shapelet tree
+     */
+    public ShapeletTree fit(DataFrame x, Vector y, SeriesStore store,
+        BooleanSupplier exhausted) {
+      Check.argument(store.rows() == x.rows(), "The size of x and store don't match: %s != %s.",
+          x.rows(), store.rows());
       ClassSet classSet = this.classSet;
       Vector classes = this.classes != null ? this.classes : Vectors.unique(y);
       if (classSet == null) {
@@ -243,9 +376,11 @@ public class ShapeletTree extends TreeClassifier<ShapeletThreshold> {
       }
 
       DataFrame dataFrame = x;
+      SeriesStore dataStore = store;
       if (sampleMode == SampleMode.DOWN_SAMPLE) {
         Check.inRange(aggregateFraction, 0.1, 1);
         dataFrame = Approximations.paa(x, (int) Math.round(x.columns() * aggregateFraction));
+        dataStore = SeriesStore.create(dataFrame);
       }
 
       Params params = new Params();
@@ -253,13 +388,26 @@ public class ShapeletTree extends TreeClassifier<ShapeletThreshold> {
       params.lengthImportance = DoubleArray.zeros(x.columns());
       params.positionImportance = DoubleArray.zeros(x.columns());
       params.originalData = x;
+      params.originalStore = store;
+      params.store = dataStore;
       params.shapeStore = new ShapeStore();
-      TreeNode<ShapeletThreshold> node = build(dataFrame, y, classSet, params);
+      params.random = random.split(fitted.getAndIncrement());
+      params.exhausted = exhausted;
+      ArrayClassSet root = ArrayClassSet.create(classSet);
+      if (sampleMode == SampleMode.POOL) {
+        int size = poolSize;
+        if (size < 0) {
+          size = POOL_FACTOR * maxShapelets(dataFrame);
+        }
+        List<Shapelet> shapelets = sampleShapelets(root, dataFrame, size, params.random);
+        params.pool = new ShapeletPool(shapelets, dataFrame.rows());
+      }
+      TreeNode<ShapeletThreshold> node = build(dataFrame, y, root, params);
       /* new ShapletTreeVisitor(size, getDistanceMetric()) */
       return new ShapeletTree(classes, node,
           new ShapeletTree.Learner.ShapletTreeVisitor(10, categoricDistance, numericDistance),
           params.lengthImportance, params.positionImportance, params.depth, classSet,
-          params.shapeStore);
+          params.shapeStore, categoricDistance, numericDistance);
       // return new ShapeletTree(classes, node, new WeightVisitor(getDistanceMetric()),
       // params.lengthImportance, params.positionImportance, params.depth, classSet,
       // params.shapeStore);
@@ -271,18 +419,20 @@ public class ShapeletTree extends TreeClassifier<ShapeletThreshold> {
       // params.shapeStore);
     }
 
-    protected TreeNode<ShapeletThreshold> build(DataFrame x, Vector y, ClassSet classSet,
+    protected TreeNode<ShapeletThreshold> build(DataFrame x, Vector y, ArrayClassSet set,
         Params params) {
-      if (classSet.getTotalWeight() <= minSplit || classSet.getTargetCount() == 1) {
-        return TreeLeaf.fromExamples(classSet, classSet.getTotalWeight() / params.noExamples);
+      if (set.getTotalWeight() <= minSplit || set.getTargetCount() == 1
+          || params.exhausted.getAsBoolean()) {
+        return TreeLeaf.fromExamples(set, set.getTotalWeight() / params.noExamples);
       }
       params.depth += 1;
-      TreeSplit<ShapeletThreshold> maxSplit = find(classSet, x, y, params);
+      RandomStream random = params.random;
+      TreePartition<ShapeletThreshold> maxSplit = find(set, x, y, params);
       if (maxSplit == null) {
-        return TreeLeaf.fromExamples(classSet, classSet.getTotalWeight() / params.noExamples);
+        return TreeLeaf.fromExamples(set, set.getTotalWeight() / params.noExamples);
       } else {
-        ClassSet left = maxSplit.getLeft();
-        ClassSet right = maxSplit.getRight();
+        ArrayClassSet left = maxSplit.getLeft();
+        ArrayClassSet right = maxSplit.getRight();
         if (left.isEmpty()) {
           return TreeLeaf.fromExamples(right, right.getTotalWeight() / params.noExamples);
         } else if (right.isEmpty()) {
@@ -290,7 +440,7 @@ public class ShapeletTree extends TreeClassifier<ShapeletThreshold> {
         } else {
           Shapelet shapelet = maxSplit.getThreshold().getShapelet();
           Impurity impurity = getGain().getImpurity();
-          double imp = impurity.impurity(classSet);
+          double imp = impurity.impurity(set);
           double weight = (maxSplit.size() / params.noExamples) * (imp - maxSplit.getImpurity());
 
           if (shapelet instanceof ChannelShapelet) {
@@ -311,26 +461,40 @@ public class ShapeletTree extends TreeClassifier<ShapeletThreshold> {
           //
           // params.shapeStore.add(shapelet, weight);
 
+          // the streams of the children only depend on the stream of the node
+          params.random = random.split(0);
           TreeNode<ShapeletThreshold> leftNode = build(x, y, left, params);
+          params.random = random.split(1);
           TreeNode<ShapeletThreshold> rightNode = build(x, y, right, params);
-          TreeNode<ShapeletThreshold> missingNode = null;
-          if (maxSplit.getMissing() != null && !maxSplit.getMissing().isEmpty()) {
-            missingNode = build(x, y, maxSplit.getMissing(), params);
-          }
+          params.random = random;
+          Vector domain = set.getDomain();
           Vector.Builder classDist = Vector.Builder.of(double.class);
-          for (Object target : classSet.getTargets()) {
-            classDist.set(target, classSet.get(target).getWeight());
+          for (int i = 0; i < domain.size(); i++) {
+            if (set.getTargetSize(i) > 0) {
+              classDist.set(domain.loc().get(Object.class, i), set.getTargetWeight(i));
+            }
           }
 
-          return new TreeBranch<>(leftNode, rightNode, missingNode, classes, classDist.build(),
-              maxSplit.getThreshold(), classSet.getTotalWeight() / params.noExamples);
+          return new TreeBranch<>(leftNode, rightNode, null, classes, classDist.build(),
+              compact(maxSplit.getThreshold()), set.getTotalWeight() / params.noExamples);
         }
       }
     }
 
-    public TreeSplit<ShapeletThreshold> find(ClassSet classSet, DataFrame x, Vector y,
+    /**
+     * Materialize the shapelet of a chosen split as a self-contained (pre-normalized) copy, so that
+     * the fitted tree does not retain references to the training data.
+     */
+    private ShapeletThreshold compact(ShapeletThreshold threshold) {
+      ShapeletThreshold compact =
+          new ShapeletThreshold(threshold.getShapelet().compact(), threshold.getDistance());
+      compact.setClassDistances(threshold.getClassDistances());
+      return compact;
+    }
+
+    public TreePartition<ShapeletThreshold> find(ArrayClassSet set, DataFrame x, Vector y,
         Params params) {
-      return getUnivariateShapeletThreshold(classSet, x, y, params);
+      return getUnivariateShapeletThreshold(set, x, y, params);
     }
 
     private static IntList nonNaIndicies(Vector vector) {
@@ -343,12 +507,9 @@ public class ShapeletTree extends TreeClassifier<ShapeletThreshold> {
       return nonNas;
     }
 
-    protected TreeSplit<ShapeletThreshold> getUnivariateShapeletThreshold(ClassSet classSet,
+    protected TreePartition<ShapeletThreshold> getUnivariateShapeletThreshold(ArrayClassSet set,
         DataFrame x, Vector y, Params params) {
-      int maxShapelets = this.inspectedShapelets;
-      if (maxShapelets < 0) {
-        maxShapelets = maxShapelets(x.columns());
-      }
+      int maxShapelets = maxShapelets(x);
 
       // TODO: add alternative shapelet sampling approaches.
       // The simple approach to ddo this is to add shapelets to the list `shapelets` below.
@@ -359,7 +520,7 @@ public class ShapeletTree extends TreeClassifier<ShapeletThreshold> {
         // NOTE: This is dead code and do not work as expected
         int n = x.rows();
         int m = x.columns();
-        Random rand = random;
+        Random rand = params.random;
         double sum = 0;
         for (int i = 3; i <= m; i++) {
           sum += m - i + 1;
@@ -371,77 +532,101 @@ public class ShapeletTree extends TreeClassifier<ShapeletThreshold> {
         for (int i = 3; i <= m; i++) {
           long r = Math.round(f * (m - i + 1));
           for (int j = 0; j < r; j++) {
-            int vec = classSet.getRandomSample().getRandomExample().getIndex();
+            int vec = set.getRandomExample(rand);
             int start = rand.nextInt(m + 1 - i);
             shapelets.add(new IndexSortedNormalizedShapelet(start, i, x.loc().getRecord(vec)));
           }
         }
         System.out.println(shapelets.size());
+      } else if (sampleMode == SampleMode.POOL) {
+        shapelets = params.pool.sample(maxShapelets, params.random);
       } else {
-        for (int i = 0; i < maxShapelets; i++) {
-          int index = classSet.getRandomSample().getRandomExample().getIndex();
-          Vector timeSeries = x.loc().getRecord(index);
-          Object shapelet;
-
-          // TODO: implement support for event sequences
-          // Multi-variate time series
-          if (Vector.class.isAssignableFrom(timeSeries.getType().getDataClass())) {
-            IntList nonNas = nonNaIndicies(timeSeries);
-            if (!nonNas.isEmpty()) {
-              int channelIndex = nonNas.get(random.nextInt(nonNas.size()));
-              Vector channel = timeSeries.loc().get(Vector.class, channelIndex);
-              Shapelet univariateShapelet = getUnivariateShapelet(classSet, x, index, channel);
-              if (univariateShapelet == null) {
-                shapelet = null;
-              } else {
-                shapelet = new ChannelShapelet(channelIndex, univariateShapelet);
-              }
-            } else {
-              shapelet = null;
-            }
-          } else {
-            shapelet = getUnivariateShapelet(classSet, x, index, timeSeries);
-          }
-          if (shapelet == null) {
-            continue;
-          }
-          if (shapelet instanceof List) {
-            @SuppressWarnings("unchecked")
-            List<Shapelet> shapeletList = (List<Shapelet>) shapelet;
-            shapelets.addAll(shapeletList);
-          } else {
-            shapelets.add((Shapelet) shapelet);
-          }
-        }
+        shapelets = sampleShapelets(set, x, maxShapelets, params.random);
       }
 
       if (shapelets.isEmpty()) {
         return null;
       }
 
-      TreeSplit<ShapeletThreshold> bestSplit;
+      TreePartition<ShapeletThreshold> bestSplit;
       if (assessment == Assessment.IG) {
-        bestSplit = findBestSplit(classSet, x, y, shapelets);
+        if (race != null) {
+          shapelets = race(set, x, params.store, shapelets, params.pool, params.random);
+        }
+        bestSplit = findBestSplit(set, x, params.store, y, shapelets, params.pool);
       } else {
-        bestSplit = findBestSplitFstat(classSet, x, y, shapelets);
+        bestSplit = findBestSplitFstat(set, x, params.store, y, shapelets, params.pool);
       }
 
       if (sampleMode == SampleMode.DOWN_SAMPLE) {
         DownsampledShapelet best = (DownsampledShapelet) bestSplit.getThreshold().getShapelet();
         Vector record = params.originalData.loc().getRecord(best.index);
         Shapelet shapelet = new IndexSortedNormalizedShapelet(best.start, best.length, record);
-        return findBestSplit(classSet, params.originalData, y, Collections.singletonList(shapelet));
+        return findBestSplit(set, params.originalData, params.originalStore, y,
+            Collections.singletonList(shapelet));
       } else {
         return bestSplit;
       }
     }
 
+    /**
+     * Sample (at most) {@code count} shapelets from random examples in the set.
+     */
+    private List<Shapelet> sampleShapelets(ArrayClassSet set, DataFrame x, int count,
+        Random random) {
+      List<Shapelet> shapelets = new ArrayList<>(count);
+      for (int i = 0; i < count; i++) {
+        int index = set.getRandomExample(random);
+        Vector timeSeries = x.loc().getRecord(index);
+        Object shapelet;
+
+        // TODO: implement support for event sequences
+        // Multi-variate time series
+        if (Vector.class.isAssignableFrom(timeSeries.getType().getDataClass())) {
+          IntList nonNas = nonNaIndicies(timeSeries);
+          if (!nonNas.isEmpty()) {
+            int channelIndex = nonNas.get(random.nextInt(nonNas.size()));
+            Vector channel = timeSeries.loc().get(Vector.class, channelIndex);
+            Shapelet univariateShapelet = getUnivariateShapelet(set, x, index, channel, random);
+            if (univariateShapelet == null) {
+              shapelet = null;
+            } else {
+              shapelet = new ChannelShapelet(channelIndex, univariateShapelet);
+            }
+          } else {
+            shapelet = null;
+          }
+        } else {
+          shapelet = getUnivariateShapelet(set, x, index, timeSeries, random);
+        }
+        if (shapelet == null) {
+          continue;
+        }
+        if (shapelet instanceof List) {
+          @SuppressWarnings("unchecked")
+          List<Shapelet> shapeletList = (List<Shapelet>) shapelet;
+          shapelets.addAll(shapeletList);
+        } else {
+          shapelets.add((Shapelet) shapelet);
+        }
+      }
+      return shapelets;
+    }
+
+    private int maxShapelets(DataFrame x) {
+      int maxShapelets = this.inspectedShapelets;
+      if (maxShapelets < 0) {
+        maxShapelets = maxShapelets(x.columns());
+      }
+      return maxShapelets;
+    }
+
     private int maxShapelets(int columns) {
       return (int) Math.round(Math.sqrt(columns * (columns + 1) / 2));
     }
 
-    private Shapelet getUnivariateShapelet(ClassSet classSet, DataFrame x, int index,
-        Vector timeSeries) {
+    private Shapelet getUnivariateShapelet(ArrayClassSet set, DataFrame x, int index,
+        Vector timeSeries, Random random) {
       if (timeSeries == null) {
         return null;
       }
@@ -474,9 +659,9 @@ public class ShapeletTree extends TreeClassifier<ShapeletThreshold> {
       if (sampleMode == SampleMode.DOWN_SAMPLE) {
         shapelet = getDownsampledShapelet(index, timeSeries, timeSeriesLength, length, start);
       } else if (sampleMode == SampleMode.RANDOMIZE) {
-        shapelet = getRandomizedShapelet(classSet, x, length, start);
+        shapelet = getRandomizedShapelet(set, x, length, start, random);
       } else if (sampleMode == SampleMode.DERIVATE
-          && ThreadLocalRandom.current().nextGaussian() > 0) {
+          && random.nextBoolean()) {
         shapelet = getDerivativeShapelet(timeSeries, timeSeriesLength, length, start);
       } else {
         if (isCategorical(timeSeries)) {
@@ -494,7 +679,7 @@ public class ShapeletTree extends TreeClassifier<ShapeletThreshold> {
           && String.class.isAssignableFrom(timeSeries.getType().getDataClass());
     }
 
-    private static class ZeroOneDistance implements Distance {
+    static class ZeroOneDistance implements Distance {
       @Override
       public double compute(double a, double b) {
         return 0;
@@ -528,6 +713,15 @@ public class ShapeletTree extends TreeClassifier<ShapeletThreshold> {
       public CategoricShapelet(int start, int end, Vector values) {
         super(start, end, values);
       }
+
+      @Override
+      public Shapelet compact() {
+        Vector.Builder values = Vector.Builder.withCapacity(String.class, size());
+        for (int i = 0; i < size(); i++) {
+          values.loc().set(i, loc().get(String.class, i));
+        }
+        return new CategoricShapelet(0, size(), values.build());
+      }
     }
 
     private Shapelet getDerivativeShapelet(Vector timeSeries, int timeSeriesLength, int length,
@@ -541,10 +735,11 @@ public class ShapeletTree extends TreeClassifier<ShapeletThreshold> {
       return new DerivativeShapelet(start, length, derivative.build());
     }
 
-    private Shapelet getRandomizedShapelet(ClassSet classSet, DataFrame x, int length, int start) {
+    private Shapelet getRandomizedShapelet(ArrayClassSet set, DataFrame x, int length, int start,
+        Random random) {
       Vector.Builder meanVec = Vector.Builder.of(Double.class);
       for (int j = 0; j < 10; j++) {
-        Vector record = x.loc().getRecord(classSet.getRandomSample().getRandomExample().getIndex());
+        Vector record = x.loc().getRecord(set.getRandomExample(random));
         Shapelet shapelet = new Shapelet(start, length, record);
         for (int k = 0; k < shapelet.size(); k++) {
           meanVec.set(k, shapelet.loc().getAsDouble(k) / 10);
@@ -563,38 +758,196 @@ public class ShapeletTree extends TreeClassifier<ShapeletThreshold> {
       return new DownsampledShapelet(index, start, length, downStart, downLength, timeSeries);
     }
 
-    protected TreeSplit<ShapeletThreshold> findBestSplit(ClassSet classSet, DataFrame x, Vector y,
-        List<Shapelet> shapelets) {
-      TreeSplit<ShapeletThreshold> bestSplit = null;
-      Threshold bestThreshold = Threshold.inf();
-      IntDoubleMap bestDistanceMap = null;
-      for (Shapelet shapelet : shapelets) {
-        IntDoubleMap distanceMap = new IntDoubleOpenHashMap();
-        Threshold threshold = bestDistanceThresholdInSample(classSet, x, y, shapelet, distanceMap);
-        boolean lowerImpurity = threshold.impurity < bestThreshold.impurity;
-        boolean equalImpuritySmallerGap =
-            threshold.impurity == bestThreshold.impurity && threshold.gap > bestThreshold.gap;
-        if (lowerImpurity || equalImpuritySmallerGap) {
-          // todo: only split the best threshold
-          bestSplit = split(distanceMap, classSet, threshold.threshold, shapelet);
-          bestThreshold = threshold;
-          bestDistanceMap = distanceMap;
+    protected TreePartition<ShapeletThreshold> findBestSplit(ArrayClassSet set, DataFrame x,
+        SeriesStore store, Vector y, List<Shapelet> shapelets) {
+      return findBestSplit(set, x, store, y, shapelets, null);
+    }
+
+    /**
+     * Find the best split among the shapelets. If the shapelets are drawn from a pool (i.e., in
+     * {@link SampleMode#POOL} mode), the distances cached in the pool are reused.
+     */
+    private TreePartition<ShapeletThreshold> findBestSplit(ArrayClassSet set, DataFrame x,
+        SeriesStore store, Vector y, List<Shapelet> shapelets, ShapeletPool pool) {
+      // the lowest impurity among the candidates scored so far (shared among threads)
+      AtomicLong bestImpurity =
+          pruning ? new AtomicLong(Double.doubleToLongBits(Double.POSITIVE_INFINITY)) : null;
+      Candidate best = evaluate(shapelets.size(), i -> {
+        Shapelet shapelet = shapelets.get(i);
+        Threshold threshold =
+            bestDistanceThresholdInSample(set, x, store, y, shapelet, bestImpurity, pool);
+        if (bestImpurity != null) {
+          updateBestImpurity(bestImpurity, threshold.impurity);
         }
-      }
+        return new Candidate(shapelet, threshold);
+      }, (a, b) -> b.threshold.isBetterThan(a.threshold) ? b : a);
 
-      if (bestSplit != null) {
-        bestSplit.setImpurity(bestThreshold.impurity);
-        ShapeletThreshold threshold = bestSplit.getThreshold();
-        threshold.setClassDistances(computeMeanDistance(bestDistanceMap, classSet, y));
+      if (best == null || !best.threshold.isBetterThan(Threshold.inf())) {
+        return null;
       }
+
+      // The distances of the candidates are not retained; so we recompute them for the winner
+      double[] distances = new double[set.size()];
+      computeDistances(set, x, store, best.shapelet, distances, column(pool, best.shapelet));
+
+      // the mean distances are computed before the examples are partitioned
+      Vector classDistances = computeMeanDistance(distances, set, y);
+      TreePartition<ShapeletThreshold> bestSplit =
+          split(distances, set, best.threshold.threshold, best.shapelet);
+      bestSplit.setImpurity(best.threshold.impurity);
+      bestSplit.getThreshold().setClassDistances(classDistances);
       return bestSplit;
     }
 
-    private Vector computeMeanDistance(IntDoubleMap bestDistanceMap, ClassSet classSet, Vector y) {
+    /**
+     * Race the candidates on growing subsamples of the set (see {@link Race}) and return the
+     * survivors, which are then evaluated on the complete set.
+     */
+    private List<Shapelet> race(ArrayClassSet set, DataFrame x, SeriesStore store,
+        List<Shapelet> shapelets, ShapeletPool pool, Random random) {
+      double range = getGain().getImpurity().maximum(set.getDomain().size());
+      int[] survivors = race.run(shapelets.size(), set.size(), range, random,
+          (alive, count, sample, n, scores) -> forEach(count, j -> {
+            Shapelet shapelet = shapelets.get(alive[j]);
+            scores[j] =
+                sampleImpurity(set, x, store, shapelet, sample, n, column(pool, shapelet));
+          }));
+      if (survivors.length == shapelets.size()) {
+        return shapelets;
+      }
+      List<Shapelet> surviving = new ArrayList<>(survivors.length);
+      for (int survivor : survivors) {
+        surviving.add(shapelets.get(survivor));
+      }
+      return surviving;
+    }
+
+    /**
+     * Returns the impurity of the best threshold of the shapelet, using only the examples in the
+     * positions {@code sample[0, n)}.
+     */
+    private double sampleImpurity(ArrayClassSet set, DataFrame x, SeriesStore store,
+        Shapelet shapelet, int[] sample, int n, float[] column) {
+      int classes = set.getDomain().size();
+      Scratch scratch = SCRATCH.get();
+      scratch.ensureCapacity(set.size(), classes);
+      double[] totals = scratch.sampleTotals;
+      double[] left = scratch.lt;
+      double[] right = scratch.gt;
+      Arrays.fill(totals, 0);
+      Arrays.fill(left, 0);
+      Arrays.fill(right, 0);
+
+      boolean categoric = shapelet instanceof ChannelShapelet
+          && shapelet.getDelegate() instanceof CategoricShapelet;
+      double[] values = packedValues(shapelet);
+      int[] order = sortOrder(shapelet);
+      double[] keys = scratch.sorted;
+      int[] positions = scratch.order;
+      double total = 0, sum = 0;
+      int m = 0;
+      for (int j = 0; j < n; j++) {
+        int i = sample[j];
+        int target = set.getExampleTarget(i);
+        double weight = set.getExampleWeight(i);
+        double distance =
+            computeDistance(x, store, set.getExampleIndex(i), shapelet, values, order, column);
+        totals[target] += weight;
+        total += weight;
+        if (categoric) {
+          double[] side = !Is.NA(distance) && distance <= 0.5 ? left : right;
+          side[target] += weight;
+        } else if (!Double.isNaN(distance)) {
+          keys[m] = distance;
+          positions[m] = i;
+          sum += distance;
+          m++;
+        }
+      }
+
+      if (categoric) {
+        return gain.compute(left, right);
+      }
+      sort(keys, positions, m, scratch);
+      return findBestThreshold(keys, positions, m, set, sum, totals, total).impurity;
+    }
+
+    /**
+     * Score the candidates {@code [0, n)} and reduce them to the best candidate. The reduction is
+     * deterministic: {@code better(a, b)} must return {@code b} only if it is strictly better than
+     * {@code a}, so that ties are resolved in favor of the first candidate (as when the candidates
+     * are evaluated sequentially).
+     * <p>
+     * In parallel mode, the candidates are scored using fork/join in the pool of the calling
+     * thread, if any (e.g., when growing the tree as part of an ensemble), or in the pool of the
+     * {@linkplain Scheduler#getDefault() default scheduler}. Hence, the two levels of parallelism
+     * do not oversubscribe the machine.
+     */
+    private <T> T evaluate(int n, IntFunction<T> score, BinaryOperator<T> better) {
+      ForkJoinPool pool = parallelPool(n);
+      if (pool != null) {
+        ScoreTask<T> task = new ScoreTask<>(0, n, grainSize(n, pool), score, better);
+        return ForkJoinTask.inForkJoinPool() ? task.invoke() : pool.invoke(task);
+      }
+      return reduce(0, n, score, better);
+    }
+
+    /**
+     * Run {@code body} for each candidate in {@code [0, n)}; in parallel mode, using the same pool
+     * as {@link #evaluate(int, IntFunction, BinaryOperator)}.
+     */
+    private void forEach(int n, IntConsumer body) {
+      ForkJoinPool pool = parallelPool(n);
+      if (pool != null) {
+        ForEachTask task = new ForEachTask(0, n, grainSize(n, pool), body);
+        if (ForkJoinTask.inForkJoinPool()) {
+          task.invoke();
+        } else {
+          pool.invoke(task);
+        }
+      } else {
+        for (int i = 0; i < n; i++) {
+          body.accept(i);
+        }
+      }
+    }
+
+    /**
+     * @return the pool in which {@code n} candidates are scored in parallel; or {@code null} if
+     *         they are scored sequentially
+     */
+    private ForkJoinPool parallelPool(int n) {
+      if (!parallel || n <= 1) {
+        return null;
+      }
+      return ForkJoinTask.inForkJoinPool() ? ForkJoinTask.getPool()
+          : Scheduler.getDefault().getPool();
+    }
+
+    /**
+     * Returns the number of candidates below which a range is scored sequentially, i.e., about four
+     * ranges per thread of the pool (to balance the load without forking single candidates).
+     */
+    private static int grainSize(int n, ForkJoinPool pool) {
+      return Math.max(1, n / (4 * pool.getParallelism()));
+    }
+
+    private static <T> T reduce(int start, int end, IntFunction<T> score,
+        BinaryOperator<T> better) {
+      T best = null;
+      for (int i = start; i < end; i++) {
+        T candidate = score.apply(i);
+        best = best == null ? candidate : better.apply(best, candidate);
+      }
+      return best;
+    }
+
+    private Vector computeMeanDistance(double[] distances, ArrayClassSet set, Vector y) {
       Map<Object, FastStatistics> cmd = new HashMap<>();
-      for (Example example : classSet) {
-        double distance = bestDistanceMap.get(example.getIndex());
-        Object cls = y.loc().get(Object.class, example.getIndex());
+      for (int i = 0; i < set.size(); i++) {
+        int index = set.getExampleIndex(i);
+        double distance = distances[i];
+        Object cls = y.loc().get(Object.class, index);
         FastStatistics statistics = cmd.get(cls);
         if (statistics == null) {
           statistics = new FastStatistics();
@@ -609,121 +962,340 @@ public class ShapeletTree extends TreeClassifier<ShapeletThreshold> {
       return builder.build();
     }
 
-    protected Threshold bestDistanceThresholdInSample(ClassSet classSet, DataFrame x, Vector y,
-        Shapelet shapelet, IntDoubleMap memoizedDistances) {
+    /**
+     * Compute the distance between the shapelet and each example in the set, such that
+     * {@code distances[i]} is the distance to the {@code i}:th example.
+     *
+     * @param column the cached distances of the shapelet (or {@code null})
+     * @return the sum of the (non-missing) distances
+     */
+    private double computeDistances(ArrayClassSet set, DataFrame x, SeriesStore store,
+        Shapelet shapelet, double[] distances, float[] column) {
       double sum = 0.0;
-      List<ExampleDistance> distances = new ArrayList<>();
-      for (Example example : classSet) {
-        Vector record = x.loc().getRecord(example.getIndex());
-        double distance;
-        if (shapelet instanceof ChannelShapelet) {
-          int channelIndex = ((ChannelShapelet) shapelet).getChannel();
-          Vector channel = record.loc().get(Vector.class, channelIndex);
-          if (shapelet.getDelegate() instanceof CategoricShapelet) {
-            if (Is.NA(channel)) {
-              distance = Na.DOUBLE;
-            } else {
-              distance = categoricDistance.compute(channel, shapelet);
-            }
-          } else {
-            if (Is.NA(channel)) {
-              distance = Na.DOUBLE;
-            } else {
-              distance = numericDistance.compute(channel, shapelet);
-            }
-          }
-        } else {
-          distance = numericDistance.compute(record, shapelet);
-        }
-        memoizedDistances.put(example.getIndex(), distance);
-        distances.add(new ExampleDistance(distance, example));
+      double[] values = packedValues(shapelet);
+      int[] order = sortOrder(shapelet);
+      for (int i = 0; i < set.size(); i++) {
+        double distance =
+            computeDistance(x, store, set.getExampleIndex(i), shapelet, values, order, column);
+        distances[i] = distance;
         if (!Is.NA(distance)) {
           sum += distance;
         }
       }
+      return sum;
+    }
 
-      if (shapelet instanceof ChannelShapelet
-          && shapelet.getDelegate() instanceof CategoricShapelet) {
-        TreeSplit<?> split = split(memoizedDistances, classSet, 0.5, shapelet);
-        double impurity = gain.compute(split);
-        return new Threshold(0.5, impurity, 0, Double.POSITIVE_INFINITY);
+    private static void updateBestImpurity(AtomicLong bestImpurity, double impurity) {
+      long current;
+      while (impurity < Double.longBitsToDouble(current = bestImpurity.get())
+          && !bestImpurity.compareAndSet(current, Double.doubleToLongBits(impurity))) {
+        // retry
+      }
+    }
+
+    /**
+     * Compute the distances (as {@link #computeDistances(ArrayClassSet, DataFrame, SeriesStore,
+     * Shapelet, double[], float[])}) in an order which interleaves the examples and abandon the
+     * computation as soon as the impurity of the best threshold of the candidate is bounded from
+     * below by a value larger than the best impurity found so far.
+     *
+     * @return false if the computation was abandoned
+     */
+    private boolean computeDistances(ArrayClassSet set, DataFrame x, SeriesStore store,
+        Shapelet shapelet, double[] distances, float[] column, AtomicLong bestImpurity,
+        Scratch scratch) {
+      int size = set.size();
+      double[] values = packedValues(shapelet);
+      int[] order = sortOrder(shapelet);
+      int stride = stride(size);
+      int interval = Math.max(MIN_BOUND_INTERVAL, size / BOUND_CHECKS);
+      for (int j = 0, i = 0; j < size; j++, i = (i + stride) % size) {
+        distances[i] =
+            computeDistance(x, store, set.getExampleIndex(i), shapelet, values, order, column);
+        int known = j + 1;
+        if (known % interval == 0 && known < size) {
+          double best = Double.longBitsToDouble(bestImpurity.get());
+          if (best < Double.POSITIVE_INFINITY && impurityLowerBound(set, distances, known, stride,
+              scratch) - best > PRUNING_EPSILON) {
+            return false;
+          }
+        }
+      }
+      return true;
+    }
+
+    /**
+     * Returns a lower bound of the impurity of the best threshold of a candidate, for which only
+     * the distances to the first {@code known} examples (in the order given by {@code stride}) are
+     * computed. The known examples are swept in sorted order and, at each boundary between
+     * classes, the unknown examples may go to either side (see {@link Gain#lowerBound}). Examples
+     * with a missing distance go to the right (as in {@link #findBestThreshold}). Equal distances
+     * are ordered by position (as in {@link #sortDistances}), so that every threshold of the
+     * complete sweep is a prefix of the known examples.
+     */
+    private double impurityLowerBound(ArrayClassSet set, double[] distances, int known, int stride,
+        Scratch scratch) {
+      int size = set.size();
+      int classes = set.getDomain().size();
+      double[] left = scratch.boundLeft;
+      double[] right = scratch.boundRight;
+      double[] free = scratch.boundFree;
+      for (int c = 0; c < classes; c++) {
+        left[c] = 0;
+        right[c] = 0;
+        free[c] = set.getTargetWeight(c);
+      }
+
+      double[] keys = scratch.sorted;
+      int[] positions = scratch.order;
+      int n = 0;
+      for (int j = 0, i = 0; j < known; j++, i = (i + stride) % size) {
+        int target = set.getExampleTarget(i);
+        double weight = set.getExampleWeight(i);
+        free[target] = Math.max(0, free[target] - weight);
+        right[target] += weight;
+        if (!Double.isNaN(distances[i])) {
+          keys[n] = distances[i];
+          positions[n] = i;
+          n++;
+        }
+      }
+      sort(keys, positions, n, scratch);
+
+      Gain gain = getGain();
+      double[] leftBuffer = scratch.leftBuffer;
+      double[] rightBuffer = scratch.rightBuffer;
+      double bound = gain.lowerBound(left, right, free, leftBuffer, rightBuffer);
+      for (int p = 0; p < n && bound > 0; p++) {
+        int target = set.getExampleTarget(positions[p]);
+        double weight = set.getExampleWeight(positions[p]);
+        left[target] += weight;
+        right[target] -= weight;
+        if (p == n - 1 || target != set.getExampleTarget(positions[p + 1])) {
+          bound = Math.min(bound, gain.lowerBound(left, right, free, leftBuffer, rightBuffer));
+        }
+      }
+      return bound;
+    }
+
+    /**
+     * Returns a step, coprime to {@code n}, such that {@code (i * step) mod n} visits every example
+     * while interleaving examples which are ordered (e.g., by class)
+     */
+    private static int stride(int n) {
+      int stride = Math.max(1, (int) (n * 0.6180339887498949));
+      while (gcd(stride, n) != 1) {
+        stride++;
+      }
+      return stride;
+    }
+
+    private static int gcd(int a, int b) {
+      while (b != 0) {
+        int t = a % b;
+        a = b;
+        b = t;
+      }
+      return a;
+    }
+
+    protected Threshold bestDistanceThresholdInSample(ArrayClassSet set, DataFrame x,
+        SeriesStore store, Vector y, Shapelet shapelet) {
+      return bestDistanceThresholdInSample(set, x, store, y, shapelet, null, null);
+    }
+
+    /**
+     * Find the best threshold of the shapelet. If {@code bestImpurity} (the lowest impurity found
+     * so far among the candidates of the node) is given, the candidate is abandoned (and
+     * {@link Threshold#inf()} returned) as soon as it can't improve on the best impurity.
+     */
+    private Threshold bestDistanceThresholdInSample(ArrayClassSet set, DataFrame x,
+        SeriesStore store, Vector y, Shapelet shapelet, AtomicLong bestImpurity,
+        ShapeletPool pool) {
+      float[] column = column(pool, shapelet);
+      Scratch scratch = SCRATCH.get();
+      scratch.ensureCapacity(set.size(), set.getDomain().size());
+      double[] distances = scratch.distances;
+      boolean categoric = shapelet instanceof ChannelShapelet
+          && shapelet.getDelegate() instanceof CategoricShapelet;
+      double sum = 0;
+      if (bestImpurity != null && !categoric && getGain().getImpurity().isConcave()) {
+        if (!computeDistances(set, x, store, shapelet, distances, column, bestImpurity,
+            scratch)) {
+          return Threshold.inf();
+        }
+        for (int i = 0; i < set.size(); i++) {
+          if (!Is.NA(distances[i])) {
+            sum += distances[i];
+          }
+        }
       } else {
-        Collections.sort(distances);
-        int firstNa = distances.indexOf(ExampleDistance.NA);
-        if (firstNa >= 0) {
-          distances = distances.subList(0, firstNa);
+        sum = computeDistances(set, x, store, shapelet, distances, column);
+      }
+
+      if (categoric) {
+        double[] left = scratch.lt;
+        double[] right = scratch.gt;
+        Arrays.fill(left, 0);
+        Arrays.fill(right, 0);
+        for (int i = 0; i < set.size(); i++) {
+          double distance = distances[i];
+          double[] side = !Is.NA(distance) && distance <= 0.5 ? left : right;
+          side[set.getExampleTarget(i)] += set.getExampleWeight(i);
         }
-        return findBestThreshold(distances, classSet, y, sum, firstNa);
+        double impurity = gain.compute(left, right);
+        return new Threshold(0.5, impurity, 0, Double.POSITIVE_INFINITY);
+      } else {
+        int n = sortDistances(distances, set.size(), scratch);
+        return findBestThreshold(scratch.sorted, scratch.order, n, set, sum);
+      }
+    }
+
+    /**
+     * Compute the distance between the shapelet and the {@code index}:th record, reading (and
+     * filling) the cached distances of a pooled shapelet. To be consistent among nodes, distances
+     * are always returned with the (single) precision of the cache.
+     */
+    private double computeDistance(DataFrame x, SeriesStore store, int index, Shapelet shapelet,
+        double[] values, int[] order, float[] column) {
+      if (column == null) {
+        return computeDistance(x, store, index, shapelet, values, order);
+      }
+      float distance = column[index];
+      if (distance == ShapeletPool.NOT_COMPUTED) {
+        double computed = computeDistance(x, store, index, shapelet, values, order);
+        distance = Is.NA(computed) ? Float.NaN : (float) computed;
+        column[index] = distance;
       }
+      return Float.isNaN(distance) ? Na.DOUBLE : distance;
     }
 
-    protected TreeSplit<ShapeletThreshold> findBestSplitFstat(ClassSet classSet, DataFrame x,
-        Vector y, List<Shapelet> shapelets) {
-      IntDoubleMap bestDistanceMap = null;
-      List<ExampleDistance> bestDistances = null;
-      double bestStat = Double.NEGATIVE_INFINITY;
-      Shapelet bestShapelet = null;
-      double bestSum = 0;
+    private static float[] column(ShapeletPool pool, Shapelet shapelet) {
+      return pool != null ? pool.column(shapelet) : null;
+    }
 
-      for (Shapelet shapelet : shapelets) {
-        List<ExampleDistance> distances = new ArrayList<>();
-        IntDoubleMap distanceMap = new IntDoubleOpenHashMap();
-        double sum = 0;
-        for (Example example : classSet) {
-          Vector record = x.loc().getRecord(example.getIndex());
-          double dist;
-          if (shapelet instanceof ChannelShapelet) {
-            Vector channel =
-                record.loc().get(Vector.class, ((ChannelShapelet) shapelet).getChannel());
-            dist = numericDistance.compute(channel, shapelet);
-          } else {
-            dist = numericDistance.compute(record, shapelet);
+    /**
+     * Compute the distance between the shapelet and the {@code index}:th record. If the shapelet
+     * has been packed (see {@link #packedValues(Shapelet)}) the distance is computed directly
+     * against the series in the store.
+     */
+    private double computeDistance(DataFrame x, SeriesStore store, int index, Shapelet shapelet,
+        double[] values, int[] order) {
+      if (values != null) {
+        int channel =
+            shapelet instanceof ChannelShapelet ? ((ChannelShapelet) shapelet).getChannel() : 0;
+        if (channel < store.channels()) {
+          int series = store.index(index, channel);
+          if (store.isMissing(series)) {
+            return Na.DOUBLE;
           }
+          if (store.length(series) >= values.length) {
+            return ((SeriesStoreDistance) numericDistance).compute(store, series, values, order);
+          }
+        }
+      }
 
-          distanceMap.put(example.getIndex(), dist);
-          distances.add(new ExampleDistance(dist, example));
-          sum += dist;
+      Vector record = x.loc().getRecord(index);
+      if (shapelet instanceof ChannelShapelet) {
+        int channelIndex = ((ChannelShapelet) shapelet).getChannel();
+        Vector channel = record.loc().get(Vector.class, channelIndex);
+        if (Is.NA(channel)) {
+          return Na.DOUBLE;
+        } else if (shapelet.getDelegate() instanceof CategoricShapelet) {
+          return categoricDistance.compute(channel, shapelet);
+        } else {
+          return numericDistance.compute(channel, shapelet);
         }
-        double stat = assessFstatShapeletQuality(distances, y);
+      } else {
+        return numericDistance.compute(record, shapelet);
+      }
+    }
+
+    /**
+     * Returns the (normalized) values of the shapelet, if the distance can be computed against the
+     * packed series; otherwise {@code null}.
+     */
+    private double[] packedValues(Shapelet shapelet) {
+      if (!(numericDistance instanceof SeriesStoreDistance)
+          || !(shapelet instanceof NormalizedShapelet)
+          || shapelet.getDelegate() instanceof CategoricShapelet) {
+        return null;
+      }
+      double[] values = new double[shapelet.size()];
+      for (int i = 0; i < values.length; i++) {
+        values[i] = shapelet.loc().getAsDouble(i);
+      }
+      return values;
+    }
+
+    private static int[] sortOrder(Shapelet shapelet) {
+      if (shapelet instanceof IndexSortedNormalizedShapelet) {
+        return ((IndexSortedNormalizedShapelet) shapelet).getSortOrder();
+      }
+      return null;
+    }
+
+    protected TreePartition<ShapeletThreshold> findBestSplitFstat(ArrayClassSet set, DataFrame x,
+        SeriesStore store, Vector y, List<Shapelet> shapelets) {
+      return findBestSplitFstat(set, x, store, y, shapelets, null);
+    }
+
+    private TreePartition<ShapeletThreshold> findBestSplitFstat(ArrayClassSet set, DataFrame x,
+        SeriesStore store, Vector y, List<Shapelet> shapelets, ShapeletPool pool) {
+      Candidate best = evaluate(shapelets.size(), i -> {
+        Shapelet shapelet = shapelets.get(i);
+        Scratch scratch = SCRATCH.get();
+        scratch.ensureCapacity(set.size(), set.getDomain().size());
+        computeDistances(set, x, store, shapelet, scratch.distances, column(pool, shapelet));
+        double stat = assessFstatShapeletQuality(scratch.distances, set, scratch);
         // TODO: comment away
         // stat *= (shapelet.size() / (double) x.columns());
-        if (stat > bestStat || bestDistances == null) {
-          bestStat = stat;
-          bestDistanceMap = distanceMap;
-          bestDistances = distances;
-          bestShapelet = shapelet;
-          bestSum = sum;
-        }
+        return new Candidate(shapelet, stat);
+      }, (a, b) -> b.stat > a.stat ? b : a);
+
+      double[] distances = new double[set.size()];
+      double sum = 0;
+      computeDistances(set, x, store, best.shapelet, distances, column(pool, best.shapelet));
+      for (double distance : distances) {
+        sum += distance;
       }
-
-      Threshold t = findBestThreshold(bestDistances, classSet, y, bestSum, -1);
-      TreeSplit<ShapeletThreshold> split =
-          split(bestDistanceMap, classSet, t.threshold, bestShapelet);
+      Scratch scratch = SCRATCH.get();
+      scratch.ensureCapacity(set.size(), set.getDomain().size());
+      int n = sortDistances(distances, set.size(), scratch);
+      Threshold t = findBestThreshold(scratch.sorted, scratch.order, n, set, sum);
+      TreePartition<ShapeletThreshold> split = split(distances, set, t.threshold, best.shapelet);
       split.setImpurity(t.impurity);
       return split;
     }
 
-    private double assessFstatShapeletQuality(List<ExampleDistance> distances, Vector y) {
-      ObjectDoubleMap<Object> sums = new ObjectDoubleOpenHashMap<>();
-      ObjectDoubleMap<Object> sumsSquared = new ObjectDoubleOpenHashMap<>();
-      ObjectDoubleMap<Object> sumOfSquares = new ObjectDoubleOpenHashMap<>();
-      ObjectIntMap<Object> sizes = new ObjectIntOpenHashMap<>();
-
-      int numInstances = distances.size();
-      for (ExampleDistance distance : distances) {
-        Object c = y.loc().get(Object.class, distance.example.getIndex()); // getClassVal
-        double thisDist = distance.distance; // getDistance
-        sizes.addTo(c, 1);
-        sums.addTo(c, thisDist); // sums[c] += thisDist
-        sumOfSquares.addTo(c, thisDist * thisDist); // sumsOfSquares[c] += thisDist + thisDist
+    private double assessFstatShapeletQuality(double[] distances, ArrayClassSet set,
+        Scratch scratch) {
+      int classes = set.getDomain().size();
+      double[] sums = scratch.lt;
+      double[] sumOfSquares = scratch.gt;
+      int[] sizes = scratch.sizes;
+      Arrays.fill(sums, 0);
+      Arrays.fill(sumOfSquares, 0);
+      Arrays.fill(sizes, 0, classes, 0);
+
+      int numInstances = set.size();
+      for (int i = 0; i < numInstances; i++) {
+        int c = set.getExampleTarget(i);
+        double thisDist = distances[i];
+        sizes[c] += 1;
+        sums[c] += thisDist;
+        sumOfSquares[c] += thisDist * thisDist;
       }
-      //
+
+      int present = 0;
       double part1 = 0;
       double part2 = 0;
-      for (ObjectDoubleCursor<Object> sum : sums) {
-        sumsSquared.put(sum.key, sum.value * sum.value); // sumsSquared[i] = sums[i] * sums[i]
-        part1 += sumOfSquares.get(sum.key); // sumOfSquares[i]
-        part2 += sum.value; // sums[i]
+      for (int c = 0; c < classes; c++) {
+        if (sizes[c] > 0) {
+          present++;
+          part1 += sumOfSquares[c];
+          part2 += sums[c];
+        }
       }
       part2 *= part2;
       part2 /= numInstances;
@@ -731,85 +1303,192 @@ public class ShapeletTree extends TreeClassifier<ShapeletThreshold> {
 
       part1 = 0;
       part2 = 0;
-      for (ObjectDoubleCursor<Object> c : sumsSquared) {
-        part1 += c.value / sizes.get(c.key);
-        part2 += sums.get(c.key);
+      for (int c = 0; c < classes; c++) {
+        if (sizes[c] > 0) {
+          part1 += sums[c] * sums[c] / sizes[c];
+          part2 += sums[c];
+        }
       }
       double ssAmong = part1 - (part2 * part2) / numInstances;
       double ssWithin = ssTotal - ssAmong;
-      int dfAmong = sums.size() - 1;
-      int dfWithin = numInstances - sums.size();
+      int dfAmong = present - 1;
+      int dfWithin = numInstances - present;
       double msAmong = ssAmong / dfAmong;
       double msWithin = ssWithin / dfWithin;
       double f = msAmong / msWithin;
       return Double.isNaN(f) ? 0 : f;
     }
 
-    public Threshold findBestThreshold(List<ExampleDistance> distances, ClassSet classSet, Vector y,
-        double distanceSum, int firstNa) {
-      ObjectDoubleMap<Object> lt = new ObjectDoubleOpenHashMap<>();
-      ObjectDoubleMap<Object> gt = new ObjectDoubleOpenHashMap<>();
+    /**
+     * Sort the (non-NaN) distances {@code [0, size)} in ascending order. The sort is stable, i.e.,
+     * examples with equal distances keep their relative order.
+     *
+     * @return the number of non-NaN distances, stored (with their position in the set) in
+     *         {@code scratch.sorted} and {@code scratch.order}
+     */
+    private static int sortDistances(double[] distances, int size, Scratch scratch) {
+      return sortDistances(distances, size, scratch.sorted, scratch.order, scratch.sortedBuffer,
+          scratch.orderBuffer);
+    }
 
-      List<Object> presentTargets = classSet.getTargets();
-      DoubleArray ltRelativeFrequency = DoubleArray.zeros(presentTargets.size());
-      DoubleArray gtRelativeFrequency = DoubleArray.zeros(presentTargets.size());
+    /**
+     * Sort the (non-NaN) distances {@code [0, size)} into {@code keys} (with their positions in
+     * {@code values}), using the buffers (of at least {@code size} elements) for merging
+     *
+     * @return the number of non-NaN distances
+     */
+    static int sortDistances(double[] distances, int size, double[] keys, int[] values,
+        double[] keyBuffer, int[] valueBuffer) {
+      int n = 0;
+      for (int i = 0; i < size; i++) {
+        if (!Double.isNaN(distances[i])) {
+          keys[n] = distances[i];
+          values[n] = i;
+          n++;
+        }
+      }
+      sort(keys, values, n, keyBuffer, valueBuffer);
+      return n;
+    }
 
-      double ltWeight = 0.0, gtWeight = 0.0;
+    private static void sort(double[] keys, int[] values, int n, Scratch scratch) {
+      sort(keys, values, n, scratch.sortedBuffer, scratch.orderBuffer);
+    }
 
-      // Initialize all value to the right (i.e. all values are larger than the initial threshold)
-      for (ClassSet.Sample sample : classSet.samples()) {
-        double weight = sample.getWeight();
-        gtWeight += weight;
+    /**
+     * Sort {@code keys[0, n)} (and the corresponding {@code values}) in ascending order, breaking
+     * ties by the values (i.e., a stable sort if the values are increasing).
+     */
+    private static void sort(double[] keys, int[] values, int n, double[] keyBuffer,
+        int[] valueBuffer) {
+      // insertion sort short runs and merge them bottom-up
+      final int run = 16;
+      for (int lo = 0; lo < n; lo += run) {
+        int hi = Math.min(lo + run, n);
+        for (int i = lo + 1; i < hi; i++) {
+          double key = keys[i];
+          int value = values[i];
+          int j = i - 1;
+          while (j >= lo && compare(keys[j], values[j], key, value) > 0) {
+            keys[j + 1] = keys[j];
+            values[j + 1] = values[j];
+            j--;
+          }
+          keys[j + 1] = key;
+          values[j + 1] = value;
+        }
+      }
+
+      double[] srcKeys = keys, dstKeys = keyBuffer;
+      int[] srcValues = values, dstValues = valueBuffer;
+      for (int width = run; width < n; width *= 2) {
+        for (int lo = 0; lo < n; lo += 2 * width) {
+          int mid = Math.min(lo + width, n);
+          int hi = Math.min(lo + 2 * width, n);
+          int i = lo, j = mid, k = lo;
+          while (i < mid && j < hi) {
+            if (compare(srcKeys[j], srcValues[j], srcKeys[i], srcValues[i]) < 0) {
+              dstKeys[k] = srcKeys[j];
+              dstValues[k++] = srcValues[j++];
+            } else {
+              dstKeys[k] = srcKeys[i];
+              dstValues[k++] = srcValues[i++];
+            }
+          }
+          System.arraycopy(srcKeys, i, dstKeys, k, mid - i);
+          System.arraycopy(srcValues, i, dstValues, k, mid - i);
+          k += mid - i;
+          System.arraycopy(srcKeys, j, dstKeys, k, hi - j);
+          System.arraycopy(srcValues, j, dstValues, k, hi - j);
+        }
+        double[] tmpKeys = srcKeys;
+        srcKeys = dstKeys;
+        dstKeys = tmpKeys;
+        int[] tmpValues = srcValues;
+        srcValues = dstValues;
+        dstValues = tmpValues;
+      }
+      if (srcKeys != keys) {
+        System.arraycopy(srcKeys, 0, keys, 0, n);
+        System.arraycopy(srcValues, 0, values, 0, n);
+      }
+    }
+
+    private static int compare(double key, int value, double otherKey, int otherValue) {
+      int cmp = Double.compare(key, otherKey);
+      return cmp != 0 ? cmp : Integer.compare(value, otherValue);
+    }
 
-        lt.put(sample.getTarget(), 0);
-        gt.put(sample.getTarget(), weight);
+    /**
+     * Find the threshold with the lowest impurity
+     *
+     * @param distances the {@code n} sorted distances
+     * @param order the position (in {@code set}) of each distance
+     * @param n the number of distances
+     * @param set the examples
+     * @param distanceSum the sum of the distances
+     * @return the best threshold
+     */
+    public Threshold findBestThreshold(double[] distances, int[] order, int n, ArrayClassSet set,
+        double distanceSum) {
+      return findBestThreshold(distances, order, n, set, distanceSum, null, 0);
+    }
+
+    /**
+     * Find the threshold with the lowest impurity among the examples with the given class
+     * weights (or, if {@code totals == null}, among all examples in the set)
+     */
+    private Threshold findBestThreshold(double[] distances, int[] order, int n, ArrayClassSet set,
+        double distanceSum, double[] totals, double totalWeight) {
+      if (n == 0) {
+        return Threshold.inf();
+      }
+      int classes = set.getDomain().size();
+      Scratch scratch = SCRATCH.get();
+      scratch.ensureCapacity(0, classes);
+      double[] lt = scratch.lt;
+      double[] gt = scratch.gt;
+      Arrays.fill(lt, 0, classes, 0);
+
+      // Initialize all value to the right (i.e. all values are larger than the initial threshold)
+      double ltWeight = 0.0, gtWeight = totals != null ? totalWeight : set.getTotalWeight();
+      for (int i = 0; i < classes; i++) {
+        gt[i] = totals != null ? totals[i] : set.getTargetWeight(i);
       }
 
       // Transfer weights from the initial example
-      Example first = distances.get(0).example;
-      Object prevTarget = y.loc().get(Object.class, first.getIndex());
-      gt.addTo(prevTarget, -first.getWeight());
-      lt.addTo(prevTarget, first.getWeight());
-      gtWeight -= first.getWeight();
-      ltWeight += first.getWeight();
-
-      ExampleDistance ed = distances.get(0);
-      double prevDistance = distances.get(0).distance;
+      int prevTarget = set.getExampleTarget(order[0]);
+      double firstWeight = set.getExampleWeight(order[0]);
+      gt[prevTarget] -= firstWeight;
+      lt[prevTarget] += firstWeight;
+      gtWeight -= firstWeight;
+      ltWeight += firstWeight;
+
+      double prevDistance = distances[0];
       double lowestImpurity = Double.POSITIVE_INFINITY;
-      double threshold = distances.get(0).distance / 2;
+      double threshold = distances[0] / 2;
       Gain gain = getGain();
       double ltGap = 0.0, gtGap = distanceSum, largestGap = Double.NEGATIVE_INFINITY;
-      for (int i = 1; i < distances.size(); i++) {
-        if (firstNa >= 0 && i >= firstNa) {
-          break;
-        }
-        ed = distances.get(i);
-        Object target = y.loc().get(Object.class, ed.example.getIndex());
+      for (int i = 1; i < n; i++) {
+        double distance = distances[i];
+        int target = set.getExampleTarget(order[i]);
 
         // IF previous target NOT EQUALS current target and the previous distance equals the current
         // (except for the first)
-        boolean notSameDistance = ed.distance != prevDistance;
-        boolean firstOrEqualTarget = prevTarget == null || !prevTarget.equals(target);
+        boolean notSameDistance = distance != prevDistance;
+        boolean firstOrEqualTarget = prevTarget != target;
         boolean firstIteration = i == 1;
         if (firstIteration || notSameDistance && firstOrEqualTarget) {
 
-          // Generate the relative frequency distribution
-          for (int j = 0; j < presentTargets.size(); j++) {
-            Object presentTarget = presentTargets.get(j);
-            ltRelativeFrequency.set(j, ltWeight != 0 ? lt.get(presentTarget) / ltWeight : 0);
-            gtRelativeFrequency.set(j, gtWeight != 0 ? gt.get(presentTarget) / gtWeight : 0);
-          }
-
           // If this split is better, update the threshold
-          double impurity =
-              gain.compute(ltWeight, ltRelativeFrequency, gtWeight, gtRelativeFrequency);
+          double impurity = gain.compute(ltWeight, lt, gtWeight, gt);
           double gap = (1 / ltWeight * ltGap) - (1 / gtWeight * gtGap);
           boolean lowerImpurity = impurity < lowestImpurity;
           boolean equalImpuritySmallerGap = impurity == lowestImpurity && gap > largestGap;
           if (lowerImpurity || equalImpuritySmallerGap) {
             lowestImpurity = impurity;
             largestGap = gap;
-            threshold = (ed.distance + prevDistance) / 2;
+            threshold = (distance + prevDistance) / 2;
           }
         }
 
@@ -818,123 +1497,176 @@ public class ShapeletTree extends TreeClassifier<ShapeletThreshold> {
          * new gain for moving the threshold. If this results in a cleaner split, adjust the
          * threshold (by taking the average of the current and the previous value).
          */
-        double weight = ed.example.getWeight();
+        double weight = set.getExampleWeight(order[i]);
         ltWeight += weight;
         gtWeight -= weight;
-        lt.addTo(target, weight);
-        gt.addTo(target, -weight);
+        lt[target] += weight;
+        gt[target] -= weight;
 
-        ltGap += ed.distance;
-        gtGap -= ed.distance;
+        ltGap += distance;
+        gtGap -= distance;
 
-        prevDistance = ed.distance;
+        prevDistance = distance;
         prevTarget = target;
       }
 
-      // double impurity = gain.compute(ltWeight, ltRelativeFrequency, gtWeight,
-      // gtRelativeFrequency);
-      // double gap = (1 / ltWeight * ltGap) - (1 / gtWeight * gtGap);
-      // boolean lowerImpurity = impurity < lowestImpurity;
-      // boolean equalImpuritySmallerGap = impurity == lowestImpurity && gap > largestGap;
-      // if (lowerImpurity || equalImpuritySmallerGap) {
-      // lowestImpurity = impurity;
-      // largestGap = gap;
-      // threshold = (ed.distance + prevDistance) / 2;
-      // }
-
       double minimumMargin = Double.POSITIVE_INFINITY;
       return new Threshold(threshold, lowestImpurity, largestGap, minimumMargin);
     }
 
-    protected TreeSplit<ShapeletThreshold> split(IntDoubleMap distanceMap, ClassSet classSet,
+    /**
+     * Partition the examples such that examples with a distance smaller than or equal to the
+     * threshold go to the left and the remaining examples (including those with a missing
+     * distance) go to the right.
+     *
+     * @param distances the distance of each example (by position in {@code set})
+     */
+    protected TreePartition<ShapeletThreshold> split(double[] distances, ArrayClassSet set,
         double threshold, Shapelet shapelet) {
-      ClassSet left = new ClassSet(classSet.getDomain());
-      ClassSet right = new ClassSet(classSet.getDomain());
-      ClassSet missing = new ClassSet(classSet.getDomain());
-      for (ClassSet.Sample sample : classSet.samples()) {
-        Object target = sample.getTarget();
-
-        ClassSet.Sample leftSample = ClassSet.Sample.create(target);
-        ClassSet.Sample rightSample = ClassSet.Sample.create(target);
-        ClassSet.Sample missingSample = ClassSet.Sample.create(target);
-
-        for (Example example : sample) {
-          double shapeletDistance = distanceMap.get(example.getIndex());
-          // Missing
-          if (Is.NA(shapeletDistance)) {
-//            missingSample.add(example);
-            rightSample.add(example);
-          } else {
-            // if (shapeletDistance == threshold) {
-            // if (getRandom().nextDouble() <= 0.5) {
-            // leftSample.add(example);
-            // } else {
-            // rightSample.add(example);
-            // }
-            // } else
-            if (shapeletDistance <= threshold) {
-              leftSample.add(example);
-            } else {
-              rightSample.add(example);
-            }
-          }
-        }
-
-        if (!leftSample.isEmpty()) {
-          left.add(leftSample);
-        }
-        if (!rightSample.isEmpty()) {
-          right.add(rightSample);
-        }
-        if (!missingSample.isEmpty()) {
-          missing.add(missingSample);
-        }
-      }
-
-      return new TreeSplit<>(left, right, missing,
-          new ShapeletThreshold(shapelet, threshold, classSet));
+      return TreePartition.partition(set, i -> {
+        double shapeletDistance = distances[i];
+        return !Is.NA(shapeletDistance) && shapeletDistance <= threshold;
+      }, new ShapeletThreshold(shapelet, threshold));
     }
 
     public enum SampleMode {
-      DOWN_SAMPLE, NORMAL, DERIVATE, NEW_SAMPLE, RANDOMIZE
+      DOWN_SAMPLE, NORMAL, DERIVATE, NEW_SAMPLE, RANDOMIZE,
+
+      /**
+       * Sample a pool of shapelets once per tree and draw the candidates of each node from the
+       * pool. The distances between the pooled shapelets and the examples are cached (and reused
+       * among the nodes).
+       */
+      POOL
     }
 
     public enum Assessment {
       IG, FSTAT
     }
 
-    private static class ExampleDistance implements Comparable<ExampleDistance> {
+    /**
+     * Reusable (per thread) buffers for scoring candidate shapelets
+     */
+    private static final class Scratch {
+      private double[] distances = new double[0];
+      private double[] sorted = new double[0];
+      private double[] sortedBuffer = new double[0];
+      private int[] order = new int[0];
+      private int[] orderBuffer = new int[0];
+      private double[] lt = new double[0];
+      private double[] gt = new double[0];
+      private int[] sizes = new int[0];
+      private double[] boundLeft = new double[0];
+      private double[] boundRight = new double[0];
+      private double[] boundFree = new double[0];
+      private double[] leftBuffer = new double[0];
+      private double[] rightBuffer = new double[0];
+      private double[] sampleTotals = new double[0];
+
+      private void ensureCapacity(int size, int classes) {
+        if (distances.length < size) {
+          distances = new double[size];
+          sorted = new double[size];
+          sortedBuffer = new double[size];
+          order = new int[size];
+          orderBuffer = new int[size];
+        }
+        if (lt.length != classes) {
+          lt = new double[classes];
+          gt = new double[classes];
+          sizes = new int[classes];
+          boundLeft = new double[classes];
+          boundRight = new double[classes];
+          boundFree = new double[classes];
+          leftBuffer = new double[classes];
+          rightBuffer = new double[classes];
+          sampleTotals = new double[classes];
+        }
+      }
+    }
+
+    /**
+     * A scored candidate shapelet
+     */
+    private static final class Candidate {
 
-      public static ExampleDistance NA = new ExampleDistance(Na.DOUBLE, null);
-      public final double distance;
-      public final Example example;
+      private final Shapelet shapelet;
+      private final Threshold threshold;
+      private final double stat;
 
-      public ExampleDistance(double distance, Example example) {
-        this.distance = distance;
-        this.example = example;
+      private Candidate(Shapelet shapelet, Threshold threshold) {
+        this.shapelet = shapelet;
+        this.threshold = threshold;
+        this.stat = 0;
       }
 
-      @Override
-      public int compareTo(ExampleDistance o) {
-        return Double.compare(distance, o.distance);
+      private Candidate(Shapelet shapelet, double stat) {
+        this.shapelet = shapelet;
+        this.threshold = null;
+        this.stat = stat;
+      }
+    }
+
+    /**
+     * Recursively scores the candidates in {@code [start, end)} and reduces them (left to right)
+     * to the best candidate. Ranges of at most {@code grain} candidates are scored sequentially.
+     */
+    private static final class ScoreTask<T> extends RecursiveTask<T> {
+
+      private final int start, end, grain;
+      private final IntFunction<T> score;
+      private final BinaryOperator<T> better;
+
+      private ScoreTask(int start, int end, int grain, IntFunction<T> score,
+          BinaryOperator<T> better) {
+        this.start = start;
+        this.end = end;
+        this.grain = grain;
+        this.score = score;
+        this.better = better;
       }
 
       @Override
-      public boolean equals(Object obj) {
-        if (!(obj instanceof ExampleDistance)) {
-          return false;
+      protected T compute() {
+        if (end - start <= grain) {
+          return reduce(start, end, score, better);
         }
-        return compareTo((ExampleDistance) obj) == 0;
+        int mid = (start + end) >>> 1;
+        ScoreTask<T> left = new ScoreTask<>(start, mid, grain, score, better);
+        ScoreTask<T> right = new ScoreTask<>(mid, end, grain, score, better);
+        right.fork();
+        T leftBest = left.compute();
+        T rightBest = right.join();
+        return better.apply(leftBest, rightBest);
       }
+    }
 
-      @Override
-      public int hashCode() {
-        return Double.hashCode(distance);
+    /**
+     * Recursively runs the body for the candidates in {@code [start, end)}. Ranges of at most
+     * {@code grain} candidates are run sequentially.
+     */
+    private static final class ForEachTask extends RecursiveAction {
+
+      private final int start, end, grain;
+      private final IntConsumer body;
+
+      private ForEachTask(int start, int end, int grain, IntConsumer body) {
+        this.start = start;
+        this.end = end;
+        this.grain = grain;
+        this.body = body;
       }
 
       @Override
-      public String toString() {
-        return String.format("ExampleDistance(id=%d, %.2f)", example.getIndex(), distance);
+      protected void compute() {
+        if (end - start <= grain) {
+          for (int i = start; i < end; i++) {
+            body.accept(i);
+          }
+          return;
+        }
+        int mid = (start + end) >>> 1;
+        invokeAll(new ForEachTask(start, mid, grain, body), new ForEachTask(mid, end, grain, body));
       }
     }
 
@@ -976,10 +1708,74 @@ public class ShapeletTree extends TreeClassifier<ShapeletThreshold> {
       }
     }
 
+    /**
+     * A pool of shapelets sampled once per tree, with a (lazily computed) cache of the distances
+     * between each shapelet and the examples.
+     */
+    private static final class ShapeletPool {
+      private static final float NOT_COMPUTED = Float.NEGATIVE_INFINITY;
+
+      private final List<Shapelet> shapelets;
+      private final Map<Shapelet, Integer> index = new IdentityHashMap<>();
+      private final float[][] columns;
+      private final int rows;
+      private final int[] order;
+
+      private ShapeletPool(List<Shapelet> shapelets, int rows) {
+        this.shapelets = shapelets;
+        this.rows = rows;
+        this.columns = new float[shapelets.size()][];
+        this.order = new int[shapelets.size()];
+        for (int i = 0; i < shapelets.size(); i++) {
+          index.put(shapelets.get(i), i);
+          order[i] = i;
+        }
+      }
+
+      /**
+       * Sample (without replacement) {@code n} shapelets from the pool.
+       */
+      List<Shapelet> sample(int n, Random random) {
+        n = Math.min(n, order.length);
+        List<Shapelet> sample = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+          int j = i + random.nextInt(order.length - i);
+          int tmp = order[i];
+          order[i] = order[j];
+          order[j] = tmp;
+          sample.add(shapelets.get(order[i]));
+        }
+        return sample;
+      }
+
+      /**
+       * Returns the cached distances of the shapelet (indexed by record) or {@code null} if the
+       * shapelet is not in the pool. Different shapelets can be accessed concurrently.
+       */
+      float[] column(Shapelet shapelet) {
+        Integer i = index.get(shapelet);
+        if (i == null) {
+          return null;
+        }
+        float[] column = columns[i];
+        if (column == null) {
+          column = new float[rows];
+          Arrays.fill(column, NOT_COMPUTED);
+          columns[i] = column;
+        }
+        return column;
+      }
+    }
+
     private static class Params {
 
+      public RandomStream random;
+      public BooleanSupplier exhausted;
+      public ShapeletPool pool;
       public double noExamples;
       public DataFrame originalData;
+      public SeriesStore originalStore;
+      public SeriesStore store;
       public ShapeStore shapeStore;
       private DoubleArray lengthImportance;
       private DoubleArray positionImportance;
@@ -1088,9 +1884,9 @@ public class ShapeletTree extends TreeClassifier<ShapeletThreshold> {
       public DoubleArray visitBranch(TreeBranch<ShapeletThreshold> node, Vector example) {
         Shapelet shapelet = node.getThreshold().getShapelet();
         double threshold = node.getThreshold().getDistance();
-        if (shapelet.size() >= example.size()) {
+        ClassSet included = node.getThreshold().getClassSet();
+        if (included != null && shapelet.size() >= example.size()) {
           // Use 1NN
-          ClassSet included = node.getThreshold().getClassSet();
           double minDistance = Double.POSITIVE_INFINITY;
           Object cls = null;
           for (Example ex : included) {
@@ -1230,29 +2026,8 @@ public class ShapeletTree extends TreeClassifier<ShapeletThreshold> {
       public DoubleArray visitBranch(TreeBranch<ShapeletThreshold> node, Vector example) {
         Shapelet shapelet = node.getThreshold().getShapelet();
         double threshold = node.getThreshold().getDistance();
-        double computedDistance;
-        if (shapelet instanceof ChannelShapelet) {
-          int shapeletChannel = ((ChannelShapelet) shapelet).getChannel();
-          Vector exampleChannel = example.loc().get(Vector.class, shapeletChannel);
-
-          if (isCategorical(exampleChannel)) {
-            // exampleChannel.loc().indexOf(shapelet.loc().get(0)) >= 0 ? 1 : 0;
-            if (Is.NA(exampleChannel)) {
-              computedDistance = Na.DOUBLE; // TODO
-            } else {
-              computedDistance = categoricDistance.compute(exampleChannel, shapelet);
-            }
-          } else {
-            if (Is.NA(exampleChannel)) {
-              computedDistance = Na.DOUBLE; // TODO
-            } else {
-              computedDistance = numericDistance.compute(exampleChannel, shapelet);
-            }
-          }
-
-        } else {
-          computedDistance = numericDistance.compute(example, shapelet);
-        }
+        double computedDistance =
+            computeDistance(shapelet, example, categoricDistance, numericDistance);
 
         if (Is.NA(computedDistance)) {
           if (node.getMissing() != null) {
@@ -1287,6 +2062,10 @@ public class ShapeletTree extends TreeClassifier<ShapeletThreshold> {
     public int inspectedShapelets = 100;
     public double aggregateFraction = 1;
     public Learner.SampleMode sampleMode = Learner.SampleMode.NORMAL;
+    public boolean parallel = false;
+    public boolean pruning = true;
+    public int poolSize = -1;
+    public Race race = null;
     public double lowerLength = 0.01;
     public double upperLength = 1;
     private Distance categoricDistance = new Learner.ZeroOneDistance();
@@ -1298,6 +2077,11 @@ public class ShapeletTree extends TreeClassifier<ShapeletThreshold> {
       return this;
     }
 
+    /**
+     * Set the distance between shapelets and (numeric) time series. For very long series, use
+     * {@link org.briljantframework.mimir.distance.MassDistance}, which computes the distance
+     * profile using the FFT.
+     */
     public Classifier.Configurator setDistance(Distance metric) {
       this.numericDistance = metric;
       return this;
@@ -1308,6 +2092,10 @@ public class ShapeletTree extends TreeClassifier<ShapeletThreshold> {
       return this;
     }
 
+    Distance getCategoricDistance() {
+      return categoricDistance;
+    }
+
     public Classifier.Configurator setAssessment(Learner.Assessment assessment) {
       this.assessment = assessment;
       return this;
@@ -1340,6 +2128,57 @@ public class ShapeletTree extends TreeClassifier<ShapeletThreshold> {
       return this;
     }
 
+    /**
+     * Evaluate the candidate shapelets of each node in parallel (in addition to any parallelism
+     * among the trees of an ensemble).
+     *
+     * @param parallel true to evaluate the candidates in parallel
+     * @return this configurator
+     */
+    public Classifier.Configurator setParallel(boolean parallel) {
+      this.parallel = parallel;
+      return this;
+    }
+
+    /**
+     * Abandon the evaluation of a candidate shapelet as soon as an (optimistic) bound of its
+     * impurity shows that it can't improve on the best candidate so far. Pruning does not change
+     * the selected split and is only used with the {@link Learner.Assessment#IG information gain}
+     * assessment.
+     *
+     * @param pruning true to prune candidates
+     * @return this configurator
+     */
+    public Classifier.Configurator setPruning(boolean pruning) {
+      this.pruning = pruning;
+      return this;
+    }
+
+    /**
+     * Set the number of shapelets sampled per tree in {@link Learner.SampleMode#POOL} mode. By
+     * default ({@code -1}), the pool is ten times the number of shapelets inspected per node.
+     *
+     * @param poolSize the size of the pool
+     * @return this configurator
+     */
+    public Classifier.Configurator setPoolSize(int poolSize) {
+      this.poolSize = poolSize;
+      return this;
+    }
+
+    /**
+     * Race the candidate shapelets of large nodes on growing subsamples and evaluate only the
+     * survivors on the complete node (see {@link Race}). Racing is only used with the
+     * {@link Learner.Assessment#IG information gain} assessment.
+     *
+     * @param race the race (or {@code null} to evaluate all candidates on all examples)
+     * @return this configurator
+     */
+    public Classifier.Configurator setRace(Race race) {
+      this.race = race;
+      return this;
+    }
+
     public Learner configure() {
       return new Learner();
     }
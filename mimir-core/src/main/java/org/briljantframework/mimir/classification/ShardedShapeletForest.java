@@ -0,0 +1,256 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Isak Karlsson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+ * NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.briljantframework.mimir.classification;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.briljantframework.Check;
+import org.briljantframework.data.dataframe.DataFrame;
+import org.briljantframework.data.dataseries.DataSeriesCollection;
+import org.briljantframework.data.vector.DoubleVector;
+import org.briljantframework.data.vector.Vector;
+import org.briljantframework.data.vector.Vectors;
+
+/**
+ * Fit a {@link RandomShapeletForest} in several local worker processes (e.g., one per NUMA node).
+ * The training data is written once to a file, which each worker memory-maps, and each worker fits
+ * a disjoint slice of the trees (see {@link RandomShapeletForest.Learner#fit(DataFrame, Vector,
+ * int, int)}) and writes its forest to a {@linkplain ModelFormat model file}. The forests of the
+ * workers are then {@linkplain RandomShapeletForest#merge(List) merged} (in order), including
+ * the out-of-bag indicators and importances.
+ * <p>
+ * Since the trees are derived from the master seed and their index, a seeded forest is the same
+ * irrespective of the number of workers. An unseeded forest is fitted with a random master seed.
+ *
+ * <pre>
+ * ShardedShapeletForest sharded = new ShardedShapeletForest(RandomShapeletForest.withSize(2000), 4)
+ *     .addJvmOption("-Xmx4g");
+ * RandomShapeletForest forest = sharded.fit(x, y);
+ * </pre>
+ *
+ * Only (univariate) numeric time series can be sharded.
+ *
+ * @author Isak Karlsson
+ */
+public final class ShardedShapeletForest {
+
+  private final RandomShapeletForest.Configurator configurator;
+  private final int workers;
+  private final List<String> jvmOptions = new ArrayList<>();
+  private Path directory = null;
+
+  /**
+   * @param configurator the configuration of the forest
+   * @param workers the number of worker processes
+   */
+  public ShardedShapeletForest(RandomShapeletForest.Configurator configurator, int workers) {
+    Check.argument(workers > 0, "Requires at least one worker");
+    this.configurator = configurator;
+    this.workers = workers;
+  }
+
+  /**
+   * Add an option (e.g., {@code -Xmx4g}) to the command line of the worker processes
+   *
+   * @param option the option
+   * @return this
+   */
+  public ShardedShapeletForest addJvmOption(String option) {
+    jvmOptions.add(option);
+    return this;
+  }
+
+  /**
+   * Set the directory of the training data and the forests of the workers. By default, a
+   * temporary directory (deleted on exit) is used.
+   *
+   * @param directory the directory
+   * @return this
+   */
+  public ShardedShapeletForest setDirectory(Path directory) {
+    this.directory = directory;
+    return this;
+  }
+
+  /**
+   * Fit the forest using the worker processes
+   *
+   * @param x the training data
+   * @param y the targets
+   * @return the merged forest
+   * @throws IOException if an I/O error occurs or a worker fails
+   */
+  public RandomShapeletForest fit(DataFrame x, Vector y) throws IOException {
+    Check.argument(x.rows() == y.size(), "The number of rows and targets differ");
+    Path dir = directory;
+    if (dir == null) {
+      dir = Files.createTempDirectory("mimir");
+      dir.toFile().deleteOnExit();
+    }
+    Path data = dir.resolve("training.data");
+    writeTrainingData(data, x, y);
+
+    int size = configurator.configure().size();
+    int n = Math.min(workers, size);
+    String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+    List<Path> shards = new ArrayList<>();
+    List<Process> processes = new ArrayList<>();
+    try {
+      for (int i = 0; i < n; i++) {
+        Path shard = dir.resolve(String.format("shard-%d.model", i));
+        if (directory == null) {
+          shard.toFile().deleteOnExit();
+        }
+        List<String> command = new ArrayList<>();
+        command.add(java);
+        command.addAll(jvmOptions);
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(ShardedShapeletForest.class.getName());
+        command.add(data.toString());
+        command.add(shard.toString());
+        command.add(String.valueOf((long) size * i / n));
+        command.add(String.valueOf((long) size * (i + 1) / n));
+        processes.add(new ProcessBuilder(command).inheritIO().start());
+        shards.add(shard);
+      }
+      for (int i = 0; i < n; i++) {
+        int status = processes.get(i).waitFor();
+        if (status != 0) {
+          throw new IOException(String.format("Worker %d failed (exit status %d)", i, status));
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for the workers");
+    } finally {
+      for (Process process : processes) {
+        process.destroy();
+      }
+      Files.deleteIfExists(data);
+    }
+
+    List<RandomShapeletForest> forests = new ArrayList<>();
+    for (Path shard : shards) {
+      forests.add((RandomShapeletForest) ModelFormat.read(shard));
+    }
+    return RandomShapeletForest.merge(forests);
+  }
+
+  /**
+   * The training data consists of the configurator and the classes (in the header) and the length
+   * of each series, the values of all series and the index of the class of each series (as arrays).
+   */
+  private void writeTrainingData(Path path, DataFrame x, Vector y) throws IOException {
+    Vector classes = Vectors.unique(y);
+    ModelFormat.write(path, ModelFormat.TRAINING_DATA, (header, data) -> {
+      configurator.write(header);
+      header.putVector(classes);
+      header.putInt(x.rows());
+
+      int[] lengths = new int[x.rows()];
+      int[] targets = new int[x.rows()];
+      for (int i = 0; i < x.rows(); i++) {
+        Vector record = x.loc().getRecord(i);
+        Check.argument(Number.class.isAssignableFrom(record.getType().getDataClass()),
+            "Can't shard non-numeric series");
+        lengths[i] = record.size();
+        targets[i] = classes.loc().indexOf(y.loc().get(Object.class, i));
+      }
+      data.putInts(lengths);
+
+      // the values of all series are written record by record
+      data.align();
+      for (int i = 0; i < x.rows(); i++) {
+        Vector record = x.loc().getRecord(i);
+        double[] values = new double[record.size()];
+        for (int j = 0; j < values.length; j++) {
+          values[j] = record.loc().getAsDouble(j);
+        }
+        data.putDoubles(values, 0, values.length);
+      }
+      data.putInts(targets);
+    });
+  }
+
+  /**
+   * The worker: fit the trees {@code [from, to)} of the training data and write the forest.
+   *
+   * @param args the training data, the output, {@code from} and {@code to}
+   * @throws IOException if an I/O error occurs
+   */
+  public static void main(String[] args) throws IOException {
+    Check.argument(args.length == 4, "Usage: ShardedShapeletForest <data> <output> <from> <to>");
+    TrainingData training =
+        ModelFormat.read(Paths.get(args[0]), ModelFormat.TRAINING_DATA, (kind, in) -> {
+          RandomShapeletForest.Configurator configurator =
+              RandomShapeletForest.Configurator.read(in);
+          Vector classes = in.getVector();
+          int rows = in.getInt();
+          IntBuffer[] lengths = in.mapInts(rows);
+          long total = 0;
+          for (int i = 0; i < rows; i++) {
+            total += ModelFormat.get(lengths, i);
+          }
+          DoubleBuffer[] values = in.mapDoubles(total);
+          IntBuffer[] targets = in.mapInts(rows);
+
+          DataFrame.Builder x = new DataSeriesCollection.Builder(double.class);
+          Vector.Builder y = Vector.Builder.withCapacity(classes.getType().getDataClass(), rows);
+          long k = 0;
+          for (int i = 0; i < rows; i++) {
+            Vector.Builder record = new DoubleVector.Builder();
+            for (int j = 0, n = ModelFormat.get(lengths, i); j < n; j++) {
+              record.add(ModelFormat.get(values, k++));
+            }
+            x.addRecord(record);
+            y.loc().set(i, classes.loc().get(Object.class, ModelFormat.get(targets, i)));
+          }
+          return new TrainingData(configurator, x.build(), y.build());
+        });
+
+    int from = Integer.parseInt(args[2]);
+    int to = Integer.parseInt(args[3]);
+    RandomShapeletForest forest =
+        training.configurator.configure().fit(training.x, training.y, from, to);
+    ModelFormat.write(forest, Paths.get(args[1]));
+  }
+
+  private static final class TrainingData {
+    private final RandomShapeletForest.Configurator configurator;
+    private final DataFrame x;
+    private final Vector y;
+
+    private TrainingData(RandomShapeletForest.Configurator configurator, DataFrame x, Vector y) {
+      this.configurator = configurator;
+      this.x = x;
+      this.y = y;
+    }
+  }
+}
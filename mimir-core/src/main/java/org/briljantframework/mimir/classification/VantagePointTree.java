@@ -0,0 +1,274 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Isak Karlsson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+ * NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.briljantframework.mimir.classification;
+
+import java.util.Random;
+import java.util.stream.IntStream;
+
+import org.briljantframework.Check;
+import org.briljantframework.data.dataframe.DataFrame;
+import org.briljantframework.data.vector.Vector;
+import org.briljantframework.mimir.distance.Distance;
+import org.briljantframework.mimir.distance.MetricDistance;
+
+/**
+ * A vantage-point tree over the records of a data frame, supporting exact nearest neighbour and
+ * radius queries for {@linkplain MetricDistance metric distances}. Each node selects a vantage
+ * point and partitions the remaining records by the median distance to it; subtrees that (by the
+ * triangle inequality) cannot contain a record closer than the current cutoff are skipped.
+ *
+ * <p/>
+ * Distances such as the {@linkplain org.briljantframework.mimir.distance.EuclideanDistance
+ * euclidean distance} compare records up to the length of the shorter one and are metric only for
+ * records of equal length without missing values. Hence, the records of the tree must have equal
+ * length and no missing values, and queries that don't (for which the triangle inequality can't
+ * be relied upon) are answered by scanning all records.
+ *
+ * <p/>
+ * The tree is stored implicitly in a permutation of the record indices: the node covering the
+ * positions {@code [lo, hi)} has its vantage point at {@code lo}, the inner subtree at
+ * {@code [lo + 1, mid)} and the outer subtree at {@code [mid, hi)}.
+ *
+ * @author Isak Karlsson
+ * @see NearestNeighbours
+ */
+public final class VantagePointTree implements NeighbourIndex {
+
+  private final Distance distance;
+  private final Vector[] records;
+  private final int length;
+
+  /**
+   * The record index of each position
+   */
+  private final int[] order;
+
+  /**
+   * The largest distance from the vantage point at a position to a record in its inner subtree
+   * (or {@code Double.NEGATIVE_INFINITY} if empty)
+   */
+  private final double[] innerMax;
+
+  /**
+   * The smallest distance from the vantage point at a position to a record in its outer subtree
+   * (or {@code Double.POSITIVE_INFINITY} if empty)
+   */
+  private final double[] outerMin;
+
+  /**
+   * Build a vantage-point tree over the records of the given data frame.
+   *
+   * @param x the data frame
+   * @param distance the distance (which must satisfy the triangle inequality)
+   * @param random the random number generator used to select vantage points
+   * @throws IllegalArgumentException if the records differ in length or have missing values
+   */
+  public VantagePointTree(DataFrame x, Distance distance, Random random) {
+    int n = x.rows();
+    this.distance = distance;
+    this.records = new Vector[n];
+    this.order = new int[n];
+    this.innerMax = new double[n];
+    this.outerMin = new double[n];
+    for (int i = 0; i < n; i++) {
+      records[i] = x.loc().getRecord(i);
+      order[i] = i;
+    }
+    this.length = n > 0 ? records[0].size() : 0;
+    for (int i = 0; i < n; i++) {
+      Check.argument(isComplete(records[i]),
+          "Record %s has missing values or a length other than %s", i, length);
+    }
+    build(0, n, new double[n], random);
+  }
+
+  /**
+   * @return true if the example has the length of the records and no missing values
+   */
+  private boolean isComplete(Vector example) {
+    if (example.size() != length) {
+      return false;
+    }
+    for (int j = 0; j < length; j++) {
+      if (Double.isNaN(example.loc().getAsDouble(j))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void build(int lo, int hi, double[] distances, Random random) {
+    if (hi - lo < 1) {
+      return;
+    }
+    swap(distances, lo, lo + random.nextInt(hi - lo));
+    innerMax[lo] = Double.NEGATIVE_INFINITY;
+    outerMin[lo] = Double.POSITIVE_INFINITY;
+    if (hi - lo == 1) {
+      return;
+    }
+
+    Vector vantagePoint = records[order[lo]];
+    for (int i = lo + 1; i < hi; i++) {
+      distances[i] = distance.compute(vantagePoint, records[order[i]]);
+    }
+    int mid = mid(lo, hi);
+    select(distances, lo + 1, hi, mid, random);
+    for (int i = lo + 1; i < mid; i++) {
+      innerMax[lo] = Math.max(innerMax[lo], distances[i]);
+    }
+    for (int i = mid; i < hi; i++) {
+      outerMin[lo] = Math.min(outerMin[lo], distances[i]);
+    }
+    build(lo + 1, mid, distances, random);
+    build(mid, hi, distances, random);
+  }
+
+  private static int mid(int lo, int hi) {
+    return lo + 1 + (hi - lo - 1) / 2;
+  }
+
+  /**
+   * Partially order the positions {@code [lo, hi)} such that the {@code k}:th smallest distance is
+   * at position {@code k} (with smaller or equal distances before and larger or equal after)
+   */
+  private void select(double[] distances, int lo, int hi, int k, Random random) {
+    while (hi - lo > 1) {
+      double pivot = distances[lo + random.nextInt(hi - lo)];
+      int lt = lo, i = lo, gt = hi;
+      while (i < gt) {
+        if (distances[i] < pivot) {
+          swap(distances, lt++, i++);
+        } else if (distances[i] > pivot) {
+          swap(distances, i, --gt);
+        } else {
+          i++;
+        }
+      }
+      if (k < lt) {
+        hi = lt;
+      } else if (k >= gt) {
+        lo = gt;
+      } else {
+        return;
+      }
+    }
+  }
+
+  private void swap(double[] distances, int i, int j) {
+    double d = distances[i];
+    distances[i] = distances[j];
+    distances[j] = d;
+    int o = order[i];
+    order[i] = order[j];
+    order[j] = o;
+  }
+
+  @Override
+  public void nearest(Vector example, NeighbourHeap[] heaps, int[] targets) {
+    if (isComplete(example)) {
+      nearest(example, heaps, targets, 0, order.length);
+    } else {
+      for (int i = 0; i < records.length; i++) {
+        heaps[targets != null ? targets[i] : 0].offer(i, distance.compute(example, records[i]));
+      }
+    }
+  }
+
+  private void nearest(Vector example, NeighbourHeap[] heaps, int[] targets, int lo, int hi) {
+    if (hi - lo < 1) {
+      return;
+    }
+    int index = order[lo];
+    double d = distance.compute(example, records[index]);
+    heaps[targets != null ? targets[index] : 0].offer(index, d);
+    if (hi - lo == 1) {
+      return;
+    }
+
+    // Visit the subtree most likely to contain the nearest neighbours first. A subtree is skipped
+    // if every record in it is at least as far away as the cutoff (but never if d is NaN).
+    int mid = mid(lo, hi);
+    boolean innerFirst = d - innerMax[lo] <= outerMin[lo] - d;
+    for (int side = 0; side < 2; side++) {
+      if ((side == 0) == innerFirst) {
+        if (!(d - innerMax[lo] >= cutoff(heaps))) {
+          nearest(example, heaps, targets, lo + 1, mid);
+        }
+      } else if (!(outerMin[lo] - d >= cutoff(heaps))) {
+        nearest(example, heaps, targets, mid, hi);
+      }
+    }
+  }
+
+  private static double cutoff(NeighbourHeap[] heaps) {
+    double cutoff = heaps[0].cutoff();
+    for (int i = 1; i < heaps.length; i++) {
+      cutoff = Math.max(cutoff, heaps[i].cutoff());
+    }
+    return cutoff;
+  }
+
+  /**
+   * Returns the indices of the records within the given radius of the example
+   *
+   * @param example the example
+   * @param radius the radius
+   * @return the indices of the records {@code r} such that {@code distance(example, r) <= radius}
+   */
+  public int[] range(Vector example, double radius) {
+    if (!isComplete(example)) {
+      return IntStream.range(0, records.length)
+          .filter(i -> distance.compute(example, records[i]) <= radius).toArray();
+    }
+    IntStream.Builder builder = IntStream.builder();
+    range(example, radius, builder, 0, order.length);
+    return builder.build().toArray();
+  }
+
+  private void range(Vector example, double radius, IntStream.Builder builder, int lo, int hi) {
+    if (hi - lo < 1) {
+      return;
+    }
+    int index = order[lo];
+    double d = distance.compute(example, records[index]);
+    if (d <= radius) {
+      builder.add(index);
+    }
+    if (hi - lo == 1) {
+      return;
+    }
+    int mid = mid(lo, hi);
+    if (!(d - innerMax[lo] > radius)) {
+      range(example, radius, builder, lo + 1, mid);
+    }
+    if (!(outerMin[lo] - d > radius)) {
+      range(example, radius, builder, mid, hi);
+    }
+  }
+
+  /**
+   * @return the number of records in the tree
+   */
+  public int size() {
+    return order.length;
+  }
+}
@@ -57,6 +57,15 @@ public abstract class AbstractConformalClassifier extends AbstractClassifier imp
     this(true, classes);
   }
 
+  /**
+   * Returns true if stochastic smoothing is enabled
+   *
+   * @return true if stochastic smoothing is enabled
+   */
+  public boolean isStochasticSmoothing() {
+    return stochasticSmoothing;
+  }
+
   /**
    * Return the non conformity scorer
    * 
@@ -75,11 +84,12 @@ public abstract class AbstractConformalClassifier extends AbstractClassifier imp
   public DoubleArray estimate(Vector example) {
     DoubleArray significance = DoubleArray.zeros(getClasses().size());
     double tau = stochasticSmoothing ? ThreadLocalRandom.current().nextDouble() : 1;
+    DoubleArray scores = getClassifierNonconformity().estimateAll(example, getClasses());
     for (int i = 0; i < significance.size(); i++) {
       Object label = getClasses().loc().get(i);
       DoubleArray calibration = getCalibrationScores().get(example, label);
       double n = calibration.size() + 1;
-      double nc = getClassifierNonconformity().estimate(example, label);
+      double nc = scores.get(i);
       double gt = 0;
       double eq = 1;
       for (int j = 0; j < calibration.size(); j++) {
@@ -25,6 +25,7 @@ import java.util.Objects;
 import org.briljantframework.array.DoubleArray;
 import org.briljantframework.data.dataframe.DataFrame;
 import org.briljantframework.data.vector.Vector;
+import org.briljantframework.mimir.classification.Classifier;
 import org.briljantframework.mimir.classification.Ensemble;
 import org.briljantframework.mimir.supervised.Predictor;
 
@@ -57,8 +58,29 @@ public class BootstrapConformalClassifier extends AbstractConformalClassifier {
 
     private final ProbabilityEstimateNonconformity.Learner<? extends Ensemble> learner;
 
+    /**
+     * The calibration scores are computed from the out-of-bag estimates of the ensemble, which (if
+     * the ensemble is fitted by an {@link Ensemble.Learner}) are accumulated while fitting.
+     *
+     * @param learner the learner of the nonconformity of the ensemble
+     */
     public Learner(ProbabilityEstimateNonconformity.Learner<? extends Ensemble> learner) {
-      this.learner = learner;
+      this.learner = accumulating(learner);
+    }
+
+    /**
+     * @return a learner whose ensemble accumulates the out-of-bag estimates (or {@code learner})
+     */
+    private static ProbabilityEstimateNonconformity.Learner<? extends Ensemble> accumulating(
+        ProbabilityEstimateNonconformity.Learner<? extends Ensemble> learner) {
+      Classifier.Learner<? extends Ensemble> classifier = learner.getClassifierLearner();
+      if (learner.getClass() != ProbabilityEstimateNonconformity.Learner.class
+          || !(classifier instanceof Ensemble.Learner)) {
+        return learner;
+      }
+      return new ProbabilityEstimateNonconformity.Learner<>(
+          ((Ensemble.Learner<?>) classifier).withOutOfBagEstimates(true),
+          learner.getProbabilityCostFunction());
     }
 
     @Override
@@ -56,6 +56,23 @@ public interface ClassifierNonconformity {
    */
   double estimate(Vector example, Object label);
 
+  /**
+   * Estimate the nonconformity score for the given example w.r.t. each of the given labels (e.g.,
+   * every class of a conformal predictor). Scorers that share work among the labels of an example
+   * override this method.
+   *
+   * @param example the given example
+   * @param labels the given labels
+   * @return a {@code [no labels]} double array of nonconformity scores
+   */
+  default DoubleArray estimateAll(Vector example, Vector labels) {
+    DoubleArray array = DoubleArray.zeros(labels.size());
+    for (int i = 0; i < labels.size(); i++) {
+      array.set(i, estimate(example, labels.loc().get(i)));
+    }
+    return array;
+  }
+
   /**
    * Get the classes used by this nonconformity scorer
    * 
@@ -20,13 +20,11 @@
  */
 package org.briljantframework.mimir.classification.conformal;
 
-import org.briljantframework.array.Arrays;
 import org.briljantframework.array.DoubleArray;
-import org.briljantframework.array.IntArray;
-import org.briljantframework.data.Is;
 import org.briljantframework.data.dataframe.DataFrame;
 import org.briljantframework.data.vector.Vector;
 import org.briljantframework.mimir.classification.NearestNeighbours;
+import org.briljantframework.mimir.classification.NeighbourHeap;
 import org.briljantframework.mimir.distance.Distance;
 import org.briljantframework.mimir.distance.EuclideanDistance;
 
@@ -45,25 +43,43 @@ public class DistanceNonconformity implements ClassifierNonconformity {
 
   @Override
   public double estimate(Vector example, Object label) {
-    Vector labels = classifier.getTarget();
-    DoubleArray distances = classifier.distance(example);
-    IntArray order = Arrays.order(distances);
-    double posDist = 0;
-    double negDist = 0;
-    int kp = 0;
-    int kn = 0;
-    for (int i = 0; i < order.size() && (kp < k || kn < k); i++) {
-      int o = order.get(i);
-      double distance = distances.get(o);
-      if (Is.equal(labels.loc().get(o), label) && kp < k) {
-        posDist += distance;
-        kp++;
-      } else if (!Is.equal(labels.loc().get(o), label) && kn < k) {
-        negDist += distance;
-        kn++;
+    return score(classifier.nearestPerClass(example, k), getClasses().loc().indexOf(label));
+  }
+
+  /**
+   * {@inheritDoc}
+   * <p>
+   * The k nearest neighbours of each class are searched once and shared among the labels.
+   */
+  @Override
+  public DoubleArray estimateAll(Vector example, Vector labels) {
+    NeighbourHeap[] nearest = classifier.nearestPerClass(example, k);
+    DoubleArray array = DoubleArray.zeros(labels.size());
+    for (int i = 0; i < labels.size(); i++) {
+      array.set(i, score(nearest, getClasses().loc().indexOf(labels.loc().get(i))));
+    }
+    return array;
+  }
+
+  /**
+   * @param nearest the k nearest neighbours of each class
+   * @param index the index of the label (or {@code -1} if no example has the label)
+   * @return the nonconformity score
+   */
+  private double score(NeighbourHeap[] nearest, int index) {
+    // The k nearest neighbours with a different label are among the k nearest of each of the
+    // other classes
+    NeighbourHeap neg = new NeighbourHeap(k);
+    for (int i = 0; i < nearest.length; i++) {
+      if (i != index) {
+        neg.offerAll(nearest[i]);
       }
     }
 
+    // A neighbour at an unknown (NaN) distance is only among the k nearest if there are fewer
+    // than k other neighbours; then the score is infinite (or negatively infinite)
+    double posDist = index >= 0 ? nearest[index].sum() : 0;
+    double negDist = neg.sum();
     if (Double.isNaN(posDist)) {
       return Double.POSITIVE_INFINITY;
     } else if (Double.isNaN(negDist)) {
@@ -104,7 +120,19 @@ public class DistanceNonconformity implements ClassifierNonconformity {
     }
 
     public Learner(int k, Distance distance) {
-      this.nearestNeighbors = new NearestNeighbours.Learner(k, distance);
+      this(k, new NearestNeighbours.Learner(k, distance));
+    }
+
+    /**
+     * Construct a nonconformity learner using the given nearest neighbours learner, e.g., to search
+     * for {@linkplain NearestNeighbours.Configurator#setApproximate(boolean) approximate}
+     * neighbours in large reference sets.
+     *
+     * @param k the number of neighbours
+     * @param nearestNeighbors the nearest neighbours learner
+     */
+    public Learner(int k, NearestNeighbours.Learner nearestNeighbors) {
+      this.nearestNeighbors = nearestNeighbors;
       this.k = k;
     }
 
@@ -47,6 +47,22 @@ public class InductiveConformalClassifier extends AbstractConformalClassifier {
     this.nonconformity = Objects.requireNonNull(nonconformity, "Requires nonconformity scorer");
   }
 
+  /**
+   * Create an inductive conformal classifier which is already calibrated (e.g., read from a model
+   * file)
+   *
+   * @param nonconformity the nonconformity scorer
+   * @param calibration the calibration scores
+   * @param stochasticSmoothing enable stochastic smoothing
+   * @param classes the classes
+   */
+  public InductiveConformalClassifier(ClassifierNonconformity nonconformity,
+      ClassifierCalibratorScores calibration, boolean stochasticSmoothing, Vector classes) {
+    super(stochasticSmoothing, classes);
+    this.nonconformity = Objects.requireNonNull(nonconformity, "Requires nonconformity scorer");
+    this.calibration = Objects.requireNonNull(calibration, "Calibration is required.");
+  }
+
   /**
    * Calibrate this inductive conformal classifier using the supplied data frame and output target
    *
@@ -54,6 +70,7 @@ public class InductiveConformalClassifier extends AbstractConformalClassifier {
    * @param y the calibration target
    */
   public void calibrate(DataFrame x, Vector y) {
+    Check.state(calibrator != null, "Classifier has no calibrator.");
     calibration = calibrator.calibrate(nonconformity, x, y);
   }
 
@@ -63,7 +80,7 @@ public class InductiveConformalClassifier extends AbstractConformalClassifier {
   }
 
   @Override
-  protected ClassifierCalibratorScores getCalibrationScores() {
+  public ClassifierCalibratorScores getCalibrationScores() {
     Check.state(calibration != null, "Classifier is not calibrated.");
     return calibration;
   }
@@ -35,17 +35,11 @@ import org.briljantframework.data.vector.Vectors;
 public interface ProbabilityCostFunction {
 
   static ProbabilityCostFunction margin() {
-    return (score, y) -> {
-      if (y < 0) {
-        return 1;
-      } else {
-        return 0.5 - (score.get(y) - Arrays.maxExcluding(score, y)) / 2;
-      }
-    };
+    return Standard.MARGIN;
   }
 
   static ProbabilityCostFunction inverseProbability() {
-    return (score, y) -> y < 0 ? 1 : 1 - score.get(y);
+    return Standard.INVERSE_PROBABILITY;
   }
 
   /**
@@ -87,4 +81,27 @@ public interface ProbabilityCostFunction {
    * @return the cost
    */
   double apply(DoubleArray score, int y);
+
+  /**
+   * The standard cost functions (which, unlike arbitrary functions, can be written to a model
+   * file)
+   */
+  enum Standard implements ProbabilityCostFunction {
+    MARGIN {
+      @Override
+      public double apply(DoubleArray score, int y) {
+        if (y < 0) {
+          return 1;
+        } else {
+          return 0.5 - (score.get(y) - Arrays.maxExcluding(score, y)) / 2;
+        }
+      }
+    },
+    INVERSE_PROBABILITY {
+      @Override
+      public double apply(DoubleArray score, int y) {
+        return y < 0 ? 1 : 1 - score.get(y);
+      }
+    }
+  }
 }
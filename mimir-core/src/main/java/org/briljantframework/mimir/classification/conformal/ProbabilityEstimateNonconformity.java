@@ -87,6 +87,25 @@ public class ProbabilityEstimateNonconformity<T extends Classifier> implements
     }
   }
 
+  /**
+   * {@inheritDoc}
+   * <p>
+   * The example is estimated once and the estimate is shared among the labels.
+   */
+  @Override
+  public DoubleArray estimateAll(Vector example, Vector labels) {
+    Objects.requireNonNull(example, "Require an example.");
+    DoubleArray estimate = getClassifier().estimate(example);
+    DoubleArray array = DoubleArray.zeros(labels.size());
+    for (int i = 0; i < labels.size(); i++) {
+      int trueClassIndex = getClasses().loc().indexOf(labels.loc().get(i));
+      if (trueClassIndex >= 0) {
+        array.set(i, getProbabilityCostFunction().apply(estimate, trueClassIndex));
+      }
+    }
+    return array;
+  }
+
   @Override
   public Vector getClasses() {
     return getClassifier().getClasses();
@@ -113,6 +113,39 @@ public abstract class AbstractSplitter implements Splitter {
     return new TreeSplit<>(left, right, ValueThreshold.create(axis, threshold));
   }
 
+  /**
+   * Determine for each example in the set if it should go left of the threshold. Examples with
+   * missing values are distributed at random.
+   *
+   * @param axisVector the axis
+   * @param set the examples
+   * @param threshold the threshold
+   * @param left {@code left[i]} is set to true if the i:th example goes left
+   */
+  protected void assign(Vector axisVector, ArrayClassSet set, Object threshold, boolean[] left) {
+    assign(axisVector, set, threshold, left, random);
+  }
+
+  /**
+   * As {@link #assign(Vector, ArrayClassSet, Object, boolean[])}, but examples with missing values
+   * are distributed using the given random number generator.
+   */
+  protected void assign(Vector axisVector, ArrayClassSet set, Object threshold, boolean[] left,
+      Random random) {
+    boolean nominal = Is.nominal(threshold);
+    double value = nominal ? 0 : Convert.to(Double.class, threshold);
+    for (int i = 0; i < set.size(); i++) {
+      int index = set.getExampleIndex(i);
+      if (axisVector.loc().isNA(index)) {
+        left[i] = random.nextDouble() > 0.5;
+      } else if (nominal) {
+        left[i] = axisVector.loc().get(Object.class, index).equals(threshold);
+      } else {
+        left[i] = Double.compare(axisVector.loc().getAsDouble(index), value) <= 0;
+      }
+    }
+  }
+
   /**
    * Distribute missing getPosteriorProbabilities (this should be an injected dependency)
    *
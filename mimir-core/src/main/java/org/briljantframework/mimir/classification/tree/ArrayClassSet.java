@@ -0,0 +1,330 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Isak Karlsson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+ * NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.briljantframework.mimir.classification.tree;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.IntPredicate;
+
+import org.briljantframework.array.Arrays;
+import org.briljantframework.array.DoubleArray;
+import org.briljantframework.data.vector.Vector;
+
+/**
+ * An array backed set of weighted examples used while growing trees. In contrast to
+ * {@link ClassSet}, the examples of a tree are stored in three parallel arrays (the example
+ * indices, the example weights and the class of each example encoded as its position in the
+ * domain) that are shared among all nodes of the tree. Each node is a sub-range of the arrays, that
+ * is (stably) partitioned in place when the node is split.
+ * <p>
+ * The examples of a set are always grouped by class (in the order of the domain), which allows for
+ * drawing random examples of a particular class in constant time.
+ * <p>
+ * NOTE: The set is not thread-safe; partitioning a set invalidates all other sets of the tree that
+ * overlap the partitioned range.
+ *
+ * @author Isak Karlsson
+ */
+public final class ArrayClassSet {
+
+  private final Vector domain;
+
+  private final int[] indices;
+  private final double[] weights;
+  private final int[] targets;
+
+  // buffers used for partitioning (shared by all sets of the tree)
+  private final int[] indexBuffer;
+  private final double[] weightBuffer;
+  private final int[] targetBuffer;
+
+  private final int start;
+  private final int end;
+
+  private final int[] counts;
+  private final double[] classWeights;
+  private final double totalWeight;
+  private final int targetCount;
+
+  private ArrayClassSet(Vector domain, int[] indices, double[] weights, int[] targets,
+      int[] indexBuffer, double[] weightBuffer, int[] targetBuffer, int start, int end) {
+    this.domain = domain;
+    this.indices = indices;
+    this.weights = weights;
+    this.targets = targets;
+    this.indexBuffer = indexBuffer;
+    this.weightBuffer = weightBuffer;
+    this.targetBuffer = targetBuffer;
+    this.start = start;
+    this.end = end;
+
+    this.counts = new int[domain.size()];
+    this.classWeights = new double[domain.size()];
+    double totalWeight = 0;
+    for (int i = start; i < end; i++) {
+      counts[targets[i]]++;
+      classWeights[targets[i]] += weights[i];
+      totalWeight += weights[i];
+    }
+    int targetCount = 0;
+    for (int count : counts) {
+      if (count > 0) {
+        targetCount++;
+      }
+    }
+    this.totalWeight = totalWeight;
+    this.targetCount = targetCount;
+  }
+
+  private ArrayClassSet(ArrayClassSet parent, int start, int end) {
+    this(parent.domain, parent.indices, parent.weights, parent.targets, parent.indexBuffer,
+        parent.weightBuffer, parent.targetBuffer, start, end);
+  }
+
+  /**
+   * Create a set with all elements of the target vector (with unit weight)
+   *
+   * @param y the target vector
+   * @param domain the domain
+   * @return a new set
+   */
+  public static ArrayClassSet create(Vector y, Vector domain) {
+    Map<Object, Integer> codes = codes(domain);
+    int n = y.size();
+    int[] codeOf = new int[n];
+    int[] offsets = new int[domain.size() + 1];
+    for (int i = 0; i < n; i++) {
+      codeOf[i] = code(codes, y.loc().get(Object.class, i));
+      offsets[codeOf[i] + 1]++;
+    }
+    for (int i = 1; i < offsets.length; i++) {
+      offsets[i] += offsets[i - 1];
+    }
+
+    int[] indices = new int[n];
+    double[] weights = new double[n];
+    int[] targets = new int[n];
+    for (int i = 0; i < n; i++) {
+      int position = offsets[codeOf[i]]++;
+      indices[position] = i;
+      weights[position] = 1;
+      targets[position] = codeOf[i];
+    }
+    return new ArrayClassSet(domain, indices, weights, targets, new int[n], new double[n],
+        new int[n], 0, n);
+  }
+
+  /**
+   * Create a set with the (weighted) examples of the given class set
+   *
+   * @param classSet the class set
+   * @return a new set
+   */
+  public static ArrayClassSet create(ClassSet classSet) {
+    Vector domain = classSet.getDomain();
+    Map<Object, Integer> codes = codes(domain);
+    ClassSet.Sample[] samples = new ClassSet.Sample[domain.size()];
+    for (ClassSet.Sample sample : classSet.samples()) {
+      samples[code(codes, sample.getTarget())] = sample;
+    }
+
+    int n = classSet.size();
+    int[] indices = new int[n];
+    double[] weights = new double[n];
+    int[] targets = new int[n];
+    int i = 0;
+    for (int target = 0; target < samples.length; target++) {
+      if (samples[target] != null) {
+        for (Example example : samples[target]) {
+          indices[i] = example.getIndex();
+          weights[i] = example.getWeight();
+          targets[i] = target;
+          i++;
+        }
+      }
+    }
+    return new ArrayClassSet(domain, indices, weights, targets, new int[n], new double[n],
+        new int[n], 0, n);
+  }
+
+  private static Map<Object, Integer> codes(Vector domain) {
+    Map<Object, Integer> codes = new HashMap<>();
+    for (int i = 0; i < domain.size(); i++) {
+      codes.put(domain.loc().get(Object.class, i), i);
+    }
+    return codes;
+  }
+
+  private static int code(Map<Object, Integer> codes, Object target) {
+    Integer code = codes.get(target);
+    if (code == null) {
+      throw new IllegalArgumentException(String.format("%s is not in the domain", target));
+    }
+    return code;
+  }
+
+  public Vector getDomain() {
+    return domain;
+  }
+
+  /**
+   * @return the number of examples
+   */
+  public int size() {
+    return end - start;
+  }
+
+  public boolean isEmpty() {
+    return size() == 0;
+  }
+
+  public double getTotalWeight() {
+    return totalWeight;
+  }
+
+  /**
+   * @return the number of classes with at least one example
+   */
+  public int getTargetCount() {
+    return targetCount;
+  }
+
+  /**
+   * @param target the class (i.e., the position in the domain)
+   * @return the total weight of the examples of the given class
+   */
+  public double getTargetWeight(int target) {
+    return classWeights[target];
+  }
+
+  /**
+   * @param target the class (i.e., the position in the domain)
+   * @return the number of examples of the given class
+   */
+  public int getTargetSize(int target) {
+    return counts[target];
+  }
+
+  /**
+   * @param i the position of the example (in {@code [0, size())})
+   * @return the index (i.e., record) of the example
+   */
+  public int getExampleIndex(int i) {
+    return indices[start + i];
+  }
+
+  /**
+   * @param i the position of the example (in {@code [0, size())})
+   * @return the weight of the example
+   */
+  public double getExampleWeight(int i) {
+    return weights[start + i];
+  }
+
+  /**
+   * @param i the position of the example (in {@code [0, size())})
+   * @return the class of the example (i.e., the position in the domain)
+   */
+  public int getExampleTarget(int i) {
+    return targets[start + i];
+  }
+
+  /**
+   * @return the relative frequency of each class in the domain
+   */
+  public DoubleArray getRelativeFrequencies() {
+    double[] rel = new double[classWeights.length];
+    for (int i = 0; i < rel.length; i++) {
+      rel[i] = classWeights[i] / totalWeight;
+    }
+    return Arrays.doubleVector(rel);
+  }
+
+  /**
+   * Draw a random example by first selecting a class (present in the set) uniformly at random and
+   * then an example of that class uniformly at random.
+   *
+   * @param random the random number generator
+   * @return the index (i.e., record) of the example
+   */
+  public int getRandomExample(Random random) {
+    int target = random.nextInt(targetCount);
+    int offset = start;
+    for (int i = 0; i < counts.length; i++) {
+      if (counts[i] > 0 && target-- == 0) {
+        return indices[offset + random.nextInt(counts[i])];
+      }
+      offset += counts[i];
+    }
+    throw new IllegalStateException("Empty set");
+  }
+
+  /**
+   * Stably partition the examples in place such that the examples for which {@code left} is true
+   * precede the examples for which it is false. The predicate is called exactly once for each
+   * position (in increasing order) before the example at that position is moved.
+   *
+   * @param left the predicate receiving the position of the example (in {@code [0, size())})
+   * @return the number of examples for which the predicate is true
+   */
+  public int partition(IntPredicate left) {
+    int l = start;
+    int r = 0;
+    for (int i = start; i < end; i++) {
+      if (left.test(i - start)) {
+        indices[l] = indices[i];
+        weights[l] = weights[i];
+        targets[l] = targets[i];
+        l++;
+      } else {
+        indexBuffer[r] = indices[i];
+        weightBuffer[r] = weights[i];
+        targetBuffer[r] = targets[i];
+        r++;
+      }
+    }
+    System.arraycopy(indexBuffer, 0, indices, l, r);
+    System.arraycopy(weightBuffer, 0, weights, l, r);
+    System.arraycopy(targetBuffer, 0, targets, l, r);
+    return l - start;
+  }
+
+  /**
+   * Get a view of the examples in the positions {@code [from, to)}
+   *
+   * @param from the first position (inclusive)
+   * @param to the last position (exclusive)
+   * @return a new set
+   */
+  public ArrayClassSet subset(int from, int to) {
+    if (from < 0 || to > size() || from > to) {
+      throw new IndexOutOfBoundsException();
+    }
+    return new ArrayClassSet(this, start + from, start + to);
+  }
+
+  @Override
+  public String toString() {
+    return String.format("ArrayClassSet(%.2f, %d, [%d, %d))", getTotalWeight(), getTargetCount(),
+        start, end);
+  }
+}
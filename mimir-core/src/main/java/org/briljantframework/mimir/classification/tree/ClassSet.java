@@ -111,7 +111,17 @@ public final class ClassSet implements Iterable<Example> {
   }
 
   public Sample getRandomSample() {
-    return samples.get(targets.get(RANDOM.nextInt(targets.size())));
+    return getRandomSample(RANDOM);
+  }
+
+  /**
+   * Draw a sample (i.e., a class) uniformly at random
+   *
+   * @param random the random number generator
+   * @return a random sample
+   */
+  public Sample getRandomSample(Random random) {
+    return samples.get(targets.get(random.nextInt(targets.size())));
   }
 
   public boolean isEmpty() {
@@ -220,7 +230,11 @@ public final class ClassSet implements Iterable<Example> {
     }
 
     public Example getRandomExample() {
-      return examples.get(RANDOM.nextInt(examples.size()));
+      return getRandomExample(RANDOM);
+    }
+
+    public Example getRandomExample(Random random) {
+      return examples.get(random.nextInt(examples.size()));
     }
 
     @Override
@@ -48,4 +48,26 @@ public class Entropy implements Impurity {
     }
     return -1 * entropy;
   }
+
+  @Override
+  public boolean isConcave() {
+    return true;
+  }
+
+  @Override
+  public double maximum(int classes) {
+    return classes > 1 ? Math.log(classes) / LOG_2 : 0;
+  }
+
+  @Override
+  public double impurity(double[] weights, double total) {
+    double entropy = 0;
+    for (double weight : weights) {
+      double value = total != 0 ? weight / total : 0;
+      if (value != 0) {
+        entropy += value * (Math.log(value) / LOG_2);
+      }
+    }
+    return -1 * entropy;
+  }
 }
@@ -30,6 +30,11 @@ public class Gain {
   public static final Gain GINI = Gain.with(Gini.getInstance());
   public static final Gain INFO = Gain.with(Entropy.getInstance());
 
+  /**
+   * The maximum number of (free) classes for which {@link #lowerBound} enumerates the assignments
+   */
+  private static final int MAX_BOUND_CLASSES = 10;
+
   private final Impurity impurity;
 
   private Gain(Impurity impurity) {
@@ -51,6 +56,97 @@ public class Gain {
         right.getRelativeFrequencies());
   }
 
+  /**
+   * Compute the impurity of a split given the total weight of each class in the left and right
+   * partition.
+   *
+   * @param left the weight of each class in the left partition
+   * @param right the weight of each class in the right partition
+   * @return the impurity of the split
+   */
+  public double compute(double[] left, double[] right) {
+    double leftWeight = 0, rightWeight = 0;
+    for (int i = 0; i < left.length; i++) {
+      leftWeight += left[i];
+      rightWeight += right[i];
+    }
+    return compute(leftWeight, left, rightWeight, right);
+  }
+
+  /**
+   * Compute the impurity of a split given the total weight of each class in the left and right
+   * partition and the total weight of each partition (without allocating).
+   *
+   * @param leftWeight the total weight of the left partition
+   * @param left the weight of each class in the left partition
+   * @param rightWeight the total weight of the right partition
+   * @param right the weight of each class in the right partition
+   * @return the impurity of the split
+   */
+  public double compute(double leftWeight, double[] left, double rightWeight, double[] right) {
+    double totalWeight = leftWeight + rightWeight;
+    double impurity = 0.0;
+    if (leftWeight > 0) {
+      impurity += (leftWeight / totalWeight) * this.impurity.impurity(left, leftWeight);
+    }
+    if (rightWeight > 0) {
+      impurity += (rightWeight / totalWeight) * this.impurity.impurity(right, rightWeight);
+    }
+    return impurity;
+  }
+
+  /**
+   * Returns a lower bound of the impurity of any split which extends the split of {@code left} and
+   * {@code right} with examples which may go to either side (e.g., examples whose distance to a
+   * candidate shapelet is not yet computed). Since the weighted impurity is concave (see
+   * {@link Impurity#isConcave()}) in the weights, the minimum is attained when all free examples of
+   * a class go to the same side. Hence, {@code 2^k} assignments are evaluated, where {@code k} is
+   * the number of classes with free examples. If the impurity is not concave or there are too
+   * many classes, the (trivial) bound {@code 0} is returned.
+   *
+   * @param left the weight of each class in the left partition
+   * @param right the weight of each class in the right partition
+   * @param free the weight of each class which may go to either partition
+   * @param leftBuffer a buffer (of the same length as {@code left})
+   * @param rightBuffer a buffer (of the same length as {@code right})
+   * @return a lower bound of the impurity
+   */
+  public double lowerBound(double[] left, double[] right, double[] free, double[] leftBuffer,
+      double[] rightBuffer) {
+    if (!impurity.isConcave()) {
+      return 0;
+    }
+    int freeClasses = 0;
+    for (double weight : free) {
+      if (weight > 0) {
+        freeClasses++;
+      }
+    }
+    if (freeClasses > MAX_BOUND_CLASSES) {
+      return 0;
+    }
+
+    double bound = Double.POSITIVE_INFINITY;
+    for (int mask = 0; mask < 1 << freeClasses; mask++) {
+      double leftWeight = 0, rightWeight = 0;
+      for (int i = 0, bit = 0; i < left.length; i++) {
+        leftBuffer[i] = left[i];
+        rightBuffer[i] = right[i];
+        if (free[i] > 0) {
+          if ((mask & (1 << bit++)) != 0) {
+            leftBuffer[i] += free[i];
+          } else {
+            rightBuffer[i] += free[i];
+          }
+        }
+        leftWeight += leftBuffer[i];
+        rightWeight += rightBuffer[i];
+      }
+      bound = Math.min(bound, compute(leftWeight, leftBuffer, rightWeight, rightBuffer));
+    }
+    return bound;
+  }
+
   public double compute(double leftWeight, DoubleArray left, double rightWeight, DoubleArray right) {
     double totalWeight = leftWeight + rightWeight;
     if (leftWeight > 0) {
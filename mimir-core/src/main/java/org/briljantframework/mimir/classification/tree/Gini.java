@@ -39,4 +39,24 @@ public class Gini implements Impurity {
   public double impurity(DoubleArray values) {
     return values.reduce(1, (value, acc) -> acc - value * value);
   }
+
+  @Override
+  public boolean isConcave() {
+    return true;
+  }
+
+  @Override
+  public double maximum(int classes) {
+    return classes > 0 ? 1 - 1.0 / classes : 0;
+  }
+
+  @Override
+  public double impurity(double[] weights, double total) {
+    double gini = 1;
+    for (double weight : weights) {
+      double value = total != 0 ? weight / total : 0;
+      gini -= value * value;
+    }
+    return gini;
+  }
 }
@@ -36,6 +36,45 @@ public interface Impurity {
    */
   double impurity(DoubleArray values);
 
+  /**
+   * Calculates the impurity of the relative frequencies {@code weights[i] / total} (or {@code 0} if
+   * {@code total == 0})
+   *
+   * @param weights the weight of each class
+   * @param total the total weight
+   * @return the impurity
+   */
+  default double impurity(double[] weights, double total) {
+    DoubleArray values = DoubleArray.zeros(weights.length);
+    for (int i = 0; i < weights.length; i++) {
+      values.set(i, total != 0 ? weights[i] / total : 0);
+    }
+    return impurity(values);
+  }
+
+  /**
+   * Returns true if the impurity of class weights, i.e., {@code w * impurity(weights / w)} where
+   * {@code w} is the total weight, is concave in the weights (as for entropy and the gini index).
+   * This allows {@link Gain#lowerBound} to bound the impurity of partially known splits.
+   *
+   * @return true if the weighted impurity is concave
+   */
+  default boolean isConcave() {
+    return false;
+  }
+
+  /**
+   * Returns the largest possible impurity of a distribution over the given number of classes (or
+   * {@link Double#POSITIVE_INFINITY} if unknown). This is used by {@link Race} to bound the error
+   * of impurities estimated on a subsample.
+   *
+   * @param classes the number of classes
+   * @return the largest impurity
+   */
+  default double maximum(int classes) {
+    return Double.POSITIVE_INFINITY;
+  }
+
   /**
    * @param split the split
    * @return the double
@@ -44,4 +83,13 @@ public interface Impurity {
   default double impurity(ClassSet split) {
     return impurity(split.getRelativeFrequencies());
   }
+
+  /**
+   * @param set the examples
+   * @return the double
+   * @see #impurity(DoubleArray)
+   */
+  default double impurity(ArrayClassSet set) {
+    return impurity(set.getRelativeFrequencies());
+  }
 }
@@ -0,0 +1,179 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Isak Karlsson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+ * NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.briljantframework.mimir.classification.tree;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.briljantframework.Check;
+
+/**
+ * Racing evaluation of the candidate splits of large nodes. Instead of scoring every candidate on
+ * every example of the node, the candidates are scored on a growing (doubling) random subsample of
+ * the node. After each round, a candidate is eliminated if its impurity exceeds the impurity of the
+ * best candidate by more than twice the Hoeffding bound
+ *
+ * <pre>
+ * eps = range * sqrt(log(rounds * candidates / delta) / (2 * n))
+ * </pre>
+ *
+ * where {@code range} is the largest possible impurity and {@code n} is the size of the subsample.
+ * The race stops when only a few candidates survive (or the subsample would cover half of the
+ * node) and the survivors are then evaluated on the complete node as usual.
+ * <p>
+ * Since the impurity of the best split is not an average of independent terms, the bound is a
+ * heuristic rather than a guarantee, i.e., the best candidate (on the complete node) is eliminated
+ * with a small probability.
+ * <p>
+ * The race is immutable and can be shared among trees and threads.
+ *
+ * @author Isak Karlsson
+ */
+public final class Race {
+
+  private final double delta;
+  private final int minimumSize;
+  private final int initialSize;
+  private final int survivors;
+
+  /**
+   * Create a race with default parameters, i.e., {@code delta = 0.05}, racing nodes with at least
+   * 2048 examples, starting with 128 examples and stopping at 3 survivors.
+   */
+  public Race() {
+    this(0.05, 2048, 128, 3);
+  }
+
+  /**
+   * @param delta the probability of (wrongly) eliminating the best candidate
+   * @param minimumSize the smallest node to race
+   * @param initialSize the size of the first subsample
+   * @param survivors the number of candidates to evaluate on the complete node
+   */
+  public Race(double delta, int minimumSize, int initialSize, int survivors) {
+    Check.inRange(delta, 0, 1);
+    Check.argument(initialSize > 0, "The initial size must be positive");
+    Check.argument(survivors > 0, "At least one candidate must survive");
+    this.delta = delta;
+    this.minimumSize = minimumSize;
+    this.initialSize = initialSize;
+    this.survivors = survivors;
+  }
+
+  public double getDelta() {
+    return delta;
+  }
+
+  public int getMinimumSize() {
+    return minimumSize;
+  }
+
+  public int getInitialSize() {
+    return initialSize;
+  }
+
+  public int getSurvivors() {
+    return survivors;
+  }
+
+  /**
+   * Race the candidates {@code [0, candidates)} of a node with {@code size} examples.
+   *
+   * @param candidates the number of candidates
+   * @param size the number of examples in the node
+   * @param range the largest possible impurity (see {@link Impurity#maximum(int)})
+   * @param random the random number generator used for drawing the subsamples
+   * @param scorer the scorer
+   * @return the (increasing) surviving candidates
+   */
+  public int[] run(int candidates, int size, double range, Random random, Scorer scorer) {
+    int[] alive = new int[candidates];
+    for (int i = 0; i < candidates; i++) {
+      alive[i] = i;
+    }
+    if (size < minimumSize || candidates <= survivors || Double.isInfinite(range)) {
+      return alive;
+    }
+
+    int rounds = 0;
+    for (int n = initialSize; 2 * n <= size; n *= 2) {
+      rounds++;
+    }
+    if (rounds == 0) {
+      return alive;
+    }
+
+    // the subsample of each round is a prefix of a random permutation of the examples
+    int[] sample = new int[size];
+    for (int i = 0; i < size; i++) {
+      sample[i] = i;
+    }
+
+    double[] scores = new double[candidates];
+    double log = Math.log(rounds * candidates / delta);
+    int count = candidates;
+    int drawn = 0;
+    for (int n = initialSize; count > survivors && 2 * n <= size; n *= 2) {
+      for (; drawn < n; drawn++) {
+        int j = drawn + random.nextInt(size - drawn);
+        int tmp = sample[drawn];
+        sample[drawn] = sample[j];
+        sample[j] = tmp;
+      }
+
+      scorer.score(alive, count, sample, n, scores);
+      double best = Double.POSITIVE_INFINITY;
+      for (int i = 0; i < count; i++) {
+        best = Math.min(best, scores[i]);
+      }
+
+      double eps = range * Math.sqrt(log / (2.0 * n));
+      int kept = 0;
+      for (int i = 0; i < count; i++) {
+        if (!(scores[i] - best > 2 * eps)) {
+          alive[kept++] = alive[i];
+        }
+      }
+      count = kept;
+    }
+    return Arrays.copyOf(alive, count);
+  }
+
+  /**
+   * Scores candidates on a subsample of the examples of a node.
+   */
+  @FunctionalInterface
+  public interface Scorer {
+
+    /**
+     * Set {@code scores[j]} to the impurity (lower is better) of the best split of candidate
+     * {@code candidates[j]}, for {@code j} in {@code [0, count)}, using only the examples in the
+     * positions {@code sample[0, n)}.
+     *
+     * @param candidates the candidates
+     * @param count the number of candidates
+     * @param sample the positions of the examples
+     * @param n the number of examples
+     * @param scores the scores
+     */
+    void score(int[] candidates, int count, int[] sample, int n, double[] scores);
+  }
+}
@@ -20,13 +20,19 @@
  */
 package org.briljantframework.mimir.classification.tree;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
 import org.briljantframework.data.Is;
 import org.briljantframework.data.dataframe.DataFrame;
+import org.briljantframework.data.vector.Convert;
 import org.briljantframework.data.vector.Vector;
-import org.briljantframework.primitive.ArrayAllocations;
 
 /**
- * NOTE: This cannot be reused among trees (it is stateful for performance reasons)
+ * NOTE: The splitter can only be shared among trees (and threads) if the random number generator
+ * of each node is given, i.e., using {@link #partition(ArrayClassSet, DataFrame, Vector, Random)}
  * <p>
  * Created by Isak Karlsson on 09/09/14.
  */
@@ -35,6 +41,7 @@ public class RandomSplitter extends AbstractSplitter {
   private final int maxFeatures;
 
   private final Gain criterion;
+  private final Race race;
   private int[] features = null;
 
   public RandomSplitter(int maxFeatures) {
@@ -42,8 +49,18 @@ public class RandomSplitter extends AbstractSplitter {
   }
 
   public RandomSplitter(int maxFeatures, Gain criterion) {
+    this(maxFeatures, criterion, null);
+  }
+
+  /**
+   * @param maxFeatures the number of features inspected in each node
+   * @param criterion the criterion
+   * @param race the race used for evaluating the candidates of large nodes (or {@code null})
+   */
+  public RandomSplitter(int maxFeatures, Gain criterion, Race race) {
     this.maxFeatures = maxFeatures;
     this.criterion = criterion;
+    this.race = race;
   }
 
   public static Builder withMaximumFeatures(int maxFeatures) {
@@ -56,7 +73,7 @@ public class RandomSplitter extends AbstractSplitter {
     // initialize(dataFrame);
     // }
 
-    int[] features = initialize(dataFrame);
+    int[] features = initialize(dataFrame, random);
 
     int maxFeatures =
         this.maxFeatures > 0 ? this.maxFeatures
@@ -90,12 +107,144 @@ public class RandomSplitter extends AbstractSplitter {
     return bestSplit;
   }
 
-  private int[] initialize(DataFrame dataFrame) {
+  @Override
+  public TreePartition<ValueThreshold> partition(ArrayClassSet set, DataFrame dataFrame,
+      Vector column) {
+    return partition(set, dataFrame, column, random);
+  }
+
+  @Override
+  public TreePartition<ValueThreshold> partition(ArrayClassSet set, DataFrame dataFrame,
+      Vector column, Random random) {
+    int[] features = initialize(dataFrame, random);
+    int maxFeatures =
+        this.maxFeatures > 0 ? this.maxFeatures
+            : (int) Math.round(Math.sqrt(dataFrame.columns())) + 1;
+
+    int classes = set.getDomain().size();
+    double[] left = new double[classes];
+    double[] right = new double[classes];
+    boolean[] directions = new boolean[set.size()];
+    boolean[] bestDirections = new boolean[set.size()];
+
+    List<ValueThreshold> candidates = null;
+    if (race != null && set.size() >= race.getMinimumSize()) {
+      candidates = race(set, dataFrame, features, maxFeatures, random);
+    }
+    int n = candidates != null ? candidates.size() : Math.min(features.length, maxFeatures);
+
+    ValueThreshold bestThreshold = null;
+    double bestImpurity = Double.POSITIVE_INFINITY;
+    for (int i = 0; i < n; i++) {
+      int axis;
+      Object threshold;
+      if (candidates != null) {
+        axis = candidates.get(i).getAxis();
+        threshold = candidates.get(i).getValue();
+      } else {
+        axis = features[i];
+        threshold = search(dataFrame.loc().get(axis), set, random);
+        if (Is.NA(threshold)) {
+          continue;
+        }
+      }
+      Vector axisVector = dataFrame.loc().get(axis);
+
+      assign(axisVector, set, threshold, directions, random);
+      Arrays.fill(left, 0);
+      Arrays.fill(right, 0);
+      for (int j = 0; j < directions.length; j++) {
+        double[] side = directions[j] ? left : right;
+        side[set.getExampleTarget(j)] += set.getExampleWeight(j);
+      }
+      double impurity = criterion.compute(left, right);
+      if (impurity < bestImpurity) {
+        boolean[] tmp = bestDirections;
+        bestDirections = directions;
+        directions = tmp;
+        bestThreshold = ValueThreshold.create(axis, threshold);
+        bestImpurity = impurity;
+      }
+    }
+
+    if (bestThreshold == null) {
+      return null;
+    }
+    boolean[] goLeft = bestDirections;
+    TreePartition<ValueThreshold> partition =
+        TreePartition.partition(set, i -> goLeft[i], bestThreshold);
+    partition.setImpurity(bestImpurity);
+    return partition;
+  }
+
+  /**
+   * Sample a threshold for each of the first {@code maxFeatures} features and race the candidates
+   * on subsamples of the set (see {@link Race}).
+   *
+   * @return the surviving candidates
+   */
+  private List<ValueThreshold> race(ArrayClassSet set, DataFrame dataFrame, int[] features,
+      int maxFeatures, Random random) {
+    List<ValueThreshold> candidates = new ArrayList<>();
+    for (int i = 0; i < features.length && i < maxFeatures; i++) {
+      Object threshold = search(dataFrame.loc().get(features[i]), set, random);
+      if (!Is.NA(threshold)) {
+        candidates.add(ValueThreshold.create(features[i], threshold));
+      }
+    }
+
+    int classes = set.getDomain().size();
+    double[] left = new double[classes];
+    double[] right = new double[classes];
+    double range = criterion.getImpurity().maximum(classes);
+    int[] survivors = race.run(candidates.size(), set.size(), range, random,
+        (alive, count, sample, n, scores) -> {
+          for (int j = 0; j < count; j++) {
+            ValueThreshold candidate = candidates.get(alive[j]);
+            Vector axisVector = dataFrame.loc().get(candidate.getAxis());
+            Object threshold = candidate.getValue();
+            boolean nominal = Is.nominal(threshold);
+            double value = nominal ? 0 : Convert.to(Double.class, threshold);
+            Arrays.fill(left, 0);
+            Arrays.fill(right, 0);
+            for (int k = 0; k < n; k++) {
+              int position = sample[k];
+              int index = set.getExampleIndex(position);
+              int target = set.getExampleTarget(position);
+              double weight = set.getExampleWeight(position);
+              if (axisVector.loc().isNA(index)) {
+                // in expectation, missing values are distributed evenly
+                left[target] += weight / 2;
+                right[target] += weight / 2;
+              } else if (nominal ? axisVector.loc().get(Object.class, index).equals(threshold)
+                  : Double.compare(axisVector.loc().getAsDouble(index), value) <= 0) {
+                left[target] += weight;
+              } else {
+                right[target] += weight;
+              }
+            }
+            scores[j] = criterion.compute(left, right);
+          }
+        });
+
+    List<ValueThreshold> surviving = new ArrayList<>(survivors.length);
+    for (int survivor : survivors) {
+      surviving.add(candidates.get(survivor));
+    }
+    return surviving;
+  }
+
+  private static int[] initialize(DataFrame dataFrame, Random random) {
     int[] features = new int[dataFrame.columns()];
     for (int i = 0; i < features.length; i++) {
       features[i] = i;
     }
-    ArrayAllocations.shuffle(features);
+    for (int i = features.length - 1; i > 0; i--) {
+      int j = random.nextInt(i + 1);
+      int tmp = features[i];
+      features[i] = features[j];
+      features[j] = tmp;
+    }
     return features;
   }
 
@@ -116,28 +265,61 @@ public class RandomSplitter extends AbstractSplitter {
   }
 
   /**
-   * Sample numeric value.
+   * Search value.
    *
-   * @param vector the dataset
-   * @param classSet the examples
+   * @param axis the dataset
+   * @param set the examples
    * @return the value
    */
-  protected double sampleNumericValue(Vector vector, ClassSet classSet) {
-    Example a = classSet.getRandomSample().getRandomExample();
-    Example b = classSet.getRandomSample().getRandomExample();
+  protected Object search(Vector axis, ArrayClassSet set) {
+    return search(axis, set, random);
+  }
 
-    double valueA = vector.loc().getAsDouble(a.getIndex());
-    double valueB = vector.loc().getAsDouble(b.getIndex());
+  /**
+   * Search value, drawing the examples using the given random number generator.
+   *
+   * @param axis the dataset
+   * @param set the examples
+   * @param random the random number generator
+   * @return the value
+   */
+  protected Object search(Vector axis, ArrayClassSet set, Random random) {
+    if (Is.numeric(axis)) {
+      int a = set.getRandomExample(random);
+      int b = set.getRandomExample(random);
+      return sampleNumericValue(axis, a, b);
+    } else {
+      return axis.loc().get(Object.class, set.getRandomExample(random));
+    }
+  }
 
-    // TODO - what if both A and B are missing?
+  /**
+   * Returns the mean of the values of the {@code a}:th and {@code b}:th examples, or the value
+   * that is not missing (or NA if both are missing).
+   */
+  private static double sampleNumericValue(Vector vector, int a, int b) {
+    double valueA = vector.loc().getAsDouble(a);
+    double valueB = vector.loc().getAsDouble(b);
     if (Is.NA(valueA)) {
       return valueB;
     } else if (Is.NA(valueB)) {
-      return valueB;
+      return valueA;
     } else {
       return (valueA + valueB) / 2;
     }
+  }
 
+  /**
+   * Sample numeric value.
+   *
+   * @param vector the dataset
+   * @param classSet the examples
+   * @return the value
+   */
+  protected double sampleNumericValue(Vector vector, ClassSet classSet) {
+    Example a = classSet.getRandomSample(random).getRandomExample(random);
+    Example b = classSet.getRandomSample(random).getRandomExample(random);
+    return sampleNumericValue(vector, a.getIndex(), b.getIndex());
   }
 
   /**
@@ -148,7 +330,7 @@ public class RandomSplitter extends AbstractSplitter {
    * @return the value
    */
   protected Object sampleCategoricValue(Vector axisVector, ClassSet classSet) {
-    Example example = classSet.getRandomSample().getRandomExample();
+    Example example = classSet.getRandomSample(random).getRandomExample(random);
     return axisVector.get(Object.class, example.getIndex());
   }
 
@@ -159,6 +341,7 @@ public class RandomSplitter extends AbstractSplitter {
 
     private int maxFeatures;
     private Gain criterion = Gain.INFO;
+    private Race race = null;
 
     private Builder(int maxFeatures) {
       this.maxFeatures = maxFeatures;
@@ -186,13 +369,24 @@ public class RandomSplitter extends AbstractSplitter {
       return this;
     }
 
+    /**
+     * Evaluate the candidates of large nodes using racing (see {@link Race}).
+     *
+     * @param race the race (or {@code null} to evaluate all candidates on all examples)
+     * @return this builder
+     */
+    public Builder withRace(Race race) {
+      this.race = race;
+      return this;
+    }
+
     /**
      * Create random splitter.
      *
      * @return the random splitter
      */
     public RandomSplitter create() {
-      return new RandomSplitter(maxFeatures, criterion);
+      return new RandomSplitter(maxFeatures, criterion, race);
     }
 
   }
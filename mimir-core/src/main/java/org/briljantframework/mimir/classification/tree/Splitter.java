@@ -20,6 +20,8 @@
  */
 package org.briljantframework.mimir.classification.tree;
 
+import java.util.Random;
+
 import org.briljantframework.data.dataframe.DataFrame;
 import org.briljantframework.data.vector.Vector;
 
@@ -36,4 +38,29 @@ public interface Splitter {
    * @return the examples . split
    */
   TreeSplit<ValueThreshold> find(ClassSet classSet, DataFrame dataset, Vector target);
+
+  /**
+   * Find a "good" separating split and partition the examples in place
+   *
+   * @param set the examples
+   * @param dataset the container
+   * @param target the target
+   * @return the partition (or {@code null} if no split is found)
+   */
+  TreePartition<ValueThreshold> partition(ArrayClassSet set, DataFrame dataset, Vector target);
+
+  /**
+   * Find a "good" separating split (drawing random numbers from the given stream) and partition
+   * the examples in place. By default, the random number generator is ignored.
+   *
+   * @param set the examples
+   * @param dataset the container
+   * @param target the target
+   * @param random the random number generator of the node
+   * @return the partition (or {@code null} if no split is found)
+   */
+  default TreePartition<ValueThreshold> partition(ArrayClassSet set, DataFrame dataset,
+      Vector target, Random random) {
+    return partition(set, dataset, target);
+  }
 }
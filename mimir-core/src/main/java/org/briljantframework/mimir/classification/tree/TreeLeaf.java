@@ -58,6 +58,20 @@ public final class TreeLeaf<T> implements TreeNode<T> {
     return new TreeLeaf<>(domain, prob, weight);
   }
 
+  public static <T> TreeLeaf<T> fromExamples(ArrayClassSet set) {
+    return fromExamples(set, 1);
+  }
+
+  public static <T> TreeLeaf<T> fromExamples(ArrayClassSet set, double weight) {
+    Vector domain = set.getDomain();
+    DoubleArray prob = DoubleArray.zeros(domain.size());
+    double totalWeight = set.getTotalWeight();
+    for (int i = 0; i < domain.size(); i++) {
+      prob.set(i, set.getTargetWeight(i) / totalWeight);
+    }
+    return new TreeLeaf<>(domain, prob, weight);
+  }
+
   public DoubleArray getProbabilities() {
     return probabilities;
   }
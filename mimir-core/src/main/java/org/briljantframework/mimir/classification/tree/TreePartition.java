@@ -0,0 +1,86 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Isak Karlsson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+ * NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.briljantframework.mimir.classification.tree;
+
+import java.util.function.IntPredicate;
+
+/**
+ * A binary split of an {@link ArrayClassSet} that has been partitioned in place.
+ *
+ * @author Isak Karlsson
+ */
+public final class TreePartition<E> {
+
+  private final ArrayClassSet left;
+  private final ArrayClassSet right;
+  private final E threshold;
+  private double impurity = 0;
+
+  public TreePartition(ArrayClassSet left, ArrayClassSet right, E threshold) {
+    this.left = left;
+    this.right = right;
+    this.threshold = threshold;
+  }
+
+  /**
+   * Partition the set in place
+   *
+   * @param set the set
+   * @param left the predicate (see {@link ArrayClassSet#partition(IntPredicate)})
+   * @param threshold the threshold
+   * @param <E> the threshold type
+   * @return a new partition
+   */
+  public static <E> TreePartition<E> partition(ArrayClassSet set, IntPredicate left,
+      E threshold) {
+    int mid = set.partition(left);
+    return new TreePartition<>(set.subset(0, mid), set.subset(mid, set.size()), threshold);
+  }
+
+  public ArrayClassSet getLeft() {
+    return left;
+  }
+
+  public ArrayClassSet getRight() {
+    return right;
+  }
+
+  public E getThreshold() {
+    return threshold;
+  }
+
+  public double getImpurity() {
+    return impurity;
+  }
+
+  public void setImpurity(double impurity) {
+    this.impurity = impurity;
+  }
+
+  public double size() {
+    return left.getTotalWeight() + right.getTotalWeight();
+  }
+
+  @Override
+  public String toString() {
+    return String.format("Binary(left=%s, right=%s)", left, right);
+  }
+}
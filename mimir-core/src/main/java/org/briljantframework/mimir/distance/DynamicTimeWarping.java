@@ -20,7 +20,8 @@
  */
 package org.briljantframework.mimir.distance;
 
-import org.briljantframework.array.DoubleArray;
+import java.util.Arrays;
+
 import org.briljantframework.data.vector.Vector;
 
 /**
@@ -34,9 +35,15 @@ import org.briljantframework.data.vector.Vector;
  * classification. Although DTW measures a distance-like quantity between two given sequences, it
  * doesn't guarantee the triangle inequality to hold.
  * <p>
+ * The warping path is constrained to a band of width {@code max(constraint, |n - m|)} around the
+ * diagonal (or unconstrained if {@code constraint < 0}) and only two rows of the cost matrix are
+ * kept in memory. When a cutoff is given, the computation is abandoned using the cascade LB_Kim,
+ * LB_Keogh (with the envelope of a {@linkplain #prepare(Vector) prepared} reference) and early
+ * abandoned DTW.
+ * <p>
  * Created by Isak Karlsson on 01/09/14.
  */
-public class DynamicTimeWarping implements Distance {
+public class DynamicTimeWarping implements EarlyAbandonDistance {
 
   /**
    * The Distance.
@@ -59,6 +66,20 @@ public class DynamicTimeWarping implements Distance {
     this(EuclideanDistance.getInstance(), constraint);
   }
 
+  /**
+   * @return the local distance function
+   */
+  public Distance getDistance() {
+    return distance;
+  }
+
+  /**
+   * @return the local constraint
+   */
+  public int getConstraint() {
+    return constraint;
+  }
+
   /**
    * Delegated to the injected distance function
    *
@@ -73,23 +94,137 @@ public class DynamicTimeWarping implements Distance {
 
   @Override
   public double compute(Vector a, Vector b) {
-    int n = a.size(), m = b.size();
-    DoubleArray dtw = DoubleArray.zeros(n, m);
-    dtw.assign(Double.POSITIVE_INFINITY);
-    dtw.set(0, 0, 0);
-
-    int width = Math.max(constraint, Math.abs(n - m));
-    for (int i = 1; i < n; i++) {
-      int end = constraint <= -1 ? m : Math.min(m, i + width);
-      int start = constraint <= -1 ? 1 : Math.max(1, i - width);
-      for (int j = start; j < end; j++) {
-        double cost = distance.compute(a.loc().getAsDouble(i), b.loc().getAsDouble(j));
-        dtw.set(i, j,
-            cost + Math.min(dtw.get(i - 1, j), Math.min(dtw.get(i, j - 1), dtw.get(i - 1, j - 1))));
+    return compute(a, b, Double.POSITIVE_INFINITY);
+  }
+
+  @Override
+  public double compute(Vector a, Vector b, double cutoff) {
+    double[] x = toArray(a);
+    double[] y = toArray(b);
+    if (lbKim(x, y) >= cutoff) {
+      return Double.POSITIVE_INFINITY;
+    }
+    return dtw(x, y, cutoff, null);
+  }
+
+  @Override
+  public Envelope prepare(Vector series) {
+    return new Envelope(series, constraint);
+  }
+
+  @Override
+  public double compute(Vector query, Reference reference, double cutoff) {
+    if (!(reference instanceof Envelope)) {
+      return compute(query, reference.getSeries(), cutoff);
+    }
+    Envelope envelope = (Envelope) reference;
+    double[] x = toArray(query);
+    double[] y = envelope.values;
+    if (lbKim(x, y) >= cutoff) {
+      return Double.POSITIVE_INFINITY;
+    }
+
+    // The envelope is only valid for queries of the same length and band
+    double[] bound = null;
+    if (x.length == y.length && envelope.width == constraint && hasMonotoneCost()) {
+      bound = new double[x.length + 1];
+      for (int i = x.length - 1; i >= 0; i--) {
+        double v = x[i];
+        double d = 0;
+        if (v > envelope.upper[i]) {
+          d = distance.compute(v, envelope.upper[i]);
+        } else if (v < envelope.lower[i]) {
+          d = distance.compute(v, envelope.lower[i]);
+        }
+        bound[i] = bound[i + 1] + d;
+      }
+      if (bound[0] >= cutoff) {
+        return Double.POSITIVE_INFINITY;
       }
     }
+    return dtw(x, y, cutoff, bound);
+  }
 
-    return dtw.get(n - 1, m - 1);
+  /**
+   * LB_Keogh is only a lower bound if the local cost increases with the absolute difference
+   */
+  private boolean hasMonotoneCost() {
+    return distance instanceof EuclideanDistance || distance instanceof ManhattanDistance;
+  }
+
+  /**
+   * The first and last points are always aligned
+   */
+  private double lbKim(double[] x, double[] y) {
+    if (x.length == 0 || y.length == 0) {
+      return 0;
+    }
+    double bound = distance.compute(x[0], y[0]);
+    if (x.length > 1 || y.length > 1) {
+      bound += distance.compute(x[x.length - 1], y[y.length - 1]);
+    }
+    return bound;
+  }
+
+  /**
+   * Compute the warping distance using two rows of the cost matrix. The computation is abandoned
+   * if the smallest cost of a row (plus the lower bound of the remaining rows, if given) is larger
+   * than or equal to {@code cutoff}.
+   */
+  private double dtw(double[] x, double[] y, double cutoff, double[] bound) {
+    int n = x.length, m = y.length;
+    if (n == 0 || m == 0) {
+      return n == m ? 0 : Double.POSITIVE_INFINITY;
+    }
+    int width = constraint < 0 ? Math.max(n, m) : Math.max(constraint, Math.abs(n - m));
+    double[] prev = new double[m];
+    double[] curr = new double[m];
+    Arrays.fill(prev, Double.POSITIVE_INFINITY);
+    Arrays.fill(curr, Double.POSITIVE_INFINITY);
+    for (int i = 0; i < n; i++) {
+      int start = Math.max(0, i - width);
+      int end = Math.min(m - 1, i + width);
+      double min = Double.POSITIVE_INFINITY;
+      for (int j = start; j <= end; j++) {
+        double cost = distance.compute(x[i], y[j]);
+        double value;
+        if (i == 0 && j == 0) {
+          value = cost;
+        } else {
+          double best = i > 0 ? prev[j] : Double.POSITIVE_INFINITY;
+          if (j > start) {
+            best = Math.min(best, curr[j - 1]);
+          }
+          if (i > 0 && j > 0) {
+            best = Math.min(best, prev[j - 1]);
+          }
+          value = cost + best;
+        }
+        curr[j] = value;
+        if (value < min) {
+          min = value;
+        }
+      }
+      if (end + 1 < m) {
+        curr[end + 1] = Double.POSITIVE_INFINITY;
+      }
+      if (min + (bound != null ? bound[i + 1] : 0) >= cutoff) {
+        return Double.POSITIVE_INFINITY;
+      }
+
+      double[] tmp = prev;
+      prev = curr;
+      curr = tmp;
+    }
+    return prev[m - 1];
+  }
+
+  private static double[] toArray(Vector vector) {
+    double[] array = new double[vector.size()];
+    for (int i = 0; i < array.length; i++) {
+      array[i] = vector.loc().getAsDouble(i);
+    }
+    return array;
   }
 
   @Override
@@ -106,4 +241,59 @@ public class DynamicTimeWarping implements Distance {
   public String toString() {
     return String.format("Dynamic time warping (w=%s)", constraint);
   }
+
+  /**
+   * A reference series with its precomputed (LB_Keogh) envelope, i.e., the minimum and maximum
+   * value within the band around each position.
+   */
+  public static final class Envelope implements Reference {
+
+    private final Vector series;
+    private final double[] values;
+    private final double[] lower;
+    private final double[] upper;
+    private final int width;
+
+    private Envelope(Vector series, int width) {
+      this.series = series;
+      this.values = toArray(series);
+      this.width = width;
+      int m = values.length;
+      int w = width < 0 ? m : width;
+      this.lower = new double[m];
+      this.upper = new double[m];
+
+      // Streaming min/max (Lemire, 2006) of the windows [i - w, i + w]
+      int[] minQueue = new int[m], maxQueue = new int[m];
+      int minHead = 0, minTail = 0, maxHead = 0, maxTail = 0;
+      int next = 0;
+      for (int i = 0; i < m; i++) {
+        int last = Math.min(m - 1, i + w);
+        for (; next <= last; next++) {
+          while (minTail > minHead && values[minQueue[minTail - 1]] >= values[next]) {
+            minTail--;
+          }
+          minQueue[minTail++] = next;
+          while (maxTail > maxHead && values[maxQueue[maxTail - 1]] <= values[next]) {
+            maxTail--;
+          }
+          maxQueue[maxTail++] = next;
+        }
+        int first = i - w;
+        while (minQueue[minHead] < first) {
+          minHead++;
+        }
+        while (maxQueue[maxHead] < first) {
+          maxHead++;
+        }
+        lower[i] = values[minQueue[minHead]];
+        upper[i] = values[maxQueue[maxHead]];
+      }
+    }
+
+    @Override
+    public Vector getSeries() {
+      return series;
+    }
+  }
 }
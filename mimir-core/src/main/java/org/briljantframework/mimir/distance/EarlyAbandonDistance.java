@@ -0,0 +1,79 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Isak Karlsson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+ * NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.briljantframework.mimir.distance;
+
+import org.briljantframework.data.vector.Vector;
+
+/**
+ * A {@linkplain Distance distance} that can abandon the computation as soon as the distance is
+ * known to be larger than or equal to a cutoff (e.g., the distance to the best neighbour found so
+ * far). Reference series can be {@linkplain #prepare(Vector) prepared} once, e.g., to precompute
+ * lower bounding envelopes, and compared to many queries.
+ *
+ * @author Isak Karlsson
+ */
+public interface EarlyAbandonDistance extends Distance {
+
+  /**
+   * A reference series (possibly with precomputed information)
+   */
+  interface Reference {
+
+    /**
+     * @return the reference series
+     */
+    Vector getSeries();
+  }
+
+  /**
+   * Prepare a reference series for repeated comparisons.
+   *
+   * @param series the series
+   * @return a reference
+   */
+  default Reference prepare(Vector series) {
+    return () -> series;
+  }
+
+  /**
+   * Compute the distance between {@code a} and {@code b}, or {@code Double.POSITIVE_INFINITY} if
+   * the distance is larger than or equal to {@code cutoff}.
+   *
+   * @param a a vector
+   * @param b a vector
+   * @param cutoff the cutoff
+   * @return the distance (or {@code Double.POSITIVE_INFINITY})
+   */
+  double compute(Vector a, Vector b, double cutoff);
+
+  /**
+   * Compute the distance between the query and the reference, or {@code Double.POSITIVE_INFINITY}
+   * if the distance is larger than or equal to {@code cutoff}.
+   *
+   * @param query the query
+   * @param reference the reference
+   * @param cutoff the cutoff
+   * @return the distance (or {@code Double.POSITIVE_INFINITY})
+   */
+  default double compute(Vector query, Reference reference, double cutoff) {
+    return compute(query, reference.getSeries(), cutoff);
+  }
+}
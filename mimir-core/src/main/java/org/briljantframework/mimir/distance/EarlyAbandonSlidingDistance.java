@@ -25,11 +25,12 @@ import java.util.Objects;
 import org.briljantframework.data.vector.Vector;
 import org.briljantframework.mimir.shapelet.IndexSortedNormalizedShapelet;
 import org.briljantframework.mimir.shapelet.NormalizedShapelet;
+import org.briljantframework.mimir.shapelet.SeriesStore;
 
 /**
  * Created by Isak Karlsson on 23/09/14.
  */
-public class EarlyAbandonSlidingDistance implements Distance {
+public class EarlyAbandonSlidingDistance implements SeriesStoreDistance {
 
   protected final Distance distance;
 
@@ -52,6 +53,13 @@ public class EarlyAbandonSlidingDistance implements Distance {
     return new EarlyAbandonSlidingDistance(distance);
   }
 
+  /**
+   * @return the (point-wise) distance
+   */
+  public Distance getDistance() {
+    return distance;
+  }
+
   @Override
   public double compute(double a, double b) {
     return distance.compute(a, b);
@@ -70,7 +78,6 @@ public class EarlyAbandonSlidingDistance implements Distance {
    */
   @Override
   public double compute(Vector a, Vector b) {
-    double minDistance = Double.POSITIVE_INFINITY;
     Vector candidate = a.size() < b.size() ? a : b;
     Vector vector = a.size() >= b.size() ? a : b;
     if (!(candidate instanceof NormalizedShapelet)) {
@@ -91,33 +98,39 @@ public class EarlyAbandonSlidingDistance implements Distance {
       order = ((IndexSortedNormalizedShapelet) candidate).getSortOrder();
     }
 
-    int seriesSize = vector.size();
-    int m = candidate.size();
-    double[] t = new double[m * 2];
-
-    double ex = 0;
-    double ex2 = 0;
-    for (int i = 0; i < seriesSize; i++) {
-      double d = vector.loc().getAsDouble(i);
-      ex += d;
-      ex2 += d * d;
-      t[i % m] = d;
-      t[(i % m) + m] = d;
-
-      if (i >= m - 1) {
-        int j = (i + 1) % m;
-        double mean = ex / m;
-        double sigma = StrictMath.sqrt(ex2 / m - mean * mean);
-        double dist = distance(candidate, t, j, m, order, mean, sigma, minDistance);
-        if (dist < minDistance) {
-          minDistance = dist;
-        }
-
-        ex -= t[j];
-        ex2 -= t[j] * t[j];
+    // Pack the series, so that the window statistics (and hence the distance) are the same as for
+    // the series of a store
+    double[] shapelet = new double[candidate.size()];
+    for (int i = 0; i < shapelet.length; i++) {
+      shapelet[i] = candidate.loc().getAsDouble(i);
+    }
+    return compute(SeriesStore.create(vector), 0, shapelet, order);
+  }
+
+  /**
+   * Slides the z-normalized {@code shapelet} against the packed series. Since the series is stored
+   * contiguously, the sliding window is read in place (i.e., without copying the series) and the
+   * mean and standard deviation of each window are looked up in the statistics cached by the
+   * store.
+   */
+  @Override
+  public double compute(SeriesStore store, int series, double[] shapelet, int[] order) {
+    double[] values = store.getValues();
+    int offset = store.offset(series);
+    int m = shapelet.length;
+    int windows = store.length(series) - m + 1;
+
+    double minDistance = Double.POSITIVE_INFINITY;
+    for (int start = 0; start < windows; start++) {
+      double mean = store.mean(series, start, m);
+      double sigma = store.std(series, start, m);
+      double dist =
+          distance(shapelet, values, offset + start, m, order, mean, sigma, minDistance);
+      if (dist < minDistance) {
+        minDistance = dist;
       }
     }
-    return Math.sqrt(minDistance / candidate.size());
+    return Math.sqrt(minDistance / m);
   }
 
   @Override
@@ -130,15 +143,12 @@ public class EarlyAbandonSlidingDistance implements Distance {
     return distance.min();
   }
 
-  double distance(Vector c, double[] t, int j, int m, int[] order, double mean, double std,
+  double distance(double[] c, double[] t, int start, int m, int[] order, double mean, double std,
       double bsf) {
     double sum = 0;
     for (int i = 0; i < m && sum < bsf; i++) {
-      if (order != null) {
-        i = order[i];
-      }
-      double x = normalize(t[i + j], mean, std) - c.loc().getAsDouble(i);
-      // double x = ((t[i + j] - mean) / std) - c.loc().getAsDouble(i);
+      int k = order != null ? order[i] : i;
+      double x = normalize(t[start + k], mean, std) - c[k];
       sum += x * x;
     }
     return sum;
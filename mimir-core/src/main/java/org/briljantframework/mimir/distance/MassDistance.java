@@ -0,0 +1,288 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Isak Karlsson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+ * NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.briljantframework.mimir.distance;
+
+import org.briljantframework.data.vector.Vector;
+import org.briljantframework.mimir.shapelet.NormalizedShapelet;
+import org.briljantframework.mimir.shapelet.SeriesStore;
+
+/**
+ * A sliding (z-normalized Euclidean) distance which computes the full distance profile of a
+ * shapelet using FFT-based convolution (i.e., as in the MASS algorithm) in {@code O(n log n)}
+ * instead of {@code O(n m)}. The distance is the same as the one computed by
+ * {@link EarlyAbandonSlidingDistance}.
+ * <p>
+ * Since the FFT only pays off for long shapelets in long series, the direct (early abandoning)
+ * computation is used unless the series has at least {@code minimumLength} values and the
+ * shapelet is longer than {@code ratio * log2(N)}, where {@code N} is the size of the transform.
+ *
+ * @author Isak Karlsson
+ */
+public class MassDistance implements SeriesStoreDistance {
+
+  private static final int DEFAULT_MINIMUM_LENGTH = 1024;
+  private static final double DEFAULT_RATIO = 3;
+
+  private final EarlyAbandonSlidingDistance direct;
+  private final int minimumLength;
+  private final double ratio;
+
+  public MassDistance() {
+    this(DEFAULT_MINIMUM_LENGTH, DEFAULT_RATIO);
+  }
+
+  /**
+   * @param minimumLength the minimum length of a series to use the FFT
+   * @param ratio the minimum ratio between the shapelet length and {@code log2(N)}
+   */
+  public MassDistance(int minimumLength, double ratio) {
+    this.direct = new EarlyAbandonSlidingDistance(EuclideanDistance.getInstance());
+    this.minimumLength = minimumLength;
+    this.ratio = ratio;
+  }
+
+  /**
+   * @return the minimum length of a series to use the FFT
+   */
+  public int getMinimumLength() {
+    return minimumLength;
+  }
+
+  /**
+   * @return the minimum ratio between the shapelet length and {@code log2(N)}
+   */
+  public double getRatio() {
+    return ratio;
+  }
+
+  @Override
+  public double compute(double a, double b) {
+    return direct.compute(a, b);
+  }
+
+  @Override
+  public double compute(Vector a, Vector b) {
+    Vector candidate = a.size() < b.size() ? a : b;
+    Vector vector = a.size() >= b.size() ? a : b;
+    int n = vector.size();
+    int m = candidate.size();
+    if (!(candidate instanceof NormalizedShapelet) || !useFft(n, m)) {
+      return direct.compute(a, b);
+    }
+
+    double[] t = new double[n];
+    for (int i = 0; i < n; i++) {
+      t[i] = vector.loc().getAsDouble(i);
+    }
+    double[] q = new double[m];
+    for (int i = 0; i < m; i++) {
+      q[i] = candidate.loc().getAsDouble(i);
+    }
+
+    double[] qt = slidingDotProduct(t, 0, n, q);
+    double qs = sum(q), qq = sumOfSquares(q);
+    double ex = 0, ex2 = 0;
+    for (int i = 0; i < m - 1; i++) {
+      ex += t[i];
+      ex2 += t[i] * t[i];
+    }
+
+    double minDistance = Double.POSITIVE_INFINITY;
+    for (int j = 0; j < qt.length; j++) {
+      double last = t[j + m - 1];
+      ex += last;
+      ex2 += last * last;
+      double mean = ex / m;
+      double variance = ex2 / m - mean * mean;
+      double std = variance > 0 ? Math.sqrt(variance) : 0;
+      minDistance = Math.min(minDistance, distance(qt[j], mean, std, m, qs, qq));
+      ex -= t[j];
+      ex2 -= t[j] * t[j];
+    }
+    return Math.sqrt(minDistance / m);
+  }
+
+  @Override
+  public double compute(SeriesStore store, int series, double[] shapelet, int[] order) {
+    int n = store.length(series);
+    int m = shapelet.length;
+    if (!useFft(n, m)) {
+      return direct.compute(store, series, shapelet, order);
+    }
+
+    double[] qt = slidingDotProduct(store.getValues(), store.offset(series), n, shapelet);
+    double qs = sum(shapelet), qq = sumOfSquares(shapelet);
+    double minDistance = Double.POSITIVE_INFINITY;
+    for (int j = 0; j < qt.length; j++) {
+      double mean = store.mean(series, j, m);
+      double std = store.std(series, j, m);
+      minDistance = Math.min(minDistance, distance(qt[j], mean, std, m, qs, qq));
+    }
+    return Math.sqrt(minDistance / m);
+  }
+
+  /**
+   * Returns true if the FFT should be used for a series of length {@code n} and a shapelet of
+   * length {@code m}.
+   */
+  boolean useFft(int n, int m) {
+    if (n < minimumLength || m > n) {
+      return false;
+    }
+    int size = Integer.highestOneBit(n + m - 1);
+    if (size < n + m - 1) {
+      size <<= 1;
+    }
+    return m > ratio * Integer.numberOfTrailingZeros(size);
+  }
+
+  /**
+   * The squared distance between a z-normalized query and the z-normalized window, given the dot
+   * product between the (raw) window and the query. Since
+   * {@code sum(((t - mean) / std - q)^2) = m + sum(q^2) - 2 (sum(t q) - mean sum(q)) / std}, the
+   * distance is computed in constant time.
+   */
+  private static double distance(double qt, double mean, double std, int m, double qs,
+      double qq) {
+    if (std == 0) {
+      return qq;
+    }
+    double distance = m + qq - 2 * (qt - mean * qs) / std;
+    return distance > 0 ? distance : 0;
+  }
+
+  /**
+   * Compute the dot product between {@code q} and every window of length {@code q.length} of
+   * {@code t[offset, offset + n)} using FFT-based convolution.
+   */
+  static double[] slidingDotProduct(double[] t, int offset, int n, double[] q) {
+    int m = q.length;
+    int size = 1;
+    while (size < n + m - 1) {
+      size <<= 1;
+    }
+
+    double[] tr = new double[size], ti = new double[size];
+    double[] qr = new double[size], qi = new double[size];
+    System.arraycopy(t, offset, tr, 0, n);
+    for (int i = 0; i < m; i++) {
+      qr[i] = q[m - 1 - i]; // reversed to turn the convolution into a correlation
+    }
+
+    double[] cos = new double[size / 2];
+    double[] sin = new double[size / 2];
+    for (int i = 0; i < cos.length; i++) {
+      double angle = -2 * Math.PI * i / size;
+      cos[i] = Math.cos(angle);
+      sin[i] = Math.sin(angle);
+    }
+
+    fft(tr, ti, cos, sin);
+    fft(qr, qi, cos, sin);
+    for (int i = 0; i < size; i++) {
+      double re = tr[i] * qr[i] - ti[i] * qi[i];
+      double im = tr[i] * qi[i] + ti[i] * qr[i];
+      tr[i] = re;
+      ti[i] = -im; // conjugate, to compute the inverse using the forward transform
+    }
+    fft(tr, ti, cos, sin);
+
+    double[] qt = new double[n - m + 1];
+    for (int i = 0; i < qt.length; i++) {
+      qt[i] = tr[i + m - 1] / size;
+    }
+    return qt;
+  }
+
+  /**
+   * In place iterative radix-2 fast Fourier transform. The size of the arrays must be a power of
+   * two and {@code cos} and {@code sin} the twiddle factors {@code exp(-2 pi i k / size)} for
+   * {@code k < size / 2}.
+   */
+  private static void fft(double[] re, double[] im, double[] cos, double[] sin) {
+    int n = re.length;
+    for (int i = 1, j = 0; i < n; i++) {
+      int bit = n >> 1;
+      for (; (j & bit) != 0; bit >>= 1) {
+        j ^= bit;
+      }
+      j ^= bit;
+      if (i < j) {
+        double tmp = re[i];
+        re[i] = re[j];
+        re[j] = tmp;
+        tmp = im[i];
+        im[i] = im[j];
+        im[j] = tmp;
+      }
+    }
+
+    for (int length = 2; length <= n; length <<= 1) {
+      int half = length >> 1;
+      int step = n / length;
+      for (int i = 0; i < n; i += length) {
+        for (int k = 0; k < half; k++) {
+          double wr = cos[k * step];
+          double wi = sin[k * step];
+          int a = i + k;
+          int b = a + half;
+          double xr = re[b] * wr - im[b] * wi;
+          double xi = re[b] * wi + im[b] * wr;
+          re[b] = re[a] - xr;
+          im[b] = im[a] - xi;
+          re[a] += xr;
+          im[a] += xi;
+        }
+      }
+    }
+  }
+
+  private static double sum(double[] values) {
+    double sum = 0;
+    for (double value : values) {
+      sum += value;
+    }
+    return sum;
+  }
+
+  private static double sumOfSquares(double[] values) {
+    double sum = 0;
+    for (double value : values) {
+      sum += value * value;
+    }
+    return sum;
+  }
+
+  @Override
+  public double max() {
+    return Double.POSITIVE_INFINITY;
+  }
+
+  @Override
+  public double min() {
+    return 0;
+  }
+
+  @Override
+  public String toString() {
+    return "MassDistance";
+  }
+}
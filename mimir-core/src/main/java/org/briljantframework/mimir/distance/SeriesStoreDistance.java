@@ -0,0 +1,44 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Isak Karlsson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+ * NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.briljantframework.mimir.distance;
+
+import org.briljantframework.mimir.shapelet.SeriesStore;
+
+/**
+ * A {@linkplain Distance distance} between a (z-normalized) shapelet and a series packed in a
+ * {@link SeriesStore}, computed without going through vector views.
+ *
+ * @author Isak Karlsson
+ */
+public interface SeriesStoreDistance extends Distance {
+
+  /**
+   * Compute the distance between the shapelet and the given series in the store. The shapelet is
+   * expected to be shorter than (or of equal length as) the series.
+   *
+   * @param store the store
+   * @param series the index of the series (see {@link SeriesStore#index(int, int)})
+   * @param shapelet the z-normalized shapelet values
+   * @param order the order in which to inspect the shapelet values (or {@code null})
+   * @return the distance
+   */
+  double compute(SeriesStore store, int series, double[] shapelet, int[] order);
+}
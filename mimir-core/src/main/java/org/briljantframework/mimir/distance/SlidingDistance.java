@@ -34,6 +34,13 @@ public class SlidingDistance implements Distance {
     this.distanceMeasure = instance;
   }
 
+  /**
+   * @return the (point-wise) distance
+   */
+  public Distance getDistance() {
+    return distanceMeasure;
+  }
+
   @Override
   public double compute(double a, double b) {
     return 0;
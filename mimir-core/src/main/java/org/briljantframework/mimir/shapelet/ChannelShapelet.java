@@ -32,6 +32,30 @@ public class ChannelShapelet extends IndexSortedNormalizedShapelet {
     this.channel = channel;
   }
 
+  /**
+   * Create a compact channel shapelet of already normalized values
+   *
+   * @param channel the channel
+   * @param values the normalized values
+   * @param order the sort order of the values
+   */
+  public ChannelShapelet(int channel, double[] values, int[] order) {
+    super(values, order);
+    this.channel = channel;
+  }
+
+  @Override
+  public ChannelShapelet compact() {
+    if (getDelegate() instanceof NormalizedShapelet) {
+      return new ChannelShapelet(channel, toDoubleArray(this), order);
+    } else if (getDelegate() instanceof Shapelet) {
+      // e.g., categoric shapelets which must retain their (non-numeric) values
+      return new ChannelShapelet(channel, ((Shapelet) getDelegate()).compact());
+    } else {
+      return this;
+    }
+  }
+
   public int getChannel() {
     return channel;
   }
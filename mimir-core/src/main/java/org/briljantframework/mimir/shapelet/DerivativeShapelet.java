@@ -30,4 +30,19 @@ public class DerivativeShapelet extends IndexSortedNormalizedShapelet {
   public DerivativeShapelet(int start, int length, Vector build) {
     super(start, length, build);
   }
+
+  /**
+   * Create a compact derivative shapelet of already normalized values
+   *
+   * @param values the normalized values
+   * @param order the sort order of the values
+   */
+  public DerivativeShapelet(double[] values, int[] order) {
+    super(values, order);
+  }
+
+  @Override
+  public DerivativeShapelet compact() {
+    return new DerivativeShapelet(toDoubleArray(this), order);
+  }
 }
@@ -39,6 +39,22 @@ public class IndexSortedNormalizedShapelet extends NormalizedShapelet {
     }
   }
 
+  /**
+   * Create a compact shapelet of already normalized values
+   *
+   * @param values the normalized values
+   * @param order the sort order of the values
+   */
+  public IndexSortedNormalizedShapelet(double[] values, int[] order) {
+    super(values);
+    this.order = order;
+  }
+
+  @Override
+  public IndexSortedNormalizedShapelet compact() {
+    return new IndexSortedNormalizedShapelet(toDoubleArray(this), order);
+  }
+
   public int[] getSortOrder() {
     return order;
   }
@@ -32,8 +32,14 @@ public class NormalizedShapelet extends Shapelet {
   private final double sigma;
   private final double mean;
 
+  /**
+   * The pre-normalized values (if the shapelet is compact); otherwise {@code null}
+   */
+  private final double[] values;
+
   public NormalizedShapelet(int start, int length, Vector vector) {
     super(start, length, vector);
+    this.values = null;
     if (vector instanceof NormalizedShapelet) {
       this.sigma = ((NormalizedShapelet) vector).sigma;
       this.mean = ((NormalizedShapelet) vector).mean;
@@ -55,6 +61,18 @@ public class NormalizedShapelet extends Shapelet {
     }
   }
 
+  /**
+   * Create a compact shapelet of already normalized values
+   *
+   * @param values the normalized values
+   */
+  public NormalizedShapelet(double[] values) {
+    super(0, values.length, toVector(values));
+    this.values = values;
+    this.mean = 0;
+    this.sigma = 1;
+  }
+
   /**
    * Create normalized shapelet.
    *
@@ -67,9 +85,16 @@ public class NormalizedShapelet extends Shapelet {
     return new NormalizedShapelet(start, length, vectorLike);
   }
 
+  @Override
+  public NormalizedShapelet compact() {
+    return new NormalizedShapelet(toDoubleArray(this));
+  }
+
   @Override
   public double getAsDoubleAt(int i) {
-    if (sigma == 0) {
+    if (values != null) {
+      return values[i];
+    } else if (sigma == 0) {
       return 0;
     } else {
       return (super.getAsDoubleAt(i) - mean) / sigma;
@@ -0,0 +1,292 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Isak Karlsson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+ * NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.briljantframework.mimir.shapelet;
+
+import java.util.Arrays;
+
+import org.briljantframework.data.Is;
+import org.briljantframework.data.dataframe.DataFrame;
+import org.briljantframework.data.vector.Vector;
+
+/**
+ * A packed, read-only store of (possibly multivariate) time series. The values of all series are
+ * stored contiguously in a single {@code double[]} and each series is addressed through an offset
+ * table.
+ * <p>
+ * For univariate data each record is a single series (i.e., {@code channels() == 1}) and for
+ * multivariate data each record consists of {@code channels()} series laid out channel by channel,
+ * i.e., the series of the {@code j}:th channel of the {@code i}:th record has index
+ * {@code i * channels() + j}. Channels that are missing or non-numeric are marked as missing.
+ * <p>
+ * The store is intended to be built once (e.g., before growing a forest) and shared among all
+ * learners to avoid the indirection of record and vector views in the inner distance loops.
+ * <p>
+ * For each series, the store also keeps the cumulative sums and sums of squares (of the values
+ * centered around the mean of the series), so that the mean and standard deviation of any window
+ * can be computed in constant time (see {@link #mean(int, int, int)} and
+ * {@link #std(int, int, int)}).
+ *
+ * @author Isak Karlsson
+ */
+public final class SeriesStore {
+
+  private static final int MISSING = -1;
+
+  /**
+   * The (relative) rounding error of a difference of the cumulative sums of squares. A window with
+   * a smaller variance (relative to the sum of squares of the series) is considered constant.
+   */
+  private static final double TOLERANCE = 1e-12;
+
+  private final double[] values;
+  private final double[] sums;
+  private final double[] squares;
+  private final double[] means;
+  private final int[] offsets;
+  private final int[] lengths;
+  private final int rows;
+  private final int channels;
+
+  private SeriesStore(double[] values, int[] offsets, int[] lengths, int rows, int channels) {
+    this.values = values;
+    this.offsets = offsets;
+    this.lengths = lengths;
+    this.rows = rows;
+    this.channels = channels;
+
+    // Cumulative sums of the centered values; sums[offset + i] is the sum of the first i + 1
+    // values of the series. Centering reduces the cancellation when subtracting the sums.
+    this.sums = new double[values.length];
+    this.squares = new double[values.length];
+    this.means = new double[lengths.length];
+    for (int series = 0; series < lengths.length; series++) {
+      int length = lengths[series];
+      if (length == MISSING || length == 0) {
+        continue;
+      }
+      int offset = offsets[series];
+      double mean = 0;
+      for (int i = 0; i < length; i++) {
+        mean += values[offset + i];
+      }
+      mean /= length;
+      means[series] = mean;
+
+      double sum = 0, square = 0;
+      for (int i = 0; i < length; i++) {
+        double d = values[offset + i] - mean;
+        sum += d;
+        square += d * d;
+        sums[offset + i] = sum;
+        squares[offset + i] = square;
+      }
+    }
+  }
+
+  /**
+   * Pack the records of the given data frame.
+   *
+   * @param x the data frame
+   * @return a new store
+   */
+  public static SeriesStore create(DataFrame x) {
+    int rows = x.rows();
+    int channels = 1;
+    boolean multivariate = false;
+    for (int i = 0; i < rows; i++) {
+      Vector record = x.loc().getRecord(i);
+      if (isMultivariate(record)) {
+        multivariate = true;
+        channels = Math.max(channels, record.size());
+      }
+    }
+
+    int[] lengths = new int[rows * channels];
+    Arrays.fill(lengths, MISSING);
+    int[] offsets = new int[rows * channels];
+    int size = 0;
+    for (int i = 0; i < rows; i++) {
+      Vector record = x.loc().getRecord(i);
+      if (multivariate && isMultivariate(record)) {
+        for (int j = 0; j < record.size(); j++) {
+          Vector channel = record.loc().get(Vector.class, j);
+          if (!Is.NA(channel) && Is.numeric(channel)) {
+            offsets[i * channels + j] = size;
+            lengths[i * channels + j] = channel.size();
+            size += channel.size();
+          }
+        }
+      } else if (!multivariate) {
+        offsets[i] = size;
+        lengths[i] = record.size();
+        size += record.size();
+      }
+    }
+
+    double[] values = new double[size];
+    for (int i = 0; i < rows; i++) {
+      Vector record = x.loc().getRecord(i);
+      for (int j = 0; j < channels; j++) {
+        int index = i * channels + j;
+        if (lengths[index] == MISSING) {
+          continue;
+        }
+        Vector series = multivariate ? record.loc().get(Vector.class, j) : record;
+        int offset = offsets[index];
+        for (int k = 0; k < lengths[index]; k++) {
+          values[offset + k] = series.loc().getAsDouble(k);
+        }
+      }
+    }
+    return new SeriesStore(values, offsets, lengths, rows, channels);
+  }
+
+  /**
+   * Pack a single (univariate) series.
+   *
+   * @param series the series
+   * @return a new store with one series
+   */
+  public static SeriesStore create(Vector series) {
+    int length = series.size();
+    double[] values = new double[length];
+    for (int i = 0; i < length; i++) {
+      values[i] = series.loc().getAsDouble(i);
+    }
+    return new SeriesStore(values, new int[] {0}, new int[] {length}, 1, 1);
+  }
+
+  private static boolean isMultivariate(Vector record) {
+    return Vector.class.isAssignableFrom(record.getType().getDataClass());
+  }
+
+  /**
+   * @return the number of records
+   */
+  public int rows() {
+    return rows;
+  }
+
+  /**
+   * @return the number of channels of each record ({@code 1} for univariate data)
+   */
+  public int channels() {
+    return channels;
+  }
+
+  /**
+   * Get the index of the series of the given channel and record
+   *
+   * @param row the record
+   * @param channel the channel
+   * @return the series index
+   */
+  public int index(int row, int channel) {
+    return row * channels + channel;
+  }
+
+  /**
+   * @param series the series index
+   * @return true if the series is missing or non-numeric
+   */
+  public boolean isMissing(int series) {
+    return lengths[series] == MISSING;
+  }
+
+  /**
+   * @param series the series index
+   * @return the offset of the first value of the series in {@link #getValues()}
+   */
+  public int offset(int series) {
+    return offsets[series];
+  }
+
+  /**
+   * @param series the series index
+   * @return the length of the series
+   */
+  public int length(int series) {
+    return lengths[series];
+  }
+
+  /**
+   * Get the {@code i}:th value of the given series
+   *
+   * @param series the series index
+   * @param i the position
+   * @return the value
+   */
+  public double get(int series, int i) {
+    return values[offsets[series] + i];
+  }
+
+  /**
+   * Get the mean of the window {@code [start, start + m)} of the given series in constant time.
+   *
+   * @param series the series index
+   * @param start the first position of the window
+   * @param m the length of the window
+   * @return the mean
+   */
+  public double mean(int series, int start, int m) {
+    return means[series] + windowSum(sums, offsets[series], start, m) / m;
+  }
+
+  /**
+   * Get the (population) standard deviation of the window {@code [start, start + m)} of the given
+   * series in constant time. The standard deviation of a constant window is {@code 0}.
+   *
+   * @param series the series index
+   * @param start the first position of the window
+   * @param m the length of the window
+   * @return the standard deviation
+   */
+  public double std(int series, int start, int m) {
+    int offset = offsets[series];
+    double mean = windowSum(sums, offset, start, m) / m;
+    double variance = windowSum(squares, offset, start, m) / m - mean * mean;
+
+    // The differences of the cumulative sums are only exact up to rounding, so a constant window
+    // gets a small (non-zero) variance which, if used, normalizes the rounding errors
+    double tolerance = TOLERANCE * squares[offset + lengths[series] - 1] / m;
+    return variance > tolerance ? Math.sqrt(variance) : 0;
+  }
+
+  private static double windowSum(double[] cumulative, int offset, int start, int m) {
+    double sum = cumulative[offset + start + m - 1];
+    return start > 0 ? sum - cumulative[offset + start - 1] : sum;
+  }
+
+  /**
+   * Get the packed values. The returned array is shared and must not be modified.
+   *
+   * @return the packed values
+   */
+  public double[] getValues() {
+    return values;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("SeriesStore(rows=%d, channels=%d, values=%d)", rows, channels,
+        values.length);
+  }
+}
@@ -72,6 +72,44 @@ public class Shapelet extends VectorView {
     return new Shapelet(start, length, vector);
   }
 
+  /**
+   * Returns a self-contained copy of this (numeric) shapelet, i.e., a shapelet that only stores its
+   * own values and does not keep a reference to the (possibly much longer) underlying series.
+   *
+   * @return a compact shapelet with the same values
+   */
+  public Shapelet compact() {
+    return new Shapelet(0, size(), toVector(toDoubleArray(this)));
+  }
+
+  /**
+   * Get the values of the shapelet
+   *
+   * @param shapelet the shapelet
+   * @return a new array
+   */
+  protected static double[] toDoubleArray(Vector shapelet) {
+    double[] values = new double[shapelet.size()];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = shapelet.loc().getAsDouble(i);
+    }
+    return values;
+  }
+
+  /**
+   * Create a (compact) vector of the given values
+   *
+   * @param values the values
+   * @return a new vector
+   */
+  protected static Vector toVector(double[] values) {
+    Vector.Builder builder = Vector.Builder.withCapacity(Double.class, values.length);
+    for (int i = 0; i < values.length; i++) {
+      builder.loc().set(i, values[i]);
+    }
+    return builder.build();
+  }
+
   /**
    * Gets start.
    *
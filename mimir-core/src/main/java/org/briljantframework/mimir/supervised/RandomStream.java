@@ -0,0 +1,125 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Isak Karlsson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+ * NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.briljantframework.mimir.supervised;
+
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A seedable and splittable stream of pseudo-random numbers (using the SplitMix64 generator).
+ * <p>
+ * In contrast to {@link Random}, the stream is not synchronized and is intended to be confined to
+ * a single thread (e.g., one stream per tree and node). Independent streams are derived
+ * deterministically from a master seed using {@link #split(long)}, which depends only on the seed
+ * of the stream and the key (and not on the numbers drawn so far). For example, the stream of the
+ * {@code i}:th member of an ensemble is {@code master.split(i)}, irrespective of the order in
+ * which (or the process by which) the members are fitted.
+ *
+ * @author Isak Karlsson
+ */
+public class RandomStream extends Random {
+
+  private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+  private static final double DOUBLE_UNIT = 0x1.0p-53;
+
+  private long seed;
+  private long state;
+
+  /**
+   * Create a new stream with the given seed
+   *
+   * @param seed the seed
+   */
+  public RandomStream(long seed) {
+    super(0);
+    this.seed = seed;
+    this.state = seed;
+  }
+
+  /**
+   * Create a new (non-reproducible) stream with a random seed
+   *
+   * @return a new stream
+   */
+  public static RandomStream create() {
+    return new RandomStream(ThreadLocalRandom.current().nextLong());
+  }
+
+  /**
+   * @return the seed of this stream
+   */
+  public long getSeed() {
+    return seed;
+  }
+
+  /**
+   * Derive an independent stream identified by {@code key}. The derived stream only depends on the
+   * seed of this stream and the key.
+   *
+   * @param key the key (e.g., the index of an ensemble member)
+   * @return a new stream
+   */
+  public RandomStream split(long key) {
+    return new RandomStream(mix64(seed ^ mix64(key + GOLDEN_GAMMA)));
+  }
+
+  /**
+   * Derive an independent stream from the next number in this stream. The derived stream depends
+   * on the numbers drawn so far.
+   *
+   * @return a new stream
+   */
+  public RandomStream split() {
+    return new RandomStream(nextLong());
+  }
+
+  @Override
+  public void setSeed(long seed) {
+    this.seed = seed;
+    this.state = seed;
+  }
+
+  @Override
+  protected int next(int bits) {
+    return (int) (nextLong() >>> (64 - bits));
+  }
+
+  @Override
+  public long nextLong() {
+    return mix64(state += GOLDEN_GAMMA);
+  }
+
+  @Override
+  public double nextDouble() {
+    return (nextLong() >>> 11) * DOUBLE_UNIT;
+  }
+
+  private static long mix64(long z) {
+    z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+    z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+    return z ^ (z >>> 31);
+  }
+
+  @Override
+  public String toString() {
+    return String.format("RandomStream(%d)", seed);
+  }
+}
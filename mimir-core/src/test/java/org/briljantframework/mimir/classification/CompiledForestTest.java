@@ -0,0 +1,89 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Isak Karlsson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+ * NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.briljantframework.mimir.classification;
+
+import static org.briljantframework.mimir.classification.EnsembleTestUtils.assertEstimatesEquals;
+import static org.briljantframework.mimir.classification.EnsembleTestUtils.impute;
+import static org.junit.Assert.assertTrue;
+
+import org.briljantframework.array.DoubleArray;
+import org.briljantframework.data.dataframe.DataFrame;
+import org.briljantframework.data.dataframe.DataFrames;
+import org.briljantframework.data.vector.Vector;
+import org.briljantframework.dataset.io.Datasets;
+import org.junit.Test;
+
+/**
+ * @author Isak Karlsson
+ */
+public class CompiledForestTest {
+
+  private final DataFrame iris = DataFrames.permuteRecords(Datasets.loadIris());
+
+  @Test
+  public void testRandomForestWithMissingValues() throws Exception {
+    // the missing values are left in, so that examples are routed to the missing branch
+    DataFrame x = iris.drop("Class");
+    Vector y = iris.get("Class");
+    RandomForest forest = new RandomForest.Configurator(20).setSeed(1).configure().fit(x, y);
+    assertCompiledEqualsMembers(forest, x);
+  }
+
+  @Test
+  public void testHyperPlaneForest() throws Exception {
+    DataFrame x = iris.drop("Class");
+    Vector y = iris.get("Class");
+    RandomForest forest = new RandomForest.Configurator(20).setSeed(1)
+        .setBaseLearner((set, classes) -> new HyperPlaneTree.Learner(set, classes, 2)).configure()
+        .fit(impute(x), y);
+    assertCompiledEqualsMembers(forest, impute(x));
+    assertCompiledEqualsMembers(forest, x); // a missing value makes the plane NaN
+  }
+
+  @Test
+  public void testRandomShapeletForest() throws Exception {
+    DataFrame data = Datasets.loadSyntheticControl();
+    DataFrame x = data.drop(0);
+    Vector y = data.get(0);
+    RandomShapeletForest forest =
+        new RandomShapeletForest.Configurator(10).setSeed(1).configure().fit(x, y);
+    assertCompiledEqualsMembers(forest, x);
+  }
+
+  /**
+   * Assert that the batch estimates of the ensemble (by the compiled forest) equal the mean of the
+   * estimates of the members (by the visitors of the trees)
+   */
+  private static void assertCompiledEqualsMembers(Ensemble ensemble, DataFrame x) {
+    assertTrue(CompiledForest.canCompile(ensemble.getEnsembleMembers()));
+    int members = ensemble.getEnsembleMembers().size();
+    DoubleArray expected = DoubleArray.zeros(x.rows(), ensemble.getClasses().size());
+    for (int i = 0; i < x.rows(); i++) {
+      Vector record = x.loc().getRecord(i);
+      DoubleArray estimate = expected.getRow(i);
+      for (Classifier member : ensemble.getEnsembleMembers()) {
+        estimate.plusAssign(member.estimate(record));
+      }
+      estimate.divAssign(members);
+    }
+    assertEstimatesEquals(expected, ensemble.estimate(x), 1e-9);
+  }
+}
@@ -0,0 +1,66 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Isak Karlsson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+ * NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.briljantframework.mimir.classification;
+
+import static org.junit.Assert.assertEquals;
+
+import org.briljantframework.array.BooleanArray;
+import org.briljantframework.array.DoubleArray;
+import org.briljantframework.data.Is;
+import org.briljantframework.data.dataframe.DataFrame;
+
+/**
+ * Fixtures and assertions shared by the tests of the ensembles
+ *
+ * @author Isak Karlsson
+ */
+final class EnsembleTestUtils {
+
+  private EnsembleTestUtils() {}
+
+  /**
+   * @param x the data frame
+   * @return the data frame, with the missing values of each column replaced by its mean
+   */
+  static DataFrame impute(DataFrame x) {
+    return x.apply(v -> v.set(v.where(Is::NA), v.mean()));
+  }
+
+  static void assertEstimatesEquals(DoubleArray expected, DoubleArray actual, double delta) {
+    assertEquals(expected.rows(), actual.rows());
+    assertEquals(expected.columns(), actual.columns());
+    for (int i = 0; i < expected.rows(); i++) {
+      for (int j = 0; j < expected.columns(); j++) {
+        assertEquals(expected.get(i, j), actual.get(i, j), delta);
+      }
+    }
+  }
+
+  static void assertOobIndicatorEquals(BooleanArray expected, BooleanArray actual) {
+    assertEquals(expected.rows(), actual.rows());
+    assertEquals(expected.columns(), actual.columns());
+    for (int i = 0; i < expected.rows(); i++) {
+      for (int j = 0; j < expected.columns(); j++) {
+        assertEquals(expected.get(i, j), actual.get(i, j));
+      }
+    }
+  }
+}
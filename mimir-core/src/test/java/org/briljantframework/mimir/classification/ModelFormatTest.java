@@ -0,0 +1,133 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Isak Karlsson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+ * NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.briljantframework.mimir.classification;
+
+import static org.briljantframework.mimir.classification.EnsembleTestUtils.assertEstimatesEquals;
+import static org.briljantframework.mimir.classification.EnsembleTestUtils.assertOobIndicatorEquals;
+import static org.briljantframework.mimir.classification.EnsembleTestUtils.impute;
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.briljantframework.data.dataframe.DataFrame;
+import org.briljantframework.data.dataframe.DataFrames;
+import org.briljantframework.data.vector.Vector;
+import org.briljantframework.dataset.io.Datasets;
+import org.junit.Test;
+
+/**
+ * @author Isak Karlsson
+ */
+public class ModelFormatTest {
+
+  @Test
+  public void testArraysRoundTrip() throws Exception {
+    byte[] bytes = new byte[13];
+    int[] ints = new int[1001];
+    double[] doubles = {0, -0.0, 1.5, Double.NaN, Double.POSITIVE_INFINITY, Double.MIN_VALUE};
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = (byte) (i * 31);
+    }
+    for (int i = 0; i < ints.length; i++) {
+      ints[i] = i * i - 500;
+    }
+
+    Path path = Files.createTempFile("mimir", ".model");
+    try {
+      ModelFormat.write(path, ModelFormat.TRAINING_DATA, (header, data) -> {
+        header.putInt(42);
+        header.putString("mimir");
+        header.putLong(Long.MIN_VALUE);
+        header.putDouble(Math.PI);
+        data.putBytes(bytes); // leaves the data unaligned
+        data.putInts(ints);
+        data.putDoubles(doubles);
+      });
+
+      ModelFormat.read(path, ModelFormat.TRAINING_DATA, (kind, in) -> {
+        assertEquals(42, in.getInt());
+        assertEquals("mimir", in.getString());
+        assertEquals(Long.MIN_VALUE, in.getLong());
+        assertEquals(Math.PI, in.getDouble(), 0);
+        ByteBuffer[] readBytes = in.mapBytes(bytes.length);
+        IntBuffer[] readInts = in.mapInts(ints.length);
+        DoubleBuffer[] readDoubles = in.mapDoubles(doubles.length);
+        for (int i = 0; i < bytes.length; i++) {
+          assertEquals(bytes[i], ModelFormat.get(readBytes, i));
+        }
+        for (int i = 0; i < ints.length; i++) {
+          assertEquals(ints[i], ModelFormat.get(readInts, i));
+        }
+        for (int i = 0; i < doubles.length; i++) {
+          assertEquals(Double.doubleToRawLongBits(doubles[i]),
+              Double.doubleToRawLongBits(ModelFormat.get(readDoubles, i)));
+        }
+        return null;
+      });
+    } finally {
+      Files.delete(path);
+    }
+  }
+
+  @Test
+  public void testRandomForestRoundTrip() throws Exception {
+    DataFrame iris = DataFrames.permuteRecords(Datasets.loadIris());
+    DataFrame x = impute(iris.drop("Class"));
+    Vector y = iris.get("Class");
+    RandomForest forest = new RandomForest.Configurator(20).setSeed(1).configure().fit(x, y);
+
+    Classifier read = writeAndRead(forest);
+    assertEquals(forest.getClasses(), read.getClasses());
+    assertEstimatesEquals(forest.estimate(x), read.estimate(x), 1e-9);
+  }
+
+  @Test
+  public void testRandomShapeletForestRoundTrip() throws Exception {
+    DataFrame data = Datasets.loadSyntheticControl();
+    DataFrame x = data.drop(0);
+    Vector y = data.get(0);
+    RandomShapeletForest forest =
+        new RandomShapeletForest.Configurator(10).setSeed(1).configure().fit(x, y);
+
+    RandomShapeletForest read = (RandomShapeletForest) writeAndRead(forest);
+    assertEquals(forest.getClasses(), read.getClasses());
+    assertEstimatesEquals(forest.estimate(x), read.estimate(x), 1e-9);
+    assertOobIndicatorEquals(forest.getOobIndicator(), read.getOobIndicator());
+    for (int i = 0; i < x.columns(); i++) {
+      assertEquals(forest.getLengthImportance().get(i), read.getLengthImportance().get(i), 0);
+      assertEquals(forest.getPositionImportance().get(i), read.getPositionImportance().get(i), 0);
+    }
+  }
+
+  private static Classifier writeAndRead(Classifier model) throws Exception {
+    Path path = Files.createTempFile("mimir", ".model");
+    try {
+      ModelFormat.write(model, path);
+      return ModelFormat.read(path);
+    } finally {
+      Files.delete(path);
+    }
+  }
+}
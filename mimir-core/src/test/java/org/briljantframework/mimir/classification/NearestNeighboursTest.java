@@ -0,0 +1,112 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Isak Karlsson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+ * NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.briljantframework.mimir.classification;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.briljantframework.data.dataframe.DataFrame;
+import org.briljantframework.data.dataseries.DataSeriesCollection;
+import org.briljantframework.data.vector.DoubleVector;
+import org.briljantframework.data.vector.Vector;
+import org.briljantframework.mimir.distance.Distance;
+import org.briljantframework.mimir.distance.EuclideanDistance;
+import org.briljantframework.mimir.distance.ManhattanDistance;
+import org.junit.Test;
+
+/**
+ * @author Isak Karlsson
+ */
+public class NearestNeighboursTest {
+
+  @Test
+  public void testVantagePointTreeEqualsScan() throws Exception {
+    Random random = new Random(123);
+    DataFrame x = randomRecords(random, 2000, 3, true);
+    DataFrame queries = randomRecords(random, 100, 3, true);
+    Vector y = randomTargets(random, x.rows(), 3);
+    for (Distance distance : new Distance[] {EuclideanDistance.getInstance(),
+        ManhattanDistance.getInstance()}) {
+      NearestNeighbours.Configurator configurator = new NearestNeighbours.Configurator(5);
+      configurator.setDistance(distance);
+      NearestNeighbours scanned = configurator.configure().fit(x, y);
+      NearestNeighbours indexed = configurator.setIndexed(true).setSeed(1).configure().fit(x, y);
+      assertEquals(1, indexed.recall(queries, 10), 0);
+      for (int i = 0; i < queries.rows(); i++) {
+        Vector query = queries.loc().getRecord(i);
+        for (int k : new int[] {1, 10, 100}) {
+          assertArrayEquals(scanned.nearest(query, k).sortedDistances(),
+              indexed.nearest(query, k).sortedDistances(), 0);
+          NeighbourHeap[] expected = scanned.nearestPerClass(query, k);
+          NeighbourHeap[] actual = indexed.nearestPerClass(query, k);
+          for (int j = 0; j < expected.length; j++) {
+            assertArrayEquals(expected[j].sortedDistances(), actual[j].sortedDistances(), 0);
+          }
+        }
+        double radius = scanned.nearest(query, 20).sortedDistances()[19];
+        int[] expected = scanned.range(query, radius);
+        int[] actual = indexed.range(query, radius);
+        Arrays.sort(actual);
+        assertArrayEquals(expected, actual);
+      }
+    }
+  }
+
+  @Test
+  public void testSmallWorldGraphRecall() throws Exception {
+    Random random = new Random(123);
+    DataFrame x = randomRecords(random, 5000, 10, false);
+    DataFrame queries = randomRecords(random, 200, 10, false);
+    Vector y = randomTargets(random, x.rows(), 3);
+    NearestNeighbours approximate = new NearestNeighbours.Configurator(10).setApproximate(true)
+        .setEf(50).setSeed(1).configure().fit(x, y);
+    double recall = approximate.recall(queries, 10);
+    assertTrue("Recall " + recall, recall >= 0.9);
+  }
+
+  /**
+   * Gaussian records; rounded records (scaled by ten) have exact distances and many ties
+   */
+  private static DataFrame randomRecords(Random random, int rows, int columns, boolean rounded) {
+    DataFrame.Builder x = new DataSeriesCollection.Builder(double.class);
+    for (int i = 0; i < rows; i++) {
+      Vector.Builder record = new DoubleVector.Builder();
+      for (int j = 0; j < columns; j++) {
+        double value = random.nextGaussian();
+        record.add(rounded ? Math.round(value * 10) : value);
+      }
+      x.addRecord(record);
+    }
+    return x.build();
+  }
+
+  private static Vector randomTargets(Random random, int size, int classes) {
+    Vector.Builder y = new DoubleVector.Builder();
+    for (int i = 0; i < size; i++) {
+      y.add(random.nextInt(classes));
+    }
+    return y.build();
+  }
+}
@@ -0,0 +1,79 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Isak Karlsson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+ * NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.briljantframework.mimir.classification;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * @author Isak Karlsson
+ */
+public class NeighbourHeapTest {
+
+  @Test
+  public void testNeighbourHeapEqualsSort() throws Exception {
+    Random random = new Random(123);
+    for (int n : new int[] {1, 5, 100, 1000}) {
+      for (int k : new int[] {1, 3, 10, 200}) {
+        double[] distances = new double[n];
+        for (int i = 0; i < n; i++) {
+          // many ties (to check that the distances of ties are retained)
+          distances[i] = random.nextInt(n / 2 + 1);
+        }
+
+        NeighbourHeap heap = new NeighbourHeap(k);
+        NeighbourHeap first = new NeighbourHeap(k);
+        NeighbourHeap second = new NeighbourHeap(k);
+        for (int i = 0; i < n; i++) {
+          heap.offer(i, distances[i]);
+          (i % 2 == 0 ? first : second).offer(i, distances[i]);
+        }
+        first.offerAll(second);
+
+        double[] expected = distances.clone();
+        Arrays.sort(expected);
+        expected = Arrays.copyOf(expected, Math.min(n, k));
+        assertNeighbours(distances, expected, heap);
+        assertNeighbours(distances, expected, first);
+        assertEquals(n < k ? Double.POSITIVE_INFINITY : expected[k - 1], heap.cutoff(), 0);
+      }
+    }
+  }
+
+  private static void assertNeighbours(double[] distances, double[] expected,
+      NeighbourHeap heap) {
+    assertEquals(expected.length, heap.size());
+    assertArrayEquals(expected, heap.sortedDistances(), 0);
+    int[] indices = heap.sortedIndices();
+    assertEquals(expected.length, Arrays.stream(indices).distinct().count());
+    for (int i = 0; i < indices.length; i++) {
+      assertEquals(expected[i], distances[indices[i]], 0);
+      // ties are ordered by index
+      assertTrue(i == 0 || expected[i - 1] < expected[i] || indices[i - 1] < indices[i]);
+    }
+  }
+}
@@ -0,0 +1,87 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Isak Karlsson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+ * NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.briljantframework.mimir.classification;
+
+import static org.briljantframework.mimir.classification.EnsembleTestUtils.assertEstimatesEquals;
+import static org.briljantframework.mimir.classification.EnsembleTestUtils.assertOobIndicatorEquals;
+import static org.briljantframework.mimir.classification.EnsembleTestUtils.impute;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import org.briljantframework.data.dataframe.DataFrame;
+import org.briljantframework.data.dataframe.DataFrames;
+import org.briljantframework.data.vector.Vector;
+import org.briljantframework.dataset.io.Datasets;
+import org.junit.Test;
+
+/**
+ * @author Isak Karlsson
+ */
+public class RandomForestTest {
+
+  private final DataFrame iris = DataFrames.permuteRecords(Datasets.loadIris());
+  private final DataFrame x = impute(iris.drop("Class"));
+  private final Vector y = iris.get("Class");
+
+  @Test
+  public void testSeededForestIsReproducible() throws Exception {
+    RandomForest.Learner learner = new RandomForest.Configurator(20).setSeed(1).configure();
+    assertEstimatesEquals(learner.fit(x, y).estimate(x), learner.fit(x, y).estimate(x), 0);
+  }
+
+  @Test
+  public void testGrownForestEqualsForest() throws Exception {
+    RandomForest.Learner small = new RandomForest.Configurator(8).setSeed(1).configure();
+    RandomForest.Learner large = new RandomForest.Configurator(20).setSeed(1).configure();
+    RandomForest forest = large.fit(x, y);
+    RandomForest grown = small.grow(small.fit(x, y), x, y, 12);
+    assertEquals(forest.getEnsembleMembers().size(), grown.getEnsembleMembers().size());
+    assertEstimatesEquals(forest.estimate(x), grown.estimate(x), 0);
+    assertOobIndicatorEquals(forest.getOobIndicator(), grown.getOobIndicator());
+  }
+
+  @Test
+  public void testAccumulatedOutOfBagEstimates() throws Exception {
+    RandomForest.Configurator configurator = new RandomForest.Configurator(20).setSeed(1);
+    RandomForest forest = configurator.configure().fit(x, y);
+    RandomForest accumulated = configurator.setOutOfBagEstimates(true).configure().fit(x, y);
+    assertNull(forest.getOutOfBagEstimates());
+    assertNotNull(accumulated.getOutOfBagEstimates());
+    assertEstimatesEquals(Ensemble.oobEstimates(forest, x), Ensemble.oobEstimates(accumulated, x),
+        1e-9);
+  }
+
+  @Test
+  public void testVoteEqualsPredict() throws Exception {
+    RandomForest forest = new RandomForest.Configurator(20).setSeed(1).configure().fit(x, y);
+    int[] reversed = new int[20];
+    for (int i = 0; i < reversed.length; i++) {
+      reversed[i] = reversed.length - i - 1;
+    }
+    for (int i = 0; i < x.rows(); i++) {
+      Vector record = x.loc().getRecord(i);
+      Object expected = forest.predict(record);
+      assertEquals(expected, forest.vote(record).getLabel());
+      assertEquals(expected, forest.vote(record, reversed).getLabel());
+    }
+  }
+}
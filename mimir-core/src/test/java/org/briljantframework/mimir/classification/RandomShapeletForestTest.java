@@ -0,0 +1,112 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Isak Karlsson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+ * NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.briljantframework.mimir.classification;
+
+import static org.briljantframework.mimir.classification.EnsembleTestUtils.assertEstimatesEquals;
+import static org.briljantframework.mimir.classification.EnsembleTestUtils.assertOobIndicatorEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+
+import org.briljantframework.data.dataframe.DataFrame;
+import org.briljantframework.data.vector.Vector;
+import org.briljantframework.dataset.io.Datasets;
+import org.junit.Test;
+
+/**
+ * @author Isak Karlsson
+ */
+public class RandomShapeletForestTest {
+
+  private final DataFrame data = Datasets.loadSyntheticControl();
+  private final DataFrame x = data.drop(0);
+  private final Vector y = data.get(0);
+
+  @Test
+  public void testPruningDoesNotChangeTheTrees() throws Exception {
+    // a candidate is only abandoned once it can't beat the best, so the same splits are chosen.
+    // Only the information gain is pruned; and the six classes and many candidates per node make
+    // the bound exceed the best impurity, which (in parallel) is shared among the threads.
+    for (boolean parallel : new boolean[] {false, true}) {
+      RandomShapeletForest pruned = configurePruning(parallel, true).fit(x, y);
+      RandomShapeletForest unpruned = configurePruning(parallel, false).fit(x, y);
+      assertEstimatesEquals(unpruned.estimate(x), pruned.estimate(x), 0);
+    }
+  }
+
+  private static RandomShapeletForest.Learner configurePruning(boolean parallel,
+      boolean pruning) {
+    return new RandomShapeletForest.Configurator(10).setSeed(1)
+        .setAssessment(ShapeletTree.Learner.Assessment.IG).setMaximumShapelets(100)
+        .setParallel(parallel).setPruning(pruning).configure();
+  }
+
+  @Test
+  public void testSeededForestIsReproducible() throws Exception {
+    // the trees are fitted in parallel, but each tree derives its random numbers from the seed
+    RandomShapeletForest.Learner learner =
+        new RandomShapeletForest.Configurator(10).setSeed(1).configure();
+    assertEstimatesEquals(learner.fit(x, y).estimate(x), learner.fit(x, y).estimate(x), 0);
+  }
+
+  @Test
+  public void testMergedSlicesEqualsForest() throws Exception {
+    RandomShapeletForest.Learner learner =
+        new RandomShapeletForest.Configurator(10).setSeed(1).configure();
+    RandomShapeletForest forest = learner.fit(x, y);
+    RandomShapeletForest merged = RandomShapeletForest
+        .merge(Arrays.asList(learner.fit(x, y, 0, 3), learner.fit(x, y, 3, 10)));
+    assertForestEquals(forest, merged);
+  }
+
+  @Test
+  public void testShardedForestEqualsForest() throws Exception {
+    RandomShapeletForest.Configurator configurator =
+        new RandomShapeletForest.Configurator(10).setSeed(1);
+    RandomShapeletForest forest = configurator.configure().fit(x, y);
+    RandomShapeletForest sharded = new ShardedShapeletForest(configurator, 3).fit(x, y);
+    assertForestEquals(forest, sharded);
+  }
+
+  @Test
+  public void testGrownForestEqualsForest() throws Exception {
+    RandomShapeletForest.Learner small =
+        new RandomShapeletForest.Configurator(4).setSeed(1).configure();
+    RandomShapeletForest.Learner large =
+        new RandomShapeletForest.Configurator(10).setSeed(1).configure();
+    RandomShapeletForest grown = small.grow(small.fit(x, y), x, y, 6);
+    assertForestEquals(large.fit(x, y), grown);
+  }
+
+  private void assertForestEquals(RandomShapeletForest expected, RandomShapeletForest actual) {
+    assertEquals(expected.getClasses(), actual.getClasses());
+    assertEquals(expected.getEnsembleMembers().size(), actual.getEnsembleMembers().size());
+    assertEstimatesEquals(expected.estimate(x), actual.estimate(x), 0);
+    assertOobIndicatorEquals(expected.getOobIndicator(), actual.getOobIndicator());
+    // the importances of the slices are weighted by their number of trees
+    for (int i = 0; i < x.columns(); i++) {
+      assertEquals(expected.getLengthImportance().get(i), actual.getLengthImportance().get(i),
+          1e-9);
+      assertEquals(expected.getPositionImportance().get(i), actual.getPositionImportance().get(i),
+          1e-9);
+    }
+  }
+}
@@ -0,0 +1,87 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Isak Karlsson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+ * NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.briljantframework.mimir.classification;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+import org.junit.Test;
+
+/**
+ * @author Isak Karlsson
+ */
+public class ShapeletTreeTest {
+
+  @Test
+  public void testSortDistancesEqualsStableSort() throws Exception {
+    Random random = new Random(123);
+    for (int size : new int[] {0, 1, 15, 16, 17, 100, 1000}) {
+      double[] distances = new double[size];
+      for (int i = 0; i < size; i++) {
+        double r = random.nextDouble();
+        // many ties (to check stability) and some missing distances
+        distances[i] = r < 0.1 ? Double.NaN : random.nextInt(size / 4 + 1);
+      }
+
+      double[] keys = new double[size];
+      int[] values = new int[size];
+      int n = ShapeletTree.Learner.sortDistances(distances, size, keys, values, new double[size],
+          new int[size]);
+
+      Integer[] expected = IntStream.range(0, size).filter(i -> !Double.isNaN(distances[i]))
+          .boxed().toArray(Integer[]::new);
+      Arrays.sort(expected, Comparator.comparingDouble(i -> distances[i]));
+      assertEquals(expected.length, n);
+      for (int i = 0; i < n; i++) {
+        assertEquals(expected[i].intValue(), values[i]);
+        assertEquals(distances[expected[i]], keys[i], 0);
+      }
+    }
+  }
+
+  @Test
+  public void testSortDistancesOfSortedAndReversed() throws Exception {
+    int size = 100;
+    double[] ascending = new double[size];
+    double[] descending = new double[size];
+    for (int i = 0; i < size; i++) {
+      ascending[i] = i;
+      descending[i] = size - i - 1;
+    }
+    double[] keys = new double[size];
+    int[] values = new int[size];
+    ShapeletTree.Learner.sortDistances(ascending, size, keys, values, new double[size],
+        new int[size]);
+    assertArrayEquals(ascending, keys, 0);
+
+    ShapeletTree.Learner.sortDistances(descending, size, keys, values, new double[size],
+        new int[size]);
+    assertArrayEquals(ascending, keys, 0);
+    for (int i = 0; i < size; i++) {
+      assertEquals(size - i - 1, values[i]);
+    }
+  }
+}
@@ -0,0 +1,120 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Isak Karlsson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+ * NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.briljantframework.mimir.classification.conformal;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+import org.briljantframework.array.DoubleArray;
+import org.briljantframework.data.Is;
+import org.briljantframework.data.dataframe.DataFrame;
+import org.briljantframework.data.dataseries.DataSeriesCollection;
+import org.briljantframework.data.vector.DoubleVector;
+import org.briljantframework.data.vector.Vector;
+import org.briljantframework.mimir.classification.NearestNeighbours;
+import org.junit.Test;
+
+/**
+ * @author Isak Karlsson
+ */
+public class DistanceNonconformityTest {
+
+  @Test
+  public void testScoresEqualSortedDistances() throws Exception {
+    Random random = new Random(123);
+    // Examples with a missing value are at a NaN distance, which is only among the k nearest if
+    // fewer than k examples are at a known distance; e.g., for the third class (of two examples,
+    // one with a missing value) and for queries with a missing value. Then the score is infinite.
+    DataFrame.Builder builder = new DataSeriesCollection.Builder(double.class);
+    Vector.Builder targets = new DoubleVector.Builder();
+    for (int i = 0; i < 200; i++) {
+      int target = i < 2 ? 2 : i % 2;
+      builder.addRecord(randomRecord(random, target, i == 0 || random.nextDouble() < 0.1));
+      targets.add(target);
+    }
+    DataFrame x = builder.build();
+    Vector y = targets.build();
+    Vector labels = Vector.of(0, 1, 2, 3); // no example has the last label
+
+    NearestNeighbours neighbours = new NearestNeighbours.Learner(1).fit(x, y);
+    for (int k : new int[] {1, 3, 10, 190}) {
+      DistanceNonconformity nonconformity = new DistanceNonconformity(neighbours, k);
+      for (int i = 0; i < 50; i++) {
+        Vector example = randomRecord(random, random.nextInt(3), i % 10 == 0).build();
+        DoubleArray scores = nonconformity.estimateAll(example, labels);
+        for (int j = 0; j < labels.size(); j++) {
+          double expected = sortedDistanceScore(neighbours, example, labels.loc().get(j), k);
+          assertEquals(expected, nonconformity.estimate(example, labels.loc().get(j)), 1e-9);
+          assertEquals(expected, scores.get(j), 1e-9);
+        }
+      }
+    }
+  }
+
+  private static Vector.Builder randomRecord(Random random, int target, boolean missing) {
+    Vector.Builder record = new DoubleVector.Builder();
+    for (int j = 0; j < 4; j++) {
+      record.add(random.nextGaussian() + target);
+    }
+    if (missing) {
+      record.loc().set(random.nextInt(4), Double.NaN);
+    }
+    return record;
+  }
+
+  /**
+   * The score computed by sorting the distances to every example (with NaN distances last), i.e.,
+   * the sum of the k smallest distances to examples with the label divided by the sum of the k
+   * smallest distances to examples with a different label
+   */
+  private static double sortedDistanceScore(NearestNeighbours neighbours, Vector example,
+      Object label, int k) {
+    Vector targets = neighbours.getTarget();
+    DoubleArray distances = neighbours.distance(example);
+    Integer[] order = IntStream.range(0, distances.size()).boxed().toArray(Integer[]::new);
+    Arrays.sort(order, Comparator.comparingDouble(distances::get));
+    double posDist = 0;
+    double negDist = 0;
+    int kp = 0;
+    int kn = 0;
+    for (int i = 0; i < order.length && (kp < k || kn < k); i++) {
+      int o = order[i];
+      boolean same = Is.equal(targets.loc().get(o), label);
+      if (same && kp < k) {
+        posDist += distances.get(o);
+        kp++;
+      } else if (!same && kn < k) {
+        negDist += distances.get(o);
+        kn++;
+      }
+    }
+    if (Double.isNaN(posDist)) {
+      return Double.POSITIVE_INFINITY;
+    } else if (Double.isNaN(negDist)) {
+      return Double.NEGATIVE_INFINITY;
+    }
+    return negDist == 0 ? 0 : posDist / negDist;
+  }
+}
@@ -0,0 +1,112 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Isak Karlsson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+ * NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.briljantframework.mimir.distance;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.briljantframework.data.vector.DoubleVector;
+import org.briljantframework.data.vector.Vector;
+import org.junit.Test;
+
+/**
+ * @author Isak Karlsson
+ */
+public class DynamicTimeWarpingTest {
+
+  @Test
+  public void testDistanceEqualsFullCostMatrix() throws Exception {
+    Random random = new Random(123);
+    for (Distance local : new Distance[] {EuclideanDistance.getInstance(),
+        ManhattanDistance.getInstance()}) {
+      for (int constraint : new int[] {-1, 0, 3, 10}) {
+        DynamicTimeWarping dtw = new DynamicTimeWarping(local, constraint);
+        for (int i = 0; i < 50; i++) {
+          Vector a = randomWalk(random, 30 + random.nextInt(2) * 10);
+          Vector b = randomWalk(random, 40);
+          assertEquals(naiveDtw(local, constraint, a, b), dtw.compute(a, b), 1e-9);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testLowerBoundCascadeNeverAbandonsCloserSeries() throws Exception {
+    Random random = new Random(321);
+    for (Distance local : new Distance[] {EuclideanDistance.getInstance(),
+        ManhattanDistance.getInstance()}) {
+      for (int constraint : new int[] {-1, 0, 3, 10}) {
+        DynamicTimeWarping dtw = new DynamicTimeWarping(local, constraint);
+        for (int i = 0; i < 50; i++) {
+          Vector query = randomWalk(random, 30 + random.nextInt(2) * 10);
+          Vector series = randomWalk(random, 40);
+          EarlyAbandonDistance.Reference reference = dtw.prepare(series);
+          double expected = naiveDtw(local, constraint, query, series);
+          for (double cutoff : new double[] {0, expected / 2, expected, expected * 1.01,
+              Double.POSITIVE_INFINITY}) {
+            double withCascade = dtw.compute(query, reference, cutoff);
+            double withCutoff = dtw.compute(query, series, cutoff);
+            if (expected < cutoff) {
+              assertEquals(expected, withCascade, 1e-9);
+              assertEquals(expected, withCutoff, 1e-9);
+            } else {
+              // an abandoned computation is reported as infinitely far away
+              assertTrue(withCascade >= cutoff);
+              assertTrue(withCutoff >= cutoff);
+            }
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * The warping distance computed using the full cost matrix (restricted to the band)
+   */
+  private static double naiveDtw(Distance local, int constraint, Vector a, Vector b) {
+    int n = a.size(), m = b.size();
+    int width = constraint < 0 ? Math.max(n, m) : Math.max(constraint, Math.abs(n - m));
+    double[][] cost = new double[n + 1][m + 1];
+    for (double[] row : cost) {
+      java.util.Arrays.fill(row, Double.POSITIVE_INFINITY);
+    }
+    cost[0][0] = 0;
+    for (int i = 1; i <= n; i++) {
+      for (int j = Math.max(1, i - width); j <= Math.min(m, i + width); j++) {
+        double d = local.compute(a.loc().getAsDouble(i - 1), b.loc().getAsDouble(j - 1));
+        cost[i][j] = d + Math.min(cost[i - 1][j - 1], Math.min(cost[i - 1][j], cost[i][j - 1]));
+      }
+    }
+    return cost[n][m];
+  }
+
+  private static Vector randomWalk(Random random, int length) {
+    Vector.Builder series = new DoubleVector.Builder();
+    double value = 0;
+    for (int i = 0; i < length; i++) {
+      value += random.nextGaussian();
+      series.add(value);
+    }
+    return series.build();
+  }
+}
@@ -0,0 +1,109 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Isak Karlsson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+ * NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.briljantframework.mimir.distance;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.briljantframework.data.dataframe.DataFrame;
+import org.briljantframework.data.dataseries.DataSeriesCollection;
+import org.briljantframework.data.vector.DoubleVector;
+import org.briljantframework.data.vector.Vector;
+import org.briljantframework.mimir.shapelet.SeriesStore;
+import org.junit.Test;
+
+/**
+ * @author Isak Karlsson
+ */
+public class MassDistanceTest {
+
+  @Test
+  public void testMassEqualsNaiveSlidingDistance() throws Exception {
+    Random random = new Random(123);
+    DataFrame x = randomWalks(random, 4, 1500);
+    SeriesStore store = SeriesStore.create(x);
+    MassDistance mass = new MassDistance(0, 0); // always use the FFT
+    EarlyAbandonSlidingDistance direct =
+        new EarlyAbandonSlidingDistance(EuclideanDistance.getInstance());
+    for (int m : new int[] {2, 17, 128, 700, 1500}) {
+      for (int series = 0; series < x.rows(); series++) {
+        Vector source = x.loc().getRecord(random.nextInt(x.rows()));
+        double[] shapelet = normalize(source, random.nextInt(source.size() - m + 1), m);
+        double expected = naiveSlidingDistance(x.loc().getRecord(series), shapelet);
+        // the profile is computed from sums of products, whose rounding errors are amplified by
+        // the square root of (almost) exact matches
+        assertEquals(expected, mass.compute(store, series, shapelet, null), 1e-5);
+        assertEquals(expected, direct.compute(store, series, shapelet, null), 1e-5);
+      }
+    }
+  }
+
+  /**
+   * The minimum z-normalized euclidean distance of the shapelet and every window of the series
+   */
+  private static double naiveSlidingDistance(Vector series, double[] shapelet) {
+    int m = shapelet.length;
+    double min = Double.POSITIVE_INFINITY;
+    for (int start = 0; start + m <= series.size(); start++) {
+      double[] window = normalize(series, start, m);
+      double sum = 0;
+      for (int i = 0; i < m; i++) {
+        sum += (window[i] - shapelet[i]) * (window[i] - shapelet[i]);
+      }
+      min = Math.min(min, sum);
+    }
+    return Math.sqrt(min / m);
+  }
+
+  private static double[] normalize(Vector series, int start, int m) {
+    double mean = 0;
+    for (int i = 0; i < m; i++) {
+      mean += series.loc().getAsDouble(start + i);
+    }
+    mean /= m;
+    double variance = 0;
+    for (int i = 0; i < m; i++) {
+      double d = series.loc().getAsDouble(start + i) - mean;
+      variance += d * d;
+    }
+    double std = Math.sqrt(variance / m);
+    double[] normalized = new double[m];
+    for (int i = 0; i < m; i++) {
+      normalized[i] = std > 0 ? (series.loc().getAsDouble(start + i) - mean) / std : 0;
+    }
+    return normalized;
+  }
+
+  private static DataFrame randomWalks(Random random, int rows, int length) {
+    DataFrame.Builder x = new DataSeriesCollection.Builder(double.class);
+    for (int i = 0; i < rows; i++) {
+      Vector.Builder record = new DoubleVector.Builder();
+      double value = 0;
+      for (int j = 0; j < length; j++) {
+        value += random.nextGaussian();
+        record.add(value);
+      }
+      x.addRecord(record);
+    }
+    return x.build();
+  }
+}
@@ -0,0 +1,213 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Isak Karlsson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+ * NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.briljantframework.mimir.distance;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.briljantframework.data.dataframe.DataFrame;
+import org.briljantframework.data.dataseries.DataSeriesCollection;
+import org.briljantframework.data.vector.DoubleVector;
+import org.briljantframework.data.vector.Vector;
+import org.briljantframework.mimir.shapelet.NormalizedShapelet;
+import org.briljantframework.mimir.shapelet.SeriesStore;
+import org.junit.Test;
+
+/**
+ * @author Isak Karlsson
+ */
+public class SeriesStoreDistanceTest {
+
+  private static final int LENGTH = 120;
+
+  private final EarlyAbandonSlidingDistance distance =
+      new EarlyAbandonSlidingDistance(EuclideanDistance.getInstance());
+
+  @Test
+  public void testUnivariate() throws Exception {
+    Random random = new Random(123);
+    DataFrame.Builder builder = new DataSeriesCollection.Builder(double.class);
+    for (int i = 0; i < 10; i++) {
+      builder.addRecord(series(random, LENGTH));
+    }
+    for (double value : new double[] {3.7, -1.3, 100.0 / 7}) {
+      builder.addRecord(constant(LENGTH, value));
+    }
+    DataFrame x = builder.build();
+    SeriesStore store = SeriesStore.create(x);
+    for (int m : new int[] {2, 7, 16, 64, LENGTH}) {
+      for (double[] shapelet : shapelets(random, x, m)) {
+        for (int i = 0; i < x.rows(); i++) {
+          assertDistanceEquals(store, i, x.loc().getRecord(i), shapelet);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testConstantWindows() throws Exception {
+    Random random = new Random(231);
+    DataFrame.Builder builder = new DataSeriesCollection.Builder(double.class);
+    for (int i = 0; i < 20; i++) {
+      builder.addRecord(series(random, LENGTH));
+    }
+    DataFrame x = builder.build();
+    SeriesStore store = SeriesStore.create(x);
+    int flat = LENGTH / 4; // the length of the flat segment starting at LENGTH / 4
+    for (int i = 0; i < x.rows(); i++) {
+      for (int m = 1; m <= flat; m++) {
+        for (int start = flat; start + m <= 2 * flat; start++) {
+          assertEquals(0, store.std(i, start, m), 0);
+        }
+        assertEquals(0, distance.compute(store, i, new double[m], null), 0);
+      }
+    }
+  }
+
+  @Test
+  public void testMultivariate() throws Exception {
+    Random random = new Random(321);
+    int[] lengths = {LENGTH, LENGTH / 2, 40};
+    DataFrame.Builder builder = new DataSeriesCollection.Builder(Vector.class);
+    for (int i = 0; i < 5; i++) {
+      Vector[] channels = new Vector[lengths.length];
+      for (int j = 0; j < lengths.length; j++) {
+        channels[j] = (i + j) % 4 == 0 ? constant(lengths[j], 0.1 * i - j).build()
+            : series(random, lengths[j]).build();
+      }
+      builder.addRecord(Vector.of((Object[]) channels));
+    }
+    DataFrame x = builder.build();
+    SeriesStore store = SeriesStore.create(x);
+    assertEquals(lengths.length, store.channels());
+    for (int j = 0; j < lengths.length; j++) {
+      for (int m : new int[] {3, 25, lengths[j]}) {
+        for (int i = 0; i < x.rows(); i++) {
+          Vector channel = x.loc().getRecord(i).loc().get(Vector.class, j);
+          for (double[] shapelet : shapelets(random, channel, m)) {
+            assertDistanceEquals(store, store.index(i, j), channel, shapelet);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Assert that the packed path (with and without an inspection order) agrees with the
+   * {@link Vector} path and with the naive z-normalized sliding distance.
+   */
+  private void assertDistanceEquals(SeriesStore store, int index, Vector series,
+      double[] shapelet) {
+    double expected = naiveSlidingDistance(series, shapelet);
+    double packed = distance.compute(store, index, shapelet, null);
+    assertEquals(expected, packed, 1e-6);
+    assertEquals(packed, distance.compute(store, index, shapelet, order(shapelet)), 1e-12);
+    assertEquals(packed, distance.compute(series, new NormalizedShapelet(shapelet)), 1e-6);
+  }
+
+  /**
+   * A random window of the series, a random series and a constant shapelet of length {@code m}
+   */
+  private static double[][] shapelets(Random random, Vector series, int m) {
+    Vector walk = series(random, m).build();
+    return new double[][] {normalize(series, random.nextInt(series.size() - m + 1), m),
+        normalize(walk, 0, m), new double[m]};
+  }
+
+  private static double[][] shapelets(Random random, DataFrame x, int m) {
+    return shapelets(random, x.loc().getRecord(random.nextInt(x.rows())), m);
+  }
+
+  /**
+   * The positions of the shapelet ordered by decreasing absolute value
+   */
+  private static int[] order(double[] shapelet) {
+    return java.util.stream.IntStream.range(0, shapelet.length).boxed()
+        .sorted((a, b) -> Double.compare(Math.abs(shapelet[b]), Math.abs(shapelet[a])))
+        .mapToInt(Integer::intValue).toArray();
+  }
+
+  /**
+   * The minimum z-normalized euclidean distance of the shapelet and every window of the series
+   */
+  private static double naiveSlidingDistance(Vector series, double[] shapelet) {
+    int m = shapelet.length;
+    double min = Double.POSITIVE_INFINITY;
+    for (int start = 0; start + m <= series.size(); start++) {
+      double[] window = normalize(series, start, m);
+      double sum = 0;
+      for (int i = 0; i < m; i++) {
+        sum += (window[i] - shapelet[i]) * (window[i] - shapelet[i]);
+      }
+      min = Math.min(min, sum);
+    }
+    return Math.sqrt(min / m);
+  }
+
+  /**
+   * Z-normalize the window {@code [start, start + m)}; a constant window is normalized to zeros
+   * (even if the mean is inexact)
+   */
+  private static double[] normalize(Vector series, int start, int m) {
+    double mean = 0;
+    boolean constant = true;
+    for (int i = 0; i < m; i++) {
+      mean += series.loc().getAsDouble(start + i);
+      constant &= series.loc().getAsDouble(start + i) == series.loc().getAsDouble(start);
+    }
+    mean /= m;
+    double variance = 0;
+    for (int i = 0; i < m; i++) {
+      double d = series.loc().getAsDouble(start + i) - mean;
+      variance += d * d;
+    }
+    double std = Math.sqrt(variance / m);
+    double[] normalized = new double[m];
+    for (int i = 0; i < m; i++) {
+      normalized[i] = !constant ? (series.loc().getAsDouble(start + i) - mean) / std : 0;
+    }
+    return normalized;
+  }
+
+  /**
+   * A random walk, interrupted by a flat segment (longer than most shapelets) in the middle
+   */
+  private static Vector.Builder series(Random random, int length) {
+    Vector.Builder record = new DoubleVector.Builder();
+    double value = 0;
+    for (int j = 0; j < length; j++) {
+      if (j < length / 4 || j >= length / 2) {
+        value += random.nextGaussian();
+      }
+      record.add(value);
+    }
+    return record;
+  }
+
+  private static Vector.Builder constant(int length, double value) {
+    Vector.Builder record = new DoubleVector.Builder();
+    for (int j = 0; j < length; j++) {
+      record.add(value);
+    }
+    return record;
+  }
+}